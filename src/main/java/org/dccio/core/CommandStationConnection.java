@@ -1,5 +1,10 @@
 package org.dccio.core;
 
+import org.dccio.core.outbound.CommandScheduler;
+import org.dccio.core.outbound.SpeedPacer;
+import org.dccio.core.programming.OpsModeQueue;
+import org.dccio.core.programming.ProgrammingQueue;
+
 import java.io.Closeable;
 import java.io.IOException;
 
@@ -81,6 +86,18 @@ public interface CommandStationConnection extends Closeable {
      */
     void setPower(String powerState) throws IOException;
 
+    /**
+     * Tell the command station to stop every locomotive it is driving,
+     * including ones with no session here, ahead of any queued traffic.
+     * Returns once the command has been handed to the protocol stack. The
+     * default does nothing, for systems without such a command; open
+     * sessions are stopped individually by the caller either way.
+     *
+     * @throws IOException if the command cannot be sent
+     */
+    default void emergencyStop() throws IOException {
+    }
+
     /**
      * Request command station version information from the command station.
      * This is an asynchronous operation - the version info will be updated
@@ -90,6 +107,55 @@ public interface CommandStationConnection extends Closeable {
      */
     void requestVersion() throws IOException;
 
+    /**
+     * Outbound command queue of this connection, used for priority ordering
+     * and queue statistics.
+     *
+     * @return the scheduler, or null if commands are sent directly
+     */
+    default CommandScheduler getCommandScheduler() {
+        return null;
+    }
+
+    /**
+     * Pacing of speed updates for this connection, derived from the load on
+     * its {@link #getCommandScheduler() scheduler}.
+     *
+     * @return the pacer, or null if speed updates are not paced
+     */
+    default SpeedPacer getSpeedPacer() {
+        return null;
+    }
+
+    /**
+     * Queue running batch CV reads and writes on this connection's
+     * {@link #getProgrammer() programmer}.
+     *
+     * @return the queue, or null if the connection cannot program
+     */
+    default ProgrammingQueue getProgrammingQueue() {
+        return null;
+    }
+
+    /**
+     * Access operations-mode (programming on the main) CV writes bound to this connection.
+     *
+     * @return the programmer, or null if the connection cannot program on the main
+     */
+    default OpsModeProgrammer getOpsModeProgrammer() {
+        return null;
+    }
+
+    /**
+     * Queue running operations-mode CV writes across many locomotives on
+     * this connection's {@link #getOpsModeProgrammer() ops mode programmer}.
+     *
+     * @return the queue, or null if the connection cannot program on the main
+     */
+    default OpsModeQueue getOpsModeQueue() {
+        return null;
+    }
+
     /**
      * Close and dispose of the underlying resources.
      */
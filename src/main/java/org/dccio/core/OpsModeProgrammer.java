@@ -0,0 +1,31 @@
+package org.dccio.core;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Operations-mode ("programming on the main") CV writes bound to a single
+ * logical command station connection.
+ * <p>
+ * This is intended to wrap JMRI addressed programmers such as
+ * {@code jmri.jmrix.lenz.XNetOpsModeProgrammer} or
+ * {@code jmri.jmrix.dccpp.DCCppOpsModeProgrammer}. Writes are sent on the
+ * main track alongside throttle traffic; batches across many locomotives are
+ * run through {@link org.dccio.core.programming.OpsModeQueue}.
+ */
+public interface OpsModeProgrammer {
+
+    /**
+     * @return the owning logical connection id.
+     */
+    String getConnectionId();
+
+    /**
+     * Write a configuration variable of the decoder at {@code address}.
+     *
+     * @return a future completed when the command station has accepted the
+     *         write, or exceptionally with an {@link IOException}. Most
+     *         command stations cannot confirm that the decoder took it.
+     */
+    CompletableFuture<Void> writeCvAsync(int address, boolean longAddress, int cv, int value);
+}
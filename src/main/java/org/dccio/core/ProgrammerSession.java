@@ -2,6 +2,11 @@ package org.dccio.core;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Programming interface bound to a single logical command station connection.
@@ -9,9 +14,17 @@ import java.io.IOException;
  * This is intended to wrap JMRI programmer classes such as
  * {@code jmri.jmrix.lenz.XNetProgrammer} or
  * {@code jmri.jmrix.dccpp.DCCppProgrammer}.
+ * <p>
+ * Operations are asynchronous: the command station can only work on one CV
+ * at a time, so implementations queue requests and complete each future when
+ * the decoder has answered. Batches of CVs are run through
+ * {@link org.dccio.core.programming.ProgrammingQueue}.
  */
 public interface ProgrammerSession extends Closeable {
 
+    /** Longest time {@link #readCv(int)} and {@link #writeCv(int, int)} wait, queueing included. */
+    long BLOCKING_TIMEOUT_SECONDS = 300;
+
     /**
      * @return the owning logical connection id.
      */
@@ -19,16 +32,55 @@ public interface ProgrammerSession extends Closeable {
 
     /**
      * Read a configuration variable.
+     *
+     * @return a future completed with the value, or exceptionally with an
+     *         {@link IOException} if the read failed or timed out
      */
-    int readCv(int cv) throws IOException;
+    CompletableFuture<Integer> readCvAsync(int cv);
 
     /**
      * Write a configuration variable.
+     *
+     * @return a future completed when the write has been acknowledged, or
+     *         exceptionally with an {@link IOException}
+     */
+    CompletableFuture<Void> writeCvAsync(int cv, int value);
+
+    /**
+     * Read a configuration variable, blocking until it has been read.
      */
-    void writeCv(int cv, int value) throws IOException;
+    default int readCv(int cv) throws IOException {
+        return await(readCvAsync(cv));
+    }
+
+    /**
+     * Write a configuration variable, blocking until it has been written.
+     */
+    default void writeCv(int cv, int value) throws IOException {
+        await(writeCvAsync(cv, value));
+    }
 
     @Override
     void close();
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get(BLOCKING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while programming", e);
+        } catch (CancellationException e) {
+            throw new IOException("Programming cancelled", e);
+        } catch (TimeoutException e) {
+            throw new IOException("No answer from the programmer within " + BLOCKING_TIMEOUT_SECONDS + " s", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 }
 
 
@@ -0,0 +1,82 @@
+package org.dccio.core;
+
+/**
+ * DCC speed-step modes. A normalized speed (0.0 to 1.0) is carried on the
+ * wire as one of {@link #getSteps()} running steps, plus stop.
+ */
+public enum SpeedStepMode {
+    STEPS_14(14),
+    STEPS_28(28),
+    STEPS_128(126); // 128 codes: stop, emergency stop and 126 running steps
+
+    private final int steps;
+
+    SpeedStepMode(int steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * @return the number of running steps (excluding stop).
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * Map a normalized speed to a running step, 0 meaning stop.
+     *
+     * @param speed normalized speed; values outside 0.0-1.0 are clamped
+     * @return a step in the range {@code 0..getSteps()}
+     */
+    public int toStep(float speed) {
+        if (!(speed > 0)) {
+            return 0;
+        }
+        if (speed >= 1) {
+            return steps;
+        }
+        return Math.round(speed * steps);
+    }
+
+    /**
+     * @return the normalized speed of running step {@code step}, 0 meaning stop.
+     */
+    public float fromStep(int step) {
+        if (step <= 0) {
+            return 0f;
+        }
+        return step >= steps ? 1f : (float) step / steps;
+    }
+
+    /**
+     * @return {@code speed} rounded to the nearest speed this mode can carry.
+     */
+    public float quantize(float speed) {
+        return fromStep(toStep(speed));
+    }
+
+    /**
+     * @return true if {@code a} and {@code b} map to the same step on the wire.
+     */
+    public boolean sameStep(float a, float b) {
+        return toStep(a) == toStep(b);
+    }
+
+    /**
+     * Find the mode from the size of one speed step, as reported by throttle
+     * implementations (e.g. 1/126 for 128-step mode).
+     */
+    public static SpeedStepMode fromIncrement(float increment) {
+        if (!(increment > 0)) {
+            return STEPS_128;
+        }
+        int steps = Math.round(1 / increment);
+        if (steps <= STEPS_14.steps) {
+            return STEPS_14;
+        }
+        if (steps <= STEPS_28.steps) {
+            return STEPS_28;
+        }
+        return STEPS_128;
+    }
+}
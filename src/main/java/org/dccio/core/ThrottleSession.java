@@ -2,6 +2,7 @@ package org.dccio.core;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.BitSet;
 
 /**
  * Represents an active throttle session for a single locomotive on a given
@@ -14,6 +15,12 @@ import java.io.IOException;
  */
 public interface ThrottleSession extends Closeable {
 
+    /**
+     * Highest function number a session can carry (F0..F68, as used by
+     * current decoders and DCC's extended function instructions).
+     */
+    int MAX_FUNCTION = 68;
+
     /**
      * @return the owning logical connection id.
      */
@@ -36,6 +43,16 @@ public interface ThrottleSession extends Closeable {
      */
     void setSpeed(float speed) throws IOException;
 
+    /**
+     * Stop the locomotive at once: the stop goes ahead of queued traffic, a
+     * speed still waiting to be sent is dropped, and {@link #getSpeed()}
+     * reports 0 from now on. Returns once the stop has been handed to the
+     * protocol stack.
+     */
+    default void emergencyStop() throws IOException {
+        setSpeed(0f);
+    }
+
     /**
      * Set direction.
      *
@@ -48,6 +65,29 @@ public interface ThrottleSession extends Closeable {
      */
     void setFunction(int functionNumber, boolean on) throws IOException;
 
+    /**
+     * Set several functions at once. Implementations that can carry related
+     * functions in a single command (e.g. an XpressNet function group)
+     * override this to send one command per group instead of one per function.
+     *
+     * @param mask   the functions to change (bit n = Fn)
+     * @param states the new states; only bits set in {@code mask} are used
+     */
+    default void setFunctions(BitSet mask, BitSet states) throws IOException {
+        for (int f = mask.nextSetBit(0); f >= 0; f = mask.nextSetBit(f + 1)) {
+            setFunction(f, states.get(f));
+        }
+    }
+
+    /**
+     * @return the speed-step mode speeds for this locomotive are sent in.
+     *         Implementations quantize speeds to it, so speeds mapping to the
+     *         same step are the same command on the wire.
+     */
+    default SpeedStepMode getSpeedStepMode() {
+        return SpeedStepMode.STEPS_128;
+    }
+
     /**
      * @return the current speed setting (0.0 to 1.0).
      */
@@ -63,6 +103,24 @@ public interface ThrottleSession extends Closeable {
      */
     boolean getFunction(int functionNumber);
 
+    /**
+     * Read all functions at once. Implementations that keep function state
+     * as a bitmask override this to copy it instead of asking for each
+     * function in turn.
+     *
+     * @return the states of F0..{@link #MAX_FUNCTION} (bit n = Fn); the
+     *         caller owns the returned set
+     */
+    default BitSet getFunctions() {
+        BitSet states = new BitSet(MAX_FUNCTION + 1);
+        for (int f = 0; f <= MAX_FUNCTION; f++) {
+            if (getFunction(f)) {
+                states.set(f);
+            }
+        }
+        return states;
+    }
+
     /**
      * Release any underlying JMRI throttle allocations but keep the connection
      * itself alive.
@@ -0,0 +1,205 @@
+package org.dccio.core.consist;
+
+import org.dccio.core.SpeedStepMode;
+import org.dccio.core.ThrottleSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Several locomotives driven as one throttle: a lead plus members, each of
+ * which may be coupled facing the other way.
+ * <p>
+ * A speed or direction change is handed to every member's session in turn,
+ * so the frames for the whole consist are queued back to back on the
+ * connection they share. Functions and the reported state are the lead's.
+ * The member sessions stay owned by whoever opened them; closing a consist
+ * does not close them.
+ */
+public final class Consist implements ThrottleSession {
+
+    /**
+     * One locomotive of a consist.
+     */
+    public static final class Member {
+        private final ThrottleSession session;
+        private final boolean inverted;
+
+        public Member(ThrottleSession session, boolean inverted) {
+            this.session = Objects.requireNonNull(session, "session");
+            this.inverted = inverted;
+        }
+
+        public ThrottleSession getSession() {
+            return session;
+        }
+
+        /**
+         * @return true if this locomotive runs in reverse when the consist
+         *         runs forward.
+         */
+        public boolean isInverted() {
+            return inverted;
+        }
+    }
+
+    private final String id;
+    private final List<Member> members; // lead first
+
+    /**
+     * @param members the locomotives behind the lead, all on the lead's
+     *                connection
+     */
+    public Consist(String id, ThrottleSession lead, List<Member> members) {
+        this.id = Objects.requireNonNull(id, "id");
+        List<Member> all = new ArrayList<>(members.size() + 1);
+        all.add(new Member(lead, false));
+        for (Member member : members) {
+            ThrottleSession session = member.getSession();
+            if (!Objects.equals(session.getConnectionId(), lead.getConnectionId())) {
+                throw new IllegalArgumentException("Consist member " + session.getAddress()
+                        + " is not on connection " + lead.getConnectionId());
+            }
+            for (Member existing : all) {
+                if (existing.getSession().getAddress() == session.getAddress()
+                        && existing.getSession().isLongAddress() == session.isLongAddress()) {
+                    throw new IllegalArgumentException("Address " + session.getAddress() + " is in the consist twice");
+                }
+            }
+            all.add(member);
+        }
+        this.members = Collections.unmodifiableList(all);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public ThrottleSession getLead() {
+        return members.get(0).getSession();
+    }
+
+    /**
+     * @return every locomotive of the consist, lead first.
+     */
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return true if {@code address} is one of the consist's locomotives.
+     */
+    public boolean contains(int address, boolean longAddress) {
+        for (Member member : members) {
+            if (member.getSession().getAddress() == address && member.getSession().isLongAddress() == longAddress) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String getConnectionId() {
+        return getLead().getConnectionId();
+    }
+
+    @Override
+    public int getAddress() {
+        return getLead().getAddress();
+    }
+
+    @Override
+    public boolean isLongAddress() {
+        return getLead().isLongAddress();
+    }
+
+    @Override
+    public void setSpeed(float speed) throws IOException {
+        IOException failure = null;
+        for (Member member : members) {
+            try {
+                member.getSession().setSpeed(speed);
+            } catch (IOException e) {
+                // keep the rest of the consist moving together
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void emergencyStop() throws IOException {
+        IOException failure = null;
+        for (Member member : members) {
+            try {
+                member.getSession().emergencyStop();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void setDirection(boolean forward) throws IOException {
+        IOException failure = null;
+        for (Member member : members) {
+            try {
+                member.getSession().setDirection(forward != member.isInverted());
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void setFunction(int functionNumber, boolean on) throws IOException {
+        getLead().setFunction(functionNumber, on);
+    }
+
+    @Override
+    public void setFunctions(BitSet mask, BitSet states) throws IOException {
+        getLead().setFunctions(mask, states);
+    }
+
+    @Override
+    public SpeedStepMode getSpeedStepMode() {
+        return getLead().getSpeedStepMode();
+    }
+
+    @Override
+    public float getSpeed() {
+        return getLead().getSpeed();
+    }
+
+    @Override
+    public boolean getDirection() {
+        return getLead().getDirection();
+    }
+
+    @Override
+    public boolean getFunction(int functionNumber) {
+        return getLead().getFunction(functionNumber);
+    }
+
+    @Override
+    public BitSet getFunctions() {
+        return getLead().getFunctions();
+    }
+
+    @Override
+    public void close() {
+        // the member sessions belong to the throttle service
+    }
+}
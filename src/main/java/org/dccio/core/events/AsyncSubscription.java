@@ -0,0 +1,214 @@
+package org.dccio.core.events;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Subscription with its own bounded ring buffer and drain thread, so that a
+ * slow listener never blocks the thread that publishes (typically a JMRI
+ * traffic-controller receive thread).
+ * <p>
+ * Publishing takes a short uncontended lock to append to the ring and only
+ * unparks the drain thread when it is actually waiting. With
+ * {@link OverflowPolicy#CONFLATE} the ring position of the newest queued
+ * event per {@link DccEvent#conflationKey() conflation key} is kept in a
+ * map, so replacing a superseded event never scans the ring.
+ */
+final class AsyncSubscription extends Subscription implements Runnable {
+
+    private final DccEventBus bus;
+    private final DccEvent[] ring;
+    private final int mask;
+    // CONFLATE only, guarded by "this": the conflation key of each queued
+    // event, and the ring position of the newest queued event per key
+    private final Object[] keys;
+    private final Map<Object, Long> newest;
+    private final Thread drainThread;
+
+    // ring indices and counters, guarded by "this"
+    private long head; // next slot to read
+    private long tail; // next slot to write
+    private int maxLag;
+    private long published;
+    private long dropped;
+    private long conflated;
+
+    // only written by the drain thread
+    private volatile long delivered;
+    private volatile long errors;
+
+    private volatile boolean running = true;
+    private volatile boolean parked;
+    private volatile boolean disconnected;
+
+    AsyncSubscription(DccEventBus bus, DccEventListener listener, SubscriptionOptions options) {
+        super(listener, options);
+        this.bus = bus;
+        this.ring = new DccEvent[options.getCapacity()];
+        this.mask = ring.length - 1;
+        boolean conflating = options.getOverflowPolicy() == OverflowPolicy.CONFLATE;
+        this.keys = conflating ? new Object[ring.length] : null;
+        this.newest = conflating ? new HashMap<>() : null;
+        this.drainThread = new Thread(this, "DccEventBus-" + name());
+        this.drainThread.setDaemon(true);
+    }
+
+    @Override
+    void start() {
+        drainThread.start();
+    }
+
+    @Override
+    void deliver(DccEvent event) {
+        boolean overflowDisconnect = false;
+        Object key = keys == null ? null : event.conflationKey();
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            published++;
+            if (tail - head == ring.length) {
+                switch (options.getOverflowPolicy()) {
+                    case DISCONNECT:
+                        dropped++;
+                        overflowDisconnect = true;
+                        break;
+                    case CONFLATE:
+                        if (replaceSuperseded(event, key)) {
+                            conflated++;
+                            return;
+                        }
+                        dropOldest();
+                        break;
+                    case DROP_OLDEST:
+                    default:
+                        dropOldest();
+                        break;
+                }
+            }
+            if (!overflowDisconnect) {
+                int slot = (int) (tail & mask);
+                ring[slot] = event;
+                if (keys != null) {
+                    keys[slot] = key;
+                    if (key != null) {
+                        newest.put(key, tail);
+                    }
+                }
+                tail++;
+                int lag = (int) (tail - head);
+                if (lag > maxLag) {
+                    maxLag = lag;
+                }
+            }
+        }
+        if (overflowDisconnect) {
+            disconnected = true;
+            bus.removeSubscription(this);
+            return;
+        }
+        if (parked) {
+            LockSupport.unpark(drainThread);
+        }
+    }
+
+    private void dropOldest() {
+        removeHead();
+        dropped++;
+    }
+
+    private DccEvent removeHead() {
+        int slot = (int) (head & mask);
+        DccEvent event = ring[slot];
+        ring[slot] = null;
+        if (keys != null) {
+            Object key = keys[slot];
+            keys[slot] = null;
+            if (key != null) {
+                // only forget the key if no newer event with it is queued
+                newest.remove(key, head);
+            }
+        }
+        head++;
+        return event;
+    }
+
+    /**
+     * Overwrite the newest queued event that {@code event} supersedes in
+     * place, keeping its position in the queue.
+     */
+    private boolean replaceSuperseded(DccEvent event, Object key) {
+        if (key == null) {
+            return false;
+        }
+        Long position = newest.get(key);
+        if (position == null) {
+            return false;
+        }
+        int slot = (int) (position & mask);
+        if (!event.supersedes(ring[slot])) {
+            return false;
+        }
+        ring[slot] = event;
+        return true;
+    }
+
+    private synchronized DccEvent poll() {
+        if (head == tail) {
+            return null;
+        }
+        return removeHead();
+    }
+
+    private synchronized boolean isEmpty() {
+        return head == tail;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            DccEvent event = poll();
+            if (event == null) {
+                parked = true;
+                if (isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                errors++;
+                System.err.println("Event listener " + name() + " failed: " + e.getMessage());
+            }
+            delivered++;
+        }
+        if (disconnected) {
+            try {
+                listener.onDisconnect();
+            } catch (RuntimeException e) {
+                System.err.println("Event listener " + name() + " failed on disconnect: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        synchronized (this) {
+            running = false;
+            while (head != tail) {
+                removeHead();
+            }
+        }
+        LockSupport.unpark(drainThread);
+    }
+
+    @Override
+    synchronized ListenerStats stats() {
+        return new ListenerStats(name(), options.getOverflowPolicy(), ring.length,
+                (int) (tail - head), maxLag, published, delivered, dropped, conflated, errors,
+                disconnected);
+    }
+}
@@ -0,0 +1,39 @@
+package org.dccio.core.events;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link DccEventType#CONNECTION_STATE_CHANGED} event.
+ */
+public final class ConnectionStateEvent extends DccEvent {
+
+    private final boolean connected;
+
+    public ConnectionStateEvent(String connectionId, boolean connected) {
+        super(DccEventType.CONNECTION_STATE_CHANGED, connectionId);
+        this.connected = connected;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    protected Map<String, Object> buildPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("connected", connected);
+        return payload;
+    }
+
+    @Override
+    public boolean supersedes(DccEvent older) {
+        return sameSubject(older);
+    }
+
+    @Override
+    public Object conflationKey() {
+        return Arrays.asList(getType(), getConnectionId());
+    }
+}
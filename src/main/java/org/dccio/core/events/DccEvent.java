@@ -1,18 +1,25 @@
 package org.dccio.core.events;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Simple immutable event envelope used inside the daemon; the HTTP/WebSocket
  * layer can serialize this to JSON for external clients.
+ * <p>
+ * Hot-path producers publish typed subclasses ({@link ThrottleEvent},
+ * {@link FrameEvent}, {@link PowerEvent}, {@link ConnectionStateEvent}) that
+ * carry primitive fields; for those the {@link #getPayload()} map is only
+ * built, once, if a consumer asks for it.
  */
-public final class DccEvent {
+public class DccEvent {
 
     private final DccEventType type;
     private final String connectionId;
-    private final Map<String, Object> payload;
+    private volatile Map<String, Object> payload;
 
     public DccEvent(DccEventType type, String connectionId, Map<String, Object> payload) {
         this.type = type;
@@ -22,6 +29,15 @@ public final class DccEvent {
                 : Collections.unmodifiableMap(new HashMap<>(payload));
     }
 
+    /**
+     * For typed subclasses, which supply the payload lazily through
+     * {@link #buildPayload()}.
+     */
+    protected DccEvent(DccEventType type, String connectionId) {
+        this.type = type;
+        this.connectionId = connectionId;
+    }
+
     public DccEventType getType() {
         return type;
     }
@@ -30,8 +46,78 @@ public final class DccEvent {
         return connectionId;
     }
 
+    /**
+     * Generic key/value view of the event, kept for consumers that serialize
+     * events without knowing their concrete type.
+     */
     public Map<String, Object> getPayload() {
-        return payload;
+        Map<String, Object> result = payload;
+        if (result == null) {
+            // benign race: concurrent callers may each build an equal map
+            result = Collections.unmodifiableMap(buildPayload());
+            payload = result;
+        }
+        return result;
+    }
+
+    /**
+     * Build the map view of a typed event. Only called by
+     * {@link #getPayload()} when the map was not supplied up front.
+     */
+    protected Map<String, Object> buildPayload() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Whether this event carries newer state for the same subject as
+     * {@code older}, so that a queue may keep only this one. Frame and error
+     * events are never superseded; state events are matched on type,
+     * connection and (for throttles) address and property.
+     */
+    public boolean supersedes(DccEvent older) {
+        if (!sameSubject(older)) {
+            return false;
+        }
+        switch (type) {
+            case MESSAGE_SENT:
+            case MESSAGE_RECEIVED:
+            case COMMUNICATION_ERROR:
+            case EMERGENCY_STOP:
+                return false;
+            default:
+                Map<String, Object> mine = getPayload();
+                Map<String, Object> theirs = older.getPayload();
+                return Objects.equals(mine.get("address"), theirs.get("address"))
+                        && Objects.equals(mine.get("longAddress"), theirs.get("longAddress"))
+                        && Objects.equals(mine.get("property"), theirs.get("property"));
+        }
+    }
+
+    /**
+     * Key shared by the events that may supersede one another, so that a
+     * conflating queue can find the one to replace without scanning; null
+     * if this event is never superseded. Overrides must agree with
+     * {@link #supersedes(DccEvent)}.
+     */
+    public Object conflationKey() {
+        switch (type) {
+            case MESSAGE_SENT:
+            case MESSAGE_RECEIVED:
+            case COMMUNICATION_ERROR:
+            case EMERGENCY_STOP:
+                return null;
+            default:
+                Map<String, Object> mine = getPayload();
+                return Arrays.asList(type, connectionId, mine.get("address"), mine.get("longAddress"),
+                        mine.get("property"));
+        }
+    }
+
+    /**
+     * @return true if {@code older} is non-null with the same type and connection.
+     */
+    protected final boolean sameSubject(DccEvent older) {
+        return older != null && older.type == type && Objects.equals(older.connectionId, connectionId);
     }
 }
 
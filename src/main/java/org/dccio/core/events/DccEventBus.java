@@ -1,29 +1,191 @@
 package org.dccio.core.events;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
 
 /**
  * Very small in-process event bus for DCC events. The daemon's transport
  * layer can subscribe here and forward events to remote clients.
+ * <p>
+ * In {@link DispatchMode#SYNC} mode every listener runs inline on the
+ * publishing thread. In {@link DispatchMode#ASYNC} mode each listener gets
+ * its own bounded queue and drain thread, so a slow subscriber (an SSE
+ * client, a WebSocket broadcast) never delays the serial reader thread that
+ * publishes; what happens when a queue fills up is controlled per listener
+ * by its {@link OverflowPolicy}.
+ * <p>
+ * Subscriptions can be narrowed to a set of {@link DccEventType}s and a
+ * single connection id (see {@link SubscriptionOptions}). The bus keeps a
+ * per-type array of interested subscriptions, rebuilt whenever a listener is
+ * added or removed, so publishing a frame event only visits the listeners
+ * that asked for frames.
  */
-public final class DccEventBus {
+public final class DccEventBus implements Closeable {
 
-    private final List<DccEventListener> listeners = new CopyOnWriteArrayList<>();
+    public enum DispatchMode {
+        SYNC,
+        ASYNC
+    }
+
+    private static final Subscription[] EMPTY = new Subscription[0];
+    private static final DccEventType[] TYPES = DccEventType.values();
+
+    private final DispatchMode mode;
+    private final Object lock = new Object();
+    // copy-on-write; replaced under lock, read without locking by publish()
+    private volatile Subscription[] subscriptions = EMPTY;
+    // indexed by DccEventType ordinal; derived from subscriptions
+    private volatile Subscription[][] byType = emptyIndex();
+
+    public DccEventBus() {
+        this(DispatchMode.SYNC);
+    }
+
+    public DccEventBus(DispatchMode mode) {
+        this.mode = mode == null ? DispatchMode.SYNC : mode;
+    }
+
+    public DispatchMode getMode() {
+        return mode;
+    }
 
     public void addListener(DccEventListener listener) {
-        if (listener != null) {
-            listeners.add(listener);
+        addListener(listener, SubscriptionOptions.defaults());
+    }
+
+    /**
+     * Subscribe to the given event types only, with default queue settings.
+     */
+    public void addListener(DccEventListener listener, Set<DccEventType> types) {
+        addListener(listener, SubscriptionOptions.builder().types(types).build());
+    }
+
+    public void addListener(DccEventListener listener, SubscriptionOptions options) {
+        if (listener == null) {
+            return;
         }
+        SubscriptionOptions opts = options == null ? SubscriptionOptions.defaults() : options;
+        Subscription subscription = mode == DispatchMode.ASYNC
+                ? new AsyncSubscription(this, listener, opts)
+                : new Subscription(listener, opts);
+        synchronized (lock) {
+            Subscription[] current = subscriptions;
+            Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            setSubscriptions(updated);
+        }
+        subscription.start();
     }
 
     public void removeListener(DccEventListener listener) {
-        listeners.remove(listener);
+        Subscription removed = null;
+        synchronized (lock) {
+            for (Subscription s : subscriptions) {
+                if (s.listener == listener) {
+                    removed = s;
+                    break;
+                }
+            }
+        }
+        if (removed != null) {
+            removeSubscription(removed);
+        }
+    }
+
+    void removeSubscription(Subscription subscription) {
+        synchronized (lock) {
+            Subscription[] current = subscriptions;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            Subscription[] updated = new Subscription[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            setSubscriptions(updated);
+        }
+        subscription.close();
+    }
+
+    private void setSubscriptions(Subscription[] updated) {
+        Subscription[][] index = new Subscription[TYPES.length][];
+        for (DccEventType type : TYPES) {
+            int count = 0;
+            for (Subscription s : updated) {
+                if (s.options.getTypes().contains(type)) {
+                    count++;
+                }
+            }
+            Subscription[] forType = count == 0 ? EMPTY : new Subscription[count];
+            int i = 0;
+            for (Subscription s : updated) {
+                if (s.options.getTypes().contains(type)) {
+                    forType[i++] = s;
+                }
+            }
+            index[type.ordinal()] = forType;
+        }
+        subscriptions = updated;
+        byType = index;
+    }
+
+    private static Subscription[][] emptyIndex() {
+        Subscription[][] index = new Subscription[TYPES.length][];
+        Arrays.fill(index, EMPTY);
+        return index;
     }
 
     public void publish(DccEvent event) {
-        for (DccEventListener listener : listeners) {
-            listener.onEvent(event);
+        String connectionId = event.getConnectionId();
+        for (Subscription subscription : byType[event.getType().ordinal()]) {
+            if (subscription.acceptsConnection(connectionId)) {
+                subscription.deliver(event);
+            }
+        }
+    }
+
+    /**
+     * Cheap check that lets producers skip building events nobody wants.
+     *
+     * @return true if at least one listener is subscribed to {@code type}.
+     */
+    public boolean hasListeners(DccEventType type) {
+        return byType[type.ordinal()].length > 0;
+    }
+
+    /**
+     * @return a snapshot of per-listener counters (queue lag, drops, etc.).
+     */
+    public List<ListenerStats> getListenerStats() {
+        Subscription[] current = subscriptions;
+        List<ListenerStats> stats = new ArrayList<>(current.length);
+        for (Subscription s : current) {
+            stats.add(s.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Remove all listeners and stop their drain threads.
+     */
+    @Override
+    public void close() {
+        Subscription[] current;
+        synchronized (lock) {
+            current = subscriptions;
+            setSubscriptions(EMPTY);
+        }
+        for (Subscription s : current) {
+            s.close();
         }
     }
 }
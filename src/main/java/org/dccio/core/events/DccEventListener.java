@@ -7,6 +7,15 @@ package org.dccio.core.events;
 public interface DccEventListener {
 
     void onEvent(DccEvent event);
+
+    /**
+     * Called once when an asynchronous subscription using
+     * {@link OverflowPolicy#DISCONNECT} has been removed from the bus because
+     * this listener fell too far behind. Runs on the listener's drain thread.
+     */
+    default void onDisconnect() {
+        // no-op by default
+    }
 }
 
 
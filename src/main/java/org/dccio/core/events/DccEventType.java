@@ -12,7 +12,8 @@ public enum DccEventType {
     CONNECTION_STATE_CHANGED,
     COMMUNICATION_ERROR,
     MESSAGE_RECEIVED,
-    MESSAGE_SENT
+    MESSAGE_SENT,
+    PROGRAMMING_PROGRESS
 }
 
 
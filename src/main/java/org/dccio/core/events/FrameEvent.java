@@ -0,0 +1,154 @@
+package org.dccio.core.events;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link DccEventType#MESSAGE_SENT} or {@link DccEventType#MESSAGE_RECEIVED}
+ * event carrying the raw bytes of one protocol frame.
+ * <p>
+ * The console text (hex, message text and decoded monitor string) is only
+ * rendered when a subscriber asks for it, and then cached on the event, so
+ * publishing a frame costs one byte array and one event object.
+ */
+public final class FrameEvent extends DccEvent {
+
+    /**
+     * Protocol-specific rendering of frames, shared by all events of a
+     * connection.
+     */
+    public interface Decoder {
+
+        /**
+         * @return the frame as plain text (typically the hex bytes).
+         */
+        String text(FrameEvent frame);
+
+        /**
+         * @return a human-readable decoding, or null if none is available.
+         */
+        String decode(FrameEvent frame);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] data;
+    private final Decoder decoder;
+    private volatile String hex;
+    private volatile String message;
+    private volatile String decoded;
+    private volatile boolean decodedReady;
+
+    /**
+     * @param data    raw frame bytes; the array is owned by the event afterwards
+     * @param decoder renders the frame for the console, or null to show hex only
+     */
+    public FrameEvent(DccEventType type, String connectionId, byte[] data, Decoder decoder) {
+        super(type, connectionId);
+        if (type != DccEventType.MESSAGE_SENT && type != DccEventType.MESSAGE_RECEIVED) {
+            throw new IllegalArgumentException("Not a frame event type: " + type);
+        }
+        this.data = data == null ? new byte[0] : data;
+        this.decoder = decoder;
+    }
+
+    public boolean isOutgoing() {
+        return getType() == DccEventType.MESSAGE_SENT;
+    }
+
+    public int length() {
+        return data.length;
+    }
+
+    /**
+     * @return the unsigned value of byte {@code index}.
+     */
+    public int get(int index) {
+        return data[index] & 0xFF;
+    }
+
+    /**
+     * @return a copy of the raw frame bytes.
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    /**
+     * @return the frame as text; rendered on first use.
+     */
+    public String getMessage() {
+        String result = message;
+        if (result == null) {
+            result = decoder == null ? null : decoder.text(this);
+            if (result == null) {
+                result = getHex();
+            }
+            message = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the decoded monitor text, or null if the decoder has nothing
+     *         beyond {@link #getMessage()}; rendered on first use.
+     */
+    public String getDecoded() {
+        if (!decodedReady) {
+            String result = decoder == null ? null : decoder.decode(this);
+            decoded = result != null && !result.equals(getMessage()) ? result : null;
+            decodedReady = true;
+        }
+        return decoded;
+    }
+
+    /**
+     * @return the frame as space-separated upper-case hex, e.g. "E4 13 00 03 80 74".
+     */
+    public String getHex() {
+        String result = hex;
+        if (result == null) {
+            result = formatHex();
+            hex = result;
+        }
+        return result;
+    }
+
+    private String formatHex() {
+        if (data.length == 0) {
+            return "";
+        }
+        char[] out = new char[data.length * 3 - 1];
+        for (int i = 0, j = 0; i < data.length; i++) {
+            if (i > 0) {
+                out[j++] = ' ';
+            }
+            out[j++] = HEX_DIGITS[(data[i] >> 4) & 0x0F];
+            out[j++] = HEX_DIGITS[data[i] & 0x0F];
+        }
+        return new String(out);
+    }
+
+    @Override
+    protected Map<String, Object> buildPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("direction", isOutgoing() ? "out" : "in");
+        payload.put("message", getMessage());
+        payload.put("hex", getHex());
+        String decoded = getDecoded();
+        if (decoded != null) {
+            payload.put("decoded", decoded);
+        }
+        return payload;
+    }
+
+    @Override
+    public boolean supersedes(DccEvent older) {
+        return false;
+    }
+
+    @Override
+    public Object conflationKey() {
+        return null;
+    }
+}
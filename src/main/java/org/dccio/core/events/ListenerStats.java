@@ -0,0 +1,98 @@
+package org.dccio.core.events;
+
+/**
+ * Point-in-time counters for a single {@link DccEventBus} subscription.
+ * For synchronous subscriptions the queue-related values are always zero.
+ */
+public final class ListenerStats {
+
+    private final String name;
+    private final OverflowPolicy overflowPolicy;
+    private final int capacity;
+    private final int lag;
+    private final int maxLag;
+    private final long published;
+    private final long delivered;
+    private final long dropped;
+    private final long conflated;
+    private final long errors;
+    private final boolean disconnected;
+
+    ListenerStats(String name, OverflowPolicy overflowPolicy, int capacity, int lag, int maxLag,
+                  long published, long delivered, long dropped, long conflated, long errors,
+                  boolean disconnected) {
+        this.name = name;
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = capacity;
+        this.lag = lag;
+        this.maxLag = maxLag;
+        this.published = published;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.conflated = conflated;
+        this.errors = errors;
+        this.disconnected = disconnected;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of events queued but not yet handed to the listener.
+     */
+    public int getLag() {
+        return lag;
+    }
+
+    /**
+     * @return the highest lag observed since the subscription was created.
+     */
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    /**
+     * @return number of events offered to this subscription.
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return number of events discarded because the queue was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return number of queued events replaced by a newer superseding event.
+     */
+    public long getConflated() {
+        return conflated;
+    }
+
+    /**
+     * @return number of events whose listener threw an exception.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+}
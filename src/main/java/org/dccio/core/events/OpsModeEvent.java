@@ -0,0 +1,111 @@
+package org.dccio.core.events;
+
+import org.dccio.core.programming.OpsModeJob;
+import org.dccio.core.programming.ProgrammingJob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link DccEventType#PROGRAMMING_PROGRESS} event for an operations-mode
+ * job: the job changed state or sent one write. Like
+ * {@link ProgrammingEvent}, events of a finished job carry every
+ * locomotive's result.
+ */
+public final class OpsModeEvent extends DccEvent {
+
+    private final OpsModeJob job;
+    private final ProgrammingJob.State state;
+    private final int completed;
+    private final int address;
+    private final int cv;
+    private final String error;
+
+    /**
+     * @param address the locomotive just written, or 0 for a state change
+     * @param cv      the CV just written, or 0
+     * @param error   why the write or the job failed, or null
+     */
+    public OpsModeEvent(OpsModeJob job, int address, int cv, String error) {
+        super(DccEventType.PROGRAMMING_PROGRESS, job.getConnectionId());
+        this.job = job;
+        this.state = job.getState();
+        this.completed = job.getCompleted();
+        this.address = address;
+        this.cv = cv;
+        this.error = error;
+    }
+
+    public OpsModeJob getJob() {
+        return job;
+    }
+
+    public ProgrammingJob.State getState() {
+        return state;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getCv() {
+        return cv;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    protected Map<String, Object> buildPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("job", job.getId());
+        payload.put("mode", "ops");
+        payload.put("state", state.name().toLowerCase(Locale.ROOT));
+        payload.put("completed", completed);
+        payload.put("total", job.getTotal());
+        if (address > 0) {
+            payload.put("address", address);
+        }
+        if (cv > 0) {
+            payload.put("cv", cv);
+        }
+        if (error != null) {
+            payload.put("error", error);
+        }
+        if (state.isFinished()) {
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (OpsModeJob.Result result : job.getResults()) {
+                Map<String, Object> r = new LinkedHashMap<>();
+                r.put("address", result.getTarget().getAddress());
+                r.put("written", result.getWritten());
+                if (result.getError() != null) {
+                    r.put("error", result.getError());
+                }
+                results.add(r);
+            }
+            payload.put("results", results);
+        }
+        return payload;
+    }
+
+    @Override
+    public boolean supersedes(DccEvent older) {
+        return sameSubject(older) && older instanceof OpsModeEvent && ((OpsModeEvent) older).job == job;
+    }
+
+    @Override
+    public Object conflationKey() {
+        // jobs do not override equals, so this matches on identity like supersedes()
+        return Arrays.asList(getType(), getConnectionId(), job);
+    }
+}
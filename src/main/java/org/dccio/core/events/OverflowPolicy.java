@@ -0,0 +1,26 @@
+package org.dccio.core.events;
+
+/**
+ * What an asynchronous {@link DccEventBus} subscription does when its queue
+ * is full, i.e. when the listener cannot keep up with the publishers.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Discard the oldest queued event to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Replace a queued event that the new event supersedes (see
+     * {@link DccEvent#supersedes(DccEvent)}); if there is none, fall back to
+     * dropping the oldest event.
+     */
+    CONFLATE,
+
+    /**
+     * Remove the subscription from the bus and tell the listener via
+     * {@link DccEventListener#onDisconnect()}.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,60 @@
+package org.dccio.core.events;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link DccEventType#POWER_CHANGED} event. Power states are the integer
+ * constants of the underlying system (JMRI's {@code PowerManager.ON} etc.).
+ */
+public final class PowerEvent extends DccEvent {
+
+    private final int oldState;
+    private final int newState;
+    private final String status;
+
+    /**
+     * @param status "ON", "OFF", "IDLE" or "UNKNOWN", or null if the producer
+     *               does not map states to names
+     */
+    public PowerEvent(String connectionId, int oldState, int newState, String status) {
+        super(DccEventType.POWER_CHANGED, connectionId);
+        this.oldState = oldState;
+        this.newState = newState;
+        this.status = status;
+    }
+
+    public int getOldState() {
+        return oldState;
+    }
+
+    public int getNewState() {
+        return newState;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    @Override
+    protected Map<String, Object> buildPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("old", oldState);
+        payload.put("new", newState);
+        if (status != null) {
+            payload.put("status", status);
+        }
+        return payload;
+    }
+
+    @Override
+    public boolean supersedes(DccEvent older) {
+        return sameSubject(older);
+    }
+
+    @Override
+    public Object conflationKey() {
+        return Arrays.asList(getType(), getConnectionId());
+    }
+}
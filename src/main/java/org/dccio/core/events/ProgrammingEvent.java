@@ -0,0 +1,102 @@
+package org.dccio.core.events;
+
+import org.dccio.core.programming.ProgrammingJob;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link DccEventType#PROGRAMMING_PROGRESS} event: a programming job changed
+ * state or finished one CV. Events of a finished job carry all of its
+ * results, so a subscriber that only sees the last event of a job (queues
+ * conflate them) still gets every value.
+ */
+public final class ProgrammingEvent extends DccEvent {
+
+    private final ProgrammingJob job;
+    private final ProgrammingJob.State state;
+    private final int completed;
+    private final int cv;
+    private final Integer value;
+    private final String error;
+
+    /**
+     * @param cv    the CV just processed, or 0 for a state change
+     * @param value the value read or written, or null
+     * @param error why the CV or the job failed, or null
+     */
+    public ProgrammingEvent(ProgrammingJob job, int cv, Integer value, String error) {
+        super(DccEventType.PROGRAMMING_PROGRESS, job.getConnectionId());
+        this.job = job;
+        this.state = job.getState();
+        this.completed = job.getCompleted();
+        this.cv = cv;
+        this.value = value;
+        this.error = error;
+    }
+
+    public ProgrammingJob getJob() {
+        return job;
+    }
+
+    public ProgrammingJob.State getState() {
+        return state;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public int getCv() {
+        return cv;
+    }
+
+    public Integer getValue() {
+        return value;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    protected Map<String, Object> buildPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("job", job.getId());
+        payload.put("mode", job.getMode().name().toLowerCase(Locale.ROOT));
+        payload.put("state", state.name().toLowerCase(Locale.ROOT));
+        payload.put("completed", completed);
+        payload.put("total", job.getTotal());
+        if (cv > 0) {
+            payload.put("cv", cv);
+        }
+        if (value != null) {
+            payload.put("value", value);
+        }
+        if (error != null) {
+            payload.put("error", error);
+        }
+        if (state.isFinished()) {
+            Map<String, Object> results = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Integer> e : job.getResults().entrySet()) {
+                results.put(String.valueOf(e.getKey()), e.getValue());
+            }
+            payload.put("results", results);
+        }
+        return payload;
+    }
+
+    @Override
+    public boolean supersedes(DccEvent older) {
+        return sameSubject(older) && older instanceof ProgrammingEvent && ((ProgrammingEvent) older).job == job;
+    }
+
+    @Override
+    public Object conflationKey() {
+        // jobs do not override equals, so this matches on identity like supersedes()
+        return Arrays.asList(getType(), getConnectionId(), job);
+    }
+}
@@ -0,0 +1,52 @@
+package org.dccio.core.events;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single listener registration on a {@link DccEventBus}. The synchronous
+ * variant calls the listener on the publishing thread; see
+ * {@link AsyncSubscription} for the queued variant.
+ */
+class Subscription {
+
+    final DccEventListener listener;
+    final SubscriptionOptions options;
+
+    private final LongAdder published = new LongAdder();
+
+    Subscription(DccEventListener listener, SubscriptionOptions options) {
+        this.listener = listener;
+        this.options = options;
+    }
+
+    /**
+     * @return true if this subscription wants events from the given connection.
+     */
+    final boolean acceptsConnection(String connectionId) {
+        String wanted = options.getConnectionId();
+        return wanted == null || wanted.equals(connectionId);
+    }
+
+    void deliver(DccEvent event) {
+        published.increment();
+        listener.onEvent(event);
+    }
+
+    void start() {
+        // nothing to start for inline delivery
+    }
+
+    void close() {
+        // nothing to stop for inline delivery
+    }
+
+    String name() {
+        return options.getName() != null ? options.getName() : listener.getClass().getName();
+    }
+
+    ListenerStats stats() {
+        long count = published.sum();
+        return new ListenerStats(name(), options.getOverflowPolicy(), 0, 0, 0,
+                count, count, 0, 0, 0, false);
+    }
+}
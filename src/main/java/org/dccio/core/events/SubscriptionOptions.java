@@ -0,0 +1,136 @@
+package org.dccio.core.events;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Immutable per-listener settings used when subscribing to a
+ * {@link DccEventBus}: which events the listener wants (by type and,
+ * optionally, connection id) and, when the bus runs in
+ * {@link DccEventBus.DispatchMode#ASYNC} mode, how its queue behaves.
+ */
+public final class SubscriptionOptions {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final SubscriptionOptions DEFAULTS = builder().build();
+
+    private final String name;
+    private final Set<DccEventType> types;
+    private final String connectionId;
+    private final OverflowPolicy overflowPolicy;
+    private final int capacity;
+
+    private SubscriptionOptions(Builder builder) {
+        this.name = builder.name;
+        this.types = Collections.unmodifiableSet(EnumSet.copyOf(builder.types));
+        this.connectionId = builder.connectionId;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.capacity = builder.capacity;
+    }
+
+    public static SubscriptionOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a human-readable name used in stats and thread names, or null.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the event types delivered to this listener (all types by default).
+     */
+    public Set<DccEventType> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return the only connection whose events are delivered, or null for all connections.
+     */
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return queue capacity; always a power of two.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public static final class Builder {
+
+        private String name;
+        private EnumSet<DccEventType> types = EnumSet.allOf(DccEventType.class);
+        private String connectionId;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private int capacity = DEFAULT_CAPACITY;
+
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Restrict delivery to the given event types. An empty set means the
+         * listener receives nothing.
+         */
+        public Builder types(Set<DccEventType> types) {
+            this.types = types == null || types.isEmpty()
+                    ? EnumSet.noneOf(DccEventType.class)
+                    : EnumSet.copyOf(types);
+            return this;
+        }
+
+        public Builder types(DccEventType first, DccEventType... rest) {
+            return types(EnumSet.of(first, rest));
+        }
+
+        /**
+         * Restrict delivery to events from a single connection.
+         */
+        public Builder connectionId(String connectionId) {
+            this.connectionId = connectionId;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            if (overflowPolicy != null) {
+                this.overflowPolicy = overflowPolicy;
+            }
+            return this;
+        }
+
+        /**
+         * Queue capacity; rounded up to the next power of two.
+         */
+        public Builder capacity(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Capacity must be at least 1");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        public SubscriptionOptions build() {
+            int rounded = Integer.highestOneBit(capacity);
+            if (rounded < capacity) {
+                rounded <<= 1;
+            }
+            this.capacity = rounded;
+            return new SubscriptionOptions(this);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.dccio.core.events;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link DccEventType#THROTTLE_UPDATED} event for a single throttle property
+ * change. The property name is parsed once into a {@link Kind} and function
+ * number so consumers never have to pattern-match strings like "F12".
+ */
+public final class ThrottleEvent extends DccEvent {
+
+    /** JMRI property names; mirrored here so the event layer has no JMRI dependency. */
+    public static final String SPEED_SETTING = "SpeedSetting";
+    public static final String IS_FORWARD = "IsForward";
+
+    private static final String MOMENTARY_SUFFIX = "Momentary";
+    private static final int CACHED_FUNCTIONS = 69;
+    private static final String[] FUNCTION_PROPERTIES = new String[CACHED_FUNCTIONS];
+
+    static {
+        for (int i = 0; i < CACHED_FUNCTIONS; i++) {
+            FUNCTION_PROPERTIES[i] = "F" + i;
+        }
+    }
+
+    public enum Kind {
+        SPEED,
+        DIRECTION,
+        FUNCTION,
+        MOMENTARY,
+        OTHER
+    }
+
+    private final int address;
+    private final boolean longAddress;
+    private final String property;
+    private final Kind kind;
+    private final int function;
+    private final float speed;
+    private final boolean value;
+    private final Object oldValue;
+    private final Object newValue;
+    private volatile String description;
+
+    /**
+     * Build an event from a JMRI property change, parsing the property name.
+     */
+    public ThrottleEvent(String connectionId, int address, boolean longAddress,
+                         String property, Object oldValue, Object newValue) {
+        super(DccEventType.THROTTLE_UPDATED, connectionId);
+        this.address = address;
+        this.longAddress = longAddress;
+        this.property = property;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.speed = newValue instanceof Number ? ((Number) newValue).floatValue() : Float.NaN;
+        this.value = Boolean.TRUE.equals(newValue);
+
+        Kind parsedKind = Kind.OTHER;
+        int parsedFunction = -1;
+        if (SPEED_SETTING.equals(property)) {
+            parsedKind = Kind.SPEED;
+        } else if (IS_FORWARD.equals(property)) {
+            parsedKind = Kind.DIRECTION;
+        } else if (property != null && property.length() > 1 && property.charAt(0) == 'F') {
+            if (property.endsWith(MOMENTARY_SUFFIX)) {
+                parsedFunction = parseDigits(property, property.length() - MOMENTARY_SUFFIX.length());
+                parsedKind = parsedFunction >= 0 ? Kind.MOMENTARY : Kind.OTHER;
+            } else {
+                parsedFunction = parseDigits(property, property.length());
+                parsedKind = parsedFunction >= 0 ? Kind.FUNCTION : Kind.OTHER;
+            }
+        }
+        this.kind = parsedKind;
+        this.function = parsedFunction;
+    }
+
+    private ThrottleEvent(String connectionId, int address, boolean longAddress, String property,
+                          Kind kind, int function, float speed, boolean value) {
+        super(DccEventType.THROTTLE_UPDATED, connectionId);
+        this.address = address;
+        this.longAddress = longAddress;
+        this.property = property;
+        this.kind = kind;
+        this.function = function;
+        this.speed = speed;
+        this.value = value;
+        this.oldValue = null;
+        this.newValue = null;
+    }
+
+    public static ThrottleEvent speed(String connectionId, int address, boolean longAddress, float speed) {
+        return new ThrottleEvent(connectionId, address, longAddress, SPEED_SETTING, Kind.SPEED, -1, speed, false);
+    }
+
+    public static ThrottleEvent direction(String connectionId, int address, boolean longAddress, boolean forward) {
+        return new ThrottleEvent(connectionId, address, longAddress, IS_FORWARD, Kind.DIRECTION, -1, Float.NaN, forward);
+    }
+
+    public static ThrottleEvent function(String connectionId, int address, boolean longAddress, int function, boolean on) {
+        if (function < 0) {
+            throw new IllegalArgumentException("Function number must be non-negative");
+        }
+        String property = function < CACHED_FUNCTIONS ? FUNCTION_PROPERTIES[function] : "F" + function;
+        return new ThrottleEvent(connectionId, address, longAddress, property, Kind.FUNCTION, function, Float.NaN, on);
+    }
+
+    /**
+     * @return the digits between index 1 and {@code end} as an int, or -1 if
+     *         that range is empty or contains anything but digits.
+     */
+    private static int parseDigits(String s, int end) {
+        if (end <= 1 || end - 1 > 4) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = 1; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public boolean isLongAddress() {
+        return longAddress;
+    }
+
+    /**
+     * @return the JMRI property name, e.g. "SpeedSetting" or "F12".
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the function number for {@link Kind#FUNCTION} and
+     *         {@link Kind#MOMENTARY} events, otherwise -1.
+     */
+    public int getFunction() {
+        return function;
+    }
+
+    /**
+     * @return the new speed (0.0-1.0, negative for emergency stop) for
+     *         {@link Kind#SPEED} events, otherwise NaN.
+     */
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return the new boolean value: forward for {@link Kind#DIRECTION},
+     *         on for {@link Kind#FUNCTION} and {@link Kind#MOMENTARY}.
+     */
+    public boolean getValue() {
+        return value;
+    }
+
+    /**
+     * @return the new value as reported by the producer, boxing primitives if
+     *         the event was created from one of the static factories.
+     */
+    public Object getNewValue() {
+        if (newValue != null) {
+            return newValue;
+        }
+        switch (kind) {
+            case SPEED:
+                return speed;
+            case DIRECTION:
+            case FUNCTION:
+            case MOMENTARY:
+                return value;
+            default:
+                return null;
+        }
+    }
+
+    public Object getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * @return a human-readable description, e.g. "Train 3: Speed = 50.0%";
+     *         built on first use.
+     */
+    public String getDescription() {
+        String result = description;
+        if (result == null) {
+            result = formatDescription();
+            description = result;
+        }
+        return result;
+    }
+
+    private String formatDescription() {
+        switch (kind) {
+            case SPEED:
+                return String.format("Train %d: Speed = %.1f%%", address, speed * 100);
+            case DIRECTION:
+                return String.format("Train %d: Direction = %s", address, value ? "Forward" : "Reverse");
+            case MOMENTARY:
+                return String.format("Train %d: Function F%d Momentary = %s", address, function, value ? "ON" : "OFF");
+            case FUNCTION:
+                return String.format("Train %d: Function F%d = %s", address, function, value ? "ON" : "OFF");
+            default:
+                return String.format("Train %d: %s = %s", address, property, newValue);
+        }
+    }
+
+    @Override
+    protected Map<String, Object> buildPayload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("address", address);
+        payload.put("longAddress", longAddress);
+        payload.put("property", property);
+        payload.put("oldValue", oldValue);
+        payload.put("newValue", getNewValue());
+        payload.put("description", getDescription());
+        return payload;
+    }
+
+    @Override
+    public boolean supersedes(DccEvent older) {
+        if (!sameSubject(older) || !(older instanceof ThrottleEvent)) {
+            return false;
+        }
+        ThrottleEvent other = (ThrottleEvent) older;
+        if (other.address != address || other.longAddress != longAddress || other.kind != kind) {
+            return false;
+        }
+        switch (kind) {
+            case SPEED:
+            case DIRECTION:
+                return true;
+            case FUNCTION:
+            case MOMENTARY:
+                return other.function == function;
+            default:
+                return property != null && property.equals(other.property);
+        }
+    }
+
+    @Override
+    public Object conflationKey() {
+        switch (kind) {
+            case SPEED:
+            case DIRECTION:
+                return Arrays.asList(getType(), getConnectionId(), address, longAddress, kind);
+            case FUNCTION:
+            case MOMENTARY:
+                return Arrays.asList(getType(), getConnectionId(), address, longAddress, kind, function);
+            default:
+                return property == null ? null
+                        : Arrays.asList(getType(), getConnectionId(), address, longAddress, kind, property);
+        }
+    }
+}
@@ -6,23 +6,34 @@ import org.dccio.core.DccIoService;
 import org.dccio.core.DeviceDiscoveryService;
 import org.dccio.core.SystemConfig;
 import org.dccio.core.ThrottleSession;
+import org.dccio.core.events.DccEvent;
 import org.dccio.core.events.DccEventBus;
+import org.dccio.core.events.DccEventListener;
+import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.OverflowPolicy;
+import org.dccio.core.events.SubscriptionOptions;
 import org.dccio.core.impl.dccpp.DccppConnection;
 import org.dccio.core.impl.nce.NceSerialConnection;
 import org.dccio.core.impl.nce.NceUsbConnection;
 import org.dccio.core.impl.xnet.elite.XNetEliteConnection;
+import org.dccio.core.impl.xnet.sim.XNetSimulatorConnection;
+import org.dccio.core.programming.CvCache;
+import org.dccio.core.programming.ProgrammingQueue;
 
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * In-memory implementation of {@link DccIoService} that manages JMRI-backed
@@ -31,9 +42,15 @@ import java.util.concurrent.TimeUnit;
 public final class DccIoServiceImpl implements DccIoService {
 
     private final Map<String, CommandStationConnection> connections = new ConcurrentHashMap<>();
-    private final Map<String, ThrottleSession> throttles = new ConcurrentHashMap<>();
-    private final DccEventBus eventBus = new DccEventBus();
+    private final ThrottleRegistry throttles = new ThrottleRegistry();
+    // told about each registered session once it has been closed
+    private final List<Consumer<ThrottleSession>> throttleCloseListeners = new CopyOnWriteArrayList<>();
+    // Async dispatch: listeners (SSE, WebSocket broadcasters) must never stall
+    // the JMRI receive threads that publish events
+    private final DccEventBus eventBus = new DccEventBus(DccEventBus.DispatchMode.ASYNC);
     private final DeviceDiscoveryService discoveryService = new DeviceDiscoveryService();
+    // CV values read from decoders, shared by all connections' programming queues
+    private final CvCache cvCache;
     
     // Track which controllers are assigned to which roles
     private volatile String throttleControllerId = null;  // Controller ID for throttles
@@ -52,6 +69,50 @@ public final class DccIoServiceImpl implements DccIoService {
         return t;
     });
     
+    /**
+     * Create a service whose CV cache is kept in memory only.
+     */
+    public DccIoServiceImpl() {
+        this(new CvCache(null));
+    }
+
+    /**
+     * @param cvCache shared by all connections' programming queues and saved on {@link #close()}
+     */
+    public DccIoServiceImpl(CvCache cvCache) {
+        this.cvCache = cvCache;
+        subscribeThrottleReaper();
+    }
+
+    /**
+     * Throttles left on a connection that dropped are reaped when it reports
+     * the change, so reads never have to check for them. A state change must
+     * never be lost, so the reaper is not fed through a dropping queue: if
+     * it falls behind it is disconnected, subscribes again and checks every
+     * connection that still has throttles.
+     */
+    private void subscribeThrottleReaper() {
+        eventBus.addListener(new DccEventListener() {
+            @Override
+            public void onEvent(DccEvent event) {
+                reapThrottles(event.getConnectionId());
+            }
+
+            @Override
+            public void onDisconnect() {
+                // subscribe first so no change slips between the catch-up and the new queue
+                subscribeThrottleReaper();
+                for (String connectionId : throttles.connectionIds()) {
+                    reapThrottles(connectionId);
+                }
+            }
+        }, SubscriptionOptions.builder()
+                .name("throttle-reaper")
+                .types(DccEventType.CONNECTION_STATE_CHANGED)
+                .overflowPolicy(OverflowPolicy.DISCONNECT)
+                .build());
+    }
+
     /**
      * Start continuous device monitoring and auto-connect.
      */
@@ -273,6 +334,9 @@ public final class DccIoServiceImpl implements DccIoService {
             case "xnet-elite":
                 conn = new XNetEliteConnection(config, eventBus);
                 break;
+            case "xnet-simulator":
+                conn = new XNetSimulatorConnection(config, eventBus);
+                break;
             case "dccpp-ethernet":
                 conn = new DccppConnection(config, eventBus);
                 break;
@@ -285,6 +349,10 @@ public final class DccIoServiceImpl implements DccIoService {
             default:
                 throw new IllegalArgumentException("Unsupported systemType: " + config.getSystemType());
         }
+        ProgrammingQueue programmingQueue = conn.getProgrammingQueue();
+        if (programmingQueue != null) {
+            programmingQueue.setCache(cvCache);
+        }
         connections.put(config.getId(), conn);
         
         // Track port if this connection uses a serial port
@@ -315,18 +383,7 @@ public final class DccIoServiceImpl implements DccIoService {
             // This ensures JMRI throttle allocations are released when a connection
             // is removed (e.g., device unplugged), so they don't hold locks or
             // point at a dead connection when the controller returns.
-            throttles.entrySet().removeIf(entry -> {
-                ThrottleSession throttle = entry.getValue();
-                if (id.equals(throttle.getConnectionId())) {
-                    try {
-                        throttle.close();
-                    } catch (Exception e) {
-                        // Ignore errors during cleanup
-                    }
-                    return true; // remove this throttle from the map
-                }
-                return false;
-            });
+            closeAll(throttles.removeConnection(id));
 
             try {
                 conn.close();
@@ -361,7 +418,14 @@ public final class DccIoServiceImpl implements DccIoService {
     public DccEventBus getEventBus() {
         return eventBus;
     }
-    
+
+    /**
+     * @return cache of CV values read through the connections' programming queues
+     */
+    public CvCache getCvCache() {
+        return cvCache;
+    }
+
     /**
      * Open a throttle session.
      * @param connectionId The connection ID
@@ -387,13 +451,15 @@ public final class DccIoServiceImpl implements DccIoService {
         if (!conn.isConnected()) {
             throw new IOException("Connection not connected: " + connectionId);
         }
-        String throttleId = connectionId + ":" + address + ":" + longAddress;
-        ThrottleSession existing = throttles.get(throttleId);
-        if (existing != null) {
+        String throttleId = ThrottleRegistry.throttleId(connectionId, address, longAddress);
+        if (throttles.get(throttleId) != null) {
             return throttleId; // Already open
         }
         ThrottleSession throttle = conn.openThrottle(address, longAddress);
-        throttles.put(throttleId, throttle);
+        if (throttles.putIfAbsent(throttle) != null) {
+            // opened concurrently by another request; keep that one
+            closeQuietly(throttle);
+        }
         return throttleId;
     }
     
@@ -404,29 +470,27 @@ public final class DccIoServiceImpl implements DccIoService {
         return throttles.get(throttleId);
     }
     
+    /**
+     * Find the throttle session for a locomotive address on any connection.
+     *
+     * @return the session, or null if none is open
+     */
+    public ThrottleSession findThrottle(int address, boolean longAddress) {
+        return throttles.find(address, longAddress);
+    }
+
+    /**
+     * @return number of throttle sessions open on {@code connectionId}
+     */
+    public int getThrottleCount(String connectionId) {
+        return throttles.count(connectionId);
+    }
+
     /**
      * Get all active throttle sessions.
      */
     public Collection<ThrottleSession> getThrottles() {
-        // Clean up any throttles whose owning connection is no longer present
-        // or no longer connected. This prevents reusing "zombie" throttle
-        // sessions that still point at a dead JMRI connection when a controller
-        // is unplugged and later reconnected.
-        throttles.entrySet().removeIf(entry -> {
-            ThrottleSession throttle = entry.getValue();
-            CommandStationConnection conn = connections.get(throttle.getConnectionId());
-            if (conn == null || !conn.isConnected()) {
-                try {
-                    throttle.close();
-                } catch (Exception e) {
-                    // Ignore errors during cleanup
-                }
-                return true; // remove stale throttle
-            }
-            return false;
-        });
-
-        return Collections.unmodifiableCollection(throttles.values());
+        return throttles.values();
     }
     
     /**
@@ -435,14 +499,58 @@ public final class DccIoServiceImpl implements DccIoService {
     public void closeThrottle(String throttleId) {
         ThrottleSession throttle = throttles.remove(throttleId);
         if (throttle != null) {
-            try {
-                throttle.close();
-            } catch (Exception e) {
-                // Ignore errors during cleanup
+            closeAll(Collections.singletonList(throttle));
+        }
+    }
+
+    /**
+     * Close the throttles of a connection that has gone away or dropped.
+     * This prevents reusing "zombie" throttle sessions that still point at a
+     * dead JMRI connection when a controller is unplugged and later reconnected.
+     * <p>
+     * Events arrive asynchronously, so a "disconnected" event may only be
+     * handled once the connection, or a new one under the same id, is up
+     * again. What counts is the connection registered under the id at the
+     * time of removal: its throttles are only reaped if it is gone or down.
+     */
+    private void reapThrottles(String connectionId) {
+        closeAll(throttles.removeConnectionIf(connectionId, () -> {
+            CommandStationConnection conn = connections.get(connectionId);
+            return conn == null || !conn.isConnected();
+        }));
+    }
+
+    /**
+     * Call {@code listener} with each throttle session the service closes:
+     * released, reaped after its connection dropped, or removed with its
+     * connection. It runs on the closing thread, after the session has been
+     * closed and unregistered.
+     */
+    public void addThrottleCloseListener(Consumer<ThrottleSession> listener) {
+        throttleCloseListeners.add(listener);
+    }
+
+    private void closeAll(Collection<ThrottleSession> sessions) {
+        for (ThrottleSession throttle : sessions) {
+            closeQuietly(throttle);
+            for (Consumer<ThrottleSession> listener : throttleCloseListeners) {
+                try {
+                    listener.accept(throttle);
+                } catch (RuntimeException e) {
+                    System.err.println("Error in throttle close listener: " + e.getMessage());
+                }
             }
         }
     }
 
+    private static void closeQuietly(ThrottleSession throttle) {
+        try {
+            throttle.close();
+        } catch (Exception e) {
+            // Ignore errors during cleanup
+        }
+    }
+
     @Override
     public void close() {
         // Stop device monitoring
@@ -457,21 +565,21 @@ public final class DccIoServiceImpl implements DccIoService {
         }
         
         // Close all throttles first
-        for (ThrottleSession throttle : throttles.values()) {
-            try {
-                throttle.close();
-            } catch (Exception ignore) {
-                // ignore
-            }
-        }
-        throttles.clear();
+        closeAll(throttles.clear());
         // Then close connections
         for (CommandStationConnection conn : connections.values()) {
             conn.close();
         }
         connections.clear();
+        try {
+            cvCache.save();
+        } catch (IOException e) {
+            System.err.println("Error saving CV cache: " + e.getMessage());
+        }
         connectedPorts.clear();
         portToConnectionId.clear();
+        // Stop event drain threads once nothing is left to publish
+        eventBus.close();
     }
 }
 
@@ -0,0 +1,190 @@
+package org.dccio.core.impl;
+
+import org.dccio.core.ThrottleSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Open throttle sessions indexed by id, by connection and by locomotive
+ * address, so every lookup made while handling a throttle message is a
+ * hash lookup rather than a scan of all sessions.
+ * <p>
+ * Addresses are keyed by a packed int ({@link #key(int, boolean)}) instead
+ * of a string. Reads take no lock; registration and removal are serialised
+ * so the indexes never disagree.
+ */
+public final class ThrottleRegistry {
+
+    private final Map<String, ThrottleSession> byId = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, ThrottleSession>> byConnection = new ConcurrentHashMap<>();
+    // first session opened for each address on any connection
+    private final Map<Integer, ThrottleSession> byAddress = new ConcurrentHashMap<>();
+
+    /**
+     * @return the packed index key for a locomotive address: the address in
+     *         the upper bits, bit 0 set for a long address.
+     */
+    public static int key(int address, boolean longAddress) {
+        return (address << 1) | (longAddress ? 1 : 0);
+    }
+
+    /**
+     * @return the id of the session for {@code address} on {@code connectionId}
+     *         (format: "connectionId:address:longAddress").
+     */
+    public static String throttleId(String connectionId, int address, boolean longAddress) {
+        return connectionId + ":" + address + ":" + longAddress;
+    }
+
+    /**
+     * Register {@code session} unless one is already open for its connection and address.
+     *
+     * @return the session already registered, or null if {@code session} was added
+     */
+    public synchronized ThrottleSession putIfAbsent(ThrottleSession session) {
+        String id = throttleId(session.getConnectionId(), session.getAddress(), session.isLongAddress());
+        ThrottleSession existing = byId.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        int key = key(session.getAddress(), session.isLongAddress());
+        byId.put(id, session);
+        byConnection.computeIfAbsent(session.getConnectionId(), c -> new ConcurrentHashMap<>()).put(key, session);
+        byAddress.putIfAbsent(key, session);
+        return null;
+    }
+
+    public ThrottleSession get(String throttleId) {
+        return byId.get(throttleId);
+    }
+
+    /**
+     * @return the session for {@code address} on {@code connectionId}, or null.
+     */
+    public ThrottleSession find(String connectionId, int address, boolean longAddress) {
+        Map<Integer, ThrottleSession> sessions = byConnection.get(connectionId);
+        return sessions != null ? sessions.get(key(address, longAddress)) : null;
+    }
+
+    /**
+     * @return a session for {@code address} on any connection, or null.
+     */
+    public ThrottleSession find(int address, boolean longAddress) {
+        return byAddress.get(key(address, longAddress));
+    }
+
+    /**
+     * @return number of sessions open on {@code connectionId}.
+     */
+    public int count(String connectionId) {
+        Map<Integer, ThrottleSession> sessions = byConnection.get(connectionId);
+        return sessions != null ? sessions.size() : 0;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return snapshot of the ids of connections with at least one session.
+     */
+    public List<String> connectionIds() {
+        return new ArrayList<>(byConnection.keySet());
+    }
+
+    /**
+     * @return live, unmodifiable view of all sessions.
+     */
+    public Collection<ThrottleSession> values() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+
+    /**
+     * @return the removed session, or null if there was none.
+     */
+    public synchronized ThrottleSession remove(String throttleId) {
+        ThrottleSession session = byId.remove(throttleId);
+        if (session != null) {
+            unindex(session);
+        }
+        return session;
+    }
+
+    /**
+     * Remove every session open on {@code connectionId}.
+     *
+     * @return the removed sessions; the caller closes them.
+     */
+    public synchronized List<ThrottleSession> removeConnection(String connectionId) {
+        Map<Integer, ThrottleSession> sessions = byConnection.remove(connectionId);
+        if (sessions == null) {
+            return Collections.emptyList();
+        }
+        List<ThrottleSession> removed = new ArrayList<>(sessions.values());
+        for (ThrottleSession session : removed) {
+            byId.remove(throttleId(connectionId, session.getAddress(), session.isLongAddress()));
+            unindexAddress(session);
+        }
+        return removed;
+    }
+
+    /**
+     * Remove every session open on {@code connectionId} if {@code condition}
+     * still holds once registrations are held off, e.g. that the connection
+     * is down at the time of removal rather than when the caller was told.
+     *
+     * @return the removed sessions, none if the condition did not hold; the
+     *         caller closes them.
+     */
+    public synchronized List<ThrottleSession> removeConnectionIf(String connectionId, BooleanSupplier condition) {
+        if (!byConnection.containsKey(connectionId) || !condition.getAsBoolean()) {
+            return Collections.emptyList();
+        }
+        return removeConnection(connectionId);
+    }
+
+    /**
+     * Remove all sessions.
+     *
+     * @return the removed sessions; the caller closes them.
+     */
+    public synchronized List<ThrottleSession> clear() {
+        List<ThrottleSession> removed = new ArrayList<>(byId.values());
+        byId.clear();
+        byConnection.clear();
+        byAddress.clear();
+        return removed;
+    }
+
+    private void unindex(ThrottleSession session) {
+        Map<Integer, ThrottleSession> sessions = byConnection.get(session.getConnectionId());
+        if (sessions != null) {
+            sessions.remove(key(session.getAddress(), session.isLongAddress()));
+            if (sessions.isEmpty()) {
+                byConnection.remove(session.getConnectionId());
+            }
+        }
+        unindexAddress(session);
+    }
+
+    private void unindexAddress(ThrottleSession session) {
+        int key = key(session.getAddress(), session.isLongAddress());
+        if (!byAddress.remove(key, session)) {
+            return;
+        }
+        // another connection may have the same address open
+        for (Map<Integer, ThrottleSession> sessions : byConnection.values()) {
+            ThrottleSession other = sessions.get(key);
+            if (other != null) {
+                byAddress.put(key, other);
+                return;
+            }
+        }
+    }
+}
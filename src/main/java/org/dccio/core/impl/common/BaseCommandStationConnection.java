@@ -5,22 +5,44 @@ import org.dccio.core.CommandStationConnection;
 import org.dccio.core.ProgrammerSession;
 import org.dccio.core.SystemConfig;
 import org.dccio.core.ThrottleSession;
-import org.dccio.core.events.DccEvent;
+import org.dccio.core.events.ConnectionStateEvent;
 import org.dccio.core.events.DccEventBus;
-import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.PowerEvent;
+import org.dccio.core.outbound.CommandScheduler;
+import org.dccio.core.outbound.SpeedPacer;
+import org.dccio.core.programming.OpsModeQueue;
+import org.dccio.core.programming.ProgrammingQueue;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Common base for concrete JMRI-backed connections.
  */
 public abstract class BaseCommandStationConnection implements CommandStationConnection {
 
+    // toMonitorString() lookups, resolved once per message class
+    private static final ClassValue<java.lang.reflect.Method> MONITOR_METHODS = new ClassValue<>() {
+        @Override
+        protected java.lang.reflect.Method computeValue(Class<?> type) {
+            try {
+                return type.getMethod("toMonitorString");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+
     protected final String id;
     protected final SystemConfig config;
     protected final DccEventBus eventBus;
+    // outbound commands go through here so emergency traffic can overtake bulk traffic;
+    // subclasses close it in close()
+    protected final CommandScheduler scheduler;
+    protected final SpeedPacer speedPacer;
+    // batch CV jobs for getProgrammer(); subclasses close it in close()
+    protected final ProgrammingQueue programmingQueue;
+    // operations-mode jobs for getOpsModeProgrammer(); subclasses close it in close()
+    protected final OpsModeQueue opsModeQueue;
 
     protected volatile boolean connected;
 
@@ -28,6 +50,10 @@ public abstract class BaseCommandStationConnection implements CommandStationConn
         this.id = config.getId();
         this.config = config;
         this.eventBus = eventBus;
+        this.scheduler = new CommandScheduler(id);
+        this.speedPacer = new SpeedPacer(scheduler);
+        this.programmingQueue = new ProgrammingQueue(id, this::getProgrammer, eventBus);
+        this.opsModeQueue = new OpsModeQueue(id, this::getOpsModeProgrammer, eventBus);
     }
 
     @Override
@@ -45,10 +71,42 @@ public abstract class BaseCommandStationConnection implements CommandStationConn
         return connected;
     }
 
+    @Override
+    public CommandScheduler getCommandScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public SpeedPacer getSpeedPacer() {
+        return speedPacer;
+    }
+
+    @Override
+    public ProgrammingQueue getProgrammingQueue() {
+        return programmingQueue;
+    }
+
+    @Override
+    public OpsModeQueue getOpsModeQueue() {
+        return opsModeQueue;
+    }
+
     protected void publishConnectionState() {
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("connected", connected);
-        eventBus.publish(new DccEvent(DccEventType.CONNECTION_STATE_CHANGED, id, payload));
+        eventBus.publish(new ConnectionStateEvent(id, connected));
+    }
+
+    /**
+     * Publish a power change reported by a JMRI {@code PowerManager}
+     * property change.
+     *
+     * @param status the power state name, or null to leave it out
+     */
+    protected void publishPowerChanged(Object oldValue, Object newValue, String status) {
+        eventBus.publish(new PowerEvent(id, powerState(oldValue), powerState(newValue), status));
+    }
+
+    private static int powerState(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : jmri.PowerManager.UNKNOWN;
     }
     
     /**
@@ -60,15 +118,17 @@ public abstract class BaseCommandStationConnection implements CommandStationConn
      */
     protected String formatMessage(jmri.jmrix.AbstractMessage msg) {
         if (msg == null) return "";
-        try {
-            // Try toMonitorString() if available (via reflection to be protocol-agnostic)
-            java.lang.reflect.Method toMonitor = msg.getClass().getMethod("toMonitorString");
-            String formatted = (String) toMonitor.invoke(msg);
-            if (formatted != null && !formatted.equals(msg.toString())) {
-                return formatted;
+        // Try toMonitorString() if available (via reflection to be protocol-agnostic)
+        java.lang.reflect.Method toMonitor = MONITOR_METHODS.get(msg.getClass());
+        if (toMonitor != null) {
+            try {
+                String formatted = (String) toMonitor.invoke(msg);
+                if (formatted != null && !formatted.equals(msg.toString())) {
+                    return formatted;
+                }
+            } catch (Exception e) {
+                // Formatting failed - use toString()
             }
-        } catch (Exception e) {
-            // Method doesn't exist or failed - use toString()
         }
         return msg.toString();
     }
@@ -1,6 +1,8 @@
 package org.dccio.core.impl.common;
 
 import org.dccio.core.AccessoryController;
+import org.dccio.core.outbound.CommandPriority;
+import org.dccio.core.outbound.CommandScheduler;
 
 import jmri.Turnout;
 import jmri.TurnoutManager;
@@ -11,15 +13,26 @@ import java.io.IOException;
  * Wraps JMRI turnout operations behind the {@link AccessoryController}
  * abstraction. This currently focuses on turnouts; routes and other
  * accessories can be added later.
+ * <p>
+ * When a {@link CommandScheduler} is supplied, turnout commands are queued
+ * on it at {@link CommandPriority#ACCESSORY} priority and hold a slot of its
+ * in-flight window until the command station replies. The caller still
+ * waits until JMRI has been handed the command, so failures reach it.
  */
 public class JmriAccessoryController implements AccessoryController {
 
     private final String connectionId;
     private final TurnoutManager turnoutManager;
+    private final CommandScheduler scheduler;
 
     public JmriAccessoryController(String connectionId, TurnoutManager turnoutManager) {
+        this(connectionId, turnoutManager, null);
+    }
+
+    public JmriAccessoryController(String connectionId, TurnoutManager turnoutManager, CommandScheduler scheduler) {
         this.connectionId = connectionId;
         this.turnoutManager = turnoutManager;
+        this.scheduler = scheduler;
     }
 
     @Override
@@ -34,7 +47,12 @@ public class JmriAccessoryController implements AccessoryController {
         }
         String systemName = turnoutManager.getSystemPrefix() + "T" + address;
         Turnout turnout = turnoutManager.provideTurnout(systemName);
-        turnout.setCommandedState(closed ? Turnout.CLOSED : Turnout.THROWN);
+        int state = closed ? Turnout.CLOSED : Turnout.THROWN;
+        if (scheduler == null) {
+            turnout.setCommandedState(state);
+        } else {
+            scheduler.callAwaitingReply(CommandPriority.ACCESSORY, null, () -> turnout.setCommandedState(state));
+        }
     }
 
     @Override
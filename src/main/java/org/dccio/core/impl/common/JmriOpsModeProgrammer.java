@@ -0,0 +1,89 @@
+package org.dccio.core.impl.common;
+
+import org.dccio.core.OpsModeProgrammer;
+import org.dccio.core.outbound.CommandPriority;
+import org.dccio.core.outbound.CommandScheduler;
+
+import jmri.AddressedProgrammer;
+import jmri.AddressedProgrammerManager;
+import jmri.ProgListener;
+import jmri.ProgrammerException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Wraps JMRI addressed (operations-mode) programmers behind the
+ * {@link OpsModeProgrammer} abstraction.
+ * <p>
+ * Each write is queued on the connection's {@link CommandScheduler} at
+ * {@link CommandPriority#PROGRAMMING} priority as a tracked command, so it
+ * holds an in-flight slot until the command station has answered and speed,
+ * function and accessory commands queued meanwhile are sent first.
+ */
+public class JmriOpsModeProgrammer implements OpsModeProgrammer {
+
+    // upper bound per write in case the programmer never calls back
+    private static final long WRITE_TIMEOUT_SECONDS = 10;
+
+    private final String connectionId;
+    private final AddressedProgrammerManager manager;
+    private final CommandScheduler scheduler;
+
+    public JmriOpsModeProgrammer(String connectionId, AddressedProgrammerManager manager, CommandScheduler scheduler) {
+        this.connectionId = connectionId;
+        this.manager = manager;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    @Override
+    public CompletableFuture<Void> writeCvAsync(int address, boolean longAddress, int cv, int value) {
+        String description = "Write CV " + cv + " on " + address;
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CompletableFuture<Void> op = new CompletableFuture<>();
+        op.orTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS).whenComplete((ignored, error) -> {
+            if (error == null) {
+                result.complete(null);
+            } else if (error instanceof TimeoutException) {
+                result.completeExceptionally(new IOException(description + " timeout", error));
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        scheduler.submitTracked(CommandPriority.PROGRAMMING, null, onComplete -> {
+            AddressedProgrammer programmer = manager.getAddressedProgrammer(longAddress, address);
+            if (programmer == null) {
+                throw new IOException("No operations mode programmer for address " + address);
+            }
+            ProgListener listener = (v, status) -> {
+                onComplete.run();
+                manager.releaseAddressedProgrammer(programmer);
+                if (status == ProgListener.OK) {
+                    op.complete(null);
+                } else {
+                    op.completeExceptionally(new IOException(description + " failed, status=" + status));
+                }
+            };
+            try {
+                programmer.writeCV(Integer.toString(cv), value, listener);
+            } catch (ProgrammerException e) {
+                onComplete.run();
+                manager.releaseAddressedProgrammer(programmer);
+                throw new IOException("Programmer error", e);
+            }
+        }).whenComplete((ignored, error) -> {
+            // the command could not be sent
+            if (error != null) {
+                op.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+}
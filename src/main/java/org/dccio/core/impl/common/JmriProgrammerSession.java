@@ -8,22 +8,51 @@ import jmri.Programmer;
 import jmri.ProgrammerException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Simple synchronous wrapper over a JMRI {@link Programmer}. This is not
- * optimized for throughput, but keeps the public abstraction simple; the
- * daemon can later expose async operations if needed.
+ * Asynchronous wrapper over a JMRI {@link Programmer}. The programmer can
+ * only run one operation at a time, so requests are chained: each one is
+ * started on this session's own thread once the programmer has called back
+ * for the previous one, never from inside JMRI's callback.
+ * <p>
+ * A CV that times out fails its future, but the next one still waits for
+ * the programmer's late callback (up to {@link #BUSY_GRACE_SECONDS}) so it
+ * is not started while the programmer is still busy. Closing the session
+ * fails every operation not yet answered.
  */
 public class JmriProgrammerSession implements ProgrammerSession {
 
+    // upper bound per CV in case the programmer never calls back
+    private static final long CV_TIMEOUT_SECONDS = 90;
+    // how much longer the queue waits for a timed-out CV before moving on
+    private static final long BUSY_GRACE_SECONDS = 30;
+
     private final String connectionId;
     private final Programmer programmer;
+    private final ScheduledExecutorService executor;
+    private final Object lock = new Object();
+    private CompletableFuture<?> tail = CompletableFuture.completedFuture(null); // guarded by lock
+    private boolean closed; // guarded by lock
+    // operations queued or running, failed on close
+    private final Set<CompletableFuture<Integer>> outstanding = ConcurrentHashMap.newKeySet();
 
     public JmriProgrammerSession(String connectionId, GlobalProgrammerManager gpm) {
         this.connectionId = connectionId;
         this.programmer = gpm != null ? gpm.getGlobalProgrammer() : null;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "programmer-" + connectionId);
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
@@ -32,62 +61,116 @@ public class JmriProgrammerSession implements ProgrammerSession {
     }
 
     @Override
-    public int readCv(int cv) throws IOException {
-        ensureProgrammer();
-        CompletableFuture<Integer> future = new CompletableFuture<>();
-        ProgListener listener = (value, status) -> {
+    public CompletableFuture<Integer> readCvAsync(int cv) {
+        return enqueue("Read CV " + cv, future -> programmer.readCV(Integer.toString(cv), (value, status) -> {
             if (status == ProgListener.OK) {
                 future.complete(value);
             } else {
-                future.completeExceptionally(
-                        new IOException("Read CV failed, status=" + status));
+                future.completeExceptionally(new IOException("Read CV failed, status=" + status));
             }
-        };
-        try {
-            programmer.readCV(Integer.toString(cv), listener);
-            try {
-                return future.get(90, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                throw new IOException("Read CV timeout", e);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeCvAsync(int cv, int value) {
+        CompletableFuture<Integer> written = enqueue("Write CV " + cv,
+                future -> programmer.writeCV(Integer.toString(cv), value, (v, status) -> {
+                    if (status == ProgListener.OK) {
+                        future.complete(value);
+                    } else {
+                        future.completeExceptionally(new IOException("Write CV failed, status=" + status));
+                    }
+                }));
+        return written.thenApply(v -> null);
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void start(CompletableFuture<Integer> future) throws ProgrammerException;
+    }
+
+    private CompletableFuture<Integer> enqueue(String description, Operation operation) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (programmer == null) {
+            result.completeExceptionally(new IOException("No programmer available on this connection"));
+            return result;
+        }
+        synchronized (lock) {
+            if (closed) {
+                result.completeExceptionally(new IOException(description + " not started: programmer closed"));
+                return result;
             }
-        } catch (ProgrammerException e) {
-            throw new IOException("Programmer error", e);
+            outstanding.add(result);
+            result.whenComplete((v, e) -> outstanding.remove(result));
+            // the next operation waits for the programmer to be idle again,
+            // whether this one succeeds, fails or times out
+            tail = tail.thenComposeAsync(ignored -> run(description, operation, result), executor)
+                    .handle((v, e) -> {
+                        if (e != null) {
+                            result.completeExceptionally(new IOException(description + " not started: programmer closed", e));
+                        }
+                        return null;
+                    });
         }
+        return result;
     }
 
-    @Override
-    public void writeCv(int cv, int value) throws IOException {
-        ensureProgrammer();
-        CompletableFuture<Void> future = new CompletableFuture<>();
-        ProgListener listener = (v, status) -> {
-            if (status == ProgListener.OK) {
-                future.complete(null);
+    /**
+     * Start {@code operation} on the session thread.
+     *
+     * @return a future completed once the programmer has called back, or
+     *         has been given up on
+     */
+    private CompletableFuture<Void> run(String description, Operation operation, CompletableFuture<Integer> result) {
+        if (result.isDone()) {
+            // cancelled while queued
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Integer> op = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = executor.schedule(
+                () -> result.completeExceptionally(new IOException(description + " timeout")),
+                CV_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        op.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (error == null) {
+                result.complete(value);
             } else {
-                future.completeExceptionally(
-                        new IOException("Write CV failed, status=" + status));
+                result.completeExceptionally(error);
             }
-        };
+        });
         try {
-            programmer.writeCV(Integer.toString(cv), value, listener);
-            try {
-                future.get(90, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                throw new IOException("Write CV timeout", e);
-            }
+            operation.start(op);
         } catch (ProgrammerException e) {
-            throw new IOException("Programmer error", e);
-        }
-    }
-
-    private void ensureProgrammer() throws IOException {
-        if (programmer == null) {
-            throw new IOException("No programmer available on this connection");
+            op.completeExceptionally(new IOException("Programmer error", e));
+        } catch (RuntimeException e) {
+            op.completeExceptionally(new IOException(description + " failed: " + e.getMessage(), e));
         }
+        CompletableFuture<Void> idle = op.handle((v, e) -> null);
+        idle.completeOnTimeout(null, CV_TIMEOUT_SECONDS + BUSY_GRACE_SECONDS, TimeUnit.SECONDS);
+        idle.thenRun(() -> {
+            if (!op.isDone()) {
+                System.err.println(connectionId + ": programmer never answered " + description
+                        + ", starting the next operation anyway");
+            }
+        });
+        return idle;
     }
 
     @Override
     public void close() {
-        // nothing to dispose; programmer is owned by JMRI
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        // the programmer itself is owned by JMRI; this drops the timeouts
+        // too, so fail whatever it has not answered yet
+        executor.shutdownNow();
+        List<CompletableFuture<Integer>> pending = new ArrayList<>(outstanding);
+        for (CompletableFuture<Integer> result : pending) {
+            result.completeExceptionally(new IOException("Programmer on " + connectionId + " closed"));
+        }
     }
 }
 
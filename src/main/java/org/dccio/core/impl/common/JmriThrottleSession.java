@@ -1,23 +1,39 @@
 package org.dccio.core.impl.common;
 
+import org.dccio.core.SpeedStepMode;
 import org.dccio.core.ThrottleSession;
-import org.dccio.core.events.DccEvent;
 import org.dccio.core.events.DccEventBus;
 import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.ThrottleEvent;
+import org.dccio.core.outbound.CommandPriority;
+import org.dccio.core.outbound.CommandScheduler;
 
 import jmri.DccThrottle;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Wraps a JMRI {@link DccThrottle} as a {@link ThrottleSession}.
  *
  * This wrapper automatically listens to throttle property changes and publishes
  * them as high-level events (e.g., "Train 3: Speed = 100%").
+ * <p>
+ * When a {@link CommandScheduler} is supplied, commands are queued on it
+ * instead of being sent from the caller's thread. Speed and direction are
+ * then coalesced, and the getters report a requested value until it has
+ * been handed to JMRI. Every command holds a slot of the scheduler's
+ * in-flight window until the command station replies.
+ * <p>
+ * Function state F0..F{@value ThrottleSession#MAX_FUNCTION} is mirrored in
+ * a bit set, updated when a function is requested and when JMRI reports a
+ * change, so snapshots do not have to query JMRI once per function.
+ * <p>
+ * Speeds are quantized to the throttle's speed-step mode before they are
+ * queued, so the requested speed reads back as the speed JMRI will send.
  */
 public class JmriThrottleSession implements ThrottleSession {
 
@@ -27,13 +43,29 @@ public class JmriThrottleSession implements ThrottleSession {
     private final DccThrottle delegate;
     private final DccEventBus eventBus;
     private final PropertyChangeListener throttleListener;
+    private final CommandScheduler scheduler;
+    // coalescing keys for the scheduler
+    private final Object speedKey = new Object();
+    private final Object directionKey = new Object();
+    private final AtomicReference<Float> requestedSpeed = new AtomicReference<>();
+    private final AtomicReference<Boolean> requestedForward = new AtomicReference<>();
+    private final BitSet functionStates = new BitSet(MAX_FUNCTION + 1); // guarded by itself
 
     public JmriThrottleSession(String connectionId, int address, boolean longAddress, DccThrottle delegate, DccEventBus eventBus) {
+        this(connectionId, address, longAddress, delegate, eventBus, null);
+    }
+
+    public JmriThrottleSession(String connectionId, int address, boolean longAddress, DccThrottle delegate,
+                               DccEventBus eventBus, CommandScheduler scheduler) {
         this.connectionId = connectionId;
         this.address = address;
         this.longAddress = longAddress;
         this.delegate = delegate;
         this.eventBus = eventBus;
+        this.scheduler = scheduler;
+        for (int f = 0; f <= MAX_FUNCTION; f++) {
+            functionStates.set(f, delegate.getFunction(f));
+        }
         
         // Add property change listener to capture throttle state changes
         this.throttleListener = this::onThrottlePropertyChange;
@@ -41,53 +73,17 @@ public class JmriThrottleSession implements ThrottleSession {
     }
     
     private void onThrottlePropertyChange(PropertyChangeEvent evt) {
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("address", address);
-        payload.put("longAddress", longAddress);
-        String propertyName = evt.getPropertyName();
-        payload.put("property", propertyName);
-        payload.put("oldValue", evt.getOldValue());
-        payload.put("newValue", evt.getNewValue());
-        
-        // Create human-readable description
-        String description = formatThrottleEvent(propertyName, evt.getOldValue(), evt.getNewValue(), address, longAddress);
-        payload.put("description", description);
-        
-        // Always publish throttle events - this will show up in console
-        eventBus.publish(new DccEvent(DccEventType.THROTTLE_UPDATED, connectionId, payload));
-    }
-    
-    private String formatThrottleEvent(String propertyName, Object oldValue, Object newValue, int address, boolean longAddress) {
-        if (propertyName.equals(jmri.Throttle.SPEEDSETTING)) {
-            float speed = ((Number) newValue).floatValue();
-            return String.format("Train %d: Speed = %.1f%%", address, speed * 100);
-        } else if (propertyName.equals(jmri.Throttle.ISFORWARD)) {
-            boolean forward = (Boolean) newValue;
-            return String.format("Train %d: Direction = %s", address, forward ? "Forward" : "Reverse");
-        } else if (propertyName.startsWith("F") && propertyName.endsWith("Momentary")) {
-            // Momentary function (F0Momentary, F1Momentary, etc.)
-            String funcPart = propertyName.substring(1, propertyName.length() - 9);
-            try {
-                int funcNum = Integer.parseInt(funcPart);
-                boolean momentary = (Boolean) newValue;
-                return String.format("Train %d: Function F%d Momentary = %s", address, funcNum, momentary ? "ON" : "OFF");
-            } catch (NumberFormatException e) {
-                // Not a valid function number
-            }
-        } else if (propertyName.startsWith("F")) {
-            // Function change (F0, F1, F2, F13, F28, etc.) - check if rest is all digits
-            String funcPart = propertyName.substring(1);
-            if (funcPart.matches("\\d+")) {
-                try {
-                    int funcNum = Integer.parseInt(funcPart);
-                    boolean on = (Boolean) newValue;
-                    return String.format("Train %d: Function F%d = %s", address, funcNum, on ? "ON" : "OFF");
-                } catch (NumberFormatException e) {
-                    // Not a valid function number
-                }
-            }
+        int function = functionNumber(evt.getPropertyName());
+        if (function >= 0 && evt.getNewValue() instanceof Boolean) {
+            updateFunctionState(function, (Boolean) evt.getNewValue());
+        }
+        // Publish throttle events for the console and WebSocket clients; the
+        // description text is only formatted if a subscriber asks for it
+        if (!eventBus.hasListeners(DccEventType.THROTTLE_UPDATED)) {
+            return;
         }
-        return String.format("Train %d: %s = %s", address, propertyName, newValue);
+        eventBus.publish(new ThrottleEvent(connectionId, address, longAddress,
+                evt.getPropertyName(), evt.getOldValue(), evt.getNewValue()));
     }
 
     @Override
@@ -111,32 +107,139 @@ public class JmriThrottleSession implements ThrottleSession {
         // If this is the first command and the throttle hasn't been activated by the physical controller,
         // we may need to send an explicit activation. However, we'll try the normal command first.
         // The delegate should handle XpressNet-specific activation if needed.
-        delegate.setSpeedSetting(speed);
+        speed = getSpeedStepMode().quantize(speed);
+        if (scheduler == null) {
+            delegate.setSpeedSetting(speed);
+            return;
+        }
+        Float requested = speed;
+        requestedSpeed.set(requested);
+        // held in the window until the reply, which also times the bus for the speed pacer
+        scheduler.submitAwaitingReply(CommandPriority.SPEED, speedKey, () -> {
+            delegate.setSpeedSetting(requested);
+            requestedSpeed.compareAndSet(requested, null);
+        });
+    }
+
+    @Override
+    public void emergencyStop() throws IOException {
+        // JMRI sends a negative speed as the decoder's emergency stop step
+        if (scheduler == null) {
+            delegate.setSpeedSetting(-1f);
+            return;
+        }
+        Float stopped = 0f;
+        requestedSpeed.set(stopped);
+        scheduler.cancel(CommandPriority.SPEED, speedKey);
+        scheduler.call(CommandPriority.EMERGENCY, () -> delegate.setSpeedSetting(-1f));
+        requestedSpeed.compareAndSet(stopped, null);
     }
 
     @Override
     public void setDirection(boolean forward) throws IOException {
-        delegate.setIsForward(forward);
+        if (scheduler == null) {
+            delegate.setIsForward(forward);
+            return;
+        }
+        Boolean requested = forward;
+        requestedForward.set(requested);
+        scheduler.submitAwaitingReply(CommandPriority.SPEED, directionKey, () -> {
+            delegate.setIsForward(requested);
+            requestedForward.compareAndSet(requested, null);
+        });
     }
 
     @Override
     public void setFunction(int functionNumber, boolean on) throws IOException {
-        delegate.setFunction(functionNumber, on);
+        if (!updateFunctionState(functionNumber, on)) {
+            // JMRI would resend the whole function group for no change
+            return;
+        }
+        try {
+            if (scheduler == null) {
+                delegate.setFunction(functionNumber, on);
+                return;
+            }
+            // waits until JMRI has taken the command, so a failure still reaches the caller
+            scheduler.callAwaitingReply(CommandPriority.FUNCTION, null, () -> delegate.setFunction(functionNumber, on));
+        } catch (IOException | RuntimeException e) {
+            // not sent, so a retry must not be taken for a no-op
+            updateFunctionState(functionNumber, !on);
+            throw e;
+        }
+    }
+
+    @Override
+    public SpeedStepMode getSpeedStepMode() {
+        return SpeedStepMode.fromIncrement(delegate.getSpeedIncrement());
     }
 
     @Override
     public float getSpeed() {
-        return delegate.getSpeedSetting();
+        Float requested = requestedSpeed.get();
+        if (requested != null) {
+            return requested;
+        }
+        // negative after an emergency stop
+        return Math.max(0f, delegate.getSpeedSetting());
     }
 
     @Override
     public boolean getDirection() {
-        return delegate.getIsForward();
+        Boolean requested = requestedForward.get();
+        return requested != null ? requested : delegate.getIsForward();
     }
 
     @Override
     public boolean getFunction(int functionNumber) {
-        return delegate.getFunction(functionNumber);
+        if (functionNumber < 0 || functionNumber > MAX_FUNCTION) {
+            return delegate.getFunction(functionNumber);
+        }
+        synchronized (functionStates) {
+            return functionStates.get(functionNumber);
+        }
+    }
+
+    @Override
+    public BitSet getFunctions() {
+        synchronized (functionStates) {
+            return (BitSet) functionStates.clone();
+        }
+    }
+
+    /**
+     * @return false if the function was known to be in that state already;
+     *         true if it changed or is not mirrored
+     */
+    private boolean updateFunctionState(int functionNumber, boolean on) {
+        if (functionNumber < 0 || functionNumber > MAX_FUNCTION) {
+            return true;
+        }
+        synchronized (functionStates) {
+            boolean changed = functionStates.get(functionNumber) != on;
+            functionStates.set(functionNumber, on);
+            return changed;
+        }
+    }
+
+    /**
+     * @return n for a JMRI function property "Fn", or -1 for any other property
+     *         (including "FnMomentary").
+     */
+    private static int functionNumber(String propertyName) {
+        if (propertyName == null || propertyName.length() < 2 || propertyName.length() > 3
+                || propertyName.charAt(0) != 'F') {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 1; i < propertyName.length(); i++) {
+            char c = propertyName.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
     }
 
     @Override
@@ -1,17 +1,19 @@
 package org.dccio.core.impl.dccpp;
 
 import org.dccio.core.AccessoryController;
+import org.dccio.core.OpsModeProgrammer;
 import org.dccio.core.ProgrammerSession;
 import org.dccio.core.SystemConfig;
 import org.dccio.core.ThrottleSession;
-import org.dccio.core.events.DccEvent;
 import org.dccio.core.events.DccEventBus;
-import org.dccio.core.events.DccEventType;
 import org.dccio.core.impl.common.BaseCommandStationConnection;
 import org.dccio.core.impl.common.JmriAccessoryController;
+import org.dccio.core.impl.common.JmriOpsModeProgrammer;
 import org.dccio.core.impl.common.JmriProgrammerSession;
 import org.dccio.core.impl.common.JmriThrottleSession;
+import org.dccio.core.outbound.CommandPriority;
 
+import jmri.AddressedProgrammerManager;
 import jmri.DccThrottle;
 import jmri.GlobalProgrammerManager;
 import jmri.InstanceManager;
@@ -21,7 +23,11 @@ import jmri.ThrottleManager;
 import jmri.TurnoutManager;
 import jmri.jmrix.SystemConnectionMemoManager;
 import jmri.jmrix.dccpp.DCCppCommandStation;
+import jmri.jmrix.dccpp.DCCppInterface;
+import jmri.jmrix.dccpp.DCCppListener;
+import jmri.jmrix.dccpp.DCCppMessage;
 import jmri.jmrix.dccpp.DCCppPacketizer;
+import jmri.jmrix.dccpp.DCCppReply;
 import jmri.jmrix.dccpp.DCCppSystemConnectionMemo;
 import jmri.jmrix.dccpp.DCCppTrafficController;
 import jmri.jmrix.dccpp.network.DCCppEthernetAdapter;
@@ -45,8 +51,26 @@ public final class DccppConnection extends BaseCommandStationConnection {
 
     private JmriAccessoryController accessoryController;
     private JmriProgrammerSession programmerSession;
+    private JmriOpsModeProgrammer opsModeProgrammer;
 
     private final PropertyChangeListener powerListener = this::onPowerChange;
+    // turnout and throttle commands go through JMRI, so their replies are only seen here
+    private final DCCppListener replyListener = new DCCppListener() {
+        @Override
+        public void message(DCCppReply reply) {
+            scheduler.replyReceived();
+        }
+
+        @Override
+        public void message(DCCppMessage message) {
+            // our own outgoing command; nothing to do
+        }
+
+        @Override
+        public void notifyTimeout(DCCppMessage message) {
+            scheduler.replyReceived();
+        }
+    };
 
     public DccppConnection(SystemConfig config, DccEventBus eventBus) {
         super(config, eventBus);
@@ -84,7 +108,7 @@ public final class DccppConnection extends BaseCommandStationConnection {
     private void attachManagersAndListeners() {
         TurnoutManager turnoutManager = memo.getTurnoutManager();
         if (turnoutManager != null) {
-            accessoryController = new JmriAccessoryController(id, turnoutManager);
+            accessoryController = new JmriAccessoryController(id, turnoutManager, scheduler);
         }
         GlobalProgrammerManager gpm = memo.getProgrammerManager();
         if (gpm == null) {
@@ -93,11 +117,18 @@ public final class DccppConnection extends BaseCommandStationConnection {
         if (gpm != null) {
             programmerSession = new JmriProgrammerSession(id, gpm);
         }
+        AddressedProgrammerManager apm = gpm instanceof AddressedProgrammerManager
+                ? (AddressedProgrammerManager) gpm
+                : InstanceManager.getNullableDefault(AddressedProgrammerManager.class);
+        if (apm != null) {
+            opsModeProgrammer = new JmriOpsModeProgrammer(id, apm, scheduler);
+        }
 
         PowerManager pm = memo.getPowerManager();
         if (pm != null) {
             pm.addPropertyChangeListener(powerListener);
         }
+        trafficController.addDCCppListener(DCCppInterface.ALL, replyListener);
     }
 
     @Override
@@ -132,7 +163,7 @@ public final class DccppConnection extends BaseCommandStationConnection {
         if (holder[0] == null) {
             throw new IOException("Throttle not granted for address " + address);
         }
-        return new JmriThrottleSession(id, address, longAddress, holder[0], eventBus);
+        return new JmriThrottleSession(id, address, longAddress, holder[0], eventBus, scheduler);
     }
 
     @Override
@@ -140,6 +171,11 @@ public final class DccppConnection extends BaseCommandStationConnection {
         return programmerSession;
     }
 
+    @Override
+    public OpsModeProgrammer getOpsModeProgrammer() {
+        return opsModeProgrammer;
+    }
+
     @Override
     public AccessoryController getAccessoryController() {
         return accessoryController;
@@ -215,25 +251,31 @@ public final class DccppConnection extends BaseCommandStationConnection {
                 throw new IllegalArgumentException("Invalid power state: " + powerState + ". Must be ON, OFF, or IDLE");
         }
         
-        try {
-            pm.setPower(powerValue);
-        } catch (jmri.JmriException e) {
-            throw new IOException("Failed to set power: " + e.getMessage(), e);
-        }
+        // Power changes overtake any queued speed/function/accessory traffic
+        scheduler.call(CommandPriority.EMERGENCY, () -> {
+            try {
+                pm.setPower(powerValue);
+            } catch (jmri.JmriException e) {
+                throw new IOException("Failed to set power: " + e.getMessage(), e);
+            }
+        });
     }
 
     private void onPowerChange(PropertyChangeEvent evt) {
         if (PowerManager.POWER.equals(evt.getPropertyName())) {
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("old", evt.getOldValue());
-            payload.put("new", evt.getNewValue());
-            eventBus.publish(new DccEvent(DccEventType.POWER_CHANGED, id, payload));
+            publishPowerChanged(evt.getOldValue(), evt.getNewValue(), null);
         }
     }
 
     @Override
     public void close() {
         connected = false;
+        scheduler.close();
+        programmingQueue.close();
+        opsModeQueue.close();
+        if (programmerSession != null) {
+            programmerSession.close();
+        }
         publishConnectionState();
         
         // Remove listeners first
@@ -244,6 +286,7 @@ public final class DccppConnection extends BaseCommandStationConnection {
         
         // Terminate traffic controller threads before closing
         if (trafficController != null) {
+            trafficController.removeDCCppListener(DCCppInterface.ALL, replyListener);
             try {
                 trafficController.terminateThreads();
             } catch (Exception e) {
@@ -0,0 +1,608 @@
+package org.dccio.core.impl.dccpp.sim;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a DCC++ EX command station on a TCP port, for exercising
+ * {@code DccppConnection} (host {@code localhost}) without hardware.
+ * <p>
+ * Understands the commands the daemon sends:
+ * <ul>
+ *   <li>throttle: {@code <t REG CAB SPEED DIR>} (answered with
+ *       {@code <T REG SPEED DIR>}) and {@code <t CAB SPEED DIR>} (answered
+ *       with {@code <l CAB REG SPEEDBYTE FUNCTMAP>}); {@code <!>} stops
+ *       every locomotive</li>
+ *   <li>functions: {@code <f CAB BYTE1 [BYTE2]>} and {@code <F CAB FUNC 0|1>}</li>
+ *   <li>turnouts: {@code <T ID 0|1>}, answered with {@code <H ID 0|1>};
+ *       unknown turnouts are created on first use. {@code <a ADDR SUB 0|1>}
+ *       is accepted without reply, as on the real station</li>
+ *   <li>power: {@code <0>} and {@code <1>}, answered with {@code <p0>} /
+ *       {@code <p1>} to every client</li>
+ *   <li>status: {@code <s>}, answered with power, version and turnouts;
+ *       plus {@code <c>} current, {@code <#>} slots and service mode
+ *       {@code <R>} / {@code <W>} against an in-memory CV table</li>
+ * </ul>
+ * Anything else is answered with {@code <X>}. Each command is delayed by
+ * {@code responseLatencyMicros} before it takes effect and is answered, and
+ * is silently dropped with probability {@code packetLoss}. Commands are
+ * pipelined, so latency does not limit throughput.
+ * <p>
+ * Can also be run on its own:
+ * {@code java org.dccio.core.impl.dccpp.sim.DccppExServer [port] [latencyMs] [packetLoss]}.
+ */
+public final class DccppExServer implements Closeable {
+
+    /** DCC++ EX's default WiFi/Ethernet port. */
+    public static final int DEFAULT_PORT = 2560;
+
+    static final String VERSION = "<iDCC-EX V-5.0.0 / MEGA / STANDARD_MOTOR_SHIELD / G-dccio-sim>";
+    private static final int MAX_COMMAND = 256;
+    private static final int CV_COUNT = 1024;
+
+    private final int requestedPort;
+    private final long latencyMicros;
+    private final double packetLoss;
+    private final Random random;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private final Map<Integer, Loco> locos = new TreeMap<>();
+    private final Map<Integer, Boolean> turnouts = new TreeMap<>();
+    private final int[] cvs = new int[CV_COUNT];
+    private boolean powerOn;
+    private long commandsReceived;
+    private long commandsDropped;
+
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    private DccppExServer(Builder builder) {
+        this.requestedPort = builder.port;
+        this.latencyMicros = builder.responseLatencyMicros;
+        this.packetLoss = builder.packetLoss;
+        this.random = new Random(builder.seed);
+        cvs[1] = 3;
+        cvs[29] = 6;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Bind the port and start accepting clients.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        if (closed) {
+            throw new IOException("Server is closed");
+        }
+        serverSocket = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dccpp-ex-server");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread acceptor = new Thread(this::acceptLoop, "dccpp-ex-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the bound port; useful when built with port 0.
+     */
+    public int getPort() {
+        ServerSocket socket = serverSocket;
+        return socket != null ? socket.getLocalPort() : requestedPort;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isPowerOn() {
+        synchronized (lock) {
+            return powerOn;
+        }
+    }
+
+    /**
+     * @return speed 0-126 of {@code cab}, 0 also meaning stopped by an
+     *         emergency stop, or -1 if the locomotive was never addressed.
+     */
+    public int getSpeed(int cab) {
+        synchronized (lock) {
+            Loco loco = locos.get(cab);
+            return loco != null ? loco.speed : -1;
+        }
+    }
+
+    public boolean isForward(int cab) {
+        synchronized (lock) {
+            Loco loco = locos.get(cab);
+            return loco == null || loco.forward;
+        }
+    }
+
+    /**
+     * @return function states of {@code cab}, bit n set meaning Fn is on.
+     */
+    public long getFunctions(int cab) {
+        synchronized (lock) {
+            Loco loco = locos.get(cab);
+            return loco != null ? loco.functions : 0;
+        }
+    }
+
+    /**
+     * @return true if thrown, false if closed, null if never used.
+     */
+    public Boolean getTurnout(int id) {
+        synchronized (lock) {
+            return turnouts.get(id);
+        }
+    }
+
+    public long getCommandsReceived() {
+        synchronized (lock) {
+            return commandsReceived;
+        }
+    }
+
+    /**
+     * @return number of commands discarded to simulate packet loss.
+     */
+    public long getCommandsDropped() {
+        synchronized (lock) {
+            return commandsDropped;
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                clients.add(client);
+                Thread reader = new Thread(() -> client.readLoop(), "dccpp-ex-server-client");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("DCC++ EX server accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void received(Client client, String command) {
+        synchronized (lock) {
+            commandsReceived++;
+            if (packetLoss > 0 && random.nextDouble() < packetLoss) {
+                commandsDropped++;
+                return;
+            }
+        }
+        if (latencyMicros == 0) {
+            execute(client, command);
+        } else {
+            // one scheduler thread and equal delays keep commands in arrival order
+            executor.schedule(() -> execute(client, command), latencyMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void execute(Client client, String command) {
+        List<String> replies = new ArrayList<>(2);
+        boolean broadcast;
+        synchronized (lock) {
+            broadcast = handle(command, replies);
+        }
+        for (String reply : replies) {
+            if (broadcast) {
+                for (Client c : clients) {
+                    c.send(reply);
+                }
+            } else {
+                client.send(reply);
+            }
+        }
+    }
+
+    /**
+     * Apply one command (the text between {@code <} and {@code >}).
+     *
+     * @return true if the replies go to every client
+     */
+    boolean handle(String command, List<String> replies) {
+        String body = command.trim();
+        if (body.isEmpty()) {
+            replies.add("<X>");
+            return false;
+        }
+        char op = body.charAt(0);
+        String[] args = body.substring(1).trim().isEmpty() ? new String[0] : body.substring(1).trim().split("\\s+");
+        try {
+            switch (op) {
+                case 't':
+                    return throttle(args, replies);
+                case 'f':
+                    functionBytes(args);
+                    return false;
+                case 'F': {
+                    Loco loco = loco(Integer.parseInt(args[0]));
+                    int function = Integer.parseInt(args[1]);
+                    if (function < 0 || function > 68) {
+                        replies.add("<X>");
+                        return false;
+                    }
+                    loco.setFunction(function, "1".equals(args[2]));
+                    replies.add(loco.state());
+                    return true;
+                }
+                case '!':
+                    for (Loco loco : locos.values()) {
+                        loco.speed = 0;
+                    }
+                    return false;
+                case 'T':
+                    return turnout(args, replies);
+                case 'a':
+                    return false;
+                case '1':
+                case '0':
+                    powerOn = op == '1';
+                    replies.add("<p" + op + (args.length > 0 ? " " + args[0] : "") + ">");
+                    return true;
+                case 's':
+                    replies.add(powerOn ? "<p1>" : "<p0>");
+                    replies.add(VERSION);
+                    for (Map.Entry<Integer, Boolean> t : turnouts.entrySet()) {
+                        replies.add("<H " + t.getKey() + " " + (t.getValue() ? 1 : 0) + ">");
+                    }
+                    return false;
+                case 'c':
+                    replies.add("<c CurrentMAIN 0 C Milli 0 2000 1 1800>");
+                    return false;
+                case '#':
+                    replies.add("<# 50>");
+                    return false;
+                case 'R':
+                    return readCv(args, replies);
+                case 'W':
+                    return writeCv(args, replies);
+                default:
+                    replies.add("<X>");
+                    return false;
+            }
+        } catch (RuntimeException e) {
+            // missing or non-numeric arguments
+            replies.clear();
+            replies.add("<X>");
+            return false;
+        }
+    }
+
+    private boolean throttle(String[] args, List<String> replies) {
+        if (args.length == 4) {
+            // classic: <t REG CAB SPEED DIR>
+            int register = Integer.parseInt(args[0]);
+            Loco loco = loco(Integer.parseInt(args[1]));
+            loco.setSpeed(Integer.parseInt(args[2]), "1".equals(args[3]));
+            replies.add("<T " + register + " " + args[2] + " " + args[3] + ">");
+            return false;
+        }
+        if (args.length == 3) {
+            // DCC-EX: <t CAB SPEED DIR>
+            Loco loco = loco(Integer.parseInt(args[0]));
+            loco.setSpeed(Integer.parseInt(args[1]), "1".equals(args[2]));
+            replies.add(loco.state());
+            return true;
+        }
+        if (args.length == 1) {
+            replies.add(loco(Integer.parseInt(args[0])).state());
+            return false;
+        }
+        replies.add("<X>");
+        return false;
+    }
+
+    private void functionBytes(String[] args) {
+        Loco loco = loco(Integer.parseInt(args[0]));
+        int b1 = Integer.parseInt(args[1]);
+        if (b1 >= 128 && b1 <= 159) {
+            // 100D DDDD: F0 in bit 4, F1-F4 in bits 0-3
+            loco.setFunctions(0, 5, ((b1 & 0x0F) << 1) | ((b1 >> 4) & 1));
+        } else if (b1 >= 176 && b1 <= 191) {
+            loco.setFunctions(5, 4, b1 & 0x0F);
+        } else if (b1 >= 160 && b1 <= 175) {
+            loco.setFunctions(9, 4, b1 & 0x0F);
+        } else if (b1 == 222) {
+            loco.setFunctions(13, 8, Integer.parseInt(args[2]));
+        } else if (b1 == 223) {
+            loco.setFunctions(21, 8, Integer.parseInt(args[2]));
+        } else {
+            throw new IllegalArgumentException("Bad function byte " + b1);
+        }
+    }
+
+    private boolean turnout(String[] args, List<String> replies) {
+        if (args.length == 2) {
+            int id = Integer.parseInt(args[0]);
+            boolean thrown = "1".equals(args[1]) || "T".equalsIgnoreCase(args[1]);
+            turnouts.put(id, thrown);
+            replies.add("<H " + id + " " + (thrown ? 1 : 0) + ">");
+            return true;
+        }
+        if (args.length == 3) {
+            // define a DCC turnout: <T ID ADDR SUB>
+            turnouts.putIfAbsent(Integer.parseInt(args[0]), false);
+            replies.add("<O>");
+            return false;
+        }
+        if (args.length == 0) {
+            if (turnouts.isEmpty()) {
+                replies.add("<X>");
+            }
+            for (Map.Entry<Integer, Boolean> t : turnouts.entrySet()) {
+                replies.add("<H " + t.getKey() + " " + (t.getValue() ? 1 : 0) + ">");
+            }
+            return false;
+        }
+        replies.add("<X>");
+        return false;
+    }
+
+    private boolean readCv(String[] args, List<String> replies) {
+        int cv = Integer.parseInt(args[0]);
+        String value = cv > 0 && cv < CV_COUNT ? String.valueOf(cvs[cv]) : "-1";
+        replies.add(cvReply(args, 1, cv, value));
+        return false;
+    }
+
+    private boolean writeCv(String[] args, List<String> replies) {
+        int cv = Integer.parseInt(args[0]);
+        int value = Integer.parseInt(args[1]);
+        String result = "-1";
+        if (cv > 0 && cv < CV_COUNT && value >= 0 && value <= 255) {
+            cvs[cv] = value;
+            result = String.valueOf(value);
+        }
+        replies.add(cvReply(args, 2, cv, result));
+        return false;
+    }
+
+    /**
+     * {@code <r CALLBACKNUM|CALLBACKSUB|CV VALUE>} for the classic form with
+     * callback arguments, {@code <r CV VALUE>} otherwise.
+     */
+    private static String cvReply(String[] args, int callbackIndex, int cv, String value) {
+        if (args.length >= callbackIndex + 2) {
+            return "<r " + args[callbackIndex] + "|" + args[callbackIndex + 1] + "|" + cv + " " + value + ">";
+        }
+        return "<r " + cv + " " + value + ">";
+    }
+
+    private Loco loco(int cab) {
+        if (cab < 0 || cab > 10239) {
+            throw new IllegalArgumentException("Bad cab " + cab);
+        }
+        return locos.computeIfAbsent(cab, Loco::new);
+    }
+
+    private static final class Loco {
+        final int cab;
+        int speed;
+        boolean forward = true;
+        long functions;
+
+        Loco(int cab) {
+            this.cab = cab;
+        }
+
+        void setSpeed(int speed, boolean forward) {
+            // -1 is an emergency stop
+            this.speed = Math.max(0, Math.min(126, speed));
+            this.forward = forward;
+        }
+
+        void setFunction(int function, boolean on) {
+            if (on) {
+                functions |= 1L << function;
+            } else {
+                functions &= ~(1L << function);
+            }
+        }
+
+        void setFunctions(int first, int width, int bits) {
+            long mask = ((1L << width) - 1) << first;
+            functions = (functions & ~mask) | (((long) bits << first) & mask);
+        }
+
+        /**
+         * {@code <l CAB REG SPEEDBYTE FUNCTMAP>}: direction in bit 7 of the
+         * speed byte, 0 = stop, 1 = emergency stop, otherwise speed + 1.
+         */
+        String state() {
+            int speedByte = (speed == 0 ? 0 : speed + 1) | (forward ? 0x80 : 0);
+            return "<l " + cab + " 0 " + speedByte + " " + (functions & 0x1FFFFFFFL) + ">";
+        }
+    }
+
+    private final class Client {
+        private final Socket socket;
+        private final OutputStream out;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        void readLoop() {
+            StringBuilder command = new StringBuilder();
+            boolean inCommand = false;
+            try (InputStream in = new BufferedInputStream(socket.getInputStream())) {
+                int c;
+                while ((c = in.read()) >= 0) {
+                    if (c == '<') {
+                        command.setLength(0);
+                        inCommand = true;
+                    } else if (c == '>' && inCommand) {
+                        inCommand = false;
+                        received(this, command.toString());
+                    } else if (inCommand) {
+                        if (command.length() >= MAX_COMMAND) {
+                            inCommand = false;
+                        } else {
+                            command.append((char) c);
+                        }
+                    }
+                }
+            } catch (SocketException e) {
+                // client went away or server closed
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("DCC++ EX server client failed: " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        void send(String reply) {
+            try {
+                synchronized (out) {
+                    out.write(reply.getBytes(StandardCharsets.US_ASCII));
+                    out.write('\n');
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private int port = DEFAULT_PORT;
+        private long responseLatencyMicros;
+        private double packetLoss;
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * @param port TCP port on the loopback interface, or 0 for any free port
+         */
+        public Builder port(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Port must be between 0 and 65535");
+            }
+            this.port = port;
+            return this;
+        }
+
+        public Builder responseLatencyMicros(long responseLatencyMicros) {
+            if (responseLatencyMicros < 0) {
+                throw new IllegalArgumentException("Response latency must not be negative");
+            }
+            this.responseLatencyMicros = responseLatencyMicros;
+            return this;
+        }
+
+        /**
+         * @param packetLoss chance, 0.0 to 1.0, that a command is dropped unanswered
+         */
+        public Builder packetLoss(double packetLoss) {
+            if (packetLoss < 0 || packetLoss > 1) {
+                throw new IllegalArgumentException("Packet loss must be between 0.0 and 1.0");
+            }
+            this.packetLoss = packetLoss;
+            return this;
+        }
+
+        /**
+         * Seed for packet loss, so a load test can be repeated.
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public DccppExServer build() {
+            return new DccppExServer(this);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Builder builder = builder();
+        try {
+            if (args.length > 0) {
+                builder.port(Integer.parseInt(args[0]));
+            }
+            if (args.length > 1) {
+                builder.responseLatencyMicros(Math.round(Double.parseDouble(args[1]) * 1000));
+            }
+            if (args.length > 2) {
+                builder.packetLoss(Double.parseDouble(args[2]));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Usage: DccppExServer [port] [latencyMs] [packetLoss]: " + e.getMessage());
+            System.exit(2);
+        }
+        DccppExServer server = builder.build();
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.println("DCC++ EX stand-in listening on localhost:" + server.getPort());
+        Thread.currentThread().join();
+    }
+}
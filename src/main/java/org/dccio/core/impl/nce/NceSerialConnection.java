@@ -1,17 +1,19 @@
 package org.dccio.core.impl.nce;
 
 import org.dccio.core.AccessoryController;
+import org.dccio.core.OpsModeProgrammer;
 import org.dccio.core.ProgrammerSession;
 import org.dccio.core.SystemConfig;
 import org.dccio.core.ThrottleSession;
-import org.dccio.core.events.DccEvent;
 import org.dccio.core.events.DccEventBus;
-import org.dccio.core.events.DccEventType;
 import org.dccio.core.impl.common.BaseCommandStationConnection;
 import org.dccio.core.impl.common.JmriAccessoryController;
+import org.dccio.core.impl.common.JmriOpsModeProgrammer;
 import org.dccio.core.impl.common.JmriProgrammerSession;
 import org.dccio.core.impl.common.JmriThrottleSession;
+import org.dccio.core.outbound.CommandPriority;
 
+import jmri.AddressedProgrammerManager;
 import jmri.DccThrottle;
 import jmri.GlobalProgrammerManager;
 import jmri.InstanceManager;
@@ -20,6 +22,9 @@ import jmri.ThrottleListener;
 import jmri.ThrottleManager;
 import jmri.TurnoutManager;
 import jmri.jmrix.SystemConnectionMemoManager;
+import jmri.jmrix.nce.NceListener;
+import jmri.jmrix.nce.NceMessage;
+import jmri.jmrix.nce.NceReply;
 import jmri.jmrix.nce.NceSystemConnectionMemo;
 import jmri.jmrix.nce.NceTrafficController;
 import jmri.jmrix.nce.serialdriver.SerialDriverAdapter;
@@ -40,8 +45,21 @@ public final class NceSerialConnection extends BaseCommandStationConnection {
 
     private JmriAccessoryController accessoryController;
     private JmriProgrammerSession programmerSession;
+    private JmriOpsModeProgrammer opsModeProgrammer;
 
     private final PropertyChangeListener powerListener = this::onPowerChange;
+    // turnout and throttle commands go through JMRI, so their replies are only seen here
+    private final NceListener replyListener = new NceListener() {
+        @Override
+        public void message(NceMessage message) {
+            // our own outgoing command; nothing to do
+        }
+
+        @Override
+        public void reply(NceReply reply) {
+            scheduler.replyReceived();
+        }
+    };
 
     public NceSerialConnection(SystemConfig config, DccEventBus eventBus) {
         super(config, eventBus);
@@ -80,17 +98,22 @@ public final class NceSerialConnection extends BaseCommandStationConnection {
 
         TurnoutManager turnoutManager = memo.getTurnoutManager();
         if (turnoutManager != null) {
-            accessoryController = new JmriAccessoryController(id, turnoutManager);
+            accessoryController = new JmriAccessoryController(id, turnoutManager, scheduler);
         }
         GlobalProgrammerManager gpm = InstanceManager.getNullableDefault(GlobalProgrammerManager.class);
         if (gpm != null) {
             programmerSession = new JmriProgrammerSession(id, gpm);
         }
+        AddressedProgrammerManager apm = InstanceManager.getNullableDefault(AddressedProgrammerManager.class);
+        if (apm != null) {
+            opsModeProgrammer = new JmriOpsModeProgrammer(id, apm, scheduler);
+        }
 
         PowerManager pm = memo.getPowerManager();
         if (pm != null) {
             pm.addPropertyChangeListener(powerListener);
         }
+        tc.addNceListener(replyListener);
     }
 
     @Override
@@ -125,7 +148,7 @@ public final class NceSerialConnection extends BaseCommandStationConnection {
         if (holder[0] == null) {
             throw new IOException("Throttle not granted for address " + address);
         }
-        return new JmriThrottleSession(id, address, longAddress, holder[0], eventBus);
+        return new JmriThrottleSession(id, address, longAddress, holder[0], eventBus, scheduler);
     }
 
     @Override
@@ -133,6 +156,11 @@ public final class NceSerialConnection extends BaseCommandStationConnection {
         return programmerSession;
     }
 
+    @Override
+    public OpsModeProgrammer getOpsModeProgrammer() {
+        return opsModeProgrammer;
+    }
+
     @Override
     public AccessoryController getAccessoryController() {
         return accessoryController;
@@ -191,25 +219,31 @@ public final class NceSerialConnection extends BaseCommandStationConnection {
                 throw new IllegalArgumentException("Invalid power state: " + powerState + ". Must be ON, OFF, or IDLE");
         }
         
-        try {
-            pm.setPower(powerValue);
-        } catch (jmri.JmriException e) {
-            throw new IOException("Failed to set power: " + e.getMessage(), e);
-        }
+        // Power changes overtake any queued speed/function/accessory traffic
+        scheduler.call(CommandPriority.EMERGENCY, () -> {
+            try {
+                pm.setPower(powerValue);
+            } catch (jmri.JmriException e) {
+                throw new IOException("Failed to set power: " + e.getMessage(), e);
+            }
+        });
     }
 
     private void onPowerChange(PropertyChangeEvent evt) {
         if (PowerManager.POWER.equals(evt.getPropertyName())) {
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("old", evt.getOldValue());
-            payload.put("new", evt.getNewValue());
-            eventBus.publish(new DccEvent(DccEventType.POWER_CHANGED, id, payload));
+            publishPowerChanged(evt.getOldValue(), evt.getNewValue(), null);
         }
     }
 
     @Override
     public void close() {
         connected = false;
+        scheduler.close();
+        programmingQueue.close();
+        opsModeQueue.close();
+        if (programmerSession != null) {
+            programmerSession.close();
+        }
         publishConnectionState();
         
         // Remove listeners first
@@ -221,6 +255,7 @@ public final class NceSerialConnection extends BaseCommandStationConnection {
         // Terminate traffic controller threads before closing port
         NceTrafficController tc = memo.getNceTrafficController();
         if (tc != null) {
+            tc.removeNceListener(replyListener);
             try {
                 tc.terminateThreads();
             } catch (Exception e) {
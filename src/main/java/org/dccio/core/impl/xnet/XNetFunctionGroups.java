@@ -0,0 +1,74 @@
+package org.dccio.core.impl.xnet;
+
+/**
+ * F0-F28 state of one locomotive, sent as XpressNet function group frames.
+ * <p>
+ * Alongside the requested state this keeps the state each group was last
+ * encoded with, so only groups whose bits have changed since produce a
+ * frame: switching F1 on sends the F0-F4 group once, and switching it on
+ * again (or on and back off before the frame went out) sends nothing.
+ */
+public final class XNetFunctionGroups {
+
+    private static final long ALL_FUNCTIONS = (1L << (XNetLocoEncoder.FunctionGroup.F21_F28.getLast() + 1)) - 1;
+
+    private final XNetLocoEncoder encoder;
+    private long states; // bit n = Fn; guarded by this
+    private long sent;   // the bits of each group as last encoded; guarded by this
+
+    /**
+     * @param initialStates the functions the locomotive is known to have on
+     *                      (bit n = Fn); these are taken as already sent
+     */
+    public XNetFunctionGroups(XNetLocoEncoder encoder, long initialStates) {
+        this.encoder = encoder;
+        this.states = initialStates & ALL_FUNCTIONS;
+        this.sent = this.states;
+    }
+
+    /**
+     * Request function {@code function} on or off.
+     *
+     * @return true if its group now differs from what was last sent
+     * @throws IllegalArgumentException if XpressNet has no group for it
+     */
+    public synchronized boolean set(int function, boolean on) {
+        XNetLocoEncoder.FunctionGroup group = XNetLocoEncoder.FunctionGroup.of(function);
+        if (group == null) {
+            throw new IllegalArgumentException("F" + function + " has no XpressNet function group");
+        }
+        long bit = 1L << function;
+        states = on ? (states | bit) : (states & ~bit);
+        return isChanged(group);
+    }
+
+    /**
+     * @return true if {@code group} differs from what was last sent.
+     */
+    public synchronized boolean isChanged(XNetLocoEncoder.FunctionGroup group) {
+        return ((states ^ sent) & group.mask()) != 0;
+    }
+
+    /**
+     * Encode the frame for {@code group} if it differs from what was last
+     * sent, and take it as sent.
+     *
+     * @return the frame length, or 0 if the group is unchanged and nothing
+     *         was written
+     */
+    public synchronized int encodeIfChanged(XNetLocoEncoder.FunctionGroup group, byte[] out) {
+        if (!isChanged(group)) {
+            return 0;
+        }
+        long mask = group.mask();
+        sent = (sent & ~mask) | (states & mask);
+        return encoder.encodeFunctionGroup(group, states, out);
+    }
+
+    /**
+     * @return the requested state, bit n = Fn.
+     */
+    public synchronized long getStates() {
+        return states;
+    }
+}
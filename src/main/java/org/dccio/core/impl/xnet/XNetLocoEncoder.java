@@ -0,0 +1,226 @@
+package org.dccio.core.impl.xnet;
+
+import org.dccio.core.SpeedStepMode;
+
+/**
+ * Encodes XpressNet locomotive operation frames for a single address.
+ * <p>
+ * The address bytes and the XOR of each frame's fixed header are computed
+ * once, in the constructor; encoding a command then only writes the data
+ * byte and patches the checksum into a caller-supplied buffer, so no objects
+ * are allocated per command. Frames produced (XpressNet 3.x):
+ * <ul>
+ *   <li>speed and direction: {@code E4 id AH AL RV X} where id is
+ *       {@code 10}/{@code 12}/{@code 13} for 14/28/128 speed steps</li>
+ *   <li>function group: {@code E4 id AH AL FF X} where id is {@code 20}
+ *       (F0-F4), {@code 21} (F5-F8), {@code 22} (F9-F12), {@code 23}
+ *       (F13-F20) or {@code 28} (F21-F28)</li>
+ *   <li>emergency stop for this locomotive: {@code 92 AH AL X}</li>
+ * </ul>
+ * Addresses below 100 are sent as short addresses ({@code AH = 00});
+ * higher addresses as long addresses with {@code 0xC0} set in AH.
+ */
+public final class XNetLocoEncoder {
+
+    /** Length of speed and function group frames, including the checksum. */
+    public static final int LOCO_FRAME_LENGTH = 6;
+    /** Length of the per-locomotive emergency stop frame, including the checksum. */
+    public static final int EMERGENCY_STOP_FRAME_LENGTH = 4;
+    /** Highest address XpressNet can carry. */
+    public static final int MAX_ADDRESS = 9999;
+
+    private static final int LOCO_OPERATION = 0xE4;
+    private static final int EMERGENCY_STOP = 0x92;
+    private static final int FORWARD = 0x80;
+
+    /**
+     * XpressNet function groups and the functions they carry.
+     */
+    public enum FunctionGroup {
+        F0_F4(0x20, 0, 4),
+        F5_F8(0x21, 5, 8),
+        F9_F12(0x22, 9, 12),
+        F13_F20(0x23, 13, 20),
+        F21_F28(0x28, 21, 28);
+
+        private static final FunctionGroup[] BY_FUNCTION = new FunctionGroup[29];
+
+        static {
+            for (FunctionGroup group : values()) {
+                for (int f = group.first; f <= group.last; f++) {
+                    BY_FUNCTION[f] = group;
+                }
+            }
+        }
+
+        private final int instruction;
+        private final int first;
+        private final int last;
+
+        FunctionGroup(int instruction, int first, int last) {
+            this.instruction = instruction;
+            this.first = first;
+            this.last = last;
+        }
+
+        public int getFirst() {
+            return first;
+        }
+
+        public int getLast() {
+            return last;
+        }
+
+        /**
+         * @return the group carrying function {@code function}, or null if
+         *         XpressNet has no group for it (above F28).
+         */
+        public static FunctionGroup of(int function) {
+            return function >= 0 && function < BY_FUNCTION.length ? BY_FUNCTION[function] : null;
+        }
+
+        /**
+         * @return a mask with one bit set per function of this group, in the
+         *         layout of {@code functionStates} (bit n = Fn).
+         */
+        public long mask() {
+            return ((1L << (last + 1)) - 1) & ~((1L << first) - 1);
+        }
+
+        /**
+         * Extract this group's data byte from a function state mask.
+         *
+         * @param functionStates bit n set means Fn is on
+         */
+        int dataByte(long functionStates) {
+            if (this == F0_F4) {
+                // F0 is bit 4, F1-F4 are bits 0-3
+                return (int) (((functionStates >>> 1) & 0x0F) | ((functionStates & 1) << 4));
+            }
+            int width = last - first + 1;
+            return (int) ((functionStates >>> first) & ((1 << width) - 1));
+        }
+    }
+
+    private final int address;
+    private final SpeedStepMode mode;
+    private final byte addressHigh;
+    private final byte addressLow;
+    private final byte speedInstruction;
+    private final int speedHeaderXor;
+    private final int functionHeaderXor;
+    private final int emergencyStopChecksum;
+
+    public XNetLocoEncoder(int address, SpeedStepMode mode) {
+        if (address < 0 || address > MAX_ADDRESS) {
+            throw new IllegalArgumentException("XpressNet address must be between 0 and " + MAX_ADDRESS);
+        }
+        if (mode == null) {
+            throw new IllegalArgumentException("Speed step mode is required");
+        }
+        this.address = address;
+        this.mode = mode;
+        int high = address < 100 ? 0x00 : ((address >> 8) | 0xC0);
+        int low = address & 0xFF;
+        this.addressHigh = (byte) high;
+        this.addressLow = (byte) low;
+        int instruction;
+        switch (mode) {
+            case STEPS_14:
+                instruction = 0x10;
+                break;
+            case STEPS_28:
+                instruction = 0x12;
+                break;
+            case STEPS_128:
+            default:
+                instruction = 0x13;
+                break;
+        }
+        this.speedInstruction = (byte) instruction;
+        this.speedHeaderXor = LOCO_OPERATION ^ instruction ^ high ^ low;
+        this.functionHeaderXor = LOCO_OPERATION ^ high ^ low;
+        this.emergencyStopChecksum = EMERGENCY_STOP ^ high ^ low;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public SpeedStepMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Encode a speed and direction command for a normalized speed, using
+     * {@link SpeedStepMode#toStep(float)}.
+     *
+     * @return the frame length, {@link #LOCO_FRAME_LENGTH}
+     */
+    public int encodeSpeed(float speed, boolean forward, byte[] out) {
+        return encodeSpeed(mode.toStep(speed), forward, out);
+    }
+
+    /**
+     * Encode a speed and direction command.
+     *
+     * @param step running step {@code 1..mode.getSteps()}, or 0 to stop
+     * @return the frame length, {@link #LOCO_FRAME_LENGTH}
+     */
+    public int encodeSpeed(int step, boolean forward, byte[] out) {
+        if (step < 0 || step > mode.getSteps()) {
+            throw new IllegalArgumentException("Speed step must be between 0 and " + mode.getSteps());
+        }
+        int data = speedByte(step) | (forward ? FORWARD : 0);
+        out[0] = (byte) LOCO_OPERATION;
+        out[1] = speedInstruction;
+        out[2] = addressHigh;
+        out[3] = addressLow;
+        out[4] = (byte) data;
+        out[5] = (byte) (speedHeaderXor ^ data);
+        return LOCO_FRAME_LENGTH;
+    }
+
+    private int speedByte(int step) {
+        if (step == 0) {
+            return 0;
+        }
+        if (mode == SpeedStepMode.STEPS_28) {
+            // 5-bit code: step + 3, with the least significant bit moved to bit 4
+            int code = step + 3;
+            return (code >> 1) | ((code & 1) << 4);
+        }
+        // 14 and 128 steps: 0 = stop, 1 = emergency stop, then the running steps
+        return step + 1;
+    }
+
+    /**
+     * Encode a function group command.
+     *
+     * @param functionStates bit n set means Fn is on; bits outside the group are ignored
+     * @return the frame length, {@link #LOCO_FRAME_LENGTH}
+     */
+    public int encodeFunctionGroup(FunctionGroup group, long functionStates, byte[] out) {
+        int data = group.dataByte(functionStates);
+        out[0] = (byte) LOCO_OPERATION;
+        out[1] = (byte) group.instruction;
+        out[2] = addressHigh;
+        out[3] = addressLow;
+        out[4] = (byte) data;
+        out[5] = (byte) (functionHeaderXor ^ group.instruction ^ data);
+        return LOCO_FRAME_LENGTH;
+    }
+
+    /**
+     * Encode an emergency stop for this locomotive only.
+     *
+     * @return the frame length, {@link #EMERGENCY_STOP_FRAME_LENGTH}
+     */
+    public int encodeEmergencyStop(byte[] out) {
+        out[0] = (byte) EMERGENCY_STOP;
+        out[1] = addressHigh;
+        out[2] = addressLow;
+        out[3] = (byte) emergencyStopChecksum;
+        return EMERGENCY_STOP_FRAME_LENGTH;
+    }
+}
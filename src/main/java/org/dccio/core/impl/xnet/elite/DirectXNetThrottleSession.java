@@ -1,41 +1,87 @@
 package org.dccio.core.impl.xnet.elite;
 
+import org.dccio.core.SpeedStepMode;
 import org.dccio.core.ThrottleSession;
 import org.dccio.core.events.DccEventBus;
+import org.dccio.core.impl.xnet.XNetFunctionGroups;
+import org.dccio.core.impl.xnet.XNetLocoEncoder;
+import org.dccio.core.outbound.CommandPriority;
+import org.dccio.core.outbound.CommandScheduler;
 
 import jmri.DccThrottle;
+import jmri.jmrix.lenz.XNetListener;
 import jmri.jmrix.lenz.XNetMessage;
+import jmri.jmrix.lenz.XNetReply;
 import jmri.jmrix.lenz.XNetTrafficController;
 
 import java.io.IOException;
+import java.util.BitSet;
 
 /**
  * Direct XpressNet throttle session that bypasses JMRI's throttle abstraction
- * for speed/direction commands, sending them directly like the Python implementation.
- * Functions still use JMRI's throttle for compatibility.
+ * for speed/direction and function commands, sending them directly like the Python
+ * implementation. Function state F0-F28 is kept in an {@link XNetFunctionGroups}
+ * and only the function groups whose bits changed are sent; JMRI's throttle is
+ * only used for higher functions.
+ * Frames are built by an {@link XNetLocoEncoder} set up once for this session's address.
+ * <p>
+ * With a {@link CommandScheduler}, speed frames are tracked commands: each
+ * holds a slot of the scheduler's in-flight window until the command station
+ * replies, which keeps JMRI's transmit queue short enough for higher
+ * priority traffic to overtake.
  */
 public class DirectXNetThrottleSession implements ThrottleSession {
 
+    private static final XNetLocoEncoder.FunctionGroup[] FUNCTION_GROUPS = XNetLocoEncoder.FunctionGroup.values();
+
     private final String connectionId;
     private final int address;
     private final boolean longAddress;
     private final XNetTrafficController trafficController;
     private final DccEventBus eventBus;
-    private final DccThrottle jmriThrottle; // Used for functions only
+    private final DccThrottle jmriThrottle; // Used for functions above F28 only
+    private final CommandScheduler scheduler;
+    private final XNetLocoEncoder encoder;
+    private final byte[] frame = new byte[XNetLocoEncoder.LOCO_FRAME_LENGTH];
+    // coalescing keys for the scheduler, one per XNet function group
+    private final Object[] functionGroupKeys = new Object[FUNCTION_GROUPS.length];
     
-    // Track state internally (for speed/direction sent directly)
+    // Track state internally (sent directly, not through JMRI)
     private volatile float currentSpeed = 0.0f;
     private volatile boolean currentDirection = true; // forward
+    private final XNetFunctionGroups functions;
+    private volatile boolean speedSent; // until then the loco's real speed is unknown
 
     public DirectXNetThrottleSession(String connectionId, int address, boolean longAddress,
                                      XNetTrafficController trafficController, DccEventBus eventBus,
                                      DccThrottle jmriThrottle) {
+        this(connectionId, address, longAddress, trafficController, eventBus, jmriThrottle, null);
+    }
+
+    public DirectXNetThrottleSession(String connectionId, int address, boolean longAddress,
+                                     XNetTrafficController trafficController, DccEventBus eventBus,
+                                     DccThrottle jmriThrottle, CommandScheduler scheduler) {
         this.connectionId = connectionId;
         this.address = address;
         this.longAddress = longAddress;
         this.trafficController = trafficController;
         this.eventBus = eventBus;
         this.jmriThrottle = jmriThrottle;
+        this.scheduler = scheduler;
+        this.encoder = new XNetLocoEncoder(address, SpeedStepMode.STEPS_128);
+        for (int i = 0; i < functionGroupKeys.length; i++) {
+            functionGroupKeys[i] = new Object();
+        }
+        // Start from whatever JMRI learned about the loco's functions
+        long states = 0;
+        if (jmriThrottle != null) {
+            for (int f = 0; f <= XNetLocoEncoder.FunctionGroup.F21_F28.getLast(); f++) {
+                if (jmriThrottle.getFunction(f)) {
+                    states |= 1L << f;
+                }
+            }
+        }
+        this.functions = new XNetFunctionGroups(encoder, states);
     }
 
     @Override
@@ -59,50 +105,15 @@ public class DirectXNetThrottleSession implements ThrottleSession {
             throw new IllegalArgumentException("Speed must be between 0.0 and 1.0");
         }
         
-        // Convert normalized speed (0.0-1.0) to XpressNet speed (0-127)
-        int xnetSpeed = Math.round(speed * 127);
-        
-        // Send direct XpressNet throttle command: 0xE4 0x13 [address] [speed|direction] [checksum]
-        // This matches the Python throttle() method exactly
-        byte[] throttleBytes = new byte[5];
-        throttleBytes[0] = (byte)0xE4;  // Loco operation request
-        throttleBytes[1] = 0x13;          // Set speed and direction
-        
-        // Encode address (same logic as Python)
-        if (address < 100) {
-            throttleBytes[2] = 0x00;
-            throttleBytes[3] = (byte)address;
-        } else {
-            // Long address encoding: high byte has 0xC0 set
-            throttleBytes[2] = (byte)((address >> 8) | 0xC0);
-            throttleBytes[3] = (byte)(address & 0xFF);
-        }
-        
-        // Speed and direction: bit 7 = direction (0x80 = forward, 0x00 = reverse)
-        throttleBytes[4] = (byte)xnetSpeed;
-        if (currentDirection) {
-            throttleBytes[4] |= 0x80;  // Set forward bit
-        } else {
-            throttleBytes[4] &= 0x7F;   // Clear forward bit (reverse)
-        }
-        
-        // Calculate checksum (XOR of all bytes)
-        byte checksum = 0;
-        for (byte b : throttleBytes) {
-            checksum ^= b;
-        }
-        
-        // Create and send XNetMessage
-        XNetMessage throttleMsg = new XNetMessage(throttleBytes.length + 1);
-        for (int i = 0; i < throttleBytes.length; i++) {
-            throttleMsg.setElement(i, throttleBytes[i] & 0xFF);
+        // Only 128-step values exist on the wire; a speed within the current
+        // step would send an identical frame
+        float quantized = encoder.getMode().quantize(speed);
+        if (speedSent && quantized == currentSpeed) {
+            return;
         }
-        throttleMsg.setElement(throttleBytes.length, checksum & 0xFF);
-        
-        trafficController.sendXNetMessage(throttleMsg, null);
-        
-        // Update internal state
-        currentSpeed = speed;
+        // Update internal state; the queued command reads it when it is sent
+        currentSpeed = quantized;
+        sendSpeedAndDirection();
         
         // Note: We don't publish THROTTLE_UPDATED events here because:
         // 1. We're bypassing JMRI, so these events are not needed
@@ -110,6 +121,21 @@ public class DirectXNetThrottleSession implements ThrottleSession {
         // 3. Events are meant for external changes (physical controller), not our own commands
     }
 
+    @Override
+    public void emergencyStop() throws IOException {
+        currentSpeed = 0f;
+        speedSent = true;
+        if (scheduler == null) {
+            trafficController.sendXNetMessage(buildEmergencyStopMessage(), null);
+            return;
+        }
+        // A queued speed frame would read the new state anyway, but drop it
+        // so that nothing but the stop goes out for this loco
+        scheduler.cancel(CommandPriority.SPEED, this);
+        scheduler.call(CommandPriority.EMERGENCY,
+                () -> trafficController.sendXNetMessage(buildEmergencyStopMessage(), null));
+    }
+
     @Override
     public void setDirection(boolean forward) throws IOException {
         boolean directionChanged = (currentDirection != forward);
@@ -120,60 +146,130 @@ public class DirectXNetThrottleSession implements ThrottleSession {
         currentDirection = forward;
         
         // Send throttle command with current speed but new direction
-        // Convert normalized speed (0.0-1.0) to XpressNet speed (0-127)
-        int xnetSpeed = Math.round(currentSpeed * 127);
-        
-        // Send direct XpressNet throttle command: 0xE4 0x13 [address] [speed|direction] [checksum]
-        byte[] throttleBytes = new byte[5];
-        throttleBytes[0] = (byte)0xE4;  // Loco operation request
-        throttleBytes[1] = 0x13;          // Set speed and direction
+        sendSpeedAndDirection();
         
-        // Encode address (same logic as Python)
-        if (address < 100) {
-            throttleBytes[2] = 0x00;
-            throttleBytes[3] = (byte)address;
-        } else {
-            // Long address encoding: high byte has 0xC0 set
-            throttleBytes[2] = (byte)((address >> 8) | 0xC0);
-            throttleBytes[3] = (byte)(address & 0xFF);
+        // Note: We don't publish THROTTLE_UPDATED events here (same reason as setSpeed)
+    }
+
+    /**
+     * Queue a speed/direction command. Speed and direction share one frame,
+     * so both use this session as the coalescing key: however many changes
+     * arrive while the bus is busy, one frame with the latest state is sent.
+     */
+    private void sendSpeedAndDirection() {
+        speedSent = true;
+        if (scheduler == null) {
+            trafficController.sendXNetMessage(buildSpeedMessage(), null);
+            return;
         }
-        
-        // Speed and direction: bit 7 = direction (0x80 = forward, 0x00 = reverse)
-        throttleBytes[4] = (byte)xnetSpeed;
-        if (currentDirection) {
-            throttleBytes[4] |= 0x80;  // Set forward bit
-        } else {
-            throttleBytes[4] &= 0x7F;   // Clear forward bit (reverse)
+        scheduler.submitTracked(CommandPriority.SPEED, this,
+                onComplete -> trafficController.sendXNetMessage(buildSpeedMessage(), new ReplyListener(onComplete)));
+    }
+
+    private XNetMessage buildSpeedMessage() {
+        // The frame buffer is shared by the dispatcher and direct callers
+        synchronized (frame) {
+            int length = encoder.encodeSpeed(currentSpeed, currentDirection, frame);
+            return toMessage(frame, length);
         }
-        
-        // Calculate checksum (XOR of all bytes)
-        byte checksum = 0;
-        for (byte b : throttleBytes) {
-            checksum ^= b;
+    }
+
+    private XNetMessage buildEmergencyStopMessage() {
+        synchronized (frame) {
+            int length = encoder.encodeEmergencyStop(frame);
+            return toMessage(frame, length);
         }
-        
-        // Create and send XNetMessage
-        XNetMessage throttleMsg = new XNetMessage(throttleBytes.length + 1);
-        for (int i = 0; i < throttleBytes.length; i++) {
-            throttleMsg.setElement(i, throttleBytes[i] & 0xFF);
+    }
+
+    private static XNetMessage toMessage(byte[] frame, int length) {
+        XNetMessage msg = new XNetMessage(length);
+        for (int i = 0; i < length; i++) {
+            msg.setElement(i, frame[i] & 0xFF);
         }
-        throttleMsg.setElement(throttleBytes.length, checksum & 0xFF);
-        
-        trafficController.sendXNetMessage(throttleMsg, null);
-        
-        // Note: We don't publish THROTTLE_UPDATED events here (same reason as setSpeed)
+        return msg;
     }
 
     @Override
     public void setFunction(int functionNumber, boolean on) throws IOException {
-        // Use JMRI throttle for functions (they work fine)
-        if (jmriThrottle != null) {
+        XNetLocoEncoder.FunctionGroup group = XNetLocoEncoder.FunctionGroup.of(functionNumber);
+        if (group == null) {
+            setFunctionViaJmri(functionNumber, on);
+            return;
+        }
+        if (functions.set(functionNumber, on)) {
+            sendFunctionGroup(group);
+        }
+    }
+
+    @Override
+    public void setFunctions(BitSet mask, BitSet states) throws IOException {
+        // Update all bits first, then send one frame per changed group
+        for (int f = mask.nextSetBit(0); f >= 0; f = mask.nextSetBit(f + 1)) {
+            if (XNetLocoEncoder.FunctionGroup.of(f) == null) {
+                setFunctionViaJmri(f, states.get(f));
+                continue;
+            }
+            functions.set(f, states.get(f));
+        }
+        for (XNetLocoEncoder.FunctionGroup group : FUNCTION_GROUPS) {
+            if (functions.isChanged(group)) {
+                sendFunctionGroup(group);
+            }
+        }
+    }
+
+    /**
+     * Queue a function group command. Each group has its own coalescing key
+     * and the frame is built from the state bits when it is sent, so changes
+     * to several functions of a group that are still queued go out as one
+     * frame, and none at all if they cancelled out.
+     */
+    private void sendFunctionGroup(XNetLocoEncoder.FunctionGroup group) {
+        if (scheduler == null) {
+            XNetMessage msg = buildFunctionMessage(group);
+            if (msg != null) {
+                trafficController.sendXNetMessage(msg, null);
+            }
+            return;
+        }
+        scheduler.submitTracked(CommandPriority.FUNCTION, functionGroupKeys[group.ordinal()], onComplete -> {
+            XNetMessage msg = buildFunctionMessage(group);
+            if (msg == null) {
+                onComplete.run();
+                return;
+            }
+            trafficController.sendXNetMessage(msg, new ReplyListener(onComplete));
+        });
+    }
+
+    /**
+     * @return the frame for {@code group}, or null if it has not changed
+     *         since it was last sent
+     */
+    private XNetMessage buildFunctionMessage(XNetLocoEncoder.FunctionGroup group) {
+        synchronized (frame) {
+            int length = functions.encodeIfChanged(group, frame);
+            return length == 0 ? null : toMessage(frame, length);
+        }
+    }
+
+    private void setFunctionViaJmri(int functionNumber, boolean on) throws IOException {
+        // Functions above F28 have no XpressNet 3 function group; let JMRI handle them
+        if (jmriThrottle == null) {
+            throw new IOException("Function F" + functionNumber + " is not supported on this throttle");
+        }
+        if (scheduler == null) {
             jmriThrottle.setFunction(functionNumber, on);
         } else {
-            throw new IOException("JMRI throttle not available for function control");
+            scheduler.callAwaitingReply(CommandPriority.FUNCTION, null, () -> jmriThrottle.setFunction(functionNumber, on));
         }
     }
 
+    @Override
+    public SpeedStepMode getSpeedStepMode() {
+        return encoder.getMode();
+    }
+
     @Override
     public float getSpeed() {
         return currentSpeed;
@@ -186,13 +282,29 @@ public class DirectXNetThrottleSession implements ThrottleSession {
 
     @Override
     public boolean getFunction(int functionNumber) {
-        // Use JMRI throttle for functions
+        if (XNetLocoEncoder.FunctionGroup.of(functionNumber) != null) {
+            return (functions.getStates() & (1L << functionNumber)) != 0;
+        }
+        // Use JMRI throttle for functions beyond F28
         if (jmriThrottle != null) {
             return jmriThrottle.getFunction(functionNumber);
         }
         return false;
     }
 
+    @Override
+    public BitSet getFunctions() {
+        BitSet states = BitSet.valueOf(new long[] {functions.getStates()});
+        if (jmriThrottle != null) {
+            for (int f = XNetLocoEncoder.FunctionGroup.F21_F28.getLast() + 1; f <= MAX_FUNCTION; f++) {
+                if (jmriThrottle.getFunction(f)) {
+                    states.set(f);
+                }
+            }
+        }
+        return states;
+    }
+
     @Override
     public void close() {
         // Release JMRI throttle (used for functions)
@@ -200,4 +312,31 @@ public class DirectXNetThrottleSession implements ThrottleSession {
             jmriThrottle.release(null);
         }
     }
+
+    /**
+     * Completes a tracked scheduler command when the command station answers
+     * (or JMRI gives up waiting).
+     */
+    private static final class ReplyListener implements XNetListener {
+        private final Runnable onComplete;
+
+        ReplyListener(Runnable onComplete) {
+            this.onComplete = onComplete;
+        }
+
+        @Override
+        public void message(XNetReply reply) {
+            onComplete.run();
+        }
+
+        @Override
+        public void message(XNetMessage message) {
+            // our own outgoing frame; nothing to do
+        }
+
+        @Override
+        public void notifyTimeout(XNetMessage message) {
+            onComplete.run();
+        }
+    }
 }
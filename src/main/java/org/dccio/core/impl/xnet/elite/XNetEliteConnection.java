@@ -1,18 +1,23 @@
 package org.dccio.core.impl.xnet.elite;
 
 import org.dccio.core.AccessoryController;
+import org.dccio.core.OpsModeProgrammer;
 import org.dccio.core.ProgrammerSession;
 import org.dccio.core.SystemConfig;
 import org.dccio.core.ThrottleSession;
 import org.dccio.core.events.DccEvent;
 import org.dccio.core.events.DccEventBus;
 import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.FrameEvent;
 import org.dccio.core.impl.common.BaseCommandStationConnection;
 import org.dccio.core.impl.common.JmriAccessoryController;
+import org.dccio.core.impl.common.JmriOpsModeProgrammer;
 import org.dccio.core.impl.common.JmriProgrammerSession;
 import org.dccio.core.impl.common.JmriThrottleSession;
 import org.dccio.core.impl.xnet.elite.DirectXNetThrottleSession;
+import org.dccio.core.outbound.CommandPriority;
 
+import jmri.AddressedProgrammerManager;
 import jmri.DccThrottle;
 import jmri.GlobalProgrammerManager;
 import jmri.InstanceManager;
@@ -39,59 +44,72 @@ import java.util.Map;
  * CommandStationConnection for Hornby Elite / XpressNet, backed by the JMRI
  * XNet stack.
  */
-public final class XNetEliteConnection extends BaseCommandStationConnection {
+public class XNetEliteConnection extends BaseCommandStationConnection {
 
     private final EliteAdapter adapter;
     private final EliteXNetSystemConnectionMemo memo;
 
     private JmriAccessoryController accessoryController;
     private JmriProgrammerSession programmerSession;
+    private JmriOpsModeProgrammer opsModeProgrammer;
 
     private final PropertyChangeListener powerListener = this::onPowerChange;
     private final XNetListener xnetListener = new XNetListener() {
         @Override
         public void message(XNetMessage m) {
             // Outgoing message to command station - publish for console
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("direction", "out");
-            payload.put("message", m.toString());
-            payload.put("hex", bytesToHex(m));
-            // Use generic message formatter
-            String formatted = formatMessage(m);
-            if (formatted != null && !formatted.equals(m.toString())) {
-                payload.put("decoded", formatted);
+            if (eventBus.hasListeners(DccEventType.MESSAGE_SENT)) {
+                eventBus.publish(frameEvent(DccEventType.MESSAGE_SENT, m));
             }
-            eventBus.publish(new DccEvent(DccEventType.MESSAGE_SENT, id, payload));
         }
 
         @Override
         public void message(XNetReply m) {
             // Incoming message from command station - publish for console and check for important events
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("direction", "in");
-            payload.put("message", m.toString());
-            payload.put("hex", bytesToHex(m));
-            // Use generic message formatter
-            String formatted = formatMessage(m);
-            if (formatted != null && !formatted.equals(m.toString())) {
-                payload.put("decoded", formatted);
+            if (eventBus.hasListeners(DccEventType.MESSAGE_RECEIVED)) {
+                eventBus.publish(frameEvent(DccEventType.MESSAGE_RECEIVED, m));
             }
-            eventBus.publish(new DccEvent(DccEventType.MESSAGE_RECEIVED, id, payload));
+            // frees the window slot of turnouts and JMRI throttle commands
+            scheduler.replyReceived();
             handleXNetReply(m);
         }
 
         @Override
         public void notifyTimeout(XNetMessage m) {
+            // JMRI has given up on the oldest command; so does the scheduler
+            scheduler.replyReceived();
             Map<String, Object> payload = new HashMap<>();
             payload.put("message", m.toString());
             eventBus.publish(new DccEvent(DccEventType.COMMUNICATION_ERROR, id, payload));
         }
     };
 
+    // Console text is only rendered when a subscriber asks for it, by
+    // rebuilding the JMRI message from the frame's raw bytes
+    private final FrameEvent.Decoder frameDecoder = new FrameEvent.Decoder() {
+        @Override
+        public String text(FrameEvent frame) {
+            return toXNetMessage(frame).toString();
+        }
+
+        @Override
+        public String decode(FrameEvent frame) {
+            return formatMessage(toXNetMessage(frame));
+        }
+    };
+
     public XNetEliteConnection(SystemConfig config, DccEventBus eventBus) {
+        this(config, eventBus, new EliteAdapter());
+    }
+
+    /**
+     * For connections that drive the Elite stack through a different port
+     * adapter; the subclass then overrides {@link #openPort()}.
+     */
+    protected XNetEliteConnection(SystemConfig config, DccEventBus eventBus, EliteAdapter adapter) {
         super(config, eventBus);
         this.memo = new EliteXNetSystemConnectionMemo();
-        this.adapter = new EliteAdapter();
+        this.adapter = adapter;
         this.adapter.setSystemConnectionMemo(memo);
         memo.setUserName(config.getUserName());
         memo.setSystemPrefix(config.getSystemPrefix());
@@ -104,6 +122,32 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
         if (connected) {
             return;
         }
+        openPort();
+        adapter.configure();
+        attachManagersAndListeners();
+        
+        // Request version info automatically on connection (XNet-specific)
+        // This will populate the command station info when the response arrives
+        // Similar to what XNetInitializationManager does
+        try {
+            XNetTrafficController tc = memo.getXNetTrafficController();
+            if (tc != null) {
+                XNetMessage msg = XNetMessage.getCSVersionRequestMessage();
+                scheduler.submitAwaitingReply(CommandPriority.INFO, null, () -> tc.sendXNetMessage(msg, null));
+            }
+        } catch (Exception e) {
+            // Log but don't fail connection if version request fails
+            // Version info will just remain unknown until manually requested
+        }
+        
+        connected = true;
+        publishConnectionState();
+    }
+
+    /**
+     * Configure and open the serial port named by the {@code portName} option.
+     */
+    protected void openPort() throws IOException {
         String portName = config.getOption("portName");
         if (portName == null) {
             throw new IOException("Missing 'portName' option for Elite connection");
@@ -148,25 +192,6 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
         if (error != null) {
             throw new IOException("Failed to open Elite port: " + error);
         }
-        adapter.configure();
-        attachManagersAndListeners();
-        
-        // Request version info automatically on connection (XNet-specific)
-        // This will populate the command station info when the response arrives
-        // Similar to what XNetInitializationManager does
-        try {
-            XNetTrafficController tc = memo.getXNetTrafficController();
-            if (tc != null) {
-                XNetMessage msg = XNetMessage.getCSVersionRequestMessage();
-                tc.sendXNetMessage(msg, null);
-            }
-        } catch (Exception e) {
-            // Log but don't fail connection if version request fails
-            // Version info will just remain unknown until manually requested
-        }
-        
-        connected = true;
-        publishConnectionState();
     }
 
     private void attachManagersAndListeners() {
@@ -181,12 +206,16 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
         // set up accessory and programmer wrappers
         TurnoutManager turnoutManager = memo.getTurnoutManager();
         if (turnoutManager != null) {
-            accessoryController = new JmriAccessoryController(id, turnoutManager);
+            accessoryController = new JmriAccessoryController(id, turnoutManager, scheduler);
         }
         GlobalProgrammerManager gpm = InstanceManager.getNullableDefault(GlobalProgrammerManager.class);
         if (gpm != null) {
             programmerSession = new JmriProgrammerSession(id, gpm);
         }
+        AddressedProgrammerManager apm = InstanceManager.getNullableDefault(AddressedProgrammerManager.class);
+        if (apm != null) {
+            opsModeProgrammer = new JmriOpsModeProgrammer(id, apm, scheduler);
+        }
 
         // observe power events
         PowerManager pm = memo.getPowerManager();
@@ -261,7 +290,7 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
         if (tc != null) {
             // Use JMRI's standard version request message
             XNetMessage msg = XNetMessage.getCSVersionRequestMessage();
-            tc.sendXNetMessage(msg, null);
+            scheduler.callAwaitingReply(CommandPriority.INFO, null, () -> tc.sendXNetMessage(msg, null));
         } else {
             throw new IOException("Traffic controller not available");
         }
@@ -334,15 +363,15 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
             throw new IOException("Throttle not granted for address " + address);
         }
         
-        // Bypass JMRI's throttle abstraction for speed/direction and send commands directly,
-        // matching the Python implementation which works reliably. Functions still use JMRI.
+        // Bypass JMRI's throttle abstraction for speed/direction and F0-F28 and send commands directly,
+        // matching the Python implementation which works reliably. JMRI keeps the throttle allocation.
         XNetTrafficController tc = memo.getXNetTrafficController();
         if (tc == null) {
             throw new IOException("XNetTrafficController not available on Elite connection");
         }
         
-        // Create direct throttle session that sends speed/direction commands like the Python code
-        DirectXNetThrottleSession throttle = new DirectXNetThrottleSession(id, address, longAddress, tc, eventBus, holder[0]);
+        // Create direct throttle session that sends speed/direction/function commands like the Python code
+        DirectXNetThrottleSession throttle = new DirectXNetThrottleSession(id, address, longAddress, tc, eventBus, holder[0], scheduler);
         
         // Send initial throttle command to activate/initialize (speed 0, forward)
         // This matches what the Python code does - just send the command directly
@@ -361,6 +390,11 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
         return programmerSession;
     }
 
+    @Override
+    public OpsModeProgrammer getOpsModeProgrammer() {
+        return opsModeProgrammer;
+    }
+
     @Override
     public AccessoryController getAccessoryController() {
         return accessoryController;
@@ -436,19 +470,34 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
                 throw new IllegalArgumentException("Invalid power state: " + powerState + ". Must be ON, OFF, or IDLE");
         }
         
-        try {
-            pm.setPower(powerValue);
-        } catch (jmri.JmriException e) {
-            throw new IOException("Failed to set power: " + e.getMessage(), e);
+        // Power changes overtake any queued speed/function/accessory traffic
+        scheduler.call(CommandPriority.EMERGENCY, () -> {
+            try {
+                pm.setPower(powerValue);
+            } catch (jmri.JmriException e) {
+                throw new IOException("Failed to set power: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    @Override
+    public void emergencyStop() throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected");
+        }
+        XNetTrafficController tc = memo.getXNetTrafficController();
+        if (tc == null) {
+            throw new IOException("XNetTrafficController not available on Elite connection");
         }
+        // XpressNet "stop all locomotives" (0x80 0x80); track power stays on.
+        // getEmergencyOffMsg() would be 0x21 0x80, which cuts track power
+        XNetMessage msg = XNetMessage.getEmergencyStopMsg();
+        scheduler.call(CommandPriority.EMERGENCY, () -> tc.sendXNetMessage(msg, null));
     }
 
     private void onPowerChange(PropertyChangeEvent evt) {
         if (PowerManager.POWER.equals(evt.getPropertyName())) {
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("old", evt.getOldValue());
-            payload.put("new", evt.getNewValue());
-            // Also include the power status string for convenience
+            // Map the power state to a status string for convenience
             int power = (Integer) evt.getNewValue();
             String powerStatus;
             switch (power) {
@@ -464,25 +513,44 @@ public final class XNetEliteConnection extends BaseCommandStationConnection {
                 default:
                     powerStatus = "UNKNOWN";
             }
-            payload.put("status", powerStatus);
-            eventBus.publish(new DccEvent(DccEventType.POWER_CHANGED, id, payload));
+            publishPowerChanged(evt.getOldValue(), evt.getNewValue(), powerStatus);
         }
     }
 
-    private String bytesToHex(jmri.jmrix.AbstractMessage msg) {
-        if (msg == null) return "";
-        StringBuilder sb = new StringBuilder();
-        int len = msg.getNumDataElements();
+    private FrameEvent frameEvent(DccEventType type, jmri.jmrix.AbstractMessage m) {
+        int len = m.getNumDataElements();
+        byte[] data = new byte[len];
         for (int i = 0; i < len; i++) {
-            sb.append(String.format("%02X ", msg.getElement(i) & 0xFF));
+            data[i] = (byte) m.getElement(i);
         }
-        return sb.toString().trim();
+        return new FrameEvent(type, id, data, frameDecoder);
+    }
+
+    private static jmri.jmrix.AbstractMessage toXNetMessage(FrameEvent frame) {
+        int len = frame.length();
+        if (frame.isOutgoing()) {
+            XNetMessage msg = new XNetMessage(len);
+            for (int i = 0; i < len; i++) {
+                msg.setElement(i, frame.get(i));
+            }
+            return msg;
+        }
+        XNetReply reply = new XNetReply();
+        for (int i = 0; i < len; i++) {
+            reply.setElement(i, frame.get(i));
+        }
+        return reply;
     }
-    
 
     @Override
     public void close() {
         connected = false;
+        scheduler.close();
+        programmingQueue.close();
+        opsModeQueue.close();
+        if (programmerSession != null) {
+            programmerSession.close();
+        }
         publishConnectionState();
         
         // Remove listeners first
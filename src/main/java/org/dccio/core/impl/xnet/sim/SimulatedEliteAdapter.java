@@ -0,0 +1,65 @@
+package org.dccio.core.impl.xnet.sim;
+
+import jmri.jmrix.lenz.hornbyelite.EliteAdapter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Elite port adapter whose "serial port" is an
+ * {@link XNetCommandStationSimulator}. Everything above the byte streams -
+ * the XNet packetizer, the Elite command station quirks and the JMRI
+ * managers set up by {@link EliteAdapter#configure()} - is the real stack.
+ */
+public final class SimulatedEliteAdapter extends EliteAdapter {
+
+    private final XNetCommandStationSimulator simulator;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private volatile boolean opened;
+
+    public SimulatedEliteAdapter(XNetCommandStationSimulator simulator) {
+        this.simulator = simulator;
+        this.input = new DataInputStream(simulator.getInputStream());
+        this.output = new DataOutputStream(simulator.getOutputStream());
+    }
+
+    public XNetCommandStationSimulator getSimulator() {
+        return simulator;
+    }
+
+    @Override
+    public String openPort(String portName, String appName) {
+        simulator.start();
+        opened = true;
+        return null;
+    }
+
+    @Override
+    public DataInputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public DataOutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public boolean status() {
+        return opened && simulator.isRunning();
+    }
+
+    @Override
+    public boolean okToSend() {
+        // no CTS line; the simulator paces itself
+        return true;
+    }
+
+    @Override
+    public void dispose() {
+        opened = false;
+        simulator.close();
+        super.dispose();
+    }
+}
@@ -0,0 +1,62 @@
+package org.dccio.core.impl.xnet.sim;
+
+import org.dccio.core.SpeedStepMode;
+
+/**
+ * Snapshot of a locomotive as tracked by {@link XNetCommandStationSimulator}.
+ */
+public final class SimulatedLoco {
+
+    private final int address;
+    private final SpeedStepMode mode;
+    private final int step;
+    private final boolean forward;
+    private final long functions;
+
+    SimulatedLoco(int address, SpeedStepMode mode, int step, boolean forward, long functions) {
+        this.address = address;
+        this.mode = mode;
+        this.step = step;
+        this.forward = forward;
+        this.functions = functions;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the speed step mode of the last speed command.
+     */
+    public SpeedStepMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return running step {@code 1..mode.getSteps()}, or 0 if stopped.
+     */
+    public int getStep() {
+        return step;
+    }
+
+    public boolean isForward() {
+        return forward;
+    }
+
+    /**
+     * @return F0-F28 states, bit n set meaning Fn is on.
+     */
+    public long getFunctions() {
+        return functions;
+    }
+
+    public boolean getFunction(int function) {
+        return function >= 0 && function < 64 && (functions & (1L << function)) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedLoco{" + address + ", step=" + step + "/" + mode.getSteps()
+                + (forward ? ", forward" : ", reverse") + ", functions=0x" + Long.toHexString(functions) + '}';
+    }
+}
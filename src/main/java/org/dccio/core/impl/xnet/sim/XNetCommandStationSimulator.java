@@ -0,0 +1,597 @@
+package org.dccio.core.impl.xnet.sim;
+
+import org.dccio.core.SpeedStepMode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory XpressNet command station, for running the XNet stack without
+ * hardware.
+ * <p>
+ * The host writes XpressNet frames to {@link #getOutputStream()} and reads
+ * replies from {@link #getInputStream()}, exactly as it would with the serial
+ * port of an Elite or LI101. Every frame gets one reply, after a delay that
+ * models the link:
+ * <ul>
+ *   <li>each byte takes 10 bit times at the configured baud rate, in both
+ *       directions;</li>
+ *   <li>the command station takes {@code replyLatencyMicros} to answer;</li>
+ *   <li>locomotive and accessory commands go into a track queue that
+ *       drains one DCC packet every {@code trackPacketMicros}. When that
+ *       queue holds {@code trackQueueSize} packets the command is refused
+ *       with "command station busy" ({@code 61 81 E0}), as a real command
+ *       station does under load. {@code busyProbability} adds random busy
+ *       replies on top.</li>
+ * </ul>
+ * Speed, direction and F0-F28 of every addressed locomotive are tracked and
+ * reported by locomotive information requests ({@code E3 00}), so throttles
+ * acquired through JMRI see the state they set. Operations-mode CV writes
+ * ({@code E6 30}) are stored per locomotive and readable with
+ * {@link #getCv(int, int)}.
+ */
+public final class XNetCommandStationSimulator implements Closeable {
+
+    public static final int DEFAULT_BAUD_RATE = 19200;
+    public static final long DEFAULT_REPLY_LATENCY_MICROS = 2000;
+    public static final long DEFAULT_TRACK_PACKET_MICROS = 6000;
+    public static final int DEFAULT_TRACK_QUEUE_SIZE = 16;
+
+    // command station software version reported by 21 21 00 (3.6, LZ100 compatible)
+    private static final int VERSION = 0x36;
+    private static final int COMMAND_STATION_ID = 0x00;
+    private static final int PIPE_SIZE = 1024;
+    private static final int MAX_FRAME = 17; // header nibble 15 + header + checksum
+
+    private final long byteNanos;
+    private final long replyLatencyNanos;
+    private final long trackPacketNanos;
+    private final int trackQueueSize;
+    private final double busyProbability;
+    private final Random random;
+
+    private final PipedOutputStream hostOut = new PipedOutputStream();
+    private final PipedInputStream stationIn;
+    private final PipedOutputStream stationOut = new PipedOutputStream();
+    private final PipedInputStream hostIn;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private final Map<Integer, Loco> locos = new HashMap<>();
+    private boolean trackPower = true;
+    private boolean emergencyStop;
+    private long trackFreeAt;
+    private long framesReceived;
+    private long busyReplies;
+    private long transferErrors;
+
+    private Thread worker;
+    private volatile boolean closed;
+
+    private XNetCommandStationSimulator(Builder builder) {
+        this.byteNanos = TimeUnit.SECONDS.toNanos(10) / builder.baudRate;
+        this.replyLatencyNanos = TimeUnit.MICROSECONDS.toNanos(builder.replyLatencyMicros);
+        this.trackPacketNanos = TimeUnit.MICROSECONDS.toNanos(builder.trackPacketMicros);
+        this.trackQueueSize = builder.trackQueueSize;
+        this.busyProbability = builder.busyProbability;
+        this.random = new Random(builder.seed);
+        try {
+            this.stationIn = new PipedInputStream(hostOut, PIPE_SIZE);
+            this.hostIn = new PipedInputStream(stationOut, PIPE_SIZE);
+        } catch (IOException e) {
+            // only thrown if a pipe is already connected
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return replies from the command station, to be read by the host.
+     */
+    public InputStream getInputStream() {
+        return hostIn;
+    }
+
+    /**
+     * @return frames for the command station, written by the host.
+     */
+    public OutputStream getOutputStream() {
+        return hostOut;
+    }
+
+    /**
+     * Start answering frames. Has no effect if already started.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("Simulator is closed");
+        }
+        worker = new Thread(this::run, "xnet-simulator");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public boolean isRunning() {
+        Thread t = worker;
+        return t != null && t.isAlive() && !closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            hostOut.close();
+            stationOut.close();
+        } catch (IOException e) {
+            // nothing left to flush
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * @return the state of locomotive {@code address}, or null if it has not
+     *         been addressed yet.
+     */
+    public SimulatedLoco getLoco(int address) {
+        synchronized (lock) {
+            Loco loco = locos.get(address);
+            return loco != null ? loco.snapshot() : null;
+        }
+    }
+
+    /**
+     * @return the last value written in operations mode to {@code cv} of the
+     *         loco at {@code address}, or null if none was
+     */
+    public Integer getCv(int address, int cv) {
+        synchronized (lock) {
+            Loco loco = locos.get(address);
+            return loco != null ? loco.cvs.get(cv) : null;
+        }
+    }
+
+    public boolean isTrackPowerOn() {
+        synchronized (lock) {
+            return trackPower;
+        }
+    }
+
+    public boolean isEmergencyStopped() {
+        synchronized (lock) {
+            return emergencyStop;
+        }
+    }
+
+    public long getFramesReceived() {
+        synchronized (lock) {
+            return framesReceived;
+        }
+    }
+
+    /**
+     * @return number of "command station busy" replies sent.
+     */
+    public long getBusyReplies() {
+        synchronized (lock) {
+            return busyReplies;
+        }
+    }
+
+    /**
+     * @return number of frames refused because their checksum was wrong.
+     */
+    public long getTransferErrors() {
+        synchronized (lock) {
+            return transferErrors;
+        }
+    }
+
+    private void run() {
+        byte[] frame = new byte[MAX_FRAME];
+        byte[] reply = new byte[MAX_FRAME];
+        try {
+            while (!closed) {
+                int header = stationIn.read();
+                if (header < 0) {
+                    break;
+                }
+                int length = (header & 0x0F) + 2;
+                frame[0] = (byte) header;
+                for (int i = 1; i < length; i++) {
+                    int b = stationIn.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    frame[i] = (byte) b;
+                }
+                // the frame is only complete once its last byte is on the wire
+                pause(length * byteNanos);
+                int replyLength = handle(frame, length, reply);
+                pause(replyLatencyNanos + replyLength * byteNanos);
+                stationOut.write(reply, 0, replyLength);
+                stationOut.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("XNet simulator stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    private void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0 && !closed) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Execute one frame and write the reply.
+     *
+     * @return the reply length
+     */
+    int handle(byte[] frame, int length, byte[] reply) {
+        synchronized (lock) {
+            framesReceived++;
+            int checksum = 0;
+            for (int i = 0; i < length; i++) {
+                checksum ^= frame[i] & 0xFF;
+            }
+            if (checksum != 0) {
+                transferErrors++;
+                return reply(reply, 0x61, 0x80);
+            }
+            int header = frame[0] & 0xFF;
+            int op = length > 2 ? frame[1] & 0xFF : -1;
+            switch (header) {
+                case 0x21:
+                    return handleStationCommand(op, reply);
+                case 0x80:
+                    emergencyStop = true;
+                    for (Loco loco : locos.values()) {
+                        loco.step = 0;
+                    }
+                    return reply(reply, 0x81, 0x00);
+                case 0x92:
+                    if (!acceptTrackPacket()) {
+                        return busy(reply);
+                    }
+                    loco(address(frame[1], frame[2])).step = 0;
+                    return ok(reply);
+                case 0x52:
+                    return acceptTrackPacket() ? ok(reply) : busy(reply);
+                case 0xE3:
+                    return handleLocoInfoRequest(op, address(frame[2], frame[3]), reply);
+                case 0xE4:
+                    return handleLocoOperation(op, address(frame[2], frame[3]), frame[4] & 0xFF, reply);
+                case 0xE6:
+                    return handleOpsModeWrite(frame, reply);
+                default:
+                    return notSupported(reply);
+            }
+        }
+    }
+
+    private int handleStationCommand(int op, byte[] reply) {
+        switch (op) {
+            case 0x21: // version request
+                return reply(reply, 0x63, 0x21, VERSION, COMMAND_STATION_ID);
+            case 0x24: // status request
+                int status = (trackPower ? 0 : 0x01) | (emergencyStop ? 0x02 : 0);
+                return reply(reply, 0x62, 0x22, status);
+            case 0x80: // track power off
+                trackPower = false;
+                return reply(reply, 0x61, 0x00);
+            case 0x81: // resume operations
+                trackPower = true;
+                emergencyStop = false;
+                return reply(reply, 0x61, 0x01);
+            default:
+                return notSupported(reply);
+        }
+    }
+
+    private int handleLocoOperation(int op, int address, int data, byte[] reply) {
+        SpeedStepMode mode;
+        switch (op) {
+            case 0x10:
+                mode = SpeedStepMode.STEPS_14;
+                break;
+            case 0x12:
+                mode = SpeedStepMode.STEPS_28;
+                break;
+            case 0x13:
+                mode = SpeedStepMode.STEPS_128;
+                break;
+            case 0x20:
+            case 0x21:
+            case 0x22:
+            case 0x23:
+            case 0x28:
+                if (!acceptTrackPacket()) {
+                    return busy(reply);
+                }
+                setFunctionGroup(loco(address), op, data);
+                return ok(reply);
+            default:
+                return notSupported(reply);
+        }
+        if (!acceptTrackPacket()) {
+            return busy(reply);
+        }
+        Loco loco = loco(address);
+        loco.mode = mode;
+        loco.forward = (data & 0x80) != 0;
+        loco.step = decodeStep(mode, data);
+        return ok(reply);
+    }
+
+    private int handleLocoInfoRequest(int op, int address, byte[] reply) {
+        Loco loco = loco(address);
+        long f = loco.functions;
+        switch (op) {
+            case 0x00: { // locomotive information
+                int id;
+                switch (loco.mode) {
+                    case STEPS_14:
+                        id = 0x00;
+                        break;
+                    case STEPS_28:
+                        id = 0x02;
+                        break;
+                    default:
+                        id = 0x04;
+                        break;
+                }
+                int speed = encodeStep(loco.mode, loco.step) | (loco.forward ? 0x80 : 0);
+                int fa = (int) (((f & 1) << 4) | ((f >>> 1) & 0x0F));
+                int fb = (int) ((f >>> 5) & 0xFF);
+                return reply(reply, 0xE4, id, speed, fa, fb);
+            }
+            case 0x09: // F13-F28 status
+                return reply(reply, 0xE3, 0x52, (int) ((f >>> 13) & 0xFF), (int) ((f >>> 21) & 0xFF));
+            default:
+                return notSupported(reply);
+        }
+    }
+
+    /**
+     * {@code E6 30 AH AL C1 C2 DATA}: operations-mode byte write, CV number
+     * minus one in the low two bits of C1 (after 0xEC) and C2.
+     */
+    private int handleOpsModeWrite(byte[] frame, byte[] reply) {
+        int instruction = frame[4] & 0xFF;
+        if ((frame[1] & 0xFF) != 0x30 || (instruction & 0xFC) != 0xEC) {
+            return notSupported(reply);
+        }
+        if (!acceptTrackPacket()) {
+            return busy(reply);
+        }
+        int cv = (((instruction & 0x03) << 8) | (frame[5] & 0xFF)) + 1;
+        loco(address(frame[2], frame[3])).cvs.put(cv, frame[6] & 0xFF);
+        return ok(reply);
+    }
+
+    private static void setFunctionGroup(Loco loco, int op, int data) {
+        int first;
+        int width;
+        long bits = data;
+        switch (op) {
+            case 0x20:
+                // F0 is bit 4, F1-F4 are bits 0-3
+                first = 0;
+                width = 5;
+                bits = ((data & 0x0F) << 1) | ((data >> 4) & 1);
+                break;
+            case 0x21:
+                first = 5;
+                width = 4;
+                break;
+            case 0x22:
+                first = 9;
+                width = 4;
+                break;
+            case 0x23:
+                first = 13;
+                width = 8;
+                break;
+            default: // 0x28
+                first = 21;
+                width = 8;
+                break;
+        }
+        long mask = ((1L << width) - 1) << first;
+        loco.functions = (loco.functions & ~mask) | ((bits << first) & mask);
+    }
+
+    static int decodeStep(SpeedStepMode mode, int data) {
+        if (mode == SpeedStepMode.STEPS_28) {
+            // 5-bit code with its least significant bit in bit 4; 0-3 are stop and e-stop
+            int code = ((data & 0x0F) << 1) | ((data >> 4) & 1);
+            return code < 4 ? 0 : code - 3;
+        }
+        int value = data & (mode == SpeedStepMode.STEPS_14 ? 0x0F : 0x7F);
+        return value < 2 ? 0 : value - 1;
+    }
+
+    static int encodeStep(SpeedStepMode mode, int step) {
+        if (step == 0) {
+            return 0;
+        }
+        if (mode == SpeedStepMode.STEPS_28) {
+            int code = step + 3;
+            return (code >> 1) | ((code & 1) << 4);
+        }
+        return step + 1;
+    }
+
+    /**
+     * Queue one DCC packet for the track.
+     *
+     * @return false if the track queue is full and the command must be refused
+     */
+    private boolean acceptTrackPacket() {
+        if (busyProbability > 0 && random.nextDouble() < busyProbability) {
+            return false;
+        }
+        if (trackPacketNanos == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        // time until the packets already queued, including the one being sent, are on the track
+        long backlog = Math.max(0, trackFreeAt - now);
+        if (backlog > (trackQueueSize - 1) * trackPacketNanos) {
+            return false;
+        }
+        trackFreeAt = now + backlog + trackPacketNanos;
+        return true;
+    }
+
+    private Loco loco(int address) {
+        return locos.computeIfAbsent(address, Loco::new);
+    }
+
+    private static int address(byte high, byte low) {
+        int h = high & 0xFF;
+        int l = low & 0xFF;
+        return h == 0 ? l : ((h & 0x3F) << 8) | l;
+    }
+
+    private int ok(byte[] reply) {
+        return reply(reply, 0x01, 0x04);
+    }
+
+    private int busy(byte[] reply) {
+        busyReplies++;
+        return reply(reply, 0x61, 0x81);
+    }
+
+    private static int notSupported(byte[] reply) {
+        return reply(reply, 0x61, 0x82);
+    }
+
+    /**
+     * Write {@code bytes} followed by their XOR checksum.
+     */
+    private static int reply(byte[] reply, int... bytes) {
+        int checksum = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            reply[i] = (byte) bytes[i];
+            checksum ^= bytes[i];
+        }
+        reply[bytes.length] = (byte) checksum;
+        return bytes.length + 1;
+    }
+
+    private static final class Loco {
+        final int address;
+        SpeedStepMode mode = SpeedStepMode.STEPS_128;
+        int step;
+        boolean forward = true;
+        long functions;
+        final Map<Integer, Integer> cvs = new HashMap<>();
+
+        Loco(int address) {
+            this.address = address;
+        }
+
+        SimulatedLoco snapshot() {
+            return new SimulatedLoco(address, mode, step, forward, functions);
+        }
+    }
+
+    public static final class Builder {
+
+        private int baudRate = DEFAULT_BAUD_RATE;
+        private long replyLatencyMicros = DEFAULT_REPLY_LATENCY_MICROS;
+        private long trackPacketMicros = DEFAULT_TRACK_PACKET_MICROS;
+        private int trackQueueSize = DEFAULT_TRACK_QUEUE_SIZE;
+        private double busyProbability;
+        private long seed = 1;
+
+        private Builder() {
+        }
+
+        public Builder baudRate(int baudRate) {
+            if (baudRate <= 0) {
+                throw new IllegalArgumentException("Baud rate must be positive");
+            }
+            this.baudRate = baudRate;
+            return this;
+        }
+
+        public Builder replyLatencyMicros(long replyLatencyMicros) {
+            if (replyLatencyMicros < 0) {
+                throw new IllegalArgumentException("Reply latency must not be negative");
+            }
+            this.replyLatencyMicros = replyLatencyMicros;
+            return this;
+        }
+
+        /**
+         * @param trackPacketMicros time the command station needs to put one
+         *                          packet on the track; 0 disables the track queue
+         */
+        public Builder trackPacketMicros(long trackPacketMicros) {
+            if (trackPacketMicros < 0) {
+                throw new IllegalArgumentException("Track packet time must not be negative");
+            }
+            this.trackPacketMicros = trackPacketMicros;
+            return this;
+        }
+
+        public Builder trackQueueSize(int trackQueueSize) {
+            if (trackQueueSize < 1) {
+                throw new IllegalArgumentException("Track queue size must be at least 1");
+            }
+            this.trackQueueSize = trackQueueSize;
+            return this;
+        }
+
+        /**
+         * @param busyProbability chance, 0.0 to 1.0, of refusing an accepted
+         *                        locomotive or accessory command as busy
+         */
+        public Builder busyProbability(double busyProbability) {
+            if (busyProbability < 0 || busyProbability > 1) {
+                throw new IllegalArgumentException("Busy probability must be between 0.0 and 1.0");
+            }
+            this.busyProbability = busyProbability;
+            return this;
+        }
+
+        /**
+         * Seed for the random busy replies, so a benchmark run can be repeated.
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public XNetCommandStationSimulator build() {
+            return new XNetCommandStationSimulator(this);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.dccio.core.impl.xnet.sim;
+
+import org.dccio.core.SystemConfig;
+import org.dccio.core.events.DccEventBus;
+import org.dccio.core.impl.xnet.elite.XNetEliteConnection;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Elite connection talking to an in-process
+ * {@link XNetCommandStationSimulator} instead of a serial port, so the whole
+ * stack can be exercised and benchmarked without hardware.
+ * <p>
+ * Options (all optional):
+ * <ul>
+ *   <li>{@code baudRate}: simulated link speed, default 19200</li>
+ *   <li>{@code replyLatencyMicros}: command station reply time</li>
+ *   <li>{@code trackPacketMicros}, {@code trackQueueSize}: track queue that
+ *       produces "busy" replies under load</li>
+ *   <li>{@code busyProbability}, {@code seed}: random busy replies</li>
+ * </ul>
+ */
+public final class XNetSimulatorConnection extends XNetEliteConnection {
+
+    private final SimulatedEliteAdapter simulatorAdapter;
+
+    public XNetSimulatorConnection(SystemConfig config, DccEventBus eventBus) {
+        this(config, eventBus, new SimulatedEliteAdapter(createSimulator(config)));
+    }
+
+    private XNetSimulatorConnection(SystemConfig config, DccEventBus eventBus, SimulatedEliteAdapter adapter) {
+        super(config, eventBus, adapter);
+        this.simulatorAdapter = adapter;
+    }
+
+    public XNetCommandStationSimulator getSimulator() {
+        return simulatorAdapter.getSimulator();
+    }
+
+    @Override
+    protected void openPort() throws IOException {
+        String error = simulatorAdapter.openPort("simulator", "dcc-io-daemon");
+        if (error != null) {
+            throw new IOException("Failed to start XNet simulator: " + error);
+        }
+    }
+
+    @Override
+    public Map<String, String> getCommandStationInfo() {
+        Map<String, String> info = super.getCommandStationInfo();
+        if (info == null) {
+            info = new HashMap<>();
+        }
+        info.put("simulated", "true");
+        return info;
+    }
+
+    private static XNetCommandStationSimulator createSimulator(SystemConfig config) {
+        XNetCommandStationSimulator.Builder builder = XNetCommandStationSimulator.builder();
+        try {
+            String value = config.getOption("baudRate");
+            if (value != null && !value.isEmpty()) {
+                builder.baudRate(Integer.parseInt(value));
+            }
+            value = config.getOption("replyLatencyMicros");
+            if (value != null && !value.isEmpty()) {
+                builder.replyLatencyMicros(Long.parseLong(value));
+            }
+            value = config.getOption("trackPacketMicros");
+            if (value != null && !value.isEmpty()) {
+                builder.trackPacketMicros(Long.parseLong(value));
+            }
+            value = config.getOption("trackQueueSize");
+            if (value != null && !value.isEmpty()) {
+                builder.trackQueueSize(Integer.parseInt(value));
+            }
+            value = config.getOption("busyProbability");
+            if (value != null && !value.isEmpty()) {
+                builder.busyProbability(Double.parseDouble(value));
+            }
+            value = config.getOption("seed");
+            if (value != null && !value.isEmpty()) {
+                builder.seed(Long.parseLong(value));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid XNet simulator option: " + e.getMessage(), e);
+        }
+        return builder.build();
+    }
+}
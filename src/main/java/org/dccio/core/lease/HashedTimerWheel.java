@@ -0,0 +1,154 @@
+package org.dccio.core.lease;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coarse timer for large numbers of short timeouts, in the style of a
+ * hashed timing wheel: a timeout is dropped into the bucket for the tick it
+ * falls due on, and each tick only looks at its own bucket, so the cost per
+ * tick follows the number of timeouts expiring rather than the number
+ * pending.
+ * <p>
+ * Timeouts fire on the wheel's single thread, up to one tick late. Items are
+ * never cancelled; a handler that finds its item is no longer relevant (for
+ * example a lease that has been renewed or released) should simply ignore it
+ * or schedule it again.
+ */
+public final class HashedTimerWheel<T> implements Closeable {
+
+    private static final class Entry<T> {
+        final T item;
+        final long deadlineTick;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Consumer<T> handler;
+    private final long startNanos = System.nanoTime();
+    private final Object lock = new Object();
+
+    // all guarded by lock
+    private final List<List<Entry<T>>> buckets;
+    private long currentTick;
+    private int pending;
+    private boolean closed;
+
+    private final Thread worker;
+
+    /**
+     * @param name    name of the wheel's thread
+     * @param tickMs  resolution of the wheel
+     * @param buckets number of buckets, rounded up to a power of two; timeouts
+     *                further away than {@code buckets * tickMs} stay in their
+     *                bucket for more than one revolution
+     * @param handler called on the wheel's thread for each item that falls due
+     */
+    public HashedTimerWheel(String name, long tickMs, int buckets, Consumer<T> handler) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        if (buckets < 1 || buckets > (1 << 30)) {
+            throw new IllegalArgumentException("Bucket count out of range: " + buckets);
+        }
+        int size = Integer.highestOneBit(buckets);
+        if (size < buckets) {
+            size <<= 1;
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.mask = size - 1;
+        this.handler = handler;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.buckets.add(new ArrayList<>());
+        }
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Fire {@code item} once {@link System#nanoTime()} has passed {@code deadlineNanos}.
+     */
+    public void schedule(T item, long deadlineNanos) {
+        long tick = Math.floorDiv(deadlineNanos - startNanos + tickNanos - 1, tickNanos);
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            // never into the bucket being processed, or one already passed
+            tick = Math.max(tick, currentTick + 1);
+            buckets.get((int) (tick & mask)).add(new Entry<>(item, tick));
+            pending++;
+        }
+    }
+
+    /**
+     * @return number of items waiting to fire.
+     */
+    public int size() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            for (List<Entry<T>> bucket : buckets) {
+                bucket.clear();
+            }
+            pending = 0;
+        }
+        worker.interrupt();
+    }
+
+    private void run() {
+        List<T> due = new ArrayList<>();
+        long tick = 0;
+        while (true) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            try {
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            tick++;
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                currentTick = tick;
+                Iterator<Entry<T>> it = buckets.get((int) (tick & mask)).iterator();
+                while (it.hasNext()) {
+                    Entry<T> entry = it.next();
+                    if (entry.deadlineTick <= tick) {
+                        due.add(entry.item);
+                        it.remove();
+                        pending--;
+                    }
+                }
+            }
+            for (T item : due) {
+                try {
+                    handler.accept(item);
+                } catch (RuntimeException e) {
+                    System.err.println("Timer wheel " + worker.getName() + " handler failed: " + e.getMessage());
+                }
+            }
+            due.clear();
+        }
+    }
+}
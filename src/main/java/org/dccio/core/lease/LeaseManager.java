@@ -0,0 +1,235 @@
+package org.dccio.core.lease;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-limited exclusive ownership of int keys, such as the speed and
+ * direction of a locomotive address.
+ * <p>
+ * A client holds a key for as long as it keeps renewing it within the lease
+ * duration of its client class. Acquire and renew are a single atomic step
+ * per key, so two clients racing for a free key can never both win. Leases
+ * run out on a {@link HashedTimerWheel} rather than by sweeping every lease;
+ * renewing only moves the deadline, and the wheel re-files a lease that turns
+ * out to have been renewed when its old deadline comes round.
+ * {@link #releaseAll(String)} frees everything a client held when it goes
+ * away, found through a per-owner index rather than by scanning every lease.
+ * <p>
+ * Clients name their own class, so no class may be given a lease longer than
+ * {@link #MAX_LEASE_MS}: a client that stops sending cannot keep a
+ * locomotive from others for longer than that.
+ */
+public final class LeaseManager implements Closeable {
+
+    public static final String DEFAULT_CLIENT_CLASS = "default";
+    public static final long DEFAULT_LEASE_MS = 2000;
+    public static final long DEFAULT_TICK_MS = 100;
+    /** Longest lease duration any client class can be given. */
+    public static final long MAX_LEASE_MS = 60_000;
+
+    private static final int WHEEL_BUCKETS = 64;
+
+    private static final class Lease {
+        final int key;
+        final String owner;
+        volatile long deadlineNanos;
+
+        Lease(int key, String owner, long deadlineNanos) {
+            this.key = key;
+            this.owner = owner;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
+    // keys each owner holds; only changed inside the compute that changes
+    // the lease, and each set is only touched inside compute on its owner
+    private final Map<String, Set<Integer>> keysByOwner = new ConcurrentHashMap<>();
+    private final Map<String, Long> leaseNanosByClass = new ConcurrentHashMap<>();
+    private final long defaultLeaseNanos;
+    private final HashedTimerWheel<Lease> wheel;
+    private final AtomicLong expired = new AtomicLong();
+
+    public LeaseManager() {
+        this(DEFAULT_LEASE_MS, DEFAULT_TICK_MS);
+    }
+
+    /**
+     * @param defaultLeaseMs lease duration for client classes without their own
+     * @param tickMs         resolution of expiry; leases run out up to one tick late
+     */
+    public LeaseManager(long defaultLeaseMs, long tickMs) {
+        checkDuration(defaultLeaseMs);
+        this.defaultLeaseNanos = TimeUnit.MILLISECONDS.toNanos(defaultLeaseMs);
+        this.wheel = new HashedTimerWheel<>("lease-expiry", tickMs, WHEEL_BUCKETS, this::onDeadline);
+    }
+
+    /**
+     * Set the lease duration for clients of {@code clientClass}. Applies from
+     * the next acquire or renew.
+     *
+     * @throws IllegalArgumentException if {@code leaseMs} is not positive or
+     *                                  exceeds {@link #MAX_LEASE_MS}
+     */
+    public void setLeaseDuration(String clientClass, long leaseMs) {
+        checkDuration(leaseMs);
+        leaseNanosByClass.put(clientClass, TimeUnit.MILLISECONDS.toNanos(leaseMs));
+    }
+
+    /**
+     * @return the lease duration for {@code clientClass}, in milliseconds.
+     */
+    public long getLeaseDuration(String clientClass) {
+        return TimeUnit.NANOSECONDS.toMillis(leaseNanos(clientClass));
+    }
+
+    public boolean acquire(int key, String owner) {
+        return acquire(key, owner, DEFAULT_CLIENT_CLASS);
+    }
+
+    /**
+     * Take {@code key} for {@code owner}, or renew it if {@code owner} already
+     * holds it.
+     *
+     * @return false if another owner holds an unexpired lease on {@code key}
+     */
+    public boolean acquire(int key, String owner, String clientClass) {
+        long now = System.nanoTime();
+        long deadline = now + leaseNanos(clientClass);
+        Lease lease = leases.compute(key, (k, current) -> {
+            if (current != null && current.deadlineNanos - now > 0) {
+                if (current.owner.equals(owner)) {
+                    current.deadlineNanos = deadline;
+                }
+                return current;
+            }
+            // free, or held by a lease the wheel has not reached yet
+            if (current != null) {
+                unindex(current);
+            }
+            Lease created = new Lease(k, owner, deadline);
+            index(created);
+            wheel.schedule(created, deadline);
+            return created;
+        });
+        return lease.owner.equals(owner);
+    }
+
+    /**
+     * @return the owner of {@code key}, or null if it is free.
+     */
+    public String getOwner(int key) {
+        Lease lease = leases.get(key);
+        return lease != null && lease.deadlineNanos - System.nanoTime() > 0 ? lease.owner : null;
+    }
+
+    /**
+     * Give up {@code key} if {@code owner} holds it.
+     *
+     * @return true if the lease was released
+     */
+    public boolean release(int key, String owner) {
+        boolean[] released = new boolean[1];
+        leases.computeIfPresent(key, (k, current) -> {
+            if (!current.owner.equals(owner)) {
+                return current;
+            }
+            unindex(current);
+            released[0] = true;
+            return null;
+        });
+        return released[0];
+    }
+
+    /**
+     * Release every lease held by {@code owner}, e.g. when its connection closes.
+     *
+     * @return number of leases released
+     */
+    public int releaseAll(String owner) {
+        List<Integer> keys = new ArrayList<>();
+        keysByOwner.computeIfPresent(owner, (o, held) -> {
+            keys.addAll(held);
+            return held;
+        });
+        int released = 0;
+        for (int key : keys) {
+            if (release(key, owner)) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * @return number of leases held, including any past their deadline that
+     *         the wheel has not reached yet.
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    /**
+     * @return number of leases that ran out without being released.
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    @Override
+    public void close() {
+        wheel.close();
+        leases.clear();
+        keysByOwner.clear();
+    }
+
+    private static void checkDuration(long leaseMs) {
+        if (leaseMs <= 0 || leaseMs > MAX_LEASE_MS) {
+            throw new IllegalArgumentException("Lease duration must be between 1 and " + MAX_LEASE_MS + " ms");
+        }
+    }
+
+    private void index(Lease lease) {
+        keysByOwner.compute(lease.owner, (owner, keys) -> {
+            Set<Integer> held = keys != null ? keys : new HashSet<>();
+            held.add(lease.key);
+            return held;
+        });
+    }
+
+    private void unindex(Lease lease) {
+        keysByOwner.computeIfPresent(lease.owner, (owner, keys) -> {
+            keys.remove(lease.key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private long leaseNanos(String clientClass) {
+        Long nanos = clientClass != null ? leaseNanosByClass.get(clientClass) : null;
+        return nanos != null ? nanos : defaultLeaseNanos;
+    }
+
+    private void onDeadline(Lease lease) {
+        long now = System.nanoTime();
+        leases.computeIfPresent(lease.key, (k, current) -> {
+            if (current != lease) {
+                return current; // released and taken again since
+            }
+            if (current.deadlineNanos - now > 0) {
+                wheel.schedule(current, current.deadlineNanos); // renewed
+                return current;
+            }
+            expired.incrementAndGet();
+            unindex(current);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,375 @@
+package org.dccio.core.momentum;
+
+import org.dccio.core.SpeedStepMode;
+import org.dccio.core.ThrottleSession;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ramps locomotives toward a target speed on the daemon, so a client can
+ * drive with inertia by sending one target instead of a stream of speeds.
+ * <p>
+ * Each throttle has an acceleration and a deceleration profile, given as the
+ * time to go from stop to full speed and from full speed to stop. A single
+ * thread wakes on a fixed tick and moves the speed of every ramping throttle
+ * toward its target. The {@link SpeedSink} is only called when that speed
+ * crosses into another step of the session's {@link SpeedStepMode}, so a
+ * ramp costs at most one command per step boundary; a tick that crosses
+ * several steps reports only the latest. The sink is expected to pace the
+ * commands, e.g. through a {@link org.dccio.core.outbound.SpeedDispatcher}.
+ * <p>
+ * Once {@link #cancel(String)} or {@link #cancelAll(String)} has returned,
+ * the cancelled ramps hand nothing more to the sink, not even a step the
+ * engine thread had already computed.
+ */
+public final class MomentumEngine implements Closeable {
+
+    /**
+     * Receives the speeds a ramp passes through, on the engine thread.
+     */
+    @FunctionalInterface
+    public interface SpeedSink {
+        void apply(String throttleId, ThrottleSession session, float speed);
+    }
+
+    /**
+     * Profile and ramp state of one throttle; guarded by itself.
+     */
+    private static final class Ramp {
+        final String throttleId;
+        ThrottleSession session;
+        long accelerationMs;
+        long decelerationMs;
+        boolean active;
+        float target;
+        float speed;
+        int step;
+        long lastNanos;
+        // bumped on cancel; a step computed under an older epoch is dropped
+        long epoch;
+
+        Ramp(String throttleId) {
+            this.throttleId = throttleId;
+        }
+    }
+
+    private final String name;
+    private final SpeedSink sink;
+    private final Map<String, Ramp> ramps = new ConcurrentHashMap<>();
+    private final Set<Ramp> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService executor;
+    private final AtomicLong steps = new AtomicLong();
+
+    // engine thread only
+    private final List<Ramp> crossed = new ArrayList<>();
+    private final List<Float> crossedSpeeds = new ArrayList<>();
+    private final List<Long> crossedEpochs = new ArrayList<>();
+    // held while a step is handed to the sink, so a cancel can wait it out
+    private final Object handover = new Object();
+
+    /**
+     * @param tickMs how often ramping throttles are moved on
+     * @param sink   told about each step boundary a ramp crosses
+     */
+    public MomentumEngine(String name, long tickMs, SpeedSink sink) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.name = name;
+        this.sink = sink;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "momentum-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set the time {@code throttleId} takes to go from stop to full speed.
+     * 0 means speed increases are applied at once.
+     */
+    public void setAcceleration(String throttleId, long ms) {
+        checkDuration(ms);
+        Ramp ramp = ramp(throttleId);
+        synchronized (ramp) {
+            ramp.accelerationMs = ms;
+        }
+    }
+
+    /**
+     * Set the time {@code throttleId} takes to go from full speed to stop.
+     * 0 means speed decreases are applied at once.
+     */
+    public void setDeceleration(String throttleId, long ms) {
+        checkDuration(ms);
+        Ramp ramp = ramp(throttleId);
+        synchronized (ramp) {
+            ramp.decelerationMs = ms;
+        }
+    }
+
+    public long getAcceleration(String throttleId) {
+        Ramp ramp = ramps.get(throttleId);
+        if (ramp == null) {
+            return 0;
+        }
+        synchronized (ramp) {
+            return ramp.accelerationMs;
+        }
+    }
+
+    public long getDeceleration(String throttleId) {
+        Ramp ramp = ramps.get(throttleId);
+        if (ramp == null) {
+            return 0;
+        }
+        synchronized (ramp) {
+            return ramp.decelerationMs;
+        }
+    }
+
+    /**
+     * @return true if speed changes for {@code throttleId} should be ramped.
+     */
+    public boolean hasMomentum(String throttleId) {
+        Ramp ramp = ramps.get(throttleId);
+        if (ramp == null) {
+            return false;
+        }
+        synchronized (ramp) {
+            return ramp.accelerationMs > 0 || ramp.decelerationMs > 0;
+        }
+    }
+
+    /**
+     * Ramp {@code throttleId} from its current speed, or from wherever its
+     * ramp has got to, toward {@code target}.
+     */
+    public void setTarget(String throttleId, ThrottleSession session, float target) {
+        if (target < 0 || target > 1) {
+            throw new IllegalArgumentException("Speed must be between 0.0 and 1.0");
+        }
+        Ramp ramp = ramp(throttleId);
+        synchronized (ramp) {
+            if (!ramp.active || ramp.session != session) {
+                ramp.speed = session.getSpeed();
+                ramp.step = session.getSpeedStepMode().toStep(ramp.speed);
+                ramp.lastNanos = System.nanoTime();
+                ramp.active = true;
+            }
+            ramp.session = session;
+            ramp.target = target;
+            active.add(ramp);
+        }
+    }
+
+    /**
+     * @return the speed {@code throttleId} is ramping toward, or null if it
+     *         is not ramping.
+     */
+    public Float getTarget(String throttleId) {
+        Ramp ramp = ramps.get(throttleId);
+        if (ramp == null) {
+            return null;
+        }
+        synchronized (ramp) {
+            return ramp.active ? ramp.target : null;
+        }
+    }
+
+    /**
+     * Stop ramping {@code throttleId} where it is, e.g. because a speed was
+     * set directly. The profile is kept.
+     */
+    public void cancel(String throttleId) {
+        Ramp ramp = ramps.get(throttleId);
+        if (ramp != null) {
+            cancel(ramp);
+        }
+    }
+
+    /**
+     * Stop every ramp on {@code connectionId} where it is, or every ramp if
+     * it is null. Profiles are kept.
+     *
+     * @return number of ramps stopped
+     */
+    public int cancelAll(String connectionId) {
+        int cancelled = 0;
+        // every ramp, not just the active ones: one that finished this tick
+        // may still have its last step waiting for the sink
+        for (Ramp ramp : ramps.values()) {
+            synchronized (ramp) {
+                if (ramp.session == null
+                        || (connectionId != null && !connectionId.equals(ramp.session.getConnectionId()))) {
+                    continue;
+                }
+                if (ramp.active) {
+                    cancelled++;
+                }
+                stop(ramp);
+            }
+        }
+        awaitHandover();
+        return cancelled;
+    }
+
+    /**
+     * Forget the profile and any ramp of {@code throttleId}.
+     */
+    public void remove(String throttleId) {
+        Ramp ramp = ramps.remove(throttleId);
+        if (ramp != null) {
+            cancel(ramp);
+        }
+    }
+
+    /**
+     * @return number of throttles ramping toward a target.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return number of step boundaries handed to the sink.
+     */
+    public long getStepCount() {
+        return steps.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        active.clear();
+        ramps.clear();
+    }
+
+    private Ramp ramp(String throttleId) {
+        return ramps.computeIfAbsent(throttleId, Ramp::new);
+    }
+
+    private void cancel(Ramp ramp) {
+        synchronized (ramp) {
+            stop(ramp);
+        }
+        awaitHandover();
+    }
+
+    // caller holds the ramp lock
+    private void stop(Ramp ramp) {
+        ramp.active = false;
+        ramp.epoch++;
+        active.remove(ramp);
+    }
+
+    /**
+     * Wait until a step being handed to the sink, which may have been taken
+     * before a ramp was stopped, has been handed over.
+     */
+    private void awaitHandover() {
+        synchronized (handover) {
+            // nothing to do; acquiring the lock is the wait
+        }
+    }
+
+    private static void checkDuration(long ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("Momentum must not be negative");
+        }
+    }
+
+    private void tick() {
+        try {
+            advance(System.nanoTime());
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            System.err.println("Momentum engine " + name + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Move every ramping throttle on to {@code now}. Called by the engine
+     * thread; tests that use a tick too long to fire call it themselves.
+     */
+    public void advance(long now) {
+        for (Ramp ramp : active) {
+            synchronized (ramp) {
+                if (!ramp.active) {
+                    active.remove(ramp);
+                    continue;
+                }
+                boolean done = advance(ramp, now);
+                SpeedStepMode mode = ramp.session.getSpeedStepMode();
+                int step = mode.toStep(ramp.speed);
+                if (step != ramp.step) {
+                    ramp.step = step;
+                    crossed.add(ramp);
+                    crossedSpeeds.add(done ? ramp.target : mode.fromStep(step));
+                    crossedEpochs.add(ramp.epoch);
+                }
+                if (done) {
+                    ramp.active = false;
+                    active.remove(ramp);
+                }
+            }
+        }
+        // Hand over outside the ramp locks; the sink may block on the bus
+        try {
+            for (int i = 0; i < crossed.size(); i++) {
+                Ramp ramp = crossed.get(i);
+                synchronized (handover) {
+                    ThrottleSession session;
+                    synchronized (ramp) {
+                        if (ramp.epoch != crossedEpochs.get(i)) {
+                            // cancelled since the step was taken
+                            continue;
+                        }
+                        session = ramp.session;
+                    }
+                    steps.incrementAndGet();
+                    try {
+                        sink.apply(ramp.throttleId, session, crossedSpeeds.get(i));
+                    } catch (RuntimeException e) {
+                        System.err.println("Error ramping throttle " + ramp.throttleId + ": " + e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            crossed.clear();
+            crossedSpeeds.clear();
+            crossedEpochs.clear();
+        }
+    }
+
+    /**
+     * @return true once the ramp has reached its target.
+     */
+    private static boolean advance(Ramp ramp, long now) {
+        long elapsedNanos = Math.max(0, now - ramp.lastNanos);
+        ramp.lastNanos = now;
+        boolean up = ramp.target > ramp.speed;
+        long fullScaleMs = up ? ramp.accelerationMs : ramp.decelerationMs;
+        if (fullScaleMs <= 0) {
+            ramp.speed = ramp.target;
+            return true;
+        }
+        float delta = (float) elapsedNanos / TimeUnit.MILLISECONDS.toNanos(fullScaleMs);
+        ramp.speed = up ? Math.min(ramp.target, ramp.speed + delta) : Math.max(ramp.target, ramp.speed - delta);
+        return ramp.speed == ramp.target;
+    }
+}
@@ -0,0 +1,40 @@
+package org.dccio.core.outbound;
+
+/**
+ * Priority classes for outbound command station traffic, highest first.
+ * A {@link CommandScheduler} always sends the oldest command of the highest
+ * non-empty class.
+ */
+public enum CommandPriority {
+
+    /**
+     * Emergency stops and track power changes.
+     */
+    EMERGENCY,
+
+    /**
+     * Locomotive speed and direction; coalesced per locomotive.
+     */
+    SPEED,
+
+    /**
+     * Locomotive functions (lights, sound, ...).
+     */
+    FUNCTION,
+
+    /**
+     * Turnouts and other accessory decoders.
+     */
+    ACCESSORY,
+
+    /**
+     * Operations-mode CV writes; sent in between everything that drives
+     * trains or points.
+     */
+    PROGRAMMING,
+
+    /**
+     * Informational requests such as command station version queries.
+     */
+    INFO
+}
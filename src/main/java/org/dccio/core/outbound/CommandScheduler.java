@@ -0,0 +1,523 @@
+package org.dccio.core.outbound;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-connection outbound queue that hands commands to the underlying
+ * protocol stack in {@link CommandPriority} order, from a single dispatcher
+ * thread.
+ * <p>
+ * Protocol stacks such as JMRI's traffic controllers queue everything they
+ * are given in FIFO order, so once a burst of turnout commands has been
+ * handed over, an emergency stop has to wait behind it. The scheduler keeps
+ * that downstream queue short: at most {@code window} tracked commands (those
+ * that report completion when the command station replies) are outstanding
+ * at any time, and everything else waits here where it can be reordered.
+ * {@link CommandPriority#EMERGENCY} commands are never held back by the
+ * window.
+ * <p>
+ * Commands handed to a stack that sends them on its own, such as a JMRI
+ * turnout or throttle, cannot report their reply themselves. They are
+ * submitted with {@link #submitAwaitingReply} and hold their slot until the
+ * connection reports the next reply through {@link #replyReceived()}.
+ * <p>
+ * Commands submitted with a coalescing key replace a command with the same
+ * key that is still queued in the same class, so a locomotive whose speed is
+ * changed ten times while the bus is busy only gets the latest value sent.
+ * Commands should therefore read the state they send when they run, not when
+ * they are submitted.
+ */
+public final class CommandScheduler implements Closeable {
+
+    /**
+     * A command that is complete as soon as it has been handed over.
+     */
+    @FunctionalInterface
+    public interface Command {
+        void send() throws IOException;
+    }
+
+    /**
+     * A command that occupies a slot of the in-flight window until
+     * {@code onComplete} is run, typically from the reply callback of the
+     * protocol stack. {@code onComplete} may be run more than once and from
+     * any thread.
+     */
+    @FunctionalInterface
+    public interface TrackedCommand {
+        void send(Runnable onComplete) throws IOException;
+    }
+
+    public static final int DEFAULT_WINDOW = 2;
+    public static final long DEFAULT_REPLY_TIMEOUT_MS = 1000;
+
+    private static final CommandPriority[] PRIORITIES = CommandPriority.values();
+    // weight of the newest sample in the reply time average
+    private static final double REPLY_SMOOTHING = 0.2;
+
+    private final String name;
+    private final int window;
+    private final long replyTimeoutNanos;
+    private final Object lock = new Object();
+
+    // all guarded by lock
+    private final List<ArrayDeque<Entry>> queues = new ArrayList<>(PRIORITIES.length);
+    private final List<Map<Object, Entry>> pendingByKey = new ArrayList<>(PRIORITIES.length);
+    private final List<Entry> inFlight = new ArrayList<>();
+    private final long[] submitted = new long[PRIORITIES.length];
+    private final long[] sent = new long[PRIORITIES.length];
+    private final long[] coalesced = new long[PRIORITIES.length];
+    private final long[] failed = new long[PRIORITIES.length];
+    private final long[] totalWaitNanos = new long[PRIORITIES.length];
+    private final long[] maxWaitNanos = new long[PRIORITIES.length];
+    private long timeouts;
+    private double averageReplyNanos;
+    private Thread dispatcher;
+    private boolean closed;
+
+    public CommandScheduler(String name) {
+        this(name, DEFAULT_WINDOW, DEFAULT_REPLY_TIMEOUT_MS);
+    }
+
+    /**
+     * @param window         maximum number of tracked commands awaiting a reply
+     * @param replyTimeoutMs how long a tracked command may hold its slot
+     *                       before it is considered lost
+     */
+    public CommandScheduler(String name, int window, long replyTimeoutMs) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        if (replyTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Reply timeout must be positive");
+        }
+        this.name = name;
+        this.window = window;
+        this.replyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(replyTimeoutMs);
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            queues.add(new ArrayDeque<>());
+            pendingByKey.add(new HashMap<>());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Queue a command without coalescing.
+     */
+    public CompletableFuture<Void> submit(CommandPriority priority, Command command) {
+        return enqueue(priority, null, command);
+    }
+
+    /**
+     * Queue a command, replacing a still-queued command with the same key in
+     * the same priority class. The returned future completes once the command
+     * that ends up being sent for this key has been handed over.
+     */
+    public CompletableFuture<Void> submit(CommandPriority priority, Object key, Command command) {
+        return enqueue(priority, key, command);
+    }
+
+    /**
+     * Queue a command that reports its own completion; see {@link TrackedCommand}.
+     */
+    public CompletableFuture<Void> submitTracked(CommandPriority priority, Object key, TrackedCommand command) {
+        return enqueue(priority, key, command);
+    }
+
+    /**
+     * Queue a command whose reply is only seen by the connection, which
+     * reports it through {@link #replyReceived()}. The command holds a slot
+     * of the in-flight window until then, and the returned future completes
+     * with the reply.
+     */
+    public CompletableFuture<Void> submitAwaitingReply(CommandPriority priority, Object key, Command command) {
+        return enqueue(priority, key, command, true).future;
+    }
+
+    /**
+     * Queue a command like {@link #submitAwaitingReply} and wait until it has
+     * been handed over (not for its reply), propagating any exception it
+     * throws, so that callers see the failures they would have seen sending
+     * it themselves.
+     */
+    public void callAwaitingReply(CommandPriority priority, Object key, Command command) throws IOException {
+        if (Thread.currentThread() == dispatcherThread()) {
+            command.send();
+            return;
+        }
+        await(enqueue(priority, key, command, true).handedOver);
+    }
+
+    /**
+     * Report a reply from the command station. It is taken to answer the
+     * oldest command in flight, which holds for stacks that send one command
+     * at a time and wait for its answer. JMRI traffic controllers notify
+     * their general listeners before the sender's own reply listener, so a
+     * tracked command answered by that reply is completed here first and
+     * its own {@code onComplete} then does nothing.
+     */
+    public void replyReceived() {
+        Entry oldest;
+        synchronized (lock) {
+            if (inFlight.isEmpty()) {
+                return;
+            }
+            oldest = inFlight.get(0);
+        }
+        complete(oldest);
+    }
+
+    /**
+     * Queue a command and wait until it has been handed over, propagating
+     * any exception it throws. Used where callers expect synchronous errors,
+     * e.g. power changes.
+     */
+    public void call(CommandPriority priority, Command command) throws IOException {
+        if (Thread.currentThread() == dispatcherThread()) {
+            // already on the dispatcher (a command issuing another); queuing would deadlock
+            command.send();
+            return;
+        }
+        await(enqueue(priority, null, command));
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for command", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Drop the still-queued command with {@code key} in {@code priority},
+     * e.g. a speed that an emergency stop has made obsolete. Its future is
+     * cancelled.
+     *
+     * @return true if a command was dropped
+     */
+    public boolean cancel(CommandPriority priority, Object key) {
+        Entry entry;
+        synchronized (lock) {
+            int p = priority.ordinal();
+            entry = pendingByKey.get(p).remove(key);
+            if (entry == null) {
+                return false;
+            }
+            queues.get(p).remove(entry);
+        }
+        entry.handedOver.cancel(false);
+        entry.future.cancel(false);
+        return true;
+    }
+
+    private Thread dispatcherThread() {
+        synchronized (lock) {
+            return dispatcher;
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(CommandPriority priority, Object key, Object command) {
+        return enqueue(priority, key, command, false).future;
+    }
+
+    /**
+     * @return the entry the command ends up in: a new one, or the queued
+     *         entry with the same key it replaced the command of
+     */
+    private Entry enqueue(CommandPriority priority, Object key, Object command, boolean awaitsReply) {
+        if (priority == null || command == null) {
+            throw new IllegalArgumentException("Priority and command are required");
+        }
+        int p = priority.ordinal();
+        synchronized (lock) {
+            if (closed) {
+                Entry rejected = new Entry(priority, key, command, awaitsReply, System.nanoTime());
+                rejected.fail(new IOException("Command scheduler " + name + " is closed"));
+                return rejected;
+            }
+            submitted[p]++;
+            if (key != null) {
+                Entry pending = pendingByKey.get(p).get(key);
+                if (pending != null) {
+                    pending.command = command;
+                    coalesced[p]++;
+                    return pending;
+                }
+            }
+            Entry entry = new Entry(priority, key, command, awaitsReply, System.nanoTime());
+            queues.get(p).addLast(entry);
+            if (key != null) {
+                pendingByKey.get(p).put(key, entry);
+            }
+            if (dispatcher == null) {
+                dispatcher = new Thread(this::dispatchLoop, "CommandScheduler-" + name);
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            } else {
+                lock.notifyAll();
+            }
+            return entry;
+        }
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            Entry entry;
+            synchronized (lock) {
+                entry = awaitNext();
+                if (entry == null) {
+                    return;
+                }
+            }
+            send(entry);
+        }
+    }
+
+    /**
+     * Wait until a command may be sent and take it off its queue.
+     *
+     * @return the next command, or null once the scheduler is closed
+     */
+    private Entry awaitNext() {
+        while (!closed) {
+            long now = System.nanoTime();
+            long nextDeadline = expireInFlight(now);
+            Entry entry = poll(inFlight.size() < window);
+            if (entry != null) {
+                int p = entry.priority.ordinal();
+                long wait = now - entry.enqueued;
+                sent[p]++;
+                totalWaitNanos[p] += wait;
+                if (wait > maxWaitNanos[p]) {
+                    maxWaitNanos[p] = wait;
+                }
+                if (entry.command instanceof TrackedCommand || entry.awaitsReply) {
+                    entry.sentAt = now;
+                    entry.deadline = now + replyTimeoutNanos;
+                    inFlight.add(entry);
+                }
+                return entry;
+            }
+            try {
+                if (nextDeadline == Long.MAX_VALUE) {
+                    lock.wait();
+                } else {
+                    long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline - now));
+                    lock.wait(millis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param windowOpen whether non-emergency commands may be sent
+     */
+    private Entry poll(boolean windowOpen) {
+        int limit = windowOpen ? PRIORITIES.length : CommandPriority.EMERGENCY.ordinal() + 1;
+        for (int p = 0; p < limit; p++) {
+            Entry entry = queues.get(p).pollFirst();
+            if (entry != null) {
+                if (entry.key != null) {
+                    pendingByKey.get(p).remove(entry.key);
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Release window slots whose reply never arrived.
+     *
+     * @return the earliest remaining deadline, or Long.MAX_VALUE if none
+     */
+    private long expireInFlight(long now) {
+        long next = Long.MAX_VALUE;
+        for (int i = inFlight.size() - 1; i >= 0; i--) {
+            Entry entry = inFlight.get(i);
+            if (now - entry.deadline >= 0) {
+                inFlight.remove(i);
+                timeouts++;
+                entry.future.completeExceptionally(new IOException("No reply to " + entry.priority
+                        + " command within " + TimeUnit.NANOSECONDS.toMillis(replyTimeoutNanos) + "ms"));
+            } else if (entry.deadline < next) {
+                next = entry.deadline;
+            }
+        }
+        return next;
+    }
+
+    private void send(Entry entry) {
+        try {
+            if (entry.command instanceof TrackedCommand) {
+                ((TrackedCommand) entry.command).send(() -> complete(entry));
+                entry.handedOver.complete(null);
+            } else {
+                ((Command) entry.command).send();
+                entry.handedOver.complete(null);
+                if (!entry.awaitsReply) {
+                    entry.future.complete(null);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                failed[entry.priority.ordinal()]++;
+                if (inFlight.remove(entry)) {
+                    lock.notifyAll();
+                }
+            }
+            entry.fail(e);
+        }
+    }
+
+    private void complete(Entry entry) {
+        synchronized (lock) {
+            if (!inFlight.remove(entry)) {
+                return;
+            }
+            long reply = System.nanoTime() - entry.sentAt;
+            averageReplyNanos = averageReplyNanos == 0
+                    ? reply
+                    : averageReplyNanos + REPLY_SMOOTHING * (reply - averageReplyNanos);
+            lock.notifyAll();
+        }
+        entry.future.complete(null);
+    }
+
+    /**
+     * @return number of tracked commands currently awaiting a reply.
+     */
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * @return number of commands queued in {@code priority} and not yet sent.
+     */
+    public int getQueueDepth(CommandPriority priority) {
+        synchronized (lock) {
+            return queues.get(priority.ordinal()).size();
+        }
+    }
+
+    /**
+     * @return smoothed time from sending a tracked command to its reply, in
+     *         microseconds, or 0 if no reply has been seen yet.
+     */
+    public long getAverageReplyMicros() {
+        synchronized (lock) {
+            return (long) (averageReplyNanos / 1000);
+        }
+    }
+
+    /**
+     * @return number of tracked commands whose reply never arrived.
+     */
+    public long getTimeouts() {
+        synchronized (lock) {
+            return timeouts;
+        }
+    }
+
+    /**
+     * @return one snapshot per priority class, highest priority first.
+     */
+    public List<SchedulerStats> getStats() {
+        List<SchedulerStats> stats = new ArrayList<>(PRIORITIES.length);
+        synchronized (lock) {
+            for (CommandPriority priority : PRIORITIES) {
+                int p = priority.ordinal();
+                stats.add(new SchedulerStats(priority, queues.get(p).size(), submitted[p], sent[p],
+                        coalesced[p], failed[p], totalWaitNanos[p], maxWaitNanos[p]));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Stop the dispatcher. Queued and in-flight commands complete
+     * exceptionally; later submissions are rejected.
+     */
+    @Override
+    public void close() {
+        List<Entry> abandoned = new ArrayList<>();
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int p = 0; p < PRIORITIES.length; p++) {
+                abandoned.addAll(queues.get(p));
+                queues.get(p).clear();
+                pendingByKey.get(p).clear();
+            }
+            abandoned.addAll(inFlight);
+            inFlight.clear();
+            lock.notifyAll();
+        }
+        IOException closedException = new IOException("Command scheduler " + name + " is closed");
+        for (Entry entry : abandoned) {
+            entry.fail(closedException);
+        }
+    }
+
+    private static final class Entry {
+        final CommandPriority priority;
+        final Object key;
+        final boolean awaitsReply;
+        final long enqueued;
+        // completes once the command is done: sent, or replied to if it is tracked
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        // completes once the command has been handed to the protocol stack
+        final CompletableFuture<Void> handedOver = new CompletableFuture<>();
+        Object command; // Command or TrackedCommand; replaced when coalescing
+        long sentAt;
+        long deadline;
+
+        Entry(CommandPriority priority, Object key, Object command, boolean awaitsReply, long enqueued) {
+            this.priority = priority;
+            this.key = key;
+            this.command = command;
+            this.awaitsReply = awaitsReply;
+            this.enqueued = enqueued;
+        }
+
+        void fail(Throwable cause) {
+            handedOver.completeExceptionally(cause);
+            future.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.dccio.core.outbound;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power-of-two microsecond buckets:
+ * bucket 0 holds samples under 1 us, bucket n samples from 2^(n-1) to
+ * 2^n us, and the last bucket everything slower. Percentiles are reported
+ * as the upper bound of the bucket they fall in, so they never understate
+ * a latency.
+ */
+public final class LatencyHistogram {
+
+    // 2^24 us is about 17 s
+    static final int BUCKETS = 26;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public long getAverageMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / n;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the upper bound in microseconds of the bucket holding the
+     *         given percentile (capped at the slowest sample), or 0 if
+     *         nothing was recorded.
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(upperBoundMicros(b), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * @return sample counts per bucket; see {@link #upperBoundMicros(int)}.
+     */
+    public long[] getBucketCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            snapshot[b] = counts.get(b);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the exclusive upper bound of bucket {@code b} in microseconds,
+     *         or Long.MAX_VALUE for the last bucket.
+     */
+    public static long upperBoundMicros(int b) {
+        return b >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << b;
+    }
+
+    static int bucket(long micros) {
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(b, BUCKETS - 1);
+    }
+}
@@ -0,0 +1,77 @@
+package org.dccio.core.outbound;
+
+/**
+ * Point-in-time counters for one {@link CommandPriority} class of a
+ * {@link CommandScheduler}.
+ */
+public final class SchedulerStats {
+
+    private final CommandPriority priority;
+    private final int depth;
+    private final long submitted;
+    private final long sent;
+    private final long coalesced;
+    private final long failed;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    SchedulerStats(CommandPriority priority, int depth, long submitted, long sent, long coalesced,
+                   long failed, long totalWaitNanos, long maxWaitNanos) {
+        this.priority = priority;
+        this.depth = depth;
+        this.submitted = submitted;
+        this.sent = sent;
+        this.coalesced = coalesced;
+        this.failed = failed;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public CommandPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return number of commands queued but not yet sent.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return number of commands handed to the underlying connection.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return number of submissions folded into an already queued command
+     *         for the same key (e.g. the same locomotive).
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return mean time between submission and sending, in microseconds.
+     */
+    public long getAverageWaitMicros() {
+        return sent == 0 ? 0 : totalWaitNanos / sent / 1000;
+    }
+
+    /**
+     * @return longest time between submission and sending, in microseconds.
+     */
+    public long getMaxWaitMicros() {
+        return maxWaitNanos / 1000;
+    }
+}
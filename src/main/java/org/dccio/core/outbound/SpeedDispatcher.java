@@ -0,0 +1,317 @@
+package org.dccio.core.outbound;
+
+import org.dccio.core.ThrottleSession;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Sends the speed of the throttles on one connection from a single thread
+ * that wakes on a fixed tick.
+ * <p>
+ * {@link #update(String, ThrottleSession, float)} only records the latest
+ * speed for the throttle and marks it dirty; nothing is allocated or
+ * scheduled per update once the throttle has been seen. Each tick collects
+ * every dirty throttle whose last command is at least the current
+ * per-locomotive interval old, sends them as one burst starting one throttle
+ * further round than the previous tick, and reports the whole burst to the
+ * {@link BatchListener} at once.
+ * <p>
+ * Speeds are compared as steps of the session's
+ * {@link org.dccio.core.SpeedStepMode}: an update or a due speed that maps to
+ * the step already requested is dropped without a command or a broadcast, and
+ * counted by {@link #getSuppressedCount()}.
+ * <p>
+ * Blocking writes stall only this connection's dispatcher, not other
+ * connections or unrelated timers.
+ */
+public final class SpeedDispatcher implements Closeable {
+
+    /**
+     * Receives each tick's burst. The list and its slots are reused; read them
+     * before returning.
+     */
+    @FunctionalInterface
+    public interface BatchListener {
+        void onSent(List<Slot> sent);
+    }
+
+    /**
+     * Speed state of one throttle.
+     */
+    public static final class Slot {
+        private final String throttleId;
+        private volatile ThrottleSession session;
+        private volatile float pendingSpeed;
+        private volatile boolean dirty;
+        private volatile boolean removed;
+        // dispatcher thread only
+        private float sentSpeed;
+        private long lastSentNanos;
+        private boolean everSent;
+
+        Slot(String throttleId, ThrottleSession session) {
+            this.throttleId = throttleId;
+            this.session = session;
+        }
+
+        public String getThrottleId() {
+            return throttleId;
+        }
+
+        public ThrottleSession getSession() {
+            return session;
+        }
+
+        /**
+         * @return the speed sent by the latest burst.
+         */
+        public float getSentSpeed() {
+            return sentSpeed;
+        }
+    }
+
+    private final String name;
+    private final LongSupplier intervalMs;
+    private final BatchListener listener;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    // round-robin order; a throttle is added when first seen and removed
+    // when it is closed
+    private final List<Slot> order = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor;
+    // held for a whole burst, so clearPending() cannot return while speeds
+    // it missed are still being sent or reported
+    private final Object fence = new Object();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    // dispatcher thread only
+    private final List<Slot> burst = new ArrayList<>();
+    private int cursor;
+
+    /**
+     * @param tickMs     how often dirty throttles are collected
+     * @param intervalMs minimum time between two speed commands for one
+     *                   locomotive, asked once per tick
+     * @param listener   told about each non-empty burst, or null
+     */
+    public SpeedDispatcher(String name, long tickMs, LongSupplier intervalMs, BatchListener listener) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.name = name;
+        this.intervalMs = intervalMs;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "speed-dispatch-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record {@code speed} as the value to send for {@code throttleId} on a
+     * coming tick, replacing any value not yet sent.
+     *
+     * @return false if {@code speed} is on the same step as the speed already
+     *         waiting to be sent, or the session's speed if none is, so there
+     *         is nothing new to send
+     */
+    public boolean update(String throttleId, ThrottleSession session, float speed) {
+        Slot slot = slots.get(throttleId);
+        if (slot == null || slot.removed) {
+            slot = register(throttleId, session);
+        } else if (slot.session != session) {
+            // throttle was closed and reopened
+            slot.session = session;
+        }
+        float current = slot.dirty ? slot.pendingSpeed : session.getSpeed();
+        if (session.getSpeedStepMode().sameStep(current, speed)) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        slot.pendingSpeed = speed;
+        slot.dirty = true;
+        return true;
+    }
+
+    /**
+     * Drop every speed waiting to be sent, e.g. for an emergency stop. A
+     * burst already running is waited for, so once this returns the
+     * dispatcher sends and reports only speeds updated after the call;
+     * commands the sessions have already queued are theirs to drop, as
+     * {@link ThrottleSession#emergencyStop()} does.
+     *
+     * @return number of speeds dropped
+     */
+    public int clearPending() {
+        int cleared = 0;
+        synchronized (fence) {
+            for (Slot slot : order) {
+                if (slot.dirty) {
+                    slot.dirty = false;
+                    cleared++;
+                }
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * Forget {@code throttleId} and any speed waiting to be sent for it,
+     * unless it has been reopened as another session since.
+     *
+     * @return true if it was removed
+     */
+    public boolean remove(String throttleId, ThrottleSession session) {
+        // not in the middle of a burst, which indexes into the order
+        synchronized (fence) {
+            synchronized (this) {
+                Slot slot = slots.get(throttleId);
+                if (slot == null || slot.session != session) {
+                    return false;
+                }
+                slot.removed = true;
+                slot.dirty = false;
+                slots.remove(throttleId);
+                order.remove(slot);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if no throttle has been seen since the last was removed.
+     */
+    public boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    /**
+     * @return number of throttles with a speed waiting to be sent.
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Slot slot : order) {
+            if (slot.dirty) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return number of speed commands sent.
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of speed updates dropped because they would not have
+     *         changed the step on the wire.
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        slots.clear();
+        order.clear();
+    }
+
+    private synchronized Slot register(String throttleId, ThrottleSession session) {
+        Slot slot = slots.get(throttleId);
+        if (slot == null) {
+            slot = new Slot(throttleId, session);
+            slots.put(throttleId, slot);
+            order.add(slot);
+        }
+        return slot;
+    }
+
+    private void tick() {
+        try {
+            collectAndSend(System.nanoTime());
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            System.err.println("Speed dispatcher " + name + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One tick: send every dirty throttle that is due at {@code now}.
+     * Called by the dispatcher thread; tests that use a tick too long to
+     * fire call it themselves.
+     */
+    public void collectAndSend(long now) {
+        // sessions only queue the commands, so the fence is not held for long
+        synchronized (fence) {
+            sendDue(now);
+        }
+    }
+
+    private void sendDue(long now) {
+        int size = order.size();
+        if (size == 0) {
+            return;
+        }
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMs.getAsLong()));
+        int start = cursor % size;
+        cursor = start + 1;
+        for (int i = 0; i < size; i++) {
+            Slot slot = order.get((start + i) % size);
+            if (!slot.dirty || (slot.everSent && now - slot.lastSentNanos < intervalNanos)) {
+                continue;
+            }
+            slot.dirty = false;
+            float speed = slot.pendingSpeed;
+            ThrottleSession session = slot.session;
+            if (session.getSpeedStepMode().sameStep(session.getSpeed(), speed)) {
+                // the session got there some other way since the update
+                suppressed.incrementAndGet();
+                continue;
+            }
+            try {
+                session.setSpeed(speed);
+            } catch (IOException | RuntimeException e) {
+                // the rest of the burst still goes out and is reported
+                System.err.println("Error sending speed for throttle " + slot.throttleId + ": " + e.getMessage());
+                continue;
+            }
+            slot.sentSpeed = speed;
+            slot.lastSentNanos = now;
+            slot.everSent = true;
+            sent.incrementAndGet();
+            burst.add(slot);
+        }
+        if (burst.isEmpty()) {
+            return;
+        }
+        try {
+            if (listener != null) {
+                listener.onSent(Collections.unmodifiableList(burst));
+            }
+        } finally {
+            burst.clear();
+        }
+    }
+}
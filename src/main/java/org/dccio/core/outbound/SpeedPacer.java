@@ -0,0 +1,87 @@
+package org.dccio.core.outbound;
+
+/**
+ * Works out how often each locomotive on a connection may be sent a new
+ * speed, from the load measured on that connection's {@link CommandScheduler}.
+ * <p>
+ * The bus can carry roughly one command per reply time for each slot of the
+ * scheduler's in-flight window. Speed updates are allowed half of that
+ * capacity, shared between the active throttles, so the per-locomotive
+ * interval is {@code throttles * replyTime / window / 0.5}. While the window
+ * is full or speed commands are already queued the interval is stretched
+ * further. The result is smoothed so it does not jump with every sample, and
+ * clamped to {@link #MIN_INTERVAL_MS}..{@link #MAX_INTERVAL_MS}.
+ * <p>
+ * A quiet DCC++ Ethernet link with one locomotive therefore runs at the
+ * minimum interval, while a 19200 baud Elite with twenty locomotives backs
+ * off to well over a second per locomotive. Reply times are measured on
+ * every connection: XNet speed frames report their own replies, and the
+ * DCC++ and NCE connections report each reply their traffic controller
+ * receives to {@link CommandScheduler#replyReceived()}.
+ */
+public final class SpeedPacer {
+
+    public static final long MIN_INTERVAL_MS = 50;
+    public static final long MAX_INTERVAL_MS = 2000;
+    /** Reply time assumed until the scheduler has measured one. */
+    public static final long DEFAULT_REPLY_MICROS = 10_000;
+
+    // fraction of the bus speed commands may use; the rest is left for functions, accessories etc.
+    private static final double SPEED_SHARE = 0.5;
+    // multiplier applied while the bus is saturated
+    private static final double BACKOFF = 1.5;
+    // weight of the newest target in the smoothed interval
+    private static final double SMOOTHING = 0.3;
+
+    private final CommandScheduler scheduler;
+    private double smoothedMs; // guarded by this
+    private volatile long intervalMs = MIN_INTERVAL_MS;
+    private volatile int activeThrottles;
+
+    /**
+     * @param scheduler the connection's scheduler, or null if it has none (the
+     *                  pacer then only scales with the number of throttles)
+     */
+    public SpeedPacer(CommandScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Recompute and return the per-locomotive speed interval.
+     *
+     * @param activeThrottles number of throttles currently open on the connection
+     * @return the minimum time between two speed commands for one locomotive, in milliseconds
+     */
+    public synchronized long nextInterval(int activeThrottles) {
+        this.activeThrottles = activeThrottles;
+        long replyMicros = scheduler == null ? 0 : scheduler.getAverageReplyMicros();
+        if (replyMicros <= 0) {
+            replyMicros = DEFAULT_REPLY_MICROS;
+        }
+        int window = scheduler == null ? 1 : scheduler.getWindow();
+        double perCommandMs = replyMicros / 1000.0 / window;
+        double targetMs = Math.max(1, activeThrottles) * perCommandMs / SPEED_SHARE;
+        if (scheduler != null && (scheduler.getInFlight() >= window
+                || scheduler.getQueueDepth(CommandPriority.SPEED) > 0)) {
+            targetMs *= BACKOFF;
+        }
+        targetMs = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, targetMs));
+        smoothedMs = smoothedMs == 0 ? targetMs : smoothedMs + SMOOTHING * (targetMs - smoothedMs);
+        intervalMs = Math.round(smoothedMs);
+        return intervalMs;
+    }
+
+    /**
+     * @return the interval from the last {@link #nextInterval(int)} call, in milliseconds.
+     */
+    public long getIntervalMillis() {
+        return intervalMs;
+    }
+
+    /**
+     * @return the throttle count used for the last computation.
+     */
+    public int getActiveThrottles() {
+        return activeThrottles;
+    }
+}
@@ -0,0 +1,325 @@
+package org.dccio.core.programming;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * CV values already read from decoders, so repeat reads on the slow
+ * programming track can be answered at once.
+ * <p>
+ * Entries are kept per decoder, identified by connection, loco address and
+ * the manufacturer (CV8) and version (CV7) the decoder reported. A value is
+ * either verified (read back from the decoder) or stale: a write that has
+ * not been read back, or a write that failed part way. Stale values are
+ * never served; a verify job re-reads just those CVs.
+ * <p>
+ * The cache is saved as JSON so a daemon restart does not mean re-reading
+ * whole decoders.
+ */
+public final class CvCache {
+
+    /** Default location of the persisted cache. */
+    public static final Path DEFAULT_FILE = Paths.get(System.getProperty("user.home"), ".dcc-io", "cv-cache.json");
+
+    /** CV holding the decoder's manufacturer id; writing it resets most decoders. */
+    public static final int CV_MANUFACTURER = 8;
+    /** CV holding the decoder's version. */
+    public static final int CV_VERSION = 7;
+
+    private static final int STALE = 1 << 16;
+
+    private final Path file;
+    // serialises writers of the file; never held with the cache lock
+    private final Object saveLock = new Object();
+
+    // guarded by this; value in the low 8 bits, STALE flag above
+    private final Map<DecoderKey, TreeMap<Integer, Integer>> decoders = new HashMap<>();
+    // last decoder identified at each connection/address
+    private final Map<String, DecoderKey> lastIdentified = new HashMap<>();
+    private boolean dirty;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param file where {@link #save()} writes the cache, or null to keep it in memory only
+     */
+    public CvCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Create a cache backed by {@code file}, loading it if it exists. A file
+     * that cannot be read is logged and ignored.
+     */
+    public static CvCache open(Path file) {
+        CvCache cache = new CvCache(file);
+        if (Files.exists(file)) {
+            try {
+                cache.load();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error loading CV cache " + file + ": " + e.getMessage());
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Identity of one decoder.
+     */
+    public static final class DecoderKey {
+        private final String connectionId;
+        private final int address;
+        private final int manufacturer;
+        private final int version;
+
+        public DecoderKey(String connectionId, int address, int manufacturer, int version) {
+            this.connectionId = connectionId;
+            this.address = address;
+            this.manufacturer = manufacturer;
+            this.version = version;
+        }
+
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public int getManufacturer() {
+            return manufacturer;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DecoderKey)) {
+                return false;
+            }
+            DecoderKey other = (DecoderKey) o;
+            return address == other.address && manufacturer == other.manufacturer
+                    && version == other.version && connectionId.equals(other.connectionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(connectionId, address, manufacturer, version);
+        }
+
+        @Override
+        public String toString() {
+            return connectionId + "/" + address + " (manufacturer " + manufacturer + ", version " + version + ")";
+        }
+    }
+
+    /**
+     * @return the verified value of {@code cv}, or null if it is not cached or is stale
+     */
+    public synchronized Integer get(DecoderKey key, int cv) {
+        Map<Integer, Integer> cvs = decoders.get(key);
+        Integer entry = cvs != null ? cvs.get(cv) : null;
+        if (entry == null || (entry & STALE) != 0) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Record that {@code key} answered at its address: its CV7/CV8 become
+     * verified entries and it becomes the decoder {@link #getLastIdentified}
+     * returns.
+     */
+    public synchronized void identify(DecoderKey key) {
+        lastIdentified.put(key.connectionId + "/" + key.address, key);
+        put(key, CV_MANUFACTURER, key.manufacturer);
+        put(key, CV_VERSION, key.version);
+    }
+
+    /**
+     * @return the decoder last identified at {@code address}, or null
+     */
+    public synchronized DecoderKey getLastIdentified(String connectionId, int address) {
+        return lastIdentified.get(connectionId + "/" + address);
+    }
+
+    /**
+     * Store a value read back from the decoder.
+     */
+    public synchronized void put(DecoderKey key, int cv, int value) {
+        Integer old = decoders.computeIfAbsent(key, k -> new TreeMap<>()).put(cv, value & 0xFF);
+        dirty |= old == null || old != (value & 0xFF);
+    }
+
+    /**
+     * Store a value written but not read back; it is stale until verified.
+     */
+    public synchronized void putUnverified(DecoderKey key, int cv, int value) {
+        decoders.computeIfAbsent(key, k -> new TreeMap<>()).put(cv, (value & 0xFF) | STALE);
+        dirty = true;
+    }
+
+    /**
+     * Mark {@code cv} stale, keeping the last known value.
+     */
+    public synchronized void invalidate(DecoderKey key, int cv) {
+        Map<Integer, Integer> cvs = decoders.get(key);
+        if (cvs != null) {
+            cvs.computeIfPresent(cv, (k, v) -> v | STALE);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forget every CV of a decoder, e.g. after a reset through CV8, and stop
+     * returning it from {@link #getLastIdentified}.
+     */
+    public synchronized void invalidateDecoder(DecoderKey key) {
+        if (decoders.remove(key) != null) {
+            dirty = true;
+        }
+        lastIdentified.remove(key.connectionId + "/" + key.address, key);
+    }
+
+    /**
+     * @return the stale CVs of a decoder, in ascending order
+     */
+    public synchronized int[] getStaleCvs(DecoderKey key) {
+        Map<Integer, Integer> cvs = decoders.get(key);
+        if (cvs == null) {
+            return new int[0];
+        }
+        return cvs.entrySet().stream().filter(e -> (e.getValue() & STALE) != 0).mapToInt(Map.Entry::getKey).toArray();
+    }
+
+    /**
+     * @return number of CVs cached for a decoder, stale or not
+     */
+    public synchronized int size(DecoderKey key) {
+        Map<Integer, Integer> cvs = decoders.get(key);
+        return cvs != null ? cvs.size() : 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Write the cache to its file if it changed since the last save. The file
+     * is replaced atomically.
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        synchronized (saveLock) {
+            JsonObject root;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                root = toJson();
+                dirty = false;
+            }
+            try {
+                Path parent = file.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    new Gson().toJson(root, writer);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        JsonObject root;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            root = new Gson().fromJson(reader, JsonObject.class);
+        }
+        if (root == null || !root.has("decoders")) {
+            return;
+        }
+        synchronized (this) {
+            for (JsonElement element : root.getAsJsonArray("decoders")) {
+                JsonObject obj = element.getAsJsonObject();
+                DecoderKey key = new DecoderKey(obj.get("connectionId").getAsString(), obj.get("address").getAsInt(),
+                        obj.get("manufacturer").getAsInt(), obj.get("version").getAsInt());
+                TreeMap<Integer, Integer> cvs = decoders.computeIfAbsent(key, k -> new TreeMap<>());
+                for (Map.Entry<String, JsonElement> cv : obj.getAsJsonObject("cvs").entrySet()) {
+                    cvs.put(Integer.parseInt(cv.getKey()), cv.getValue().getAsInt() & 0xFF);
+                }
+                if (obj.has("stale")) {
+                    for (JsonElement cv : obj.getAsJsonArray("stale")) {
+                        cvs.computeIfPresent(cv.getAsInt(), (k, v) -> v | STALE);
+                    }
+                }
+                if (obj.has("lastIdentified") && obj.get("lastIdentified").getAsBoolean()) {
+                    lastIdentified.put(key.connectionId + "/" + key.address, key);
+                }
+            }
+        }
+    }
+
+    private JsonObject toJson() {
+        JsonArray array = new JsonArray();
+        for (Map.Entry<DecoderKey, TreeMap<Integer, Integer>> decoder : decoders.entrySet()) {
+            DecoderKey key = decoder.getKey();
+            JsonObject obj = new JsonObject();
+            obj.addProperty("connectionId", key.connectionId);
+            obj.addProperty("address", key.address);
+            obj.addProperty("manufacturer", key.manufacturer);
+            obj.addProperty("version", key.version);
+            obj.addProperty("lastIdentified", key.equals(lastIdentified.get(key.connectionId + "/" + key.address)));
+            JsonObject cvs = new JsonObject();
+            JsonArray stale = new JsonArray();
+            for (Map.Entry<Integer, Integer> cv : decoder.getValue().entrySet()) {
+                cvs.addProperty(String.valueOf(cv.getKey()), cv.getValue() & 0xFF);
+                if ((cv.getValue() & STALE) != 0) {
+                    stale.add(cv.getKey());
+                }
+            }
+            obj.add("cvs", cvs);
+            obj.add("stale", stale);
+            array.add(obj);
+        }
+        JsonObject root = new JsonObject();
+        root.add("decoders", array);
+        return root;
+    }
+}
@@ -0,0 +1,205 @@
+package org.dccio.core.programming;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Common base for the per-connection job queues: jobs run one at a time in
+ * submission order, each driven from the queue's own thread, and a bounded
+ * number of finished jobs is kept for lookup.
+ * <p>
+ * Subclasses start a job in {@link #run(Object)} and end it with
+ * {@link #finishCurrent(Object, ProgrammingJob.State, String)}.
+ *
+ * @param <J> job type
+ */
+abstract class JobQueue<J> implements Closeable {
+
+    /** Finished jobs kept for {@link #getJob(String)}. */
+    static final int HISTORY = 20;
+
+    protected final String connectionId;
+    private final String name;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private final ArrayDeque<J> pending = new ArrayDeque<>();
+    private final Map<String, J> jobs = new LinkedHashMap<>();
+    private J current;
+    private boolean closed;
+
+    /**
+     * @param name       used in error messages, e.g. "Programming queue"
+     * @param threadName prefix of the queue thread's name
+     */
+    protected JobQueue(String connectionId, String name, String threadName) {
+        this.connectionId = connectionId;
+        this.name = name;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, threadName + "-" + connectionId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public synchronized J getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return the running job, queued jobs and recently finished ones, oldest first.
+     */
+    public synchronized List<J> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Cancel job {@code id}.
+     *
+     * @return false if there is no such job
+     */
+    public boolean cancel(String id) {
+        J job;
+        boolean wasQueued;
+        synchronized (this) {
+            job = jobs.get(id);
+            if (job == null) {
+                return false;
+            }
+            cancelJob(job);
+            wasQueued = pending.remove(job);
+        }
+        if (wasQueued) {
+            finish(job, ProgrammingJob.State.CANCELLED, null);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        List<J> dropped;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+            if (current != null) {
+                // its pending callback will find the executor shut down
+                dropped.add(current);
+            }
+        }
+        executor.shutdown();
+        for (J job : dropped) {
+            cancelJob(job);
+            finish(job, ProgrammingJob.State.CANCELLED, null);
+        }
+    }
+
+    /**
+     * Queue {@code job} under {@code id} and start it if the queue is idle.
+     *
+     * @throws IllegalStateException if the queue is closed
+     */
+    protected J submit(String id, J job) {
+        boolean startNow;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException(name + " for " + connectionId + " is closed");
+            }
+            jobs.put(id, job);
+            trimHistory();
+            pending.addLast(job);
+            startNow = current == null;
+        }
+        queued(job);
+        if (startNow) {
+            dispatch(this::startNext);
+        }
+        return job;
+    }
+
+    /** Called once {@code job} is queued. */
+    protected abstract void queued(J job);
+
+    /** Start {@code job} on the queue thread; it is now the current job. */
+    protected abstract void run(J job);
+
+    /** Mark {@code job} as finished and publish it. */
+    protected abstract void finish(J job, ProgrammingJob.State state, String error);
+
+    protected abstract void cancelJob(J job);
+
+    protected abstract boolean isFinished(J job);
+
+    /** Called on the queue thread after the current job finished, before the next starts. */
+    protected void finished(J job) {
+    }
+
+    /**
+     * Finish the current job and start the next one.
+     */
+    protected void finishCurrent(J job, ProgrammingJob.State state, String error) {
+        finish(job, state, error);
+        finished(job);
+        synchronized (this) {
+            current = null;
+        }
+        startNext();
+    }
+
+    /**
+     * Run {@code task} on the queue thread; dropped once the queue is closed.
+     */
+    protected void dispatch(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed; jobs still running were cancelled in close()
+        }
+    }
+
+    private void trimHistory() {
+        int finished = 0;
+        for (J job : jobs.values()) {
+            if (isFinished(job)) {
+                finished++;
+            }
+        }
+        Iterator<J> it = jobs.values().iterator();
+        while (finished > HISTORY && it.hasNext()) {
+            if (isFinished(it.next())) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    private void startNext() {
+        J job;
+        synchronized (this) {
+            if (current != null) {
+                return;
+            }
+            job = pending.pollFirst();
+            if (job == null) {
+                return;
+            }
+            current = job;
+        }
+        run(job);
+    }
+}
@@ -0,0 +1,235 @@
+package org.dccio.core.programming;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A set of CV writes sent in operations mode to every locomotive of a list,
+ * run by an {@link OpsModeQueue}.
+ * <p>
+ * Locomotives are written one after another, each getting all CVs in the
+ * order given. If a write to a locomotive fails, its remaining CVs are
+ * skipped and the job moves on to the next locomotive. The job's future
+ * completes with one {@link Result} per locomotive.
+ */
+public final class OpsModeJob {
+
+    /**
+     * A locomotive to program.
+     */
+    public static final class Target {
+        private final int address;
+        private final boolean longAddress;
+
+        public Target(int address, boolean longAddress) {
+            this.address = address;
+            this.longAddress = longAddress;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public boolean isLongAddress() {
+            return longAddress;
+        }
+    }
+
+    /**
+     * Outcome for one locomotive.
+     */
+    public static final class Result {
+        private final Target target;
+        private final int written;
+        private final String error;
+
+        Result(Target target, int written, String error) {
+            this.target = target;
+            this.written = written;
+            this.error = error;
+        }
+
+        public Target getTarget() {
+            return target;
+        }
+
+        /**
+         * @return number of CVs the command station accepted.
+         */
+        public int getWritten() {
+            return written;
+        }
+
+        /**
+         * @return why the locomotive's writes stopped, or null if all were accepted
+         *         or the job was cancelled before reaching it.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final String id;
+    private final String connectionId;
+    private final Target[] targets;
+    private final int[] cvs;
+    private final int[] values;
+    private final CompletableFuture<List<Result>> future = new CompletableFuture<>();
+
+    // guarded by this
+    private final int[] written;
+    private final String[] errors;
+    private ProgrammingJob.State state = ProgrammingJob.State.QUEUED;
+    private int nextTarget;
+    private int nextCv;
+    private boolean cancelRequested;
+    private String error;
+
+    OpsModeJob(String id, String connectionId, Target[] targets, int[] cvs, int[] values) {
+        this.id = id;
+        this.connectionId = connectionId;
+        this.targets = targets;
+        this.cvs = cvs;
+        this.values = values;
+        this.written = new int[targets.length];
+        this.errors = new String[targets.length];
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(Arrays.asList(targets));
+    }
+
+    public int[] getCvs() {
+        return Arrays.copyOf(cvs, cvs.length);
+    }
+
+    public int[] getValues() {
+        return Arrays.copyOf(values, values.length);
+    }
+
+    /**
+     * @return number of writes in the job.
+     */
+    public int getTotal() {
+        return targets.length * cvs.length;
+    }
+
+    /**
+     * @return number of writes done or skipped so far.
+     */
+    public synchronized int getCompleted() {
+        return nextTarget * cvs.length + nextCv;
+    }
+
+    public synchronized ProgrammingJob.State getState() {
+        return state;
+    }
+
+    /**
+     * @return why the whole job failed, or null.
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    /**
+     * @return the outcome so far for every locomotive, in the order given.
+     */
+    public synchronized List<Result> getResults() {
+        List<Result> results = new ArrayList<>(targets.length);
+        for (int i = 0; i < targets.length; i++) {
+            results.add(new Result(targets[i], written[i], errors[i]));
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    public CompletableFuture<List<Result>> getFuture() {
+        return future;
+    }
+
+    /**
+     * Stop the job. A queued job never starts; a running one stops after
+     * the write in progress.
+     */
+    public synchronized void cancel() {
+        if (!state.isFinished()) {
+            cancelRequested = true;
+        }
+    }
+
+    synchronized boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    synchronized boolean hasNext() {
+        return nextTarget < targets.length;
+    }
+
+    synchronized Target currentTarget() {
+        return targets[nextTarget];
+    }
+
+    synchronized int currentCv() {
+        return cvs[nextCv];
+    }
+
+    synchronized int currentValue() {
+        return values[nextCv];
+    }
+
+    synchronized void start() {
+        state = ProgrammingJob.State.RUNNING;
+    }
+
+    synchronized void recordWrite() {
+        written[nextTarget]++;
+        if (++nextCv == cvs.length) {
+            nextCv = 0;
+            nextTarget++;
+        }
+    }
+
+    /**
+     * Record why the current locomotive failed and skip its remaining CVs.
+     */
+    synchronized void recordFailure(String message) {
+        errors[nextTarget] = message;
+        nextCv = 0;
+        nextTarget++;
+    }
+
+    void finish(ProgrammingJob.State finalState, String message) {
+        List<Result> results;
+        synchronized (this) {
+            if (state.isFinished()) {
+                return;
+            }
+            state = finalState;
+            error = message;
+            results = getResults();
+        }
+        switch (finalState) {
+            case CANCELLED:
+                future.cancel(false);
+                break;
+            case FAILED:
+                future.completeExceptionally(new IOException(message));
+                break;
+            default:
+                future.complete(results);
+                break;
+        }
+    }
+}
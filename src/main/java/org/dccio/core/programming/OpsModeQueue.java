@@ -0,0 +1,127 @@
+package org.dccio.core.programming;
+
+import org.dccio.core.OpsModeProgrammer;
+import org.dccio.core.events.DccEventBus;
+import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.OpsModeEvent;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Per-connection queue of {@link OpsModeJob}s.
+ * <p>
+ * A job has at most one write outstanding. The next write is only queued
+ * once the command station has answered the previous one, so throttle
+ * commands queued on the connection's command scheduler in the meantime
+ * are sent first and a fleet-wide batch never holds trains up. Like
+ * {@link ProgrammingQueue}, no thread waits for replies and progress is
+ * published as events.
+ */
+public final class OpsModeQueue extends JobQueue<OpsModeJob> {
+
+    /** Most locomotives accepted in one job. */
+    public static final int MAX_TARGETS = 256;
+
+    private final Supplier<OpsModeProgrammer> programmers;
+    private final DccEventBus eventBus;
+
+    /**
+     * @param programmers supplies the connection's operations-mode programmer
+     *                    when a job starts; may return null if it has none
+     */
+    public OpsModeQueue(String connectionId, Supplier<OpsModeProgrammer> programmers, DccEventBus eventBus) {
+        super(connectionId, "Operations mode queue", "ops-programming");
+        this.programmers = programmers;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Queue a job writing {@code values[i]} to {@code cvs[i]} on every locomotive in {@code targets}.
+     */
+    public OpsModeJob write(List<OpsModeJob.Target> targets, int[] cvs, int[] values) {
+        ProgrammingQueue.checkValues(cvs, values);
+        if (targets == null || targets.isEmpty()) {
+            throw new IllegalArgumentException("At least one address is required");
+        }
+        if (targets.size() > MAX_TARGETS) {
+            throw new IllegalArgumentException("At most " + MAX_TARGETS + " addresses per job");
+        }
+        for (OpsModeJob.Target target : targets) {
+            ProgrammingQueue.checkAddress(target.getAddress());
+        }
+        OpsModeJob job = new OpsModeJob(ProgrammingQueue.nextId(), connectionId,
+                targets.toArray(new OpsModeJob.Target[0]), cvs.clone(), values.clone());
+        return submit(job.getId(), job);
+    }
+
+    @Override
+    protected void queued(OpsModeJob job) {
+        publish(job, 0, 0, null);
+    }
+
+    @Override
+    protected void run(OpsModeJob job) {
+        job.start();
+        publish(job, 0, 0, null);
+        step(job);
+    }
+
+    /**
+     * Send the job's next write, or finish the job if there is none.
+     */
+    private void step(OpsModeJob job) {
+        if (job.isCancelRequested()) {
+            finishCurrent(job, ProgrammingJob.State.CANCELLED, null);
+            return;
+        }
+        if (!job.hasNext()) {
+            finishCurrent(job, ProgrammingJob.State.COMPLETED, null);
+            return;
+        }
+        OpsModeProgrammer programmer = programmers.get();
+        if (programmer == null) {
+            finishCurrent(job, ProgrammingJob.State.FAILED,
+                    "No operations mode programmer available on connection " + connectionId);
+            return;
+        }
+        OpsModeJob.Target target = job.currentTarget();
+        int cv = job.currentCv();
+        programmer.writeCvAsync(target.getAddress(), target.isLongAddress(), cv, job.currentValue())
+                .whenComplete((ignored, error) -> dispatch(() -> writeDone(job, target, cv, error)));
+    }
+
+    private void writeDone(OpsModeJob job, OpsModeJob.Target target, int cv, Throwable error) {
+        if (error == null) {
+            job.recordWrite();
+            publish(job, target.getAddress(), cv, null);
+        } else {
+            String message = ProgrammingQueue.message(error);
+            job.recordFailure(message);
+            publish(job, target.getAddress(), cv, message);
+        }
+        step(job);
+    }
+
+    @Override
+    protected void finish(OpsModeJob job, ProgrammingJob.State state, String error) {
+        job.finish(state, error);
+        publish(job, 0, 0, error);
+    }
+
+    @Override
+    protected void cancelJob(OpsModeJob job) {
+        job.cancel();
+    }
+
+    @Override
+    protected boolean isFinished(OpsModeJob job) {
+        return job.getState().isFinished();
+    }
+
+    private void publish(OpsModeJob job, int address, int cv, String error) {
+        if (eventBus != null && eventBus.hasListeners(DccEventType.PROGRAMMING_PROGRESS)) {
+            eventBus.publish(new OpsModeEvent(job, address, cv, error));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.dccio.core.programming;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A batch of CV reads or writes run by a {@link ProgrammingQueue}.
+ * <p>
+ * CVs are processed in the order given. A CV that fails (typically because
+ * the decoder does not implement it) is recorded in {@link #getFailures()}
+ * and the job carries on with the next one. The job's future completes with
+ * the values read or written once every CV has been tried, or is cancelled
+ * if the job was.
+ * <p>
+ * A job for a known loco address goes through the queue's {@link CvCache}:
+ * the decoder is identified from CV8/CV7 first, reads of verified CVs are
+ * answered from the cache and writes leave the CV stale until a
+ * {@link Mode#VERIFY verify} job reads it back.
+ */
+public final class ProgrammingJob {
+
+    public enum Mode {
+        READ,
+        WRITE,
+        /** Re-read the CVs the cache holds as stale. */
+        VERIFY
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    private final String id;
+    private final String connectionId;
+    private final Mode mode;
+    private final int[] cvs;
+    private final int[] values;
+    private final Integer address;
+    private final CvCache.DecoderKey expectedDecoder;
+    private final CompletableFuture<Map<Integer, Integer>> future = new CompletableFuture<>();
+
+    // guarded by this
+    private final Map<Integer, Integer> results = new LinkedHashMap<>();
+    private final Map<Integer, String> failures = new LinkedHashMap<>();
+    private State state = State.QUEUED;
+    private int next;
+    private boolean cancelRequested;
+    private String error;
+    private CvCache.DecoderKey decoder;
+    private int cacheHits;
+
+    ProgrammingJob(String id, String connectionId, Mode mode, int[] cvs, int[] values, Integer address,
+                   CvCache.DecoderKey expectedDecoder) {
+        this.id = id;
+        this.connectionId = connectionId;
+        this.mode = mode;
+        this.cvs = cvs;
+        this.values = values;
+        this.address = address;
+        this.expectedDecoder = expectedDecoder;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the loco address the decoder answers to, or null if the job
+     *         does not use the CV cache.
+     */
+    public Integer getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the decoder identified when the job started, or null
+     */
+    public synchronized CvCache.DecoderKey getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * @return number of CVs answered from the cache.
+     */
+    public synchronized int getCacheHits() {
+        return cacheHits;
+    }
+
+    public int getTotal() {
+        return cvs.length;
+    }
+
+    public int[] getCvs() {
+        return Arrays.copyOf(cvs, cvs.length);
+    }
+
+    /**
+     * @return the values to write, in the order of {@link #getCvs()}, or
+     *         null for a read job.
+     */
+    public int[] getValues() {
+        return values != null ? Arrays.copyOf(values, values.length) : null;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return number of CVs tried so far, whether they succeeded or not.
+     */
+    public synchronized int getCompleted() {
+        return next;
+    }
+
+    /**
+     * @return values read or written so far, by CV, in processing order.
+     */
+    public synchronized Map<Integer, Integer> getResults() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(results));
+    }
+
+    /**
+     * @return error messages of CVs that failed, by CV.
+     */
+    public synchronized Map<Integer, String> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+    }
+
+    /**
+     * @return why the whole job failed, or null.
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    /**
+     * @return completed with {@link #getResults()} when the job has finished.
+     */
+    public CompletableFuture<Map<Integer, Integer>> getFuture() {
+        return future;
+    }
+
+    /**
+     * Stop the job. A queued job never starts; a running one stops after
+     * the CV currently being programmed, which cannot be aborted.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (state.isFinished()) {
+                return;
+            }
+            cancelRequested = true;
+        }
+    }
+
+    synchronized boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    synchronized boolean hasNext() {
+        return next < cvs.length;
+    }
+
+    synchronized int currentCv() {
+        return cvs[next];
+    }
+
+    synchronized int currentValue() {
+        return values[next];
+    }
+
+    synchronized void start() {
+        state = State.RUNNING;
+    }
+
+    /**
+     * @return the decoder a verify job was built for, or null
+     */
+    CvCache.DecoderKey getExpectedDecoder() {
+        return expectedDecoder;
+    }
+
+    synchronized void setDecoder(CvCache.DecoderKey decoder) {
+        this.decoder = decoder;
+    }
+
+    synchronized void recordCacheHit(int cv, int value) {
+        cacheHits++;
+        recordResult(cv, value);
+    }
+
+    synchronized void recordResult(int cv, int value) {
+        results.put(cv, value);
+        next++;
+    }
+
+    synchronized void recordFailure(int cv, String message) {
+        failures.put(cv, message);
+        next++;
+    }
+
+    /**
+     * Move to a final state and complete the future.
+     */
+    void finish(State finalState, String message) {
+        Map<Integer, Integer> snapshot;
+        synchronized (this) {
+            if (state.isFinished()) {
+                return;
+            }
+            state = finalState;
+            error = message;
+            snapshot = Collections.unmodifiableMap(new LinkedHashMap<>(results));
+        }
+        switch (finalState) {
+            case CANCELLED:
+                future.cancel(false);
+                break;
+            case FAILED:
+                future.completeExceptionally(new IOException(message));
+                break;
+            default:
+                future.complete(snapshot);
+                break;
+        }
+    }
+}
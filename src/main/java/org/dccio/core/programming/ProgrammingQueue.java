@@ -0,0 +1,347 @@
+package org.dccio.core.programming;
+
+import org.dccio.core.ProgrammerSession;
+import org.dccio.core.events.DccEventBus;
+import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.ProgrammingEvent;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Per-connection queue of {@link ProgrammingJob}s. The programming track is
+ * a single resource, so jobs run one after another and the CVs of a job one
+ * at a time.
+ * <p>
+ * No thread waits for the decoder: each CV is started from the completion
+ * of the previous one, hopping onto the queue's own thread so the next
+ * programmer call is never made from inside the programmer's callback.
+ * Progress is published as {@link ProgrammingEvent}s.
+ * <p>
+ * Jobs given a loco address use the {@link CvCache} set with
+ * {@link #setCache(CvCache)}, if any.
+ */
+public final class ProgrammingQueue extends JobQueue<ProgrammingJob> {
+
+    /** Highest CV number accepted (DCC extended CV space). */
+    public static final int MAX_CV = 1024;
+    /** Highest loco address accepted for cached jobs. */
+    public static final int MAX_ADDRESS = 10239;
+    private static final AtomicLong JOB_IDS = new AtomicLong();
+
+    private final Supplier<ProgrammerSession> sessions;
+    private final DccEventBus eventBus;
+    private volatile CvCache cache;
+
+    /**
+     * @param sessions supplies the connection's programmer when a job starts;
+     *                 may return null if it has none
+     */
+    public ProgrammingQueue(String connectionId, Supplier<ProgrammerSession> sessions, DccEventBus eventBus) {
+        super(connectionId, "Programming queue", "programming");
+        this.sessions = sessions;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Use {@code cache} for jobs that give a loco address; null turns caching off.
+     */
+    public void setCache(CvCache cache) {
+        this.cache = cache;
+    }
+
+    public CvCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Queue a job reading {@code cvs} in order.
+     */
+    public ProgrammingJob read(int... cvs) {
+        return read(null, cvs);
+    }
+
+    /**
+     * Queue a job reading {@code cvs} in order from the decoder at
+     * {@code address}, answering verified CVs from the cache.
+     *
+     * @param address loco address, or null to bypass the cache
+     */
+    public ProgrammingJob read(Integer address, int[] cvs) {
+        checkCvs(cvs);
+        checkAddress(address);
+        return submit(new ProgrammingJob(nextId(), connectionId, ProgrammingJob.Mode.READ, cvs.clone(), null,
+                address, null));
+    }
+
+    /**
+     * Queue a job reading CVs {@code first} to {@code last} inclusive.
+     */
+    public ProgrammingJob readRange(int first, int last) {
+        return readRange(null, first, last);
+    }
+
+    /**
+     * Queue a job reading CVs {@code first} to {@code last} inclusive.
+     *
+     * @param address loco address, or null to bypass the cache
+     */
+    public ProgrammingJob readRange(Integer address, int first, int last) {
+        if (first > last) {
+            throw new IllegalArgumentException("First CV must not be after last CV");
+        }
+        int[] cvs = new int[last - first + 1];
+        for (int i = 0; i < cvs.length; i++) {
+            cvs[i] = first + i;
+        }
+        return read(address, cvs);
+    }
+
+    /**
+     * Queue a job writing {@code values[i]} to {@code cvs[i]}, in order.
+     */
+    public ProgrammingJob write(int[] cvs, int[] values) {
+        return write(null, cvs, values);
+    }
+
+    /**
+     * Queue a job writing {@code values[i]} to {@code cvs[i]}, in order. With
+     * an address, each CV written is left stale in the cache until verified.
+     *
+     * @param address loco address, or null to bypass the cache
+     */
+    public ProgrammingJob write(Integer address, int[] cvs, int[] values) {
+        checkValues(cvs, values);
+        checkAddress(address);
+        return submit(new ProgrammingJob(nextId(), connectionId, ProgrammingJob.Mode.WRITE, cvs.clone(),
+                values.clone(), address, null));
+    }
+
+    /**
+     * Queue a job re-reading the CVs the cache holds as stale for the decoder
+     * last identified at {@code address}. The job fails if a different
+     * decoder answers.
+     *
+     * @throws IllegalStateException if no cache is set
+     * @throws NoSuchElementException if no decoder is known at that address
+     */
+    public ProgrammingJob verify(int address) {
+        checkAddress(address);
+        CvCache current = cache;
+        if (current == null) {
+            throw new IllegalStateException("No CV cache on connection " + connectionId);
+        }
+        CvCache.DecoderKey decoder = current.getLastIdentified(connectionId, address);
+        if (decoder == null) {
+            throw new NoSuchElementException("No decoder known at address " + address);
+        }
+        return submit(new ProgrammingJob(nextId(), connectionId, ProgrammingJob.Mode.VERIFY,
+                current.getStaleCvs(decoder), null, address, decoder));
+    }
+
+    static String nextId() {
+        return "job-" + JOB_IDS.incrementAndGet();
+    }
+
+    static void checkCvs(int[] cvs) {
+        if (cvs == null || cvs.length == 0) {
+            throw new IllegalArgumentException("At least one CV is required");
+        }
+        for (int cv : cvs) {
+            if (cv < 1 || cv > MAX_CV) {
+                throw new IllegalArgumentException("CV must be between 1 and " + MAX_CV);
+            }
+        }
+    }
+
+    static void checkValues(int[] cvs, int[] values) {
+        checkCvs(cvs);
+        if (values == null || values.length != cvs.length) {
+            throw new IllegalArgumentException("One value is required per CV");
+        }
+        for (int value : values) {
+            if (value < 0 || value > 255) {
+                throw new IllegalArgumentException("CV value must be between 0 and 255");
+            }
+        }
+    }
+
+    static void checkAddress(Integer address) {
+        if (address != null && (address < 1 || address > MAX_ADDRESS)) {
+            throw new IllegalArgumentException("Address must be between 1 and " + MAX_ADDRESS);
+        }
+    }
+
+    private ProgrammingJob submit(ProgrammingJob job) {
+        return submit(job.getId(), job);
+    }
+
+    @Override
+    protected void queued(ProgrammingJob job) {
+        publish(job, 0, null, null);
+    }
+
+    @Override
+    protected void run(ProgrammingJob job) {
+        job.start();
+        publish(job, 0, null, null);
+        CvCache current = cache;
+        if (current != null && job.getAddress() != null) {
+            identify(job, current);
+        } else {
+            step(job);
+        }
+    }
+
+    /**
+     * Read CV8 and CV7 to find which decoder the job is talking to, then
+     * start its CVs.
+     */
+    private void identify(ProgrammingJob job, CvCache current) {
+        ProgrammerSession session = sessions.get();
+        if (session == null) {
+            finishCurrent(job, ProgrammingJob.State.FAILED, "No programmer available on connection " + connectionId);
+            return;
+        }
+        int address = job.getAddress();
+        session.readCvAsync(CvCache.CV_MANUFACTURER)
+                .thenCompose(manufacturer -> session.readCvAsync(CvCache.CV_VERSION)
+                        .thenApply(version -> new CvCache.DecoderKey(connectionId, address, manufacturer, version)))
+                .whenComplete((decoder, error) -> dispatch(() -> identified(job, current, decoder, error)));
+    }
+
+    private void identified(ProgrammingJob job, CvCache current, CvCache.DecoderKey decoder, Throwable error) {
+        if (error != null) {
+            finishCurrent(job, ProgrammingJob.State.FAILED, "Could not identify decoder: " + message(error));
+            return;
+        }
+        current.identify(decoder);
+        CvCache.DecoderKey expected = job.getExpectedDecoder();
+        if (expected != null && !expected.equals(decoder)) {
+            finishCurrent(job, ProgrammingJob.State.FAILED, "Decoder changed: expected " + expected + ", found " + decoder);
+            return;
+        }
+        job.setDecoder(decoder);
+        step(job);
+    }
+
+    /**
+     * Start the job's next CV, or finish the job if there is none.
+     */
+    private void step(ProgrammingJob job) {
+        if (job.isCancelRequested()) {
+            finishCurrent(job, ProgrammingJob.State.CANCELLED, null);
+            return;
+        }
+        CvCache current = cache;
+        CvCache.DecoderKey decoder = job.getDecoder();
+        if (current != null && decoder != null && job.getMode() == ProgrammingJob.Mode.READ) {
+            while (job.hasNext()) {
+                int cv = job.currentCv();
+                Integer value = current.get(decoder, cv);
+                if (value == null) {
+                    break;
+                }
+                job.recordCacheHit(cv, value);
+                publish(job, cv, value, null);
+            }
+        }
+        if (!job.hasNext()) {
+            finishCurrent(job, ProgrammingJob.State.COMPLETED, null);
+            return;
+        }
+        ProgrammerSession session = sessions.get();
+        if (session == null) {
+            finishCurrent(job, ProgrammingJob.State.FAILED, "No programmer available on connection " + connectionId);
+            return;
+        }
+        int cv = job.currentCv();
+        if (job.getMode() != ProgrammingJob.Mode.WRITE) {
+            session.readCvAsync(cv).whenComplete((value, error) -> dispatch(() -> cvDone(job, cv, value, error)));
+        } else {
+            int value = job.currentValue();
+            session.writeCvAsync(cv, value).whenComplete((ignored, error) -> dispatch(() -> cvDone(job, cv, value, error)));
+        }
+    }
+
+    private void cvDone(ProgrammingJob job, int cv, Integer value, Throwable error) {
+        updateCache(job, cv, value, error);
+        if (error == null) {
+            job.recordResult(cv, value);
+            publish(job, cv, value, null);
+        } else {
+            String message = message(error);
+            job.recordFailure(cv, message);
+            publish(job, cv, null, message);
+        }
+        step(job);
+    }
+
+    private void updateCache(ProgrammingJob job, int cv, Integer value, Throwable error) {
+        CvCache current = cache;
+        CvCache.DecoderKey decoder = job.getDecoder();
+        if (current == null || decoder == null) {
+            return;
+        }
+        if (job.getMode() != ProgrammingJob.Mode.WRITE) {
+            if (error == null) {
+                current.put(decoder, cv, value);
+            }
+        } else if (error != null) {
+            // the decoder may or may not have taken the value
+            current.invalidate(decoder, cv);
+        } else if (cv == CvCache.CV_MANUFACTURER) {
+            // writing CV8 resets most decoders to factory defaults
+            current.invalidateDecoder(decoder);
+        } else {
+            current.putUnverified(decoder, cv, value);
+        }
+    }
+
+    @Override
+    protected void finish(ProgrammingJob job, ProgrammingJob.State state, String error) {
+        job.finish(state, error);
+        publish(job, 0, null, error);
+    }
+
+    @Override
+    protected void finished(ProgrammingJob job) {
+        saveCache();
+    }
+
+    @Override
+    protected void cancelJob(ProgrammingJob job) {
+        job.cancel();
+    }
+
+    @Override
+    protected boolean isFinished(ProgrammingJob job) {
+        return job.getState().isFinished();
+    }
+
+    private void saveCache() {
+        CvCache current = cache;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.save();
+        } catch (IOException e) {
+            System.err.println("Error saving CV cache: " + e.getMessage());
+        }
+    }
+
+    private void publish(ProgrammingJob job, int cv, Integer value, String error) {
+        if (eventBus != null && eventBus.hasListeners(DccEventType.PROGRAMMING_PROGRESS)) {
+            eventBus.publish(new ProgrammingEvent(job, cv, value, error));
+        }
+    }
+
+    static String message(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage() != null ? cause.getMessage() : cause.toString();
+    }
+}
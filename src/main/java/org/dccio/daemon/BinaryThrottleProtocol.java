@@ -0,0 +1,255 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.dccio.core.ThrottleSession;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-layout binary frames for throttle traffic, spoken on WebSocket
+ * connections that negotiate the {@value #SUBPROTOCOL} subprotocol.
+ * <p>
+ * All numbers are unsigned and big-endian. A locomotive is a 16-bit
+ * {@code loco} field: the address in the low 15 bits, and the top bit set
+ * for a long address. Speeds are one byte, 0 (stop) to 255 (full speed).
+ * <pre>
+ * client to server, 6 bytes each:
+ *   SPEED     0x01 seq:u16 loco:u16 speed:u8
+ *   DIRECTION 0x02 seq:u16 loco:u16 forward:u8 (0 reverse, 1 forward)
+ *   FUNCTION  0x03 seq:u16 loco:u16 function:u8 (bit 7 on, bits 0-6 number)
+ *
+ * server to client:
+ *   ACK       0x81 seq:u16 status:u16                        (5 bytes)
+ *   PATCH     0x82 count:u16 then count records of
+ *             loco:u16 flags:u8 [len:u8 connection:utf8 * len] [speed:u8]
+ *             [n:u8 function:u8 * n]
+ * </pre>
+ * The {@code seq} of a request is echoed in its ACK; the status is 200 if
+ * something changed, 204 if the request was accepted but changed nothing,
+ * and otherwise the code a JSON request would have failed with (400, 404,
+ * 409 or 500). PATCH records carry what the JSON {@code throttle},
+ * {@code consist} and {@code throttles} patches carry, with these flags:
+ * <pre>
+ *   0x01 speed follows     0x02 direction given     0x04 forward
+ *   0x08 functions follow  0x10 opened              0x20 released
+ *   0x40 connection follows
+ * </pre>
+ * The connection id tells apart locomotives with the same address on
+ * different connections; it is sent whenever the JSON patch names one.
+ * Functions use the same byte as in FUNCTION requests. Fields only JSON
+ * patches carry (throttle ids, momentum) are not sent; every other message
+ * on the connection is JSON as usual.
+ */
+final class BinaryThrottleProtocol {
+
+    static final String SUBPROTOCOL = "dccio.throttle.v1";
+
+    static final int SPEED = 0x01;
+    static final int DIRECTION = 0x02;
+    static final int FUNCTION = 0x03;
+    static final int ACK = 0x81;
+    static final int PATCH = 0x82;
+
+    static final int REQUEST_LENGTH = 6;
+    static final int ACK_LENGTH = 5;
+
+    static final int LONG_ADDRESS = 0x8000;
+    static final int FUNCTION_ON = 0x80;
+
+    static final int HAS_SPEED = 0x01;
+    static final int HAS_DIRECTION = 0x02;
+    static final int FORWARD = 0x04;
+    static final int HAS_FUNCTIONS = 0x08;
+    static final int OPENED = 0x10;
+    static final int RELEASED = 0x20;
+    static final int HAS_CONNECTION = 0x40;
+
+    static final int CHANGED = 200;
+    static final int UNCHANGED = 204;
+
+    private static final int MAX_SPEED = 255;
+    private static final int MAX_CONNECTION_LENGTH = 255;
+
+    private BinaryThrottleProtocol() {
+    }
+
+    /**
+     * @return the {@code seq} of a request frame, or 0 if it is too short to
+     *         have one.
+     */
+    static int sequence(ByteBuffer frame) {
+        return frame.remaining() >= 3 ? frame.getShort(frame.position() + 1) & 0xFFFF : 0;
+    }
+
+    /**
+     * @return the throttle {@code post} data a request frame stands for
+     * @throws IllegalArgumentException if the frame is not a valid request
+     */
+    static JsonObject decode(ByteBuffer frame) {
+        if (frame.remaining() != REQUEST_LENGTH) {
+            throw new IllegalArgumentException("Binary requests are " + REQUEST_LENGTH + " bytes, not " + frame.remaining());
+        }
+        int start = frame.position();
+        int opcode = frame.get(start) & 0xFF;
+        int loco = frame.getShort(start + 3) & 0xFFFF;
+        int value = frame.get(start + 5) & 0xFF;
+        JsonObject data = new JsonObject();
+        data.addProperty("address", loco & ~LONG_ADDRESS);
+        data.addProperty("longAddress", (loco & LONG_ADDRESS) != 0);
+        switch (opcode) {
+            case SPEED:
+                data.addProperty("speed", speed(value));
+                break;
+            case DIRECTION:
+                if (value > 1) {
+                    throw new IllegalArgumentException("Direction must be 0 or 1");
+                }
+                data.addProperty("forward", value == 1);
+                break;
+            case FUNCTION: {
+                JsonObject functions = new JsonObject();
+                functions.addProperty(String.valueOf(value & ~FUNCTION_ON), (value & FUNCTION_ON) != 0);
+                data.add("functions", functions);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown binary opcode 0x" + Integer.toHexString(opcode));
+        }
+        return data;
+    }
+
+    static byte[] ack(int seq, int status) {
+        return ByteBuffer.allocate(ACK_LENGTH)
+                .put((byte) ACK)
+                .putShort((short) seq)
+                .putShort((short) status)
+                .array();
+    }
+
+    static float speed(int value) {
+        return value == MAX_SPEED ? 1f : value / (float) MAX_SPEED;
+    }
+
+    static int speedByte(float speed) {
+        return Math.max(0, Math.min(MAX_SPEED, Math.round(speed * MAX_SPEED)));
+    }
+
+    static int loco(int address, boolean longAddress) {
+        return (address & ~LONG_ADDRESS) | (longAddress ? LONG_ADDRESS : 0);
+    }
+
+    /**
+     * @return true if {@code message} is a throttle, consist or throttles
+     *         patch that {@link #encodePatch(JsonObject)} can send.
+     */
+    static boolean isPatch(JsonObject message) {
+        if (!message.has("type") || !message.has("method") || !message.has("data")
+                || !"patch".equals(message.get("method").getAsString())) {
+            return false;
+        }
+        String type = message.get("type").getAsString();
+        JsonElement data = message.get("data");
+        if ("throttles".equals(type) && data.isJsonArray()) {
+            for (JsonElement delta : data.getAsJsonArray()) {
+                if (!delta.isJsonObject() || !delta.getAsJsonObject().has("address")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return ("throttle".equals(type) || "consist".equals(type))
+                && data.isJsonObject() && data.getAsJsonObject().has("address");
+    }
+
+    /**
+     * @param message a patch for which {@link #isPatch(JsonObject)} holds
+     * @return the PATCH frame with one record per delta
+     */
+    static byte[] encodePatch(JsonObject message) {
+        List<JsonObject> deltas = new ArrayList<>();
+        JsonElement data = message.get("data");
+        if (data.isJsonArray()) {
+            JsonArray array = data.getAsJsonArray();
+            for (JsonElement delta : array) {
+                deltas.add(delta.getAsJsonObject());
+            }
+        } else {
+            deltas.add(data.getAsJsonObject());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(3 + deltas.size() * 4);
+        out.write(PATCH);
+        out.write(deltas.size() >> 8);
+        out.write(deltas.size());
+        for (JsonObject delta : deltas) {
+            writeRecord(out, delta);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, JsonObject delta) {
+        int loco = loco(delta.get("address").getAsInt(),
+                delta.has("longAddress") && delta.get("longAddress").getAsBoolean());
+        int flags = 0;
+        if (delta.has("speed")) {
+            flags |= HAS_SPEED;
+        }
+        if (delta.has("forward")) {
+            flags |= HAS_DIRECTION | (delta.get("forward").getAsBoolean() ? FORWARD : 0);
+        }
+        BitSet mask = new BitSet();
+        BitSet states = new BitSet();
+        if (delta.has("functions") && delta.get("functions").isJsonObject()) {
+            for (Map.Entry<String, JsonElement> function : delta.getAsJsonObject("functions").entrySet()) {
+                int number = Integer.parseInt(function.getKey());
+                mask.set(number);
+                states.set(number, function.getValue().getAsBoolean());
+            }
+        } else if (delta.has("functionMask")) {
+            mask = JsonThrottleHandler.parseFunctionBits(delta.get("functionMask").getAsString());
+            if (delta.has("functionBits")) {
+                states = JsonThrottleHandler.parseFunctionBits(delta.get("functionBits").getAsString());
+            }
+        }
+        mask.clear(ThrottleSession.MAX_FUNCTION + 1, Math.max(mask.length(), ThrottleSession.MAX_FUNCTION + 1));
+        if (!mask.isEmpty()) {
+            flags |= HAS_FUNCTIONS;
+        }
+        if (delta.has("opened") && delta.get("opened").getAsBoolean()) {
+            flags |= OPENED;
+        }
+        if (delta.has("released") && delta.get("released").getAsBoolean()) {
+            flags |= RELEASED;
+        }
+        byte[] connection = null;
+        if (delta.has("connectionId") && !delta.get("connectionId").isJsonNull()) {
+            connection = delta.get("connectionId").getAsString().getBytes(StandardCharsets.UTF_8);
+            if (connection.length <= MAX_CONNECTION_LENGTH) {
+                flags |= HAS_CONNECTION;
+            }
+        }
+        out.write(loco >> 8);
+        out.write(loco);
+        out.write(flags);
+        if ((flags & HAS_CONNECTION) != 0) {
+            out.write(connection.length);
+            out.write(connection, 0, connection.length);
+        }
+        if ((flags & HAS_SPEED) != 0) {
+            out.write(speedByte(delta.get("speed").getAsFloat()));
+        }
+        if ((flags & HAS_FUNCTIONS) != 0) {
+            out.write(mask.cardinality());
+            for (int f = mask.nextSetBit(0); f >= 0; f = mask.nextSetBit(f + 1)) {
+                out.write(f | (states.get(f) ? FUNCTION_ON : 0));
+            }
+        }
+    }
+}
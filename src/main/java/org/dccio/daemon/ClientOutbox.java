@@ -0,0 +1,538 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of messages waiting to be written to one WebSocket client.
+ * <p>
+ * Messages are handed to the socket only while it has nothing buffered, so
+ * a client that cannot keep up builds its backlog here, where it can be
+ * shrunk, instead of in the socket's unbounded write queue. A patch for a
+ * throttle or consist is merged into a patch for the same one that is still
+ * waiting (a batch of throttle patches into a waiting batch), and a status
+ * patch for one connection replaces one for the same connection; the merged
+ * patch moves to the back of the queue so that it is never sent ahead of a
+ * message published before it. A waiting patch is only merged while it is
+ * the newest message queued for every throttle it carries; moving it behind
+ * a newer one for the same throttle would resend the older state last.
+ * Responses and other messages are sent as
+ * they are, in order. On a {@link BinaryThrottleProtocol} connection, throttle
+ * patches are queued as JSON like any other, so they can still be merged, and
+ * only encoded as binary frames when they are sent.
+ * <p>
+ * A client whose queue stays above the high-water mark for longer than the
+ * grace period, or reaches the capacity, is evicted: its queue is dropped and
+ * the socket is closed. Nothing is dropped from a client that stays.
+ */
+final class ClientOutbox {
+
+    /**
+     * The client's end of the connection.
+     */
+    interface Socket {
+        /**
+         * @return true while earlier messages are still waiting to be written
+         */
+        boolean isBusy();
+
+        /**
+         * @param binary whether {@code payload} is a binary frame rather
+         *               than UTF-8 JSON
+         */
+        void send(byte[] payload, boolean binary);
+
+        void evict(String reason);
+    }
+
+    /**
+     * Point-in-time counters of one outbox.
+     */
+    static final class Stats {
+        private final String clientId;
+        private final int depth;
+        private final int maxDepth;
+        private final long sent;
+        private final long conflated;
+        private final long dropped;
+        private final boolean evicted;
+        private final boolean binary;
+
+        Stats(String clientId, int depth, int maxDepth, long sent, long conflated, long dropped, boolean evicted,
+              boolean binary) {
+            this.clientId = clientId;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.sent = sent;
+            this.conflated = conflated;
+            this.dropped = dropped;
+            this.evicted = evicted;
+            this.binary = binary;
+        }
+
+        String getClientId() {
+            return clientId;
+        }
+
+        /**
+         * @return number of messages waiting to be sent.
+         */
+        int getDepth() {
+            return depth;
+        }
+
+        int getMaxDepth() {
+            return maxDepth;
+        }
+
+        long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return number of patches merged into one still waiting.
+         */
+        long getConflated() {
+            return conflated;
+        }
+
+        /**
+         * @return number of messages discarded when the client was evicted.
+         */
+        long getDropped() {
+            return dropped;
+        }
+
+        boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * @return true if the client negotiated binary throttle frames.
+         */
+        boolean isBinary() {
+            return binary;
+        }
+    }
+
+    private static final class Entry {
+        JsonObject message; // null for pre-serialized responses
+        byte[] payload;     // null until needed after a merge
+        final String key;
+        final boolean binary;
+        Set<String> throttles; // ids of the throttles and consists it patches
+
+        Entry(JsonObject message, byte[] payload, String key, boolean binary, Set<String> throttles) {
+            this.message = message;
+            this.payload = payload;
+            this.key = key;
+            this.binary = binary;
+            this.throttles = throttles;
+        }
+    }
+
+    // messages handed to the socket per flush once it has caught up
+    static final int MAX_BATCH = 64;
+
+    private final String clientId;
+    private final Socket socket;
+    private final int highWater;
+    private final int capacity;
+    private final long evictAfterNanos;
+    private final boolean binary;
+
+    // guarded by "this"
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Map<String, Entry> byKey = new HashMap<>();
+    // newest entry patching each throttle or consist. Key: throttle id
+    private final Map<String, Entry> newestFor = new HashMap<>();
+    private int maxDepth;
+    private long sent;
+    private long conflated;
+    private long dropped;
+    private long overSince;
+    private boolean evicted;
+
+    // only one thread hands messages to the socket at a time, in queue order
+    private final Object sendLock = new Object();
+
+    /**
+     * @param highWater    queue depth above which the grace period starts
+     * @param capacity     queue depth at which the client is evicted at once
+     * @param evictAfterMs how long the queue may stay above the high-water mark
+     */
+    ClientOutbox(String clientId, Socket socket, int highWater, int capacity, long evictAfterMs) {
+        this(clientId, socket, highWater, capacity, evictAfterMs, false);
+    }
+
+    /**
+     * @param binary whether the client negotiated
+     *               {@link BinaryThrottleProtocol} frames for throttle patches
+     */
+    ClientOutbox(String clientId, Socket socket, int highWater, int capacity, long evictAfterMs, boolean binary) {
+        if (highWater <= 0 || capacity < highWater) {
+            throw new IllegalArgumentException("Need 0 < high-water mark <= capacity");
+        }
+        this.clientId = clientId;
+        this.socket = socket;
+        this.highWater = highWater;
+        this.capacity = capacity;
+        this.evictAfterNanos = TimeUnit.MILLISECONDS.toNanos(evictAfterMs);
+        this.binary = binary;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Queue a broadcast, merging it into a waiting patch it supersedes, and
+     * send what the socket will take now.
+     *
+     * @param utf8 {@code message} serialized, shared between clients
+     */
+    void offer(JsonObject message, byte[] utf8) {
+        offer(message, utf8, false);
+    }
+
+    /**
+     * @param payload {@code message} as UTF-8 JSON or, if {@code binary}, as
+     *                a {@link BinaryThrottleProtocol} frame
+     */
+    void offer(JsonObject message, byte[] payload, boolean binary) {
+        String key = key(message);
+        Set<String> throttles = throttles(message);
+        synchronized (this) {
+            if (evicted) {
+                return;
+            }
+            Entry waiting = key != null ? byKey.get(key) : null;
+            if (waiting != null && isNewestForItsThrottles(waiting)) {
+                JsonObject merged = merge(waiting.message, message);
+                if (merged != null) {
+                    queue.remove(waiting);
+                    waiting.message = merged;
+                    waiting.payload = null;
+                    if (!waiting.throttles.containsAll(throttles)) {
+                        Set<String> union = new HashSet<>(waiting.throttles);
+                        union.addAll(throttles);
+                        waiting.throttles = union;
+                    }
+                    index(waiting);
+                    queue.addLast(waiting);
+                    conflated++;
+                    return;
+                }
+            }
+            enqueue(new Entry(message, payload, key, binary, throttles));
+        }
+        flush(System.nanoTime());
+    }
+
+    /**
+     * Queue a response to the client's own request, and send what the
+     * socket will take now.
+     */
+    void offerResponse(byte[] utf8) {
+        offerResponse(utf8, false);
+    }
+
+    void offerResponse(byte[] payload, boolean binary) {
+        synchronized (this) {
+            if (evicted) {
+                return;
+            }
+            enqueue(new Entry(null, payload, null, binary, Collections.emptySet()));
+        }
+        flush(System.nanoTime());
+    }
+
+    private void enqueue(Entry entry) {
+        queue.addLast(entry);
+        if (entry.key != null) {
+            byKey.put(entry.key, entry);
+        }
+        index(entry);
+        maxDepth = Math.max(maxDepth, queue.size());
+    }
+
+    private void index(Entry entry) {
+        for (String throttleId : entry.throttles) {
+            newestFor.put(throttleId, entry);
+        }
+    }
+
+    /**
+     * @return true if nothing queued after {@code entry} patches any of its
+     *         throttles.
+     */
+    private boolean isNewestForItsThrottles(Entry entry) {
+        for (String throttleId : entry.throttles) {
+            if (newestFor.get(throttleId) != entry) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send what the socket will take, then evict the client if it has been
+     * over the high-water mark for too long. Called on each offer and on a
+     * periodic tick.
+     */
+    void flush(long now) {
+        synchronized (sendLock) {
+            if (!socket.isBusy()) {
+                for (int i = 0; i < MAX_BATCH; i++) {
+                    Entry entry = poll();
+                    if (entry == null) {
+                        break;
+                    }
+                    socket.send(entry.payload, entry.binary);
+                }
+            }
+        }
+        String reason = null;
+        synchronized (this) {
+            int depth = queue.size();
+            if (evicted || depth <= highWater) {
+                overSince = 0;
+                return;
+            }
+            if (depth >= capacity) {
+                reason = "Outbound queue full";
+            } else if (overSince == 0) {
+                overSince = now;
+            } else if (now - overSince > evictAfterNanos) {
+                reason = "Too slow to keep up";
+            }
+            if (reason != null) {
+                evicted = true;
+                discard();
+            }
+        }
+        if (reason != null) {
+            System.err.println("Evicting WebSocket client " + clientId + ": " + reason);
+            socket.evict(reason);
+        }
+    }
+
+    /**
+     * @return the next entry, with its payload, or null if there is none
+     */
+    private synchronized Entry poll() {
+        Entry entry = queue.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        if (entry.key != null) {
+            byKey.remove(entry.key, entry);
+        }
+        for (String throttleId : entry.throttles) {
+            newestFor.remove(throttleId, entry);
+        }
+        sent++;
+        if (entry.payload == null) {
+            entry.payload = entry.binary
+                    ? BinaryThrottleProtocol.encodePatch(entry.message)
+                    : entry.message.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop everything still waiting, e.g. once the client has gone.
+     */
+    synchronized void close() {
+        evicted = true;
+        discard();
+    }
+
+    private void discard() {
+        dropped += queue.size();
+        queue.clear();
+        byKey.clear();
+        newestFor.clear();
+    }
+
+    synchronized Stats stats() {
+        return new Stats(clientId, queue.size(), maxDepth, sent, conflated, dropped, evicted, binary);
+    }
+
+    /**
+     * @return the key of the state {@code message} patches, or null if it
+     *         can never be superseded.
+     */
+    static String key(JsonObject message) {
+        if (!message.has("method") || !"patch".equals(message.get("method").getAsString()) || !message.has("data")) {
+            return null;
+        }
+        String type = message.get("type").getAsString();
+        if ("throttles".equals(type) && message.get("data").isJsonArray()) {
+            for (JsonElement delta : message.getAsJsonArray("data")) {
+                if (!isState(delta.getAsJsonObject())) {
+                    return null;
+                }
+            }
+            return type;
+        }
+        if (!message.get("data").isJsonObject()) {
+            return null;
+        }
+        JsonObject data = message.getAsJsonObject("data");
+        switch (type) {
+            case "throttle":
+            case "consist":
+                return isState(data) ? type + ":" + data.get("throttle").getAsString() : null;
+            case "status": {
+                JsonArray connections = data.has("connections") ? data.getAsJsonArray("connections") : null;
+                if (connections == null || connections.size() != 1) {
+                    return null;
+                }
+                return "status:" + connections.get(0).getAsJsonObject().get("id").getAsString();
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the ids of the throttles and consists {@code message} patches,
+     *         whether or not it can be merged.
+     */
+    static Set<String> throttles(JsonObject message) {
+        if (!message.has("method") || !"patch".equals(message.get("method").getAsString()) || !message.has("data")) {
+            return Collections.emptySet();
+        }
+        JsonElement data = message.get("data");
+        if (data.isJsonObject()) {
+            JsonObject delta = data.getAsJsonObject();
+            return delta.has("throttle")
+                    ? Collections.singleton(delta.get("throttle").getAsString()) : Collections.emptySet();
+        }
+        if (!data.isJsonArray()) {
+            return Collections.emptySet();
+        }
+        Set<String> throttles = new HashSet<>();
+        for (JsonElement element : data.getAsJsonArray()) {
+            if (element.isJsonObject() && element.getAsJsonObject().has("throttle")) {
+                throttles.add(element.getAsJsonObject().get("throttle").getAsString());
+            }
+        }
+        return throttles;
+    }
+
+    /**
+     * @return true if {@code delta} only changes a throttle's state; opening
+     *         and closing are events that must each be seen.
+     */
+    private static boolean isState(JsonObject delta) {
+        return delta.has("throttle") && !delta.has("opened") && !delta.has("released");
+    }
+
+    /**
+     * @return a patch with the effect of {@code older} followed by
+     *         {@code newer}, or null if they cannot be combined. Neither is
+     *         modified.
+     */
+    static JsonObject merge(JsonObject older, JsonObject newer) {
+        String type = newer.get("type").getAsString();
+        if ("status".equals(type)) {
+            // carries the connection's whole state
+            return newer;
+        }
+        JsonObject merged = newer.deepCopy();
+        if ("throttles".equals(type)) {
+            // one delta per throttle, in the order they were first seen
+            Map<String, JsonObject> deltas = new LinkedHashMap<>();
+            for (JsonElement delta : older.getAsJsonArray("data")) {
+                deltas.put(delta.getAsJsonObject().get("throttle").getAsString(), delta.getAsJsonObject());
+            }
+            for (JsonElement element : newer.getAsJsonArray("data")) {
+                JsonObject delta = element.getAsJsonObject();
+                String throttleId = delta.get("throttle").getAsString();
+                JsonObject waiting = deltas.get(throttleId);
+                JsonObject data = waiting != null ? mergeData(waiting, delta) : delta;
+                if (data == null) {
+                    return null;
+                }
+                deltas.put(throttleId, data);
+            }
+            JsonArray data = new JsonArray();
+            for (JsonObject delta : deltas.values()) {
+                data.add(delta);
+            }
+            merged.add("data", data);
+            return merged;
+        }
+        JsonObject data = mergeData(older.getAsJsonObject("data"), newer.getAsJsonObject("data"));
+        if (data == null) {
+            return null;
+        }
+        merged.add("data", data);
+        return merged;
+    }
+
+    /**
+     * @return the fields of {@code older} updated with those of
+     *         {@code newer}, or null if their function changes are given in
+     *         different forms.
+     */
+    private static JsonObject mergeData(JsonObject older, JsonObject newer) {
+        if (older.has("functions") && newer.has("functionMask")
+                || older.has("functionMask") && newer.has("functions")) {
+            return null;
+        }
+        JsonObject data = older.deepCopy();
+        for (Map.Entry<String, JsonElement> field : newer.entrySet()) {
+            String name = field.getKey();
+            if ("functions".equals(name) && older.has("functions")) {
+                JsonObject functions = data.getAsJsonObject("functions");
+                for (Map.Entry<String, JsonElement> function : field.getValue().getAsJsonObject().entrySet()) {
+                    functions.add(function.getKey(), function.getValue().deepCopy());
+                }
+            } else if ("functionMask".equals(name) && older.has("functionMask")) {
+                mergeFunctionBits(data, newer);
+            } else if (!"functionBits".equals(name) || !older.has("functionMask")) {
+                data.add(name, field.getValue().deepCopy());
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Combine the hex bitmask function changes of {@code newer} into
+     * {@code data}: functions in either mask change, to the newer state where
+     * both have one.
+     */
+    private static void mergeFunctionBits(JsonObject data, JsonObject newer) {
+        BitSet mask = JsonThrottleHandler.parseFunctionBits(data.get("functionMask").getAsString());
+        BitSet bits = data.has("functionBits")
+                ? JsonThrottleHandler.parseFunctionBits(data.get("functionBits").getAsString()) : new BitSet();
+        BitSet newMask = JsonThrottleHandler.parseFunctionBits(newer.get("functionMask").getAsString());
+        BitSet newBits = newer.has("functionBits")
+                ? JsonThrottleHandler.parseFunctionBits(newer.get("functionBits").getAsString()) : new BitSet();
+        bits.andNot(newMask);
+        newBits.and(newMask);
+        bits.or(newBits);
+        mask.or(newMask);
+        data.addProperty("functionMask", JsonThrottleHandler.formatFunctionBits(mask));
+        data.addProperty("functionBits", JsonThrottleHandler.formatFunctionBits(bits));
+    }
+}
@@ -0,0 +1,355 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topics each WebSocket client has subscribed to, and the routing of
+ * broadcasts by them.
+ * <p>
+ * A topic names a broadcast type and may narrow it to one locomotive address
+ * and one connection id. A client that has never subscribed receives every
+ * broadcast except console frames, as before subscriptions existed; once it
+ * subscribes it receives only broadcasts matching one of its topics. The
+ * entries of a {@code throttles} batch and the connections of a
+ * {@code status} patch are matched one by one, and a client is sent only
+ * those it wants.
+ */
+final class ClientSubscriptions {
+
+    static final String CONSOLE = "console";
+
+    // broadcast types a topic may name; entries of a "throttles" batch are
+    // matched as "throttle" (or "consist")
+    static final Set<String> TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "status", "throttle", "consist", "accessories", "programming", CONSOLE)));
+
+    /**
+     * Called after any client's topics have changed.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void subscriptionsChanged();
+    }
+
+    /**
+     * One filter: a type (or any type but console), optionally narrowed to
+     * one address and one connection.
+     */
+    static final class Topic {
+        private final String type;
+        private final Integer address;
+        private final String connectionId;
+
+        Topic(String type, Integer address, String connectionId) {
+            this.type = type;
+            this.address = address;
+            this.connectionId = connectionId;
+        }
+
+        /**
+         * @return true if a broadcast of {@code type} carrying
+         *         {@code connectionId} and {@code address} (null where it
+         *         has none) matches this topic.
+         */
+        boolean matches(String type, String connectionId, Integer address) {
+            return typeMatches(type)
+                    && (this.address == null || this.address.equals(address))
+                    && (this.connectionId == null || this.connectionId.equals(connectionId));
+        }
+
+        /**
+         * @return true if some broadcast of {@code type} could match, where
+         *         a null {@code connectionId} or {@code address} stands for
+         *         any.
+         */
+        boolean mayMatch(String type, String connectionId, Integer address) {
+            return typeMatches(type)
+                    && (this.address == null || address == null || this.address.equals(address))
+                    && (this.connectionId == null || connectionId == null || this.connectionId.equals(connectionId));
+        }
+
+        private boolean typeMatches(String type) {
+            return this.type == null ? !CONSOLE.equals(type) : this.type.equals(type);
+        }
+
+        JsonObject toJson() {
+            JsonObject obj = new JsonObject();
+            if (type != null) {
+                obj.addProperty("type", type);
+            }
+            if (address != null) {
+                obj.addProperty("address", address);
+            }
+            if (connectionId != null) {
+                obj.addProperty("connectionId", connectionId);
+            }
+            return obj;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Topic)) {
+                return false;
+            }
+            Topic other = (Topic) o;
+            return Objects.equals(type, other.type) && Objects.equals(address, other.address)
+                    && Objects.equals(connectionId, other.connectionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, address, connectionId);
+        }
+    }
+
+    private final Map<String, Set<Topic>> topics = new ConcurrentHashMap<>();
+    private volatile Listener listener;
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Read the {@code topics} of a subscribe or unsubscribe request. Each
+     * may give {@code type}, {@code address} or {@code addresses}, and
+     * {@code connectionId} or {@code connectionIds}; lists stand for one
+     * topic per value.
+     *
+     * @throws IllegalArgumentException if a topic is malformed
+     */
+    static List<Topic> parse(JsonObject data) {
+        if (!data.has("topics") || !data.get("topics").isJsonArray()) {
+            throw new IllegalArgumentException("Field 'topics' must be an array");
+        }
+        List<Topic> result = new ArrayList<>();
+        for (JsonElement element : data.getAsJsonArray("topics")) {
+            if (!element.isJsonObject()) {
+                throw new IllegalArgumentException("Each topic must be an object");
+            }
+            JsonObject topic = element.getAsJsonObject();
+            String type = topic.has("type") ? topic.get("type").getAsString() : null;
+            if ("throttles".equals(type)) {
+                type = "throttle";
+            }
+            if (type != null && !TYPES.contains(type)) {
+                throw new IllegalArgumentException("Unknown topic type '" + type + "'");
+            }
+            List<Integer> addresses = new ArrayList<>();
+            if (topic.has("address")) {
+                addresses.add(topic.get("address").getAsInt());
+            }
+            if (topic.has("addresses")) {
+                for (JsonElement address : topic.getAsJsonArray("addresses")) {
+                    addresses.add(address.getAsInt());
+                }
+            }
+            if (addresses.isEmpty()) {
+                addresses.add(null);
+            }
+            List<String> connectionIds = new ArrayList<>();
+            if (topic.has("connectionId")) {
+                connectionIds.add(topic.get("connectionId").getAsString());
+            }
+            if (topic.has("connectionIds")) {
+                for (JsonElement connectionId : topic.getAsJsonArray("connectionIds")) {
+                    connectionIds.add(connectionId.getAsString());
+                }
+            }
+            if (connectionIds.isEmpty()) {
+                connectionIds.add(null);
+            }
+            for (Integer address : addresses) {
+                for (String connectionId : connectionIds) {
+                    result.add(new Topic(type, address, connectionId));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all of the client's topics after adding {@code added}.
+     */
+    Set<Topic> subscribe(String clientId, Collection<Topic> added) {
+        Set<Topic> result = topics.compute(clientId, (id, old) -> {
+            Set<Topic> updated = old == null ? new LinkedHashSet<>() : new LinkedHashSet<>(old);
+            updated.addAll(added);
+            return Collections.unmodifiableSet(updated);
+        });
+        changed();
+        return result;
+    }
+
+    /**
+     * @param removed the topics to drop, or null to drop them all; the
+     *                client then receives no broadcasts until it subscribes
+     *                again
+     * @return the client's remaining topics.
+     */
+    Set<Topic> unsubscribe(String clientId, Collection<Topic> removed) {
+        Set<Topic> result = topics.compute(clientId, (id, old) -> {
+            if (removed == null || old == null) {
+                return Collections.emptySet();
+            }
+            Set<Topic> updated = new LinkedHashSet<>(old);
+            updated.removeAll(removed);
+            return Collections.unmodifiableSet(updated);
+        });
+        changed();
+        return result;
+    }
+
+    /**
+     * Forget a client that has gone away.
+     */
+    void remove(String clientId) {
+        if (topics.remove(clientId) != null) {
+            changed();
+        }
+    }
+
+    private void changed() {
+        Listener l = listener;
+        if (l != null) {
+            l.subscriptionsChanged();
+        }
+    }
+
+    /**
+     * @return the client's topics, or null if it has never subscribed.
+     */
+    Set<Topic> getTopics(String clientId) {
+        return topics.get(clientId);
+    }
+
+    /**
+     * @return true if some client has a topic naming {@code type}; clients
+     *         that never subscribed are not counted.
+     */
+    boolean isSubscribed(String type) {
+        for (Set<Topic> wanted : topics.values()) {
+            for (Topic topic : wanted) {
+                if (type.equals(topic.type)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if {@code clientId} may want a broadcast of {@code type};
+     *         a null {@code connectionId} or {@code address} stands for any.
+     */
+    boolean wants(String clientId, String type, String connectionId, Integer address) {
+        Set<Topic> wanted = topics.get(clientId);
+        if (wanted == null) {
+            return !CONSOLE.equals(type);
+        }
+        for (Topic topic : wanted) {
+            if (topic.mayMatch(type, connectionId, address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return what {@code clientId} should be sent of {@code message}:
+     *         the message itself, a copy holding only the batch entries or
+     *         connections it wants, or null for nothing.
+     */
+    JsonObject route(String clientId, JsonObject message) {
+        Set<Topic> wanted = topics.get(clientId);
+        String type = message.has("type") ? message.get("type").getAsString() : null;
+        if (wanted == null) {
+            return CONSOLE.equals(type) ? null : message;
+        }
+        JsonElement data = message.get("data");
+        if ("throttles".equals(type) && data != null && data.isJsonArray()) {
+            JsonArray entries = data.getAsJsonArray();
+            JsonArray kept = new JsonArray();
+            for (JsonElement entry : entries) {
+                JsonObject delta = entry.getAsJsonObject();
+                if (matches(wanted, delta.has("consist") ? "consist" : "throttle", delta)) {
+                    kept.add(delta);
+                }
+            }
+            return narrowed(message, entries.size(), kept, null);
+        }
+        if ("status".equals(type) && data != null && data.isJsonObject()
+                && data.getAsJsonObject().has("connections")
+                && data.getAsJsonObject().getAsJsonArray("connections").size() > 0) {
+            JsonArray connections = data.getAsJsonObject().getAsJsonArray("connections");
+            JsonArray kept = new JsonArray();
+            for (JsonElement connection : connections) {
+                String id = connection.getAsJsonObject().has("id")
+                        ? connection.getAsJsonObject().get("id").getAsString() : null;
+                if (matches(wanted, type, id, null)) {
+                    kept.add(connection);
+                }
+            }
+            return narrowed(message, connections.size(), kept, "connections");
+        }
+        JsonObject fields = data != null && data.isJsonObject() ? data.getAsJsonObject() : new JsonObject();
+        return matches(wanted, type, fields) ? message : null;
+    }
+
+    private static boolean matches(Set<Topic> wanted, String type, JsonObject fields) {
+        String connectionId = fields.has("connectionId") ? fields.get("connectionId").getAsString() : null;
+        Integer address = fields.has("address") && fields.get("address").isJsonPrimitive()
+                ? fields.get("address").getAsInt() : null;
+        return matches(wanted, type, connectionId, address);
+    }
+
+    private static boolean matches(Set<Topic> wanted, String type, String connectionId, Integer address) {
+        for (Topic topic : wanted) {
+            if (topic.matches(type, connectionId, address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param field the member of {@code data} holding the entries, or null
+     *              if {@code data} is the array itself
+     */
+    private static JsonObject narrowed(JsonObject message, int total, JsonArray kept, String field) {
+        if (kept.size() == total) {
+            return message;
+        }
+        if (kept.size() == 0) {
+            return null;
+        }
+        JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> member : message.entrySet()) {
+            copy.add(member.getKey(), member.getValue());
+        }
+        if (field == null) {
+            copy.add("data", kept);
+        } else {
+            JsonObject data = new JsonObject();
+            for (Map.Entry<String, JsonElement> member : message.getAsJsonObject("data").entrySet()) {
+                data.add(member.getKey(), member.getValue());
+            }
+            data.add(field, kept);
+            copy.add("data", data);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,77 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonObject;
+import org.dccio.core.events.DccEvent;
+import org.dccio.core.events.DccEventBus;
+import org.dccio.core.events.DccEventListener;
+import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.FrameEvent;
+import org.dccio.core.events.OverflowPolicy;
+import org.dccio.core.events.SubscriptionOptions;
+
+/**
+ * Forwards protocol frames to WebSocket clients as {@code console} patches.
+ * <p>
+ * The listener is only on the event bus while some client subscribes to
+ * console frames: connections do not even build frame events when no one
+ * listens for them.
+ */
+final class ConsoleForwarder implements DccEventListener, ClientSubscriptions.Listener {
+
+    private final DccEventBus eventBus;
+    private final JsonBroadcaster broadcaster;
+    private final ClientSubscriptions subscriptions;
+    private boolean enabled; // guarded by "this"
+
+    ConsoleForwarder(DccEventBus eventBus, JsonBroadcaster broadcaster, ClientSubscriptions subscriptions) {
+        this.eventBus = eventBus;
+        this.broadcaster = broadcaster;
+        this.subscriptions = subscriptions;
+    }
+
+    @Override
+    public synchronized void subscriptionsChanged() {
+        // read under the lock, so the last change always wins
+        boolean enabled = subscriptions.isSubscribed(ClientSubscriptions.CONSOLE);
+        if (enabled == this.enabled) {
+            return;
+        }
+        this.enabled = enabled;
+        if (enabled) {
+            // frames never supersede each other; a console that falls behind loses the oldest
+            eventBus.addListener(this, SubscriptionOptions.builder()
+                    .name("ws-console")
+                    .types(DccEventType.MESSAGE_SENT, DccEventType.MESSAGE_RECEIVED)
+                    .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                    .build());
+        } else {
+            eventBus.removeListener(this);
+        }
+    }
+
+    @Override
+    public void onEvent(DccEvent event) {
+        if (!(event instanceof FrameEvent)
+                || !broadcaster.hasSubscribers(ClientSubscriptions.CONSOLE, event.getConnectionId(), null)) {
+            return;
+        }
+        broadcaster.broadcast(patch((FrameEvent) event));
+    }
+
+    static JsonObject patch(FrameEvent frame) {
+        JsonObject data = new JsonObject();
+        data.addProperty("connectionId", frame.getConnectionId());
+        data.addProperty("direction", frame.isOutgoing() ? "out" : "in");
+        data.addProperty("message", frame.getMessage());
+        data.addProperty("hex", frame.getHex());
+        String decoded = frame.getDecoded();
+        if (decoded != null) {
+            data.addProperty("decoded", decoded);
+        }
+        JsonObject patch = new JsonObject();
+        patch.addProperty("type", ClientSubscriptions.CONSOLE);
+        patch.addProperty("method", "patch");
+        patch.add("data", data);
+        return patch;
+    }
+}
@@ -5,6 +5,12 @@ import org.dccio.core.ThrottleSession;
 import org.dccio.core.events.DccEvent;
 import org.dccio.core.events.DccEventType;
 import org.dccio.core.events.DccEventListener;
+import org.dccio.core.events.OpsModeEvent;
+import org.dccio.core.events.OverflowPolicy;
+import org.dccio.core.events.ProgrammingEvent;
+import org.dccio.core.events.SubscriptionOptions;
+import org.dccio.core.events.ThrottleEvent;
+import org.dccio.core.programming.CvCache;
 import org.dccio.daemon.JsonMessageHandler;
 import org.dccio.daemon.JsonWebSocketHandler;
 import org.dccio.daemon.JsonThrottleHandler;
@@ -12,7 +18,6 @@ import org.dccio.daemon.JsonAccessoriesHandler;
 import org.dccio.daemon.DccAccessoryService;
 import org.dccio.daemon.JsonStatusHandler;
 import com.google.gson.JsonObject;
-import jmri.Throttle;
 import java.io.IOException;
 
 /**
@@ -41,7 +46,7 @@ public final class DccIoDaemon {
                 // use default
             }
         }
-        DccIoServiceImpl service = new DccIoServiceImpl();
+        DccIoServiceImpl service = new DccIoServiceImpl(CvCache.open(CvCache.DEFAULT_FILE));
         
         // Start continuous device monitoring and auto-connect
         System.out.println("Starting device monitoring...");
@@ -49,10 +54,19 @@ public final class DccIoDaemon {
 
         JsonMessageHandler messageHandler = new JsonMessageHandler();
         JsonThrottleHandler throttleHandler = new JsonThrottleHandler(new DccThrottleService(service));
+        configureLeaseDurations(throttleHandler);
+        // -Ddccio.compactPatches=true: function changes in patches as hex bitmasks
+        boolean compactPatches = Boolean.getBoolean("dccio.compactPatches");
+        throttleHandler.setCompactPatches(compactPatches);
         messageHandler.registerTypeHandler("throttles", throttleHandler);
         messageHandler.registerTypeHandler("throttle", throttleHandler);
+        JsonConsistHandler consistHandler = new JsonConsistHandler(throttleHandler);
+        messageHandler.registerTypeHandler("consists", consistHandler);
+        messageHandler.registerTypeHandler("consist", consistHandler);
         JsonAccessoriesHandler accessoriesHandler = new JsonAccessoriesHandler(new DccAccessoryService(service));
         messageHandler.registerTypeHandler("accessories", accessoriesHandler);
+        JsonProgrammingHandler programmingHandler = new JsonProgrammingHandler(new DccProgrammingService(service));
+        messageHandler.registerTypeHandler("programming", programmingHandler);
         JsonStatusHandler statusHandler = new JsonStatusHandler(new JsonStatusHandler.StatusProvider() {
             @Override
             public java.util.Collection<org.dccio.core.CommandStationConnection> getConnections() {
@@ -75,19 +89,51 @@ public final class DccIoDaemon {
         JsonBroadcaster broadcaster = webSocketHandler.getBroadcaster();
         throttleHandler.setBroadcaster(broadcaster);
         accessoriesHandler.setBroadcaster(broadcaster);
+        programmingHandler.setBroadcaster(broadcaster);
         statusHandler.setBroadcaster(broadcaster);
         webSocketHandler.start();
         System.out.println("WebSocket JSON API listening on port " + websocketPort + " at /json");
         
-        // Subscribe to throttle events from the controller to broadcast via WebSocket
+        // Subscribe to throttle events from the controller to broadcast via WebSocket.
+        // Conflating: a queued update for the same loco/property is replaced by a newer one.
         DccThrottleService throttleService = new DccThrottleService(service);
-        service.getEventBus().addListener(new ThrottleEventBroadcaster(broadcaster, throttleService));
+        service.getEventBus().addListener(new ThrottleEventBroadcaster(broadcaster, throttleService, throttleHandler, compactPatches),
+                SubscriptionOptions.builder()
+                        .name("ws-throttles")
+                        .types(DccEventType.THROTTLE_UPDATED)
+                        .overflowPolicy(OverflowPolicy.CONFLATE)
+                        .build());
         
         // Subscribe to connection and power status changes to broadcast status patches
-        service.getEventBus().addListener(new StatusEventBroadcaster(statusHandler));
+        service.getEventBus().addListener(new StatusEventBroadcaster(statusHandler),
+                SubscriptionOptions.builder()
+                        .name("ws-status")
+                        .types(DccEventType.CONNECTION_STATE_CHANGED, DccEventType.POWER_CHANGED)
+                        .overflowPolicy(OverflowPolicy.CONFLATE)
+                        .build());
+
+        // Stream programming job progress; conflating keeps only the latest state of each job
+        service.getEventBus().addListener(event -> {
+                    if (event instanceof ProgrammingEvent) {
+                        programmingHandler.broadcastProgress((ProgrammingEvent) event);
+                    } else if (event instanceof OpsModeEvent) {
+                        programmingHandler.broadcastProgress((OpsModeEvent) event);
+                    }
+                },
+                SubscriptionOptions.builder()
+                        .name("ws-programming")
+                        .types(DccEventType.PROGRAMMING_PROGRESS)
+                        .overflowPolicy(OverflowPolicy.CONFLATE)
+                        .build());
         
+        // Console frames are only forwarded while a client subscribes to them
+        messageHandler.getSubscriptions().setListener(
+                new ConsoleForwarder(service.getEventBus(), broadcaster, messageHandler.getSubscriptions()));
+
         DccIoHttpServer httpServer = new DccIoHttpServer(service, port);
         httpServer.setStatusHandler(statusHandler);
+        httpServer.setThrottleHandler(throttleHandler);
+        httpServer.setWebSocketHandler(webSocketHandler);
         httpServer.start();
         System.out.println("DCC IO daemon listening on port " + port);
         System.out.println("Press Ctrl+C to stop the daemon");
@@ -123,48 +169,60 @@ public final class DccIoDaemon {
         }
     }
     
+    /**
+     * Apply speed/direction lease durations given as system properties of the
+     * form {@code -Ddccio.lease.<clientClass>=<ms>}, e.g. a longer lease for
+     * handhelds that only send on change.
+     */
+    private static void configureLeaseDurations(JsonThrottleHandler throttleHandler) {
+        String prefix = "dccio.lease.";
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                throttleHandler.getLeaseManager().setLeaseDuration(name.substring(prefix.length()),
+                        Long.parseLong(System.getProperty(name)));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring lease duration " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Listens to throttle events from the controller and broadcasts them via WebSocket.
      */
     private static class ThrottleEventBroadcaster implements DccEventListener {
         private final JsonBroadcaster broadcaster;
         private final DccThrottleService throttleService;
+        private final JsonThrottleHandler throttleHandler;
+        private final boolean compactPatches;
         
-        ThrottleEventBroadcaster(JsonBroadcaster broadcaster, DccThrottleService throttleService) {
+        ThrottleEventBroadcaster(JsonBroadcaster broadcaster, DccThrottleService throttleService,
+                                 JsonThrottleHandler throttleHandler, boolean compactPatches) {
             this.broadcaster = broadcaster;
             this.throttleService = throttleService;
+            this.throttleHandler = throttleHandler;
+            this.compactPatches = compactPatches;
         }
         
         @Override
         public void onEvent(DccEvent event) {
-            if (event.getType() != DccEventType.THROTTLE_UPDATED) {
+            if (!(event instanceof ThrottleEvent)) {
                 return;
             }
-            
-            var payload = event.getPayload();
-            String propertyName = (String) payload.get("property");
-            if (propertyName == null) {
-                return;
-            }
-            
-            // Get address and longAddress from payload
-            Object addressObj = payload.get("address");
-            Object longAddressObj = payload.get("longAddress");
-            if (addressObj == null) {
+            ThrottleEvent throttleEvent = (ThrottleEvent) event;
+            ThrottleEvent.Kind kind = throttleEvent.getKind();
+            if (kind != ThrottleEvent.Kind.SPEED && kind != ThrottleEvent.Kind.DIRECTION
+                    && kind != ThrottleEvent.Kind.FUNCTION) {
+                // Not a property we broadcast (e.g., Momentary functions)
                 return;
             }
-            
-            int address = ((Number) addressObj).intValue();
-            boolean longAddress = longAddressObj != null && ((Boolean) longAddressObj);
+            int address = throttleEvent.getAddress();
+            boolean longAddress = throttleEvent.isLongAddress();
             
             // Find the throttle session to get the throttle ID
-            ThrottleSession session = null;
-            for (ThrottleSession s : throttleService.getThrottles()) {
-                if (s.getAddress() == address && s.isLongAddress() == longAddress) {
-                    session = s;
-                    break;
-                }
-            }
+            ThrottleSession session = throttleService.findThrottle(address, longAddress);
             
             // If throttle doesn't exist, try to create it (controller opened a throttle)
             // Note: If the controller is already controlling this throttle, opening it will fail
@@ -188,6 +246,12 @@ public final class DccIoDaemon {
                 }
             }
             
+            // list/get answers must not report the state from before the event
+            throttleHandler.throttleChanged(session);
+            if (!broadcaster.hasSubscribers("throttle", session.getConnectionId(), address)) {
+                return;
+            }
+
             // Build throttle ID
             String throttleId = session.getConnectionId() + ":" + address + ":" + longAddress;
             
@@ -197,6 +261,7 @@ public final class DccIoDaemon {
             patch.addProperty("method", "patch");
             JsonObject data = new JsonObject();
             data.addProperty("throttle", throttleId);
+            data.addProperty("connectionId", session.getConnectionId());
             data.addProperty("address", address);
             data.addProperty("longAddress", longAddress);
             
@@ -205,41 +270,38 @@ public final class DccIoDaemon {
                 data.addProperty("opened", true);
             }
             
-            Object newValue = payload.get("newValue");
-            
-            // Map JMRI property names to WebSocket field names
-            if (propertyName.equals(Throttle.SPEEDSETTING)) {
-                if (newValue instanceof Number) {
-                    data.addProperty("speed", ((Number) newValue).floatValue());
-                    // Always include direction when speed is included
-                    data.addProperty("forward", session.getDirection());
-                }
-            } else if (propertyName.equals(Throttle.ISFORWARD)) {
-                if (newValue instanceof Boolean) {
-                    data.addProperty("forward", ((Boolean) newValue));
-                }
-            } else if (propertyName.startsWith("F") && !propertyName.endsWith("Momentary")) {
-                // Function change (F0, F1, F2, etc.) - send as functions object
-                String funcPart = propertyName.substring(1);
-                if (funcPart.matches("\\d+")) {
-                    try {
-                        int funcNum = Integer.parseInt(funcPart);
-                        if (newValue instanceof Boolean) {
-                            JsonObject functions = new JsonObject();
-                            functions.addProperty(String.valueOf(funcNum), ((Boolean) newValue));
-                            data.add("functions", functions);
-                        }
-                    } catch (NumberFormatException e) {
-                        // Not a valid function number, skip
-                        return;
+            // Map throttle properties to WebSocket field names; values of
+            // an unexpected type are left out, as JMRI could report them
+            Object newValue = throttleEvent.getNewValue();
+            switch (kind) {
+                case SPEED:
+                    if (newValue instanceof Number) {
+                        data.addProperty("speed", throttleEvent.getSpeed());
+                        // Always include direction when speed is included
+                        data.addProperty("forward", session.getDirection());
                     }
-                } else {
-                    // Not a function property we care about
-                    return;
-                }
-            } else {
-                // Not a property we broadcast (e.g., Momentary functions)
-                return;
+                    break;
+                case DIRECTION:
+                    if (newValue instanceof Boolean) {
+                        data.addProperty("forward", throttleEvent.getValue());
+                    }
+                    break;
+                default:
+                    if (!(newValue instanceof Boolean)) {
+                        break;
+                    }
+                    if (compactPatches) {
+                        java.util.BitSet mask = new java.util.BitSet();
+                        mask.set(throttleEvent.getFunction());
+                        data.addProperty("functionMask", JsonThrottleHandler.formatFunctionBits(mask));
+                        data.addProperty("functionBits", throttleEvent.getValue()
+                                ? JsonThrottleHandler.formatFunctionBits(mask) : "0");
+                        break;
+                    }
+                    JsonObject functions = new JsonObject();
+                    functions.addProperty(String.valueOf(throttleEvent.getFunction()), throttleEvent.getValue());
+                    data.add("functions", functions);
+                    break;
             }
             
             patch.add("data", data);
@@ -27,6 +27,8 @@ import java.util.StringJoiner;
  * <ul>
  *   <li>GET /health - daemon health</li>
  *   <li>GET /connections - list active connections</li>
+ *   <li>GET /api/metrics - internal queue and dispatch counters</li>
+ *   <li>POST /api/estop - emergency-stop every locomotive, or those on ?connectionId=</li>
    *   <li>POST /connections/create - create a connection with query params</li>
  * </ul>
  */
@@ -36,6 +38,8 @@ final class DccIoHttpServer {
     private final org.dccio.core.DeviceDiscoveryService discoveryService;
     private final HttpServer server;
     private JsonStatusHandler statusHandler;
+    private JsonThrottleHandler throttleHandler;
+    private JsonWebSocketHandler webSocketHandler;
 
     DccIoHttpServer(DccIoServiceImpl service, int port) throws IOException {
         this.service = service;
@@ -50,6 +54,8 @@ final class DccIoHttpServer {
         server.createContext("/api/systems", new SystemsHandler());
         server.createContext("/api/discover", new DiscoverHandler());
         server.createContext("/api/events", new EventsHandler()); // SSE endpoint for live events
+        server.createContext("/api/metrics", new MetricsHandler());
+        server.createContext("/api/estop", new EmergencyStopHandler());
         server.createContext("/static", new StaticFileHandler()); // Serve static files (CSS, JS)
         server.createContext("/", new WebUIHandler()); // Serve web UI
         server.setExecutor(null); // default executor
@@ -59,6 +65,14 @@ final class DccIoHttpServer {
         this.statusHandler = statusHandler;
     }
 
+    void setThrottleHandler(JsonThrottleHandler throttleHandler) {
+        this.throttleHandler = throttleHandler;
+    }
+
+    void setWebSocketHandler(JsonWebSocketHandler webSocketHandler) {
+        this.webSocketHandler = webSocketHandler;
+    }
+
     void start() {
         server.start();
     }
@@ -422,6 +436,7 @@ final class DccIoHttpServer {
             // Return list of supported system types
             String json = "{\"systems\":[" +
                     "{\"id\":\"xnet-elite\",\"name\":\"Hornby Elite / XpressNet\",\"connectionTypes\":[\"serial\",\"usb\"]}," +
+                    "{\"id\":\"xnet-simulator\",\"name\":\"XpressNet Simulator\",\"connectionTypes\":[\"simulator\"]}," +
                     "{\"id\":\"dccpp-ethernet\",\"name\":\"DCC++ (Ethernet)\",\"connectionTypes\":[\"network\"]}," +
                     "{\"id\":\"nce-serial\",\"name\":\"NCE PowerCab (Serial)\",\"connectionTypes\":[\"serial\",\"usb\"]}," +
                     "{\"id\":\"nce-usb\",\"name\":\"NCE PowerCab (USB)\",\"connectionTypes\":[\"usb\"]}" +
@@ -430,6 +445,171 @@ final class DccIoHttpServer {
         }
     }
 
+    private final class EmergencyStopHandler extends JsonHandler {
+        @Override
+        protected void handleJson(HttpExchange exchange) throws IOException {
+            long requested = System.nanoTime();
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            if (throttleHandler == null) {
+                sendJson(exchange, 503, "{\"error\":\"Throttles not available\"}");
+                return;
+            }
+            String connectionId = queryParams(exchange.getRequestURI()).get("connectionId");
+            if (connectionId != null && service.getConnection(connectionId) == null) {
+                sendJson(exchange, 404, "{\"error\":\"Connection not found\"}");
+                return;
+            }
+            try {
+                int stopped = throttleHandler.emergencyStop(connectionId, requested);
+                long micros = java.util.concurrent.TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requested);
+                sendJson(exchange, 200, "{\"status\":\"ok\",\"stopped\":" + stopped + ",\"latencyMicros\":" + micros + "}");
+            } catch (java.io.UncheckedIOException e) {
+                sendJson(exchange, 500, "{\"error\":\"" + escape(e.getMessage()) + "\"}");
+            }
+        }
+    }
+
+    private final class MetricsHandler extends JsonHandler {
+        @Override
+        protected void handleJson(HttpExchange exchange) throws IOException {
+            if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                sendJson(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            com.google.gson.JsonObject metrics = new com.google.gson.JsonObject();
+            metrics.add("eventBus", eventBusMetrics());
+            metrics.add("schedulers", schedulerMetrics());
+            org.dccio.core.programming.CvCache cvCache = service.getCvCache();
+            com.google.gson.JsonObject cache = new com.google.gson.JsonObject();
+            cache.addProperty("hits", cvCache.getHits());
+            cache.addProperty("misses", cvCache.getMisses());
+            metrics.add("cvCache", cache);
+            if (throttleHandler != null) {
+                metrics.add("throttleCommands", throttleCommandMetrics());
+            }
+            if (webSocketHandler != null) {
+                metrics.add("webSocket", webSocketMetrics());
+            }
+            sendJson(exchange, 200, metrics.toString());
+        }
+
+        private com.google.gson.JsonObject eventBusMetrics() {
+            org.dccio.core.events.DccEventBus bus = service.getEventBus();
+            com.google.gson.JsonObject obj = new com.google.gson.JsonObject();
+            obj.addProperty("mode", bus.getMode().name());
+            com.google.gson.JsonArray listeners = new com.google.gson.JsonArray();
+            for (org.dccio.core.events.ListenerStats stats : bus.getListenerStats()) {
+                com.google.gson.JsonObject l = new com.google.gson.JsonObject();
+                l.addProperty("name", stats.getName());
+                l.addProperty("overflowPolicy", stats.getOverflowPolicy().name());
+                l.addProperty("capacity", stats.getCapacity());
+                l.addProperty("lag", stats.getLag());
+                l.addProperty("maxLag", stats.getMaxLag());
+                l.addProperty("published", stats.getPublished());
+                l.addProperty("delivered", stats.getDelivered());
+                l.addProperty("dropped", stats.getDropped());
+                l.addProperty("conflated", stats.getConflated());
+                l.addProperty("errors", stats.getErrors());
+                listeners.add(l);
+            }
+            obj.add("listeners", listeners);
+            return obj;
+        }
+
+        private com.google.gson.JsonObject throttleCommandMetrics() {
+            com.google.gson.JsonObject obj = new com.google.gson.JsonObject();
+            obj.addProperty("speedSent", throttleHandler.getSpeedCommandsSent());
+            obj.addProperty("speedSuppressed", throttleHandler.getSpeedCommandsSuppressed());
+            obj.addProperty("directionSuppressed", throttleHandler.getDirectionCommandsSuppressed());
+            org.dccio.core.momentum.MomentumEngine momentum = throttleHandler.getMomentumEngine();
+            obj.addProperty("momentumRamping", momentum.getActiveCount());
+            obj.addProperty("momentumSteps", momentum.getStepCount());
+            com.google.gson.JsonArray dispatchers = new com.google.gson.JsonArray();
+            for (org.dccio.core.outbound.SpeedDispatcher dispatcher : throttleHandler.getSpeedDispatchers()) {
+                com.google.gson.JsonObject d = new com.google.gson.JsonObject();
+                d.addProperty("connectionId", dispatcher.getName());
+                d.addProperty("pending", dispatcher.getPendingCount());
+                d.addProperty("sent", dispatcher.getSentCount());
+                d.addProperty("suppressed", dispatcher.getSuppressedCount());
+                dispatchers.add(d);
+            }
+            obj.add("speedDispatchers", dispatchers);
+            org.dccio.core.outbound.LatencyHistogram estop = throttleHandler.getEmergencyStopLatency();
+            com.google.gson.JsonObject e = new com.google.gson.JsonObject();
+            e.addProperty("count", estop.getCount());
+            e.addProperty("avgMicros", estop.getAverageMicros());
+            e.addProperty("p50Micros", estop.getPercentileMicros(50));
+            e.addProperty("p99Micros", estop.getPercentileMicros(99));
+            e.addProperty("maxMicros", estop.getMaxMicros());
+            obj.add("emergencyStop", e);
+            com.google.gson.JsonObject snapshots = new com.google.gson.JsonObject();
+            snapshots.addProperty("hits", throttleHandler.getSnapshotHits());
+            snapshots.addProperty("captures", throttleHandler.getSnapshotCaptures());
+            obj.add("snapshots", snapshots);
+            return obj;
+        }
+
+        private com.google.gson.JsonObject webSocketMetrics() {
+            com.google.gson.JsonObject obj = new com.google.gson.JsonObject();
+            obj.addProperty("evictedClients", webSocketHandler.getEvictedClients());
+            com.google.gson.JsonArray clients = new com.google.gson.JsonArray();
+            for (ClientOutbox.Stats stats : webSocketHandler.getClientStats()) {
+                com.google.gson.JsonObject c = new com.google.gson.JsonObject();
+                c.addProperty("clientId", stats.getClientId());
+                c.addProperty("depth", stats.getDepth());
+                c.addProperty("maxDepth", stats.getMaxDepth());
+                c.addProperty("sent", stats.getSent());
+                c.addProperty("conflated", stats.getConflated());
+                c.addProperty("dropped", stats.getDropped());
+                c.addProperty("evicted", stats.isEvicted());
+                c.addProperty("binary", stats.isBinary());
+                clients.add(c);
+            }
+            obj.add("clients", clients);
+            return obj;
+        }
+
+        private com.google.gson.JsonArray schedulerMetrics() {
+            com.google.gson.JsonArray schedulers = new com.google.gson.JsonArray();
+            for (CommandStationConnection conn : service.getConnections()) {
+                org.dccio.core.outbound.CommandScheduler scheduler = conn.getCommandScheduler();
+                if (scheduler == null) {
+                    continue;
+                }
+                com.google.gson.JsonObject obj = new com.google.gson.JsonObject();
+                obj.addProperty("connectionId", conn.getId());
+                obj.addProperty("window", scheduler.getWindow());
+                obj.addProperty("inFlight", scheduler.getInFlight());
+                obj.addProperty("timeouts", scheduler.getTimeouts());
+                obj.addProperty("avgReplyMicros", scheduler.getAverageReplyMicros());
+                org.dccio.core.outbound.SpeedPacer pacer = conn.getSpeedPacer();
+                if (pacer != null) {
+                    obj.addProperty("speedIntervalMs", pacer.getIntervalMillis());
+                    obj.addProperty("activeThrottles", pacer.getActiveThrottles());
+                }
+                com.google.gson.JsonArray classes = new com.google.gson.JsonArray();
+                for (org.dccio.core.outbound.SchedulerStats stats : scheduler.getStats()) {
+                    com.google.gson.JsonObject c = new com.google.gson.JsonObject();
+                    c.addProperty("priority", stats.getPriority().name());
+                    c.addProperty("depth", stats.getDepth());
+                    c.addProperty("submitted", stats.getSubmitted());
+                    c.addProperty("sent", stats.getSent());
+                    c.addProperty("coalesced", stats.getCoalesced());
+                    c.addProperty("failed", stats.getFailed());
+                    c.addProperty("avgWaitMicros", stats.getAverageWaitMicros());
+                    c.addProperty("maxWaitMicros", stats.getMaxWaitMicros());
+                    classes.add(c);
+                }
+                obj.add("classes", classes);
+                schedulers.add(obj);
+            }
+            return schedulers;
+        }
+    }
+
     private final class EventsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -452,20 +632,32 @@ final class DccIoHttpServer {
             final org.dccio.core.events.DccEventListener[] listenerRef = new org.dccio.core.events.DccEventListener[1];
             
             // Create a listener that writes events to the response stream
-            org.dccio.core.events.DccEventListener listener = event -> {
-                try {
-                    // Format as SSE
-                    String json = eventToJson(event);
-                    synchronized (os) {
-                        os.write(("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
-                        os.flush();
-                    }
-                } catch (IOException e) {
-                    // Client disconnected or error - remove listener and close
-                    if (listenerRef[0] != null) {
-                        service.getEventBus().removeListener(listenerRef[0]);
-                        listenerRef[0] = null;
+            org.dccio.core.events.DccEventListener listener = new org.dccio.core.events.DccEventListener() {
+                @Override
+                public void onEvent(org.dccio.core.events.DccEvent event) {
+                    try {
+                        // Format as SSE
+                        String json = eventToJson(event);
+                        synchronized (os) {
+                            os.write(("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+                            os.flush();
+                        }
+                    } catch (IOException e) {
+                        // Client disconnected or error - remove listener and close
+                        if (listenerRef[0] != null) {
+                            service.getEventBus().removeListener(listenerRef[0]);
+                            listenerRef[0] = null;
+                        }
+                        try {
+                            exchange.close();
+                        } catch (Exception ignore) {}
                     }
+                }
+
+                @Override
+                public void onDisconnect() {
+                    // Client fell too far behind and was dropped by the event bus
+                    listenerRef[0] = null;
                     try {
                         exchange.close();
                     } catch (Exception ignore) {}
@@ -473,7 +665,11 @@ final class DccIoHttpServer {
             };
             
             listenerRef[0] = listener;
-            service.getEventBus().addListener(listener);
+            service.getEventBus().addListener(listener, org.dccio.core.events.SubscriptionOptions.builder()
+                    .name("sse-" + exchange.getRemoteAddress())
+                    .overflowPolicy(org.dccio.core.events.OverflowPolicy.DISCONNECT)
+                    .capacity(4096)
+                    .build());
             
             // Send initial connection message
             try {
@@ -0,0 +1,76 @@
+package org.dccio.daemon;
+
+import org.dccio.core.CommandStationConnection;
+import org.dccio.core.impl.DccIoServiceImpl;
+import org.dccio.core.programming.OpsModeQueue;
+import org.dccio.core.programming.ProgrammingQueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Adapter exposing the connections' programming and operations-mode queues from DccIoServiceImpl to JSON handlers.
+ */
+public class DccProgrammingService implements JsonProgrammingHandler.ProgrammingService {
+
+    private final DccIoServiceImpl service;
+
+    public DccProgrammingService(DccIoServiceImpl service) {
+        this.service = service;
+    }
+
+    @Override
+    public ProgrammingQueue getQueue(String connectionId) {
+        return connection(connectionId).getProgrammingQueue();
+    }
+
+    @Override
+    public Collection<ProgrammingQueue> getQueues() {
+        List<ProgrammingQueue> queues = new ArrayList<>();
+        for (CommandStationConnection conn : service.getConnections()) {
+            ProgrammingQueue queue = conn.getProgrammingQueue();
+            if (queue != null) {
+                queues.add(queue);
+            }
+        }
+        return queues;
+    }
+
+    @Override
+    public OpsModeQueue getOpsModeQueue(String connectionId) {
+        return connection(connectionId).getOpsModeQueue();
+    }
+
+    @Override
+    public Collection<OpsModeQueue> getOpsModeQueues() {
+        List<OpsModeQueue> queues = new ArrayList<>();
+        for (CommandStationConnection conn : service.getConnections()) {
+            OpsModeQueue queue = conn.getOpsModeQueue();
+            if (queue != null) {
+                queues.add(queue);
+            }
+        }
+        return queues;
+    }
+
+    private CommandStationConnection connection(String connectionId) {
+        CommandStationConnection conn;
+        if (connectionId == null) {
+            conn = service.getThrottleController();
+            if (conn == null) {
+                throw new IllegalStateException("No throttle controller available for programming");
+            }
+        } else {
+            conn = service.getConnection(connectionId);
+            if (conn == null) {
+                throw new NoSuchElementException("Connection not found: " + connectionId);
+            }
+        }
+        if (!conn.isConnected()) {
+            throw new IllegalStateException("Connection " + conn.getId() + " not connected");
+        }
+        return conn;
+    }
+}
@@ -1,10 +1,13 @@
 package org.dccio.daemon;
 
+import org.dccio.core.CommandStationConnection;
 import org.dccio.core.ThrottleSession;
 import org.dccio.core.impl.DccIoServiceImpl;
+import org.dccio.core.outbound.SpeedPacer;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.function.Consumer;
 
 /**
  * Adapter exposing throttle operations from DccIoServiceImpl to JSON handlers.
@@ -36,5 +39,51 @@ public class DccThrottleService implements JsonThrottleHandler.ThrottleService {
     public void closeThrottle(String throttleId) {
         service.closeThrottle(throttleId);
     }
+
+    @Override
+    public void addCloseListener(Consumer<ThrottleSession> listener) {
+        service.addThrottleCloseListener(listener);
+    }
+
+    @Override
+    public ThrottleSession findThrottle(int address, boolean longAddress) {
+        return service.findThrottle(address, longAddress);
+    }
+
+    @Override
+    public int countThrottles(String connectionId) {
+        return service.getThrottleCount(connectionId);
+    }
+
+    @Override
+    public SpeedPacer getSpeedPacer(String connectionId) {
+        CommandStationConnection connection = service.getConnection(connectionId);
+        return connection != null ? connection.getSpeedPacer() : null;
+    }
+
+    @Override
+    public void emergencyStop(String connectionId) throws IOException {
+        IOException failure = null;
+        for (CommandStationConnection connection : service.getConnections()) {
+            if (!connection.isConnected() || (connectionId != null && !connectionId.equals(connection.getId()))) {
+                continue;
+            }
+            try {
+                // Stops locos driven by other throttles on the layout too
+                connection.emergencyStop();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        try {
+            // Drops queued speeds and sets each session's speed to 0
+            JsonThrottleHandler.ThrottleService.super.emergencyStop(connectionId);
+        } catch (IOException e) {
+            failure = failure == null ? e : failure;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 }
 
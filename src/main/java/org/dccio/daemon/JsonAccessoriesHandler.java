@@ -93,7 +93,8 @@ public class JsonAccessoriesHandler implements JsonMessageHandler.TypeHandler {
         response.addProperty("type", "accessories");
         response.add("data", payload);
 
-        if (broadcaster != null && changedAccessories.size() > 0) {
+        if (broadcaster != null && changedAccessories.size() > 0
+                && broadcaster.hasSubscribers("accessories", null, null)) {
             JsonObject delta = new JsonObject();
             delta.addProperty("type", "accessories");
             delta.addProperty("method", "patch");
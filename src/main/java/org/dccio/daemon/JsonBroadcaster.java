@@ -5,5 +5,13 @@ import com.google.gson.JsonObject;
 @FunctionalInterface
 public interface JsonBroadcaster {
     void broadcast(JsonObject message);
-}
 
+    /**
+     * @return false if no client would be sent a broadcast of {@code type}
+     *         for {@code connectionId} and {@code address}, so there is no
+     *         need to build it; null stands for any connection or address.
+     */
+    default boolean hasSubscribers(String type, String connectionId, Integer address) {
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.dccio.core.ThrottleSession;
+import org.dccio.core.consist.Consist;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles consists: several locomotives driven as one throttle.
+ * <p>
+ * PUT creates or replaces a consist from a lead address and its members,
+ * each of which may be inverted, or dissolves it. POST takes the same speed,
+ * direction, momentum and function fields as a throttle POST and applies
+ * them to the whole consist. A consist is one slot in its connection's speed
+ * dispatcher, so every member's speed frame goes out in the same tick, and
+ * clients get one {@code consist} patch instead of one per locomotive.
+ * Building, replacing, dissolving or driving a consist takes the
+ * speed/direction lease on every member. A consist is dropped, with a
+ * "released" patch, as soon as one of its members' sessions is closed, e.g.
+ * reaped after its connection dropped.
+ */
+public class JsonConsistHandler implements JsonMessageHandler.TypeHandler {
+
+    private final JsonThrottleHandler throttles;
+    // Key: consist id
+    private final Map<String, Consist> consists = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    public JsonConsistHandler(JsonThrottleHandler throttles) {
+        this.throttles = throttles;
+        throttles.addCloseListener(this::memberClosed);
+    }
+
+    @Override
+    public JsonObject handle(String method, JsonObject data) {
+        return handle(method, data, null);
+    }
+
+    @Override
+    public JsonObject handle(String method, JsonObject data, String clientId) {
+        String actualClientId = clientId != null ? clientId : (data.has("clientId") ? data.get("clientId").getAsString() : "unknown");
+        switch (method.toLowerCase(Locale.ROOT)) {
+            case "list":
+                return list(data);
+            case "get":
+                return response(info(require(data), data));
+            case "put":
+                return put(data, actualClientId);
+            case "post":
+                return post(data, actualClientId);
+            default:
+                throw new IllegalArgumentException("Unsupported method '" + method + "'");
+        }
+    }
+
+    private JsonObject list(JsonObject data) {
+        JsonArray array = new JsonArray();
+        for (Consist consist : consists.values()) {
+            array.add(info(consist, data));
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "consists");
+        response.add("data", array);
+        return response;
+    }
+
+    /**
+     * Create or replace a consist, or dissolve it with {@code "dissolve": true}.
+     */
+    private JsonObject put(JsonObject data, String clientId) {
+        String clientClass = JsonThrottleHandler.clientClass(data);
+        if (data.has("dissolve") && data.get("dissolve").getAsBoolean()) {
+            Consist consist = require(data);
+            // not while another client is driving it
+            throttles.acquireLeases(sessions(consist), clientId, clientClass);
+            JsonObject released = dissolve(consist);
+            if (released == null) {
+                throw new NoSuchElementException("Unknown consist '" + consist.getId() + "'");
+            }
+            return response(released);
+        }
+
+        String id = data.has("consist") ? data.get("consist").getAsString() : "consist-" + nextId.getAndIncrement();
+        if (!data.has("address")) {
+            throw new IllegalArgumentException("Field 'address' is required");
+        }
+        String connectionId = data.has("connectionId") ? data.get("connectionId").getAsString() : null;
+        ThrottleSession lead = throttles.openSession(connectionId, data.get("address").getAsInt(),
+                data.has("longAddress") && data.get("longAddress").getAsBoolean());
+        List<Consist.Member> members = new ArrayList<>();
+        if (data.has("members")) {
+            for (JsonElement element : data.getAsJsonArray("members")) {
+                JsonObject member = element.getAsJsonObject();
+                if (!member.has("address")) {
+                    throw new IllegalArgumentException("Consist members need an 'address'");
+                }
+                // members run on the lead's connection
+                ThrottleSession session = throttles.openSession(lead.getConnectionId(), member.get("address").getAsInt(),
+                        member.has("longAddress") && member.get("longAddress").getAsBoolean());
+                members.add(new Consist.Member(session, member.has("inverted") && member.get("inverted").getAsBoolean()));
+            }
+        }
+        Consist consist = new Consist(id, lead, members);
+        synchronized (consists) {
+            // a locomotive can only be in one consist
+            for (Consist other : consists.values()) {
+                if (other.getId().equals(id)) {
+                    continue;
+                }
+                for (Consist.Member member : consist.getMembers()) {
+                    ThrottleSession session = member.getSession();
+                    if (other.contains(session.getAddress(), session.isLongAddress())) {
+                        throw new IllegalStateException("Address " + session.getAddress() + " is already in consist " + other.getId());
+                    }
+                }
+            }
+            List<ThrottleSession> leased = sessions(consist);
+            Consist replaced = consists.get(id);
+            if (replaced != null) {
+                // replacing takes the consist from whoever is driving it
+                leased.addAll(sessions(replaced));
+            }
+            throttles.acquireLeases(leased, clientId, clientClass);
+            consists.put(id, consist);
+        }
+        try {
+            // line the members up with the lead, allowing for inverted ones
+            consist.setDirection(consist.getDirection());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        } finally {
+            throttles.touch(consist);
+        }
+
+        JsonObject payload = info(consist, data);
+        JsonObject opened = payload.deepCopy();
+        opened.addProperty("opened", true);
+        throttles.broadcast(patch(opened));
+        return response(payload);
+    }
+
+    /**
+     * Remove {@code consist} and tell clients it has gone.
+     *
+     * @return the "released" payload, or null if it had already been removed
+     */
+    private JsonObject dissolve(Consist consist) {
+        if (!consists.remove(consist.getId(), consist)) {
+            return null;
+        }
+        throttles.forget(consist);
+        JsonObject released = new JsonObject();
+        released.addProperty("consist", consist.getId());
+        released.addProperty("connectionId", consist.getConnectionId());
+        released.addProperty("address", consist.getAddress());
+        released.addProperty("released", true);
+        throttles.broadcast(patch(released));
+        return released;
+    }
+
+    /**
+     * Drop every consist {@code session} belongs to once it has been closed:
+     * the consist can no longer drive it.
+     */
+    private void memberClosed(ThrottleSession session) {
+        for (Consist consist : consists.values()) {
+            for (Consist.Member member : consist.getMembers()) {
+                if (member.getSession() == session) {
+                    dissolve(consist);
+                    break;
+                }
+            }
+        }
+    }
+
+    private JsonObject post(JsonObject data, String clientId) {
+        Consist consist = require(data);
+        boolean changed = throttles.apply(JsonThrottleHandler.consistThrottleId(consist.getId()), consist,
+                sessions(consist), data, clientId);
+        JsonObject payload = info(consist, data);
+        if (changed) {
+            payload.addProperty("updated", true);
+        }
+        return response(payload);
+    }
+
+    private Consist require(JsonObject data) {
+        if (!data.has("consist")) {
+            throw new IllegalArgumentException("Field 'consist' is required");
+        }
+        String id = data.get("consist").getAsString();
+        Consist consist = consists.get(id);
+        if (consist == null) {
+            throw new NoSuchElementException("Unknown consist '" + id + "'");
+        }
+        return consist;
+    }
+
+    private static List<ThrottleSession> sessions(Consist consist) {
+        List<ThrottleSession> sessions = new ArrayList<>(consist.getMembers().size());
+        for (Consist.Member member : consist.getMembers()) {
+            sessions.add(member.getSession());
+        }
+        return sessions;
+    }
+
+    private JsonObject info(Consist consist, JsonObject request) {
+        JsonObject obj = throttles.throttleInfo(consist, request);
+        obj.addProperty("consist", consist.getId());
+        JsonArray members = new JsonArray();
+        for (Consist.Member member : consist.getMembers()) {
+            JsonObject m = new JsonObject();
+            m.addProperty("address", member.getSession().getAddress());
+            m.addProperty("longAddress", member.getSession().isLongAddress());
+            m.addProperty("inverted", member.isInverted());
+            members.add(m);
+        }
+        obj.add("members", members);
+        return obj;
+    }
+
+    private static JsonObject response(JsonObject payload) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "consist");
+        response.add("data", payload);
+        return response;
+    }
+
+    private static JsonObject patch(JsonObject payload) {
+        JsonObject patch = response(payload);
+        patch.addProperty("method", "patch");
+        return patch;
+    }
+}
@@ -1,10 +1,19 @@
 package org.dccio.daemon;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -13,6 +22,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public class JsonMessageHandler {
 
     private final Map<String, TypeHandler> typeHandlers = new ConcurrentHashMap<>();
+    private final ClientSubscriptions subscriptions = new ClientSubscriptions();
 
     public JsonMessageHandler() {}
 
@@ -20,6 +30,26 @@ public class JsonMessageHandler {
         typeHandlers.put(type, handler);
     }
 
+    /**
+     * @return the topics clients have chosen with {@code subscribe} and
+     *         {@code unsubscribe} messages.
+     */
+    ClientSubscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Tell every handler that {@code clientId} has gone away, so it can drop
+     * anything the client held.
+     */
+    public void clientDisconnected(String clientId) {
+        subscriptions.remove(clientId);
+        // a handler may be registered under several types
+        for (TypeHandler handler : new HashSet<>(typeHandlers.values())) {
+            handler.clientDisconnected(clientId);
+        }
+    }
+
     public JsonObject handle(String jsonPayload) {
         try {
             JsonObject message = JsonParser.parseString(jsonPayload).getAsJsonObject();
@@ -29,6 +59,119 @@ public class JsonMessageHandler {
         }
     }
 
+    /**
+     * Handle {@code message} and return the response as UTF-8 JSON. A
+     * handler that keeps its answers serialized (see
+     * {@link TypeHandler#handleSerialized}) is asked first and its bytes are
+     * returned as they are; any other response is serialized here.
+     */
+    public byte[] handleSerialized(JsonObject message) {
+        if (message != null && (message.has("list") || message.has("type"))) {
+            String requestId = message.has("id") && message.get("id").isJsonPrimitive()
+                    ? message.get("id").getAsString()
+                    : null;
+            String type;
+            String method;
+            JsonObject data;
+            if (message.has("list")) {
+                type = message.get("list").getAsString();
+                method = "list";
+                data = new JsonObject();
+            } else {
+                type = message.get("type").getAsString();
+                method = message.has("method") ? message.get("method").getAsString().toLowerCase(Locale.ROOT) : "get";
+                data = message.has("data") && message.get("data").isJsonObject()
+                        ? message.getAsJsonObject("data")
+                        : new JsonObject();
+            }
+            TypeHandler handler = typeHandlers.get(type);
+            if (handler != null) {
+                try {
+                    byte[] response = handler.handleSerialized(method, data, requestId);
+                    if (response != null) {
+                        return response;
+                    }
+                } catch (Exception e) {
+                    return toUtf8(error(e, requestId));
+                }
+            }
+        }
+        return toUtf8(handle(message));
+    }
+
+    /**
+     * Handle a {@link BinaryThrottleProtocol} request frame from
+     * {@code clientId} as a throttle {@code post}, without building a
+     * response.
+     *
+     * @return the ACK frame
+     */
+    public byte[] handleBinary(ByteBuffer frame, String clientId) {
+        int seq = BinaryThrottleProtocol.sequence(frame);
+        TypeHandler handler = typeHandlers.get("throttle");
+        if (handler == null) {
+            return BinaryThrottleProtocol.ack(seq, 404);
+        }
+        try {
+            boolean changed = handler.handleQuietly("post", BinaryThrottleProtocol.decode(frame), clientId);
+            return BinaryThrottleProtocol.ack(seq, changed ? BinaryThrottleProtocol.CHANGED : BinaryThrottleProtocol.UNCHANGED);
+        } catch (Exception e) {
+            return BinaryThrottleProtocol.ack(seq, code(e));
+        }
+    }
+
+    /**
+     * @return {@code {"type":type,"data":data,"id":requestId}} as UTF-8, with
+     *         {@code data} already serialized.
+     */
+    static byte[] serializedResponse(String type, byte[] data, String requestId) {
+        return serializedResponse(type, Collections.singletonList(data), false, requestId);
+    }
+
+    /**
+     * @return {@code {"type":type,"data":[items...],"id":requestId}} as
+     *         UTF-8, with each item already serialized.
+     */
+    static byte[] serializedResponse(String type, List<byte[]> items, String requestId) {
+        return serializedResponse(type, items, true, requestId);
+    }
+
+    private static byte[] serializedResponse(String type, List<byte[]> items, boolean array, String requestId) {
+        int size = 64;
+        for (byte[] item : items) {
+            size += item.length + 1;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        writeUtf8(out, "{\"type\":");
+        writeUtf8(out, new JsonPrimitive(type).toString());
+        writeUtf8(out, array ? ",\"data\":[" : ",\"data\":");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            byte[] item = items.get(i);
+            out.write(item, 0, item.length);
+        }
+        if (array) {
+            out.write(']');
+        }
+        if (requestId != null) {
+            writeUtf8(out, ",\"id\":");
+            writeUtf8(out, new JsonPrimitive(requestId).toString());
+        }
+        out.write('}');
+        return out.toByteArray();
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] toUtf8(JsonObject response) {
+        return String.valueOf(response).getBytes(StandardCharsets.UTF_8);
+    }
+
     public JsonObject handle(JsonObject message) {
         if (message == null) {
             return error(400, "Message is required", null);
@@ -81,6 +224,14 @@ public class JsonMessageHandler {
             return error(400, "Unsupported method '" + method + "'", requestId);
         }
 
+        if ("subscribe".equals(type) || "unsubscribe".equals(type)) {
+            try {
+                return addIdIfPresent(subscription(type, data, clientId), requestId);
+            } catch (Exception e) {
+                return error(e, requestId);
+            }
+        }
+
         TypeHandler handler = typeHandlers.get(type);
         if (handler == null) {
             return error(404, "Unknown type '" + type + "'", requestId);
@@ -88,23 +239,60 @@ public class JsonMessageHandler {
 
         try {
             JsonObject response;
-            if (clientId != null && handler instanceof JsonThrottleHandler) {
-                // Pass clientId for throttle handler
+            if (clientId != null) {
+                // Pass clientId for handlers that track who controls what
                 response = handler.handle(normalized, data, clientId);
             } else {
                 response = handler.handle(normalized, data);
             }
             return addIdIfPresent(response, requestId);
-        } catch (IllegalArgumentException e) {
-            return error(400, e.getMessage(), requestId);
-        } catch (IllegalStateException e) {
-            // Throttle busy errors
-            return error(409, e.getMessage(), requestId);
-        } catch (java.util.NoSuchElementException e) {
-            return error(404, e.getMessage(), requestId);
         } catch (Exception e) {
-            return error(500, e.getMessage(), requestId);
+            return error(e, requestId);
+        }
+    }
+
+    /**
+     * Add or remove broadcast topics of the sending client. Unsubscribing
+     * without {@code topics} drops them all.
+     */
+    private JsonObject subscription(String type, JsonObject data, String clientId) {
+        if (clientId == null) {
+            throw new IllegalArgumentException("Subscriptions need a client connection");
+        }
+        Set<ClientSubscriptions.Topic> topics;
+        if ("subscribe".equals(type)) {
+            topics = subscriptions.subscribe(clientId, ClientSubscriptions.parse(data));
+        } else {
+            topics = subscriptions.unsubscribe(clientId, data.has("topics") ? ClientSubscriptions.parse(data) : null);
+        }
+        JsonArray list = new JsonArray();
+        for (ClientSubscriptions.Topic topic : topics) {
+            list.add(topic.toJson());
         }
+        JsonObject payload = new JsonObject();
+        payload.add("topics", list);
+        JsonObject response = new JsonObject();
+        response.addProperty("type", type);
+        response.add("data", payload);
+        return response;
+    }
+
+    private JsonObject error(Exception e, String requestId) {
+        return error(code(e), e.getMessage(), requestId);
+    }
+
+    private static int code(Exception e) {
+        if (e instanceof IllegalArgumentException) {
+            return 400;
+        }
+        if (e instanceof IllegalStateException) {
+            // Throttle busy errors
+            return 409;
+        }
+        if (e instanceof java.util.NoSuchElementException) {
+            return 404;
+        }
+        return 500;
     }
 
     private JsonObject addIdIfPresent(JsonObject response, String requestId) {
@@ -136,6 +324,39 @@ public class JsonMessageHandler {
             }
             return handle(method, data);
         }
+
+        /**
+         * Answer {@code method} with a response that is already serialized,
+         * e.g. from cached state, instead of a {@link JsonObject}.
+         *
+         * @param method    lower case
+         * @param requestId to be added to the response as {@code id}, or null
+         * @return the UTF-8 JSON response, or null to be asked through
+         *         {@link #handle(String, JsonObject, String)} instead
+         */
+        default byte[] handleSerialized(String method, JsonObject data, String requestId) {
+            return null;
+        }
+
+        /**
+         * Carry out {@code method} for a client that only needs to know
+         * whether it worked, e.g. over the binary protocol; a handler may
+         * then skip building the response.
+         *
+         * @return false if the request was accepted but changed nothing
+         */
+        default boolean handleQuietly(String method, JsonObject data, String clientId) {
+            JsonObject response = handle(method, data, clientId);
+            JsonObject payload = response != null && response.has("data") && response.get("data").isJsonObject()
+                    ? response.getAsJsonObject("data") : null;
+            return payload == null || !payload.has("updated") || payload.get("updated").getAsBoolean();
+        }
+
+        /**
+         * Called when a client's connection closes.
+         */
+        default void clientDisconnected(String clientId) {
+        }
     }
 }
 
@@ -0,0 +1,414 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.dccio.core.events.OpsModeEvent;
+import org.dccio.core.events.ProgrammingEvent;
+import org.dccio.core.programming.CvCache;
+import org.dccio.core.programming.OpsModeJob;
+import org.dccio.core.programming.OpsModeQueue;
+import org.dccio.core.programming.ProgrammingJob;
+import org.dccio.core.programming.ProgrammingQueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Handles CV programming jobs: service-mode reads and writes on the
+ * programming track and operations-mode writes to many locomotives on the
+ * main. A POST queues a batch and returns straight away with the job id;
+ * progress is broadcast as {@code programming} patches while the job runs.
+ */
+public class JsonProgrammingHandler implements JsonMessageHandler.TypeHandler {
+
+    // addresses given as plain numbers above this are taken as long addresses
+    private static final int MAX_SHORT_ADDRESS = 127;
+
+    private final ProgrammingService service;
+    private JsonBroadcaster broadcaster;
+
+    public JsonProgrammingHandler(ProgrammingService service) {
+        this.service = service;
+    }
+
+    public void setBroadcaster(JsonBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    public JsonObject handle(String method, JsonObject data) {
+        switch (method.toLowerCase(Locale.ROOT)) {
+            case "post":
+                return post(data);
+            case "get":
+                return get(data);
+            case "put":
+                return put(data);
+            case "list":
+                return list();
+            default:
+                throw new IllegalArgumentException("Unsupported method '" + method + "'");
+        }
+    }
+
+    /**
+     * Broadcast a progress event to all WebSocket clients.
+     */
+    public void broadcastProgress(ProgrammingEvent event) {
+        ProgrammingJob job = event.getJob();
+        if (broadcaster == null || !broadcaster.hasSubscribers("programming", job.getConnectionId(), null)) {
+            return;
+        }
+        JsonObject payload = new JsonObject();
+        payload.addProperty("job", job.getId());
+        payload.addProperty("connectionId", job.getConnectionId());
+        payload.addProperty("mode", job.getMode().name().toLowerCase(Locale.ROOT));
+        payload.addProperty("state", event.getState().name().toLowerCase(Locale.ROOT));
+        payload.addProperty("completed", event.getCompleted());
+        payload.addProperty("total", job.getTotal());
+        if (event.getCv() > 0) {
+            payload.addProperty("cv", event.getCv());
+        }
+        if (event.getValue() != null) {
+            payload.addProperty("value", event.getValue());
+        }
+        if (event.getError() != null) {
+            payload.addProperty("error", event.getError());
+        }
+        if (event.getState().isFinished()) {
+            payload.add("results", toJson(job.getResults()));
+        }
+
+        JsonObject delta = new JsonObject();
+        delta.addProperty("type", "programming");
+        delta.addProperty("method", "patch");
+        delta.add("data", payload);
+        broadcaster.broadcast(delta);
+    }
+
+    /**
+     * Broadcast progress of an operations-mode job to all WebSocket clients.
+     */
+    public void broadcastProgress(OpsModeEvent event) {
+        OpsModeJob job = event.getJob();
+        if (broadcaster == null || !broadcaster.hasSubscribers("programming", job.getConnectionId(),
+                event.getAddress() > 0 ? event.getAddress() : null)) {
+            return;
+        }
+        JsonObject payload = new JsonObject();
+        payload.addProperty("job", job.getId());
+        payload.addProperty("connectionId", job.getConnectionId());
+        payload.addProperty("mode", "ops");
+        payload.addProperty("state", event.getState().name().toLowerCase(Locale.ROOT));
+        payload.addProperty("completed", event.getCompleted());
+        payload.addProperty("total", job.getTotal());
+        if (event.getAddress() > 0) {
+            payload.addProperty("address", event.getAddress());
+        }
+        if (event.getCv() > 0) {
+            payload.addProperty("cv", event.getCv());
+        }
+        if (event.getError() != null) {
+            payload.addProperty("error", event.getError());
+        }
+        if (event.getState().isFinished()) {
+            payload.add("results", toJson(job.getResults()));
+        }
+
+        JsonObject delta = new JsonObject();
+        delta.addProperty("type", "programming");
+        delta.addProperty("method", "patch");
+        delta.add("data", payload);
+        broadcaster.broadcast(delta);
+    }
+
+    private JsonObject post(JsonObject data) {
+        String connectionId = data.has("connectionId") ? data.get("connectionId").getAsString() : null;
+        String mode = data.has("mode") ? data.get("mode").getAsString().toLowerCase(Locale.ROOT) : "read";
+        if ("ops".equals(mode)) {
+            return response(jobInfo(postOps(connectionId, data)));
+        }
+        ProgrammingQueue queue = service.getQueue(connectionId);
+        if (queue == null) {
+            throw new IllegalStateException("No programming connection available");
+        }
+        Integer address = data.has("address") ? data.get("address").getAsInt() : null;
+        ProgrammingJob job;
+        switch (mode) {
+            case "read":
+                job = postRead(queue, address, data);
+                break;
+            case "write":
+                job = postWrite(queue, address, data);
+                break;
+            case "verify":
+                if (address == null) {
+                    throw new IllegalArgumentException("Field 'address' is required to verify");
+                }
+                job = queue.verify(address);
+                break;
+            default:
+                throw new IllegalArgumentException("Mode must be 'read', 'write', 'verify' or 'ops'");
+        }
+        return response(jobInfo(job));
+    }
+
+    private ProgrammingJob postRead(ProgrammingQueue queue, Integer address, JsonObject data) {
+        if (data.has("cvs")) {
+            if (!data.get("cvs").isJsonArray()) {
+                throw new IllegalArgumentException("Field 'cvs' must be an array");
+            }
+            JsonArray array = data.getAsJsonArray("cvs");
+            int[] cvs = new int[array.size()];
+            for (int i = 0; i < cvs.length; i++) {
+                cvs[i] = array.get(i).getAsInt();
+            }
+            return queue.read(address, cvs);
+        }
+        if (data.has("from") && data.has("to")) {
+            return queue.readRange(address, data.get("from").getAsInt(), data.get("to").getAsInt());
+        }
+        throw new IllegalArgumentException("Field 'cvs' or 'from' and 'to' are required");
+    }
+
+    private ProgrammingJob postWrite(ProgrammingQueue queue, Integer address, JsonObject data) {
+        int[][] values = requireValues(data);
+        return queue.write(address, values[0], values[1]);
+    }
+
+    private OpsModeJob postOps(String connectionId, JsonObject data) {
+        if (!data.has("addresses") || !data.get("addresses").isJsonArray()) {
+            throw new IllegalArgumentException("Field 'addresses' is required and must be an array");
+        }
+        List<OpsModeJob.Target> targets = new ArrayList<>();
+        for (JsonElement element : data.getAsJsonArray("addresses")) {
+            if (element.isJsonObject()) {
+                JsonObject obj = element.getAsJsonObject();
+                int address = obj.get("address").getAsInt();
+                boolean longAddress = obj.has("longAddress")
+                        ? obj.get("longAddress").getAsBoolean()
+                        : address > MAX_SHORT_ADDRESS;
+                targets.add(new OpsModeJob.Target(address, longAddress));
+            } else {
+                int address = element.getAsInt();
+                targets.add(new OpsModeJob.Target(address, address > MAX_SHORT_ADDRESS));
+            }
+        }
+        int[][] values = requireValues(data);
+        OpsModeQueue queue = service.getOpsModeQueue(connectionId);
+        if (queue == null) {
+            throw new IllegalStateException("No operations mode programming available");
+        }
+        return queue.write(targets, values[0], values[1]);
+    }
+
+    /**
+     * @return CV numbers and values of a {@code values} object, in its order
+     */
+    private static int[][] requireValues(JsonObject data) {
+        if (!data.has("values") || !data.get("values").isJsonObject()) {
+            throw new IllegalArgumentException("Field 'values' is required and must be an object of CV to value");
+        }
+        JsonObject values = data.getAsJsonObject("values");
+        int[] cvs = new int[values.size()];
+        int[] bytes = new int[values.size()];
+        int i = 0;
+        for (Map.Entry<String, JsonElement> entry : values.entrySet()) {
+            try {
+                cvs[i] = Integer.parseInt(entry.getKey());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid CV number '" + entry.getKey() + "'");
+            }
+            bytes[i] = entry.getValue().getAsInt();
+            i++;
+        }
+        return new int[][] {cvs, bytes};
+    }
+
+    private JsonObject get(JsonObject data) {
+        if (data.has("job")) {
+            return response(jobInfo(requireJobId(data)));
+        }
+        return list();
+    }
+
+    private JsonObject put(JsonObject data) {
+        String id = requireJobId(data);
+        JsonObject info = jobInfo(id);
+        if (data.has("cancel") && data.get("cancel").getAsBoolean()) {
+            cancel(id);
+            info = jobInfo(id);
+        }
+        return response(info);
+    }
+
+    private JsonObject list() {
+        JsonArray array = new JsonArray();
+        for (ProgrammingQueue queue : service.getQueues()) {
+            for (ProgrammingJob job : queue.getJobs()) {
+                array.add(jobInfo(job));
+            }
+        }
+        for (OpsModeQueue queue : service.getOpsModeQueues()) {
+            for (OpsModeJob job : queue.getJobs()) {
+                array.add(jobInfo(job));
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "programming");
+        response.add("data", array);
+        return response;
+    }
+
+    private static String requireJobId(JsonObject data) {
+        if (!data.has("job")) {
+            throw new IllegalArgumentException("Field 'job' is required");
+        }
+        return data.get("job").getAsString();
+    }
+
+    private JsonObject jobInfo(String id) {
+        for (ProgrammingQueue queue : service.getQueues()) {
+            ProgrammingJob job = queue.getJob(id);
+            if (job != null) {
+                return jobInfo(job);
+            }
+        }
+        for (OpsModeQueue queue : service.getOpsModeQueues()) {
+            OpsModeJob job = queue.getJob(id);
+            if (job != null) {
+                return jobInfo(job);
+            }
+        }
+        throw new NoSuchElementException("Programming job not found: " + id);
+    }
+
+    private void cancel(String id) {
+        for (ProgrammingQueue queue : service.getQueues()) {
+            if (queue.cancel(id)) {
+                return;
+            }
+        }
+        for (OpsModeQueue queue : service.getOpsModeQueues()) {
+            if (queue.cancel(id)) {
+                return;
+            }
+        }
+    }
+
+    private JsonObject jobInfo(ProgrammingJob job) {
+        JsonObject info = new JsonObject();
+        info.addProperty("job", job.getId());
+        info.addProperty("connectionId", job.getConnectionId());
+        info.addProperty("mode", job.getMode().name().toLowerCase(Locale.ROOT));
+        info.addProperty("state", job.getState().name().toLowerCase(Locale.ROOT));
+        info.addProperty("completed", job.getCompleted());
+        info.addProperty("total", job.getTotal());
+        if (job.getAddress() != null) {
+            info.addProperty("address", job.getAddress());
+            info.addProperty("cacheHits", job.getCacheHits());
+        }
+        CvCache.DecoderKey decoder = job.getDecoder();
+        if (decoder != null) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("manufacturer", decoder.getManufacturer());
+            obj.addProperty("version", decoder.getVersion());
+            info.add("decoder", obj);
+        }
+        JsonArray cvs = new JsonArray();
+        for (int cv : job.getCvs()) {
+            cvs.add(cv);
+        }
+        info.add("cvs", cvs);
+        info.add("results", toJson(job.getResults()));
+        Map<Integer, String> failures = job.getFailures();
+        if (!failures.isEmpty()) {
+            JsonObject obj = new JsonObject();
+            for (Map.Entry<Integer, String> e : failures.entrySet()) {
+                obj.addProperty(String.valueOf(e.getKey()), e.getValue());
+            }
+            info.add("failures", obj);
+        }
+        if (job.getError() != null) {
+            info.addProperty("error", job.getError());
+        }
+        return info;
+    }
+
+    private JsonObject jobInfo(OpsModeJob job) {
+        JsonObject info = new JsonObject();
+        info.addProperty("job", job.getId());
+        info.addProperty("connectionId", job.getConnectionId());
+        info.addProperty("mode", "ops");
+        info.addProperty("state", job.getState().name().toLowerCase(Locale.ROOT));
+        info.addProperty("completed", job.getCompleted());
+        info.addProperty("total", job.getTotal());
+        JsonObject values = new JsonObject();
+        int[] cvs = job.getCvs();
+        int[] bytes = job.getValues();
+        for (int i = 0; i < cvs.length; i++) {
+            values.addProperty(String.valueOf(cvs[i]), bytes[i]);
+        }
+        info.add("values", values);
+        info.add("results", toJson(job.getResults()));
+        if (job.getError() != null) {
+            info.addProperty("error", job.getError());
+        }
+        return info;
+    }
+
+    private static JsonArray toJson(List<OpsModeJob.Result> results) {
+        JsonArray array = new JsonArray();
+        for (OpsModeJob.Result result : results) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("address", result.getTarget().getAddress());
+            obj.addProperty("longAddress", result.getTarget().isLongAddress());
+            obj.addProperty("written", result.getWritten());
+            if (result.getError() != null) {
+                obj.addProperty("error", result.getError());
+            }
+            array.add(obj);
+        }
+        return array;
+    }
+
+    private static JsonObject toJson(Map<Integer, Integer> results) {
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<Integer, Integer> e : results.entrySet()) {
+            obj.addProperty(String.valueOf(e.getKey()), e.getValue());
+        }
+        return obj;
+    }
+
+    private static JsonObject response(JsonObject payload) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "programming");
+        response.add("data", payload);
+        return response;
+    }
+
+    public interface ProgrammingService {
+        /**
+         * @param connectionId connection to program on, or null for the
+         *                     current throttle controller
+         * @return the connection's queue, or null if there is none
+         */
+        ProgrammingQueue getQueue(String connectionId);
+
+        Collection<ProgrammingQueue> getQueues();
+
+        /**
+         * @param connectionId connection to program on, or null for the
+         *                     current throttle controller
+         * @return the connection's operations-mode queue, or null if there is none
+         */
+        OpsModeQueue getOpsModeQueue(String connectionId);
+
+        Collection<OpsModeQueue> getOpsModeQueues();
+    }
+}
@@ -155,7 +155,7 @@ public class JsonStatusHandler implements JsonMessageHandler.TypeHandler {
      * @param previousState Map of connection ID to previous connection JSON object for delta calculation
      */
     public void broadcastStatusPatch(Map<String, JsonObject> previousState) {
-        if (broadcaster == null) {
+        if (broadcaster == null || !broadcaster.hasSubscribers("status", null, null)) {
             return;
         }
         JsonObject patch = buildStatusDelta(previousState);
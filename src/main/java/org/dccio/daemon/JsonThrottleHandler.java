@@ -1,106 +1,299 @@
 package org.dccio.daemon;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.dccio.core.ThrottleSession;
+import org.dccio.core.consist.Consist;
+import org.dccio.core.impl.ThrottleRegistry;
+import org.dccio.core.lease.LeaseManager;
+import org.dccio.core.momentum.MomentumEngine;
+import org.dccio.core.outbound.LatencyHistogram;
+import org.dccio.core.outbound.SpeedDispatcher;
+import org.dccio.core.outbound.SpeedPacer;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Handles throttle operations with automatic throttle management and client locking.
  * Clients POST to an address directly - throttles are created/retrieved automatically.
- * Only one client can control speed/direction per address at a time (2 second timeout).
+ * Only one client can control speed/direction per address at a time, under a
+ * lease that lapses if the client stops sending (2 seconds unless its client
+ * class is configured otherwise) and is released when the client disconnects.
  * Functions can be controlled by any client concurrently.
+ * <p>
+ * Speed and direction changes that would not change what is on the wire
+ * (the same step of the loco's speed-step mode, or the direction it already
+ * has) are dropped: no command is sent and no patch is broadcast.
+ * <p>
+ * A throttle given an acceleration or deceleration time is driven by a
+ * shared {@link MomentumEngine}: a posted speed becomes its target, and the
+ * speeds the ramp passes through go out through the same pacing as speeds
+ * posted by clients.
+ * <p>
+ * A POST of {@code {"emergencyStop": true}}, optionally with a
+ * {@code connectionId}, stops every locomotive without needing a lease; see
+ * {@link #emergencyStop(String, long)}.
+ * <p>
+ * Throttle state is reported from a {@link ThrottleSnapshot} per throttle,
+ * kept until the throttle changes, so {@code list} and {@code get} of
+ * unchanged throttles send JSON serialized once instead of rebuilding it.
  */
 public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
 
     private final ThrottleService service;
     private JsonBroadcaster broadcaster;
+    // send changed functions in patches as hex bitmasks instead of an object
+    private volatile boolean compactPatches;
     
-    // Track which client has control of speed/direction for each address
-    // Key: address string (e.g., "3" or "754:true"), Value: LockInfo
-    private final Map<String, LockInfo> speedDirectionLocks = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService timeoutExecutor = Executors.newScheduledThreadPool(1);
+    // Which client has control of speed/direction for each address,
+    // keyed by ThrottleRegistry.key(address, longAddress)
+    private final LeaseManager speedDirectionLeases;
     
-    // Throttle speed command throttling: send at most one command every interval
-    // Key: throttleId, Value: PendingSpeedInfo
-    private final Map<String, PendingSpeedInfo> pendingSpeedChanges = new ConcurrentHashMap<>();
+    // Throttle speed command throttling: send at most one command every interval,
+    // from one dispatcher per connection. Key: connectionId
+    private final Map<String, SpeedDispatcher> speedDispatchers = new ConcurrentHashMap<>();
+    // Ramps speed toward posted targets for throttles with momentum. Key: throttleId
+    private final MomentumEngine momentum;
     private final long speedCommandIntervalMs;
+    // how often the momentum engine and the dispatchers tick
+    private final long tickMs;
+    // commands sent or dropped without a dispatcher (interval 0), and
+    // dropped direction changes
+    private final AtomicLong immediateSpeedsSent = new AtomicLong();
+    private final AtomicLong immediateSpeedsSuppressed = new AtomicLong();
+    // counts of dispatchers closed since, so the metrics do not go backwards
+    private final AtomicLong retiredSpeedsSent = new AtomicLong();
+    private final AtomicLong retiredSpeedsSuppressed = new AtomicLong();
+    private final AtomicLong directionsSuppressed = new AtomicLong();
+    // time from an emergency stop request until it was handed to the connections
+    private final LatencyHistogram emergencyStopLatency = new LatencyHistogram();
+    // state reported for each throttle, until it changes. Key: throttleId
+    private final ThrottleSnapshotCache snapshots = new ThrottleSnapshotCache();
+    // interval used when the connection has no SpeedPacer
     private static final long DEFAULT_SPEED_COMMAND_INTERVAL_MS = 250;
+    // speedCommandIntervalMs value meaning "ask the connection's SpeedPacer"
+    private static final long ADAPTIVE_SPEED_COMMAND_INTERVAL = -1;
+    // how often each dispatcher collects pending speeds
+    private static final long SPEED_DISPATCH_TICK_MS = SpeedPacer.MIN_INTERVAL_MS;
+    private static final int MAX_CLIENT_CLASS_LENGTH = 32;
 
-    private static class LockInfo {
-        final String clientId;
-        volatile long lastUpdateTime;
-        
-        LockInfo(String clientId) {
-            this.clientId = clientId;
-            this.lastUpdateTime = System.currentTimeMillis();
-        }
-    }
-    
-    private static class PendingSpeedInfo {
-        volatile float pendingSpeed;
-        volatile ScheduledFuture<?> scheduledTask;
-        final String throttleId;
-        final ThrottleSession session;
-        final int address;
-        final boolean longAddress;
-        final String connectionId;
-        
-        PendingSpeedInfo(String throttleId, ThrottleSession session, int address, boolean longAddress, String connectionId) {
-            this.throttleId = throttleId;
-            this.session = session;
-            this.address = address;
-            this.longAddress = longAddress;
-            this.connectionId = connectionId;
-        }
-    }
-
+    /**
+     * Speed commands are paced per connection by its {@link SpeedPacer}, so
+     * the interval follows the load on the bus.
+     */
     public JsonThrottleHandler(ThrottleService service) {
-        this(service, DEFAULT_SPEED_COMMAND_INTERVAL_MS);
+        this(service, ADAPTIVE_SPEED_COMMAND_INTERVAL);
     }
     
     /**
      * Constructor for testing - allows setting the speed command interval.
      * @param service the throttle service
-     * @param speedCommandIntervalMs interval in milliseconds (0 to disable throttling)
+     * @param speedCommandIntervalMs fixed interval in milliseconds (0 to disable throttling)
      */
     JsonThrottleHandler(ThrottleService service, long speedCommandIntervalMs) {
+        this(service, speedCommandIntervalMs, new LeaseManager());
+    }
+
+    JsonThrottleHandler(ThrottleService service, long speedCommandIntervalMs, LeaseManager leases) {
+        this(service, speedCommandIntervalMs, leases, SPEED_DISPATCH_TICK_MS);
+    }
+
+    /**
+     * Constructor for testing - a tick too long to fire leaves the momentum
+     * engine and the dispatchers to be driven by the test.
+     */
+    JsonThrottleHandler(ThrottleService service, long speedCommandIntervalMs, LeaseManager leases, long tickMs) {
         this.service = service;
         this.speedCommandIntervalMs = speedCommandIntervalMs;
-        // Clean up expired locks every 500ms
-        timeoutExecutor.scheduleAtFixedRate(this::cleanupExpiredLocks, 500, 500, TimeUnit.MILLISECONDS);
+        this.speedDirectionLeases = leases;
+        this.tickMs = tickMs;
+        this.momentum = new MomentumEngine("throttles", tickMs,
+                (throttleId, session, speed) -> {
+                    queueSpeedChange(throttleId, session, session.getAddress(), session.isLongAddress(), speed);
+                    touch(session);
+                });
+        service.addCloseListener(this::forget);
     }
 
     public void setBroadcaster(JsonBroadcaster broadcaster) {
         this.broadcaster = broadcaster;
     }
 
-    public void shutdown() {
-        // Cancel all pending speed change tasks
-        for (PendingSpeedInfo info : pendingSpeedChanges.values()) {
-            if (info.scheduledTask != null) {
-                info.scheduledTask.cancel(false);
+    /**
+     * Send function changes in broadcast patches as {@code functionMask} and
+     * {@code functionBits} hex bitmasks instead of a {@code functions} object.
+     */
+    public void setCompactPatches(boolean compactPatches) {
+        this.compactPatches = compactPatches;
+    }
+
+    /**
+     * @return the speed/direction leases, e.g. to configure per-class durations.
+     */
+    public LeaseManager getLeaseManager() {
+        return speedDirectionLeases;
+    }
+
+    /**
+     * @return the engine ramping throttles with momentum, for metrics.
+     */
+    public MomentumEngine getMomentumEngine() {
+        return momentum;
+    }
+
+    /**
+     * @return the per-connection speed dispatchers, for metrics.
+     */
+    public Collection<SpeedDispatcher> getSpeedDispatchers() {
+        return speedDispatchers.values();
+    }
+
+    /**
+     * @return speed commands sent to throttles.
+     */
+    public long getSpeedCommandsSent() {
+        long sent = immediateSpeedsSent.get() + retiredSpeedsSent.get();
+        for (SpeedDispatcher dispatcher : speedDispatchers.values()) {
+            sent += dispatcher.getSentCount();
+        }
+        return sent;
+    }
+
+    /**
+     * @return speed changes dropped because they mapped to the speed step
+     *         already requested.
+     */
+    public long getSpeedCommandsSuppressed() {
+        long suppressed = immediateSpeedsSuppressed.get() + retiredSpeedsSuppressed.get();
+        for (SpeedDispatcher dispatcher : speedDispatchers.values()) {
+            suppressed += dispatcher.getSuppressedCount();
+        }
+        return suppressed;
+    }
+
+    /**
+     * @return direction changes dropped because the throttle already had
+     *         that direction.
+     */
+    public long getDirectionCommandsSuppressed() {
+        return directionsSuppressed.get();
+    }
+
+    /**
+     * @return list and get answers for throttles served from a snapshot
+     *         that was still current.
+     */
+    public long getSnapshotHits() {
+        return snapshots.getHits();
+    }
+
+    /**
+     * @return throttle snapshots taken (and serialized) because the state had
+     *         changed since the last one.
+     */
+    public long getSnapshotCaptures() {
+        return snapshots.getCaptures();
+    }
+
+    /**
+     * Tell the handler that {@code session} has changed other than through
+     * it, e.g. from a handheld throttle on the layout.
+     */
+    public void throttleChanged(ThrottleSession session) {
+        touch(session);
+    }
+
+    /**
+     * @return time from emergency stop requests until the stop had been
+     *         handed to the connections.
+     */
+    public LatencyHistogram getEmergencyStopLatency() {
+        return emergencyStopLatency;
+    }
+
+    /**
+     * Stop every locomotive on {@code connectionId}, or on every connection
+     * if it is null. Ramps and speeds still waiting in the dispatchers are
+     * dropped first, waiting for a ramp step or burst already under way, so
+     * none of them can start a locomotive again; then the stop goes out
+     * ahead of any other queued traffic. Clients get one
+     * "throttles" patch with the stopped throttles at speed 0.
+     *
+     * @param requestNanos {@link System#nanoTime()} when the request arrived;
+     *                     the time until the stop had been handed to the
+     *                     connections is recorded in
+     *                     {@link #getEmergencyStopLatency()}
+     * @return number of open throttles stopped
+     * @throws UncheckedIOException if a connection failed to send the stop;
+     *                              the others were still stopped
+     */
+    public int emergencyStop(String connectionId, long requestNanos) {
+        momentum.cancelAll(connectionId);
+        for (Map.Entry<String, SpeedDispatcher> entry : speedDispatchers.entrySet()) {
+            if (connectionId == null || connectionId.equals(entry.getKey())) {
+                entry.getValue().clearPending();
+            }
+        }
+        IOException failure = null;
+        try {
+            service.emergencyStop(connectionId);
+        } catch (IOException e) {
+            failure = e;
+        }
+        emergencyStopLatency.record(System.nanoTime() - requestNanos);
+
+        int stopped = 0;
+        JsonArray deltas = new JsonArray();
+        for (ThrottleSession session : service.getThrottles()) {
+            if (connectionId == null || connectionId.equals(session.getConnectionId())) {
+                touch(session);
+                stopped++;
+                if (isWatched(session)) {
+                    deltas.add(delta(sessionId(session), session.getAddress(), session.isLongAddress(), false,
+                            0f, null, null, null, false, session).get("data"));
+                }
             }
         }
-        pendingSpeedChanges.clear();
-        timeoutExecutor.shutdown();
+        if (deltas.size() > 0) {
+            JsonObject batch = new JsonObject();
+            batch.addProperty("type", "throttles");
+            batch.addProperty("method", "patch");
+            batch.add("data", deltas);
+            broadcaster.broadcast(batch);
+        }
+        if (failure != null) {
+            // the command station failed, not the request
+            throw new UncheckedIOException("Emergency stop failed: " + failure.getMessage(), failure);
+        }
+        return stopped;
     }
 
-    private void cleanupExpiredLocks() {
-        long now = System.currentTimeMillis();
-        speedDirectionLocks.entrySet().removeIf(entry -> {
-            LockInfo lock = entry.getValue();
-            return (now - lock.lastUpdateTime) > 2000; // 2 second timeout
-        });
+    @Override
+    public void clientDisconnected(String clientId) {
+        speedDirectionLeases.releaseAll(clientId);
+    }
+
+    public void shutdown() {
+        // Drop all pending speed changes and ramps
+        momentum.close();
+        for (SpeedDispatcher dispatcher : speedDispatchers.values()) {
+            dispatcher.close();
+        }
+        speedDirectionLeases.close();
     }
 
     @Override
@@ -113,7 +306,7 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
         String actualClientId = clientId != null ? clientId : (data.has("clientId") ? data.get("clientId").getAsString() : "unknown");
         switch (method.toLowerCase(Locale.ROOT)) {
             case "list":
-                return list();
+                return list(data);
             case "get":
                 return get(data);
             case "post":
@@ -123,10 +316,11 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
         }
     }
 
-    private JsonObject list() {
+    private JsonObject list(JsonObject data) {
+        boolean compact = isCompact(data);
         JsonArray array = new JsonArray();
         for (ThrottleSession session : service.getThrottles()) {
-            array.add(throttleInfo(session));
+            array.add(throttleInfo(session, compact));
         }
         JsonObject response = new JsonObject();
         response.addProperty("type", "throttles");
@@ -134,7 +328,33 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
         return response;
     }
 
+    @Override
+    public byte[] handleSerialized(String method, JsonObject data, String requestId) {
+        switch (method) {
+            case "list": {
+                boolean compact = isCompact(data);
+                List<byte[]> items = new ArrayList<>();
+                for (ThrottleSession session : service.getThrottles()) {
+                    items.add(snapshot(session).toUtf8(compact));
+                }
+                return JsonMessageHandler.serializedResponse("throttles", items, requestId);
+            }
+            case "get":
+                return JsonMessageHandler.serializedResponse("throttle",
+                        snapshot(session(data)).toUtf8(isCompact(data)), requestId);
+            default:
+                return null;
+        }
+    }
+
     private JsonObject get(JsonObject data) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "throttle");
+        response.add("data", throttleInfo(session(data), isCompact(data)));
+        return response;
+    }
+
+    private ThrottleSession session(JsonObject data) {
         int address = requireInt(data, "address");
         boolean longAddress = data.has("longAddress") && data.get("longAddress").getAsBoolean();
         
@@ -144,156 +364,364 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
         if (session == null) {
             throw new IllegalStateException("Failed to get or create throttle for address " + address);
         }
-        
+        return session;
+    }
+
+    @Override
+    public boolean handleQuietly(String method, JsonObject data, String clientId) {
+        if (!"post".equals(method) || data.has("emergencyStop")) {
+            return JsonMessageHandler.TypeHandler.super.handleQuietly(method, data, clientId);
+        }
+        String throttleId = postedThrottleId(data);
+        ThrottleSession session = service.getThrottle(throttleId);
+        return apply(throttleId, session, Collections.singletonList(session), data, clientId);
+    }
+
+    private JsonObject post(JsonObject data, String clientId) {
+        if (data.has("emergencyStop") && data.get("emergencyStop").getAsBoolean()) {
+            return emergencyStop(data);
+        }
+
+        String throttleId = postedThrottleId(data);
+        ThrottleSession session = service.getThrottle(throttleId);
+        boolean changed = apply(throttleId, session, Collections.singletonList(session), data, clientId);
+
         JsonObject response = new JsonObject();
         response.addProperty("type", "throttle");
-        response.add("data", throttleInfo(session));
+        JsonObject payload = throttleInfo(session, isCompact(data));
+        if (changed) {
+            payload.addProperty("updated", true);
+        }
+        response.add("data", payload);
         return response;
     }
 
-    private JsonObject post(JsonObject data, String clientId) {
-        // Extract address
+    /**
+     * @return the id of the throttle for the address a post is for, opened
+     *         now unless it already was
+     */
+    private String postedThrottleId(JsonObject data) {
         int address = requireInt(data, "address");
         boolean longAddress = data.has("longAddress") && data.get("longAddress").getAsBoolean();
         
         // Get or create throttle for this address
         String throttleId = getOrCreateThrottle(address, longAddress);
-        ThrottleSession session = service.getThrottle(throttleId);
-        if (session == null) {
+        if (service.getThrottle(throttleId) == null) {
             throw new IllegalStateException("Failed to get throttle for address " + address);
         }
+        return throttleId;
+    }
+
+    private JsonObject emergencyStop(JsonObject data) {
+        long requested = System.nanoTime();
+        String connectionId = data.has("connectionId") ? data.get("connectionId").getAsString() : null;
+        int stopped = emergencyStop(connectionId, requested);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("emergencyStop", true);
+        if (connectionId != null) {
+            payload.addProperty("connectionId", connectionId);
+        }
+        payload.addProperty("stopped", stopped);
+        payload.addProperty("latencyMicros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requested));
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "throttle");
+        response.add("data", payload);
+        return response;
+    }
 
-        String addressKey = addressKey(address, longAddress);
-        boolean hasSpeedOrDirection = data.has("speed") || data.has("forward");
-        boolean hasFunctions = hasFunctionChanges(data);
+    /**
+     * Apply the momentum, speed, direction and function fields of
+     * {@code data} to {@code session} and broadcast what changed. Momentum,
+     * speed and direction need the speed/direction lease on every session in
+     * {@code leased}.
+     *
+     * @return true if anything was changed
+     */
+    boolean apply(String throttleId, ThrottleSession session, Collection<ThrottleSession> leased,
+                  JsonObject data, String clientId) {
+        boolean hasMomentumProfile = data.has("accelerationMs") || data.has("decelerationMs");
+        boolean hasSpeedOrDirection = data.has("speed") || data.has("forward") || hasMomentumProfile;
 
-        // Check lock for speed/direction
+        // Take or renew the speed/direction lease
         if (hasSpeedOrDirection) {
-            LockInfo lock = speedDirectionLocks.get(addressKey);
-            if (lock != null && !lock.clientId.equals(clientId)) {
-                // Another client has control
-                throw new IllegalStateException("Throttle busy: another client is controlling speed/direction for address " + address);
-            }
-            // Update or create lock
-            if (lock == null) {
-                speedDirectionLocks.put(addressKey, new LockInfo(clientId));
-            } else {
-                lock.lastUpdateTime = System.currentTimeMillis();
-            }
+            acquireLeases(leased, clientId, clientClass(data));
         }
 
         boolean changed = false;
         Float newSpeed = null;
         Boolean newDirection = null;
-        JsonObject functionsChanged = null;
+        BitSet functionMask = null;
+        BitSet functionStates = null;
+
+        // Momentum profile: time in ms from stop to full speed and back, 0 for none
+        if (data.has("accelerationMs")) {
+            momentum.setAcceleration(throttleId, data.get("accelerationMs").getAsLong());
+        }
+        if (data.has("decelerationMs")) {
+            momentum.setDeceleration(throttleId, data.get("decelerationMs").getAsLong());
+        }
 
         // Handle speed with throttling (250ms interval)
         if (data.has("speed")) {
             float speed = data.get("speed").getAsFloat();
             validateSpeed(speed);
             
-            // Queue the speed change for throttling
-            queueSpeedChange(throttleId, session, address, longAddress, speed);
-            
-            // Return the requested speed in response (even though it may not be sent yet)
-            changed = true;
-            newSpeed = speed;
+            if (momentum.hasMomentum(throttleId)) {
+                // Ramp toward it; the engine queues the speeds on the way
+                momentum.setTarget(throttleId, session, speed);
+            } else {
+                // Stop any ramp left from before momentum was switched off
+                momentum.cancel(throttleId);
+                // Queue the speed change for throttling
+                if (queueSpeedChange(throttleId, session, session.getAddress(), session.isLongAddress(), speed)) {
+                    // Return the requested speed in response (even though it may not be sent yet)
+                    changed = true;
+                    newSpeed = speed;
+                }
+            }
         }
 
         // Handle direction
         if (data.has("forward")) {
             boolean forward = data.get("forward").getAsBoolean();
-            try {
-                session.setDirection(forward);
-                changed = true;
-                newDirection = forward;
-            } catch (IOException e) {
-                throw new IllegalArgumentException(e.getMessage(), e);
+            if (session.getDirection() == forward) {
+                // Already going that way; nothing to send
+                directionsSuppressed.incrementAndGet();
+            } else {
+                try {
+                    session.setDirection(forward);
+                    changed = true;
+                    newDirection = forward;
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage(), e);
+                }
             }
         }
 
         // Handle functions (no locking required)
         // Support functions as an object: { "functions": { "0": true, "1": false, ... } }
-        if (data.has("functions") && data.get("functions").isJsonObject()) {
-            JsonObject functionsObj = data.getAsJsonObject("functions");
-            for (String key : functionsObj.keySet()) {
+        // or as hex bitmasks: { "functionMask": "6", "functionBits": "2" } (bit n = Fn)
+        // All changes are handed to the session in one call so that it can send
+        // functions sharing a command (e.g. an XNet function group) together.
+        if (hasFunctionChanges(data)) {
+            functionMask = new BitSet();
+            functionStates = new BitSet();
+            readFunctionChanges(data, functionMask, functionStates);
+            if (!functionMask.isEmpty()) {
                 try {
-                    int funcNum = Integer.parseInt(key);
-                    if (funcNum < 0 || funcNum > 28) {
-                        throw new IllegalArgumentException("Function number must be between 0 and 28");
-                    }
-                    boolean on = functionsObj.get(key).getAsBoolean();
-                    session.setFunction(funcNum, on);
-                    changed = true;
-                    if (functionsChanged == null) {
-                        functionsChanged = new JsonObject();
-                    }
-                    functionsChanged.addProperty(key, on);
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Invalid function key: " + key);
+                    session.setFunctions(functionMask, functionStates);
                 } catch (IOException e) {
                     throw new IllegalArgumentException(e.getMessage(), e);
                 }
+                changed = true;
             }
         }
 
-        JsonObject response = new JsonObject();
-        response.addProperty("type", "throttle");
-        JsonObject payload = throttleInfo(session);
+        // momentum and ramps may have changed even if nothing was sent
+        touch(session);
         if (changed) {
-            payload.addProperty("updated", true);
+            broadcastDelta(throttleId, session.getConnectionId(), session.getAddress(), session.isLongAddress(), false, newSpeed, newDirection, functionMask, functionStates, false, session);
         }
-        response.add("data", payload);
-        
-        if (changed) {
-            broadcastDelta(throttleId, session.getConnectionId(), address, longAddress, false, newSpeed, newDirection, functionsChanged, false, session);
+        return changed;
+    }
+
+
+    /**
+     * Take or renew the lease on every session in {@code leased}, or on none
+     * of them: if one is held by another client, leases taken by this call
+     * are given back.
+     */
+    void acquireLeases(Collection<ThrottleSession> leased, String clientId, String clientClass) {
+        List<Integer> taken = new ArrayList<>(leased.size());
+        for (ThrottleSession session : leased) {
+            int key = ThrottleRegistry.key(session.getAddress(), session.isLongAddress());
+            boolean held = clientId.equals(speedDirectionLeases.getOwner(key));
+            if (!speedDirectionLeases.acquire(key, clientId, clientClass)) {
+                for (int k : taken) {
+                    speedDirectionLeases.release(k, clientId);
+                }
+                // Another client has control
+                throw new IllegalStateException("Throttle busy: another client is controlling speed/direction for address " + session.getAddress());
+            }
+            if (!held) {
+                taken.add(key);
+            }
         }
-        
-        return response;
     }
 
     private String getOrCreateThrottle(int address, boolean longAddress) {
+        return getOrCreateThrottle(null, address, longAddress);
+    }
+
+    private String getOrCreateThrottle(String connectionId, int address, boolean longAddress) {
         // Try to find existing throttle for this address
-        for (ThrottleSession session : service.getThrottles()) {
-            if (session.getAddress() == address && session.isLongAddress() == longAddress) {
-                return sessionId(session);
-            }
+        ThrottleSession existing = service.findThrottle(address, longAddress);
+        if (existing != null) {
+            return sessionId(existing);
         }
         // Create new throttle
         try {
-            String throttleId = service.openThrottle(null, address, longAddress);
+            String throttleId = service.openThrottle(connectionId, address, longAddress);
             return throttleId;
         } catch (IOException e) {
             throw new IllegalArgumentException("Failed to open throttle: " + e.getMessage(), e);
         }
     }
 
-    private String addressKey(int address, boolean longAddress) {
-        return address + ":" + longAddress;
+    private boolean hasFunctionChanges(JsonObject data) {
+        return (data.has("functions") && data.get("functions").isJsonObject()) || data.has("functionMask");
     }
 
-    private boolean hasFunctionChanges(JsonObject data) {
-        return data.has("functions") && data.get("functions").isJsonObject();
+    private void readFunctionChanges(JsonObject data, BitSet mask, BitSet states) {
+        if (data.has("functions") && data.get("functions").isJsonObject()) {
+            JsonObject functionsObj = data.getAsJsonObject("functions");
+            for (String key : functionsObj.keySet()) {
+                int funcNum;
+                try {
+                    funcNum = Integer.parseInt(key);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid function key: " + key);
+                }
+                checkFunctionNumber(funcNum);
+                mask.set(funcNum);
+                states.set(funcNum, functionsObj.get(key).getAsBoolean());
+            }
+        }
+        if (data.has("functionMask")) {
+            BitSet compactMask = parseFunctionBits(data.get("functionMask").getAsString());
+            BitSet compactStates = data.has("functionBits")
+                    ? parseFunctionBits(data.get("functionBits").getAsString())
+                    : new BitSet();
+            if (compactMask.length() > ThrottleSession.MAX_FUNCTION + 1) {
+                checkFunctionNumber(compactMask.length() - 1);
+            }
+            compactStates.and(compactMask);
+            mask.or(compactMask);
+            states.andNot(compactMask);
+            states.or(compactStates);
+        }
+    }
+
+    private void checkFunctionNumber(int funcNum) {
+        if (funcNum < 0 || funcNum > ThrottleSession.MAX_FUNCTION) {
+            throw new IllegalArgumentException("Function number must be between 0 and " + ThrottleSession.MAX_FUNCTION);
+        }
+    }
+
+    private boolean isCompact(JsonObject data) {
+        return data != null && data.has("compact") && data.get("compact").getAsBoolean();
+    }
+
+    /**
+     * @return the lease class {@code data} names, or the default class. An
+     *         unconfigured name gets the default lease duration.
+     * @throws IllegalArgumentException if it is not a short name of letters,
+     *                                  digits, '-' and '_'
+     */
+    static String clientClass(JsonObject data) {
+        if (!data.has("clientClass")) {
+            return LeaseManager.DEFAULT_CLIENT_CLASS;
+        }
+        JsonElement value = data.get("clientClass");
+        String name = value.isJsonPrimitive() && value.getAsJsonPrimitive().isString() ? value.getAsString() : "";
+        boolean valid = !name.isEmpty() && name.length() <= MAX_CLIENT_CLASS_LENGTH;
+        for (int i = 0; valid && i < name.length(); i++) {
+            char c = name.charAt(i);
+            valid = (c < 128 && Character.isLetterOrDigit(c)) || c == '-' || c == '_';
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("clientClass must be 1 to " + MAX_CLIENT_CLASS_LENGTH
+                    + " letters, digits, '-' or '_'");
+        }
+        return name;
+    }
+
+    /**
+     * Encode function states as a hex number, bit n = Fn, most significant
+     * digit first and without leading zeros ("0" when all are off).
+     */
+    static String formatFunctionBits(BitSet bits) {
+        long[] words = bits.toLongArray();
+        if (words.length == 0) {
+            return "0";
+        }
+        StringBuilder hex = new StringBuilder(Long.toHexString(words[words.length - 1]));
+        for (int i = words.length - 2; i >= 0; i--) {
+            String word = Long.toHexString(words[i]);
+            for (int pad = word.length(); pad < 16; pad++) {
+                hex.append('0');
+            }
+            hex.append(word);
+        }
+        return hex.toString();
+    }
+
+    static BitSet parseFunctionBits(String hex) {
+        String digits = hex.startsWith("0x") || hex.startsWith("0X") ? hex.substring(2) : hex;
+        if (digits.isEmpty()) {
+            throw new IllegalArgumentException("Invalid function bits: " + hex);
+        }
+        BitSet bits = new BitSet();
+        int bit = 0;
+        for (int i = digits.length() - 1; i >= 0; i--, bit += 4) {
+            int nibble = Character.digit(digits.charAt(i), 16);
+            if (nibble < 0) {
+                throw new IllegalArgumentException("Invalid function bits: " + hex);
+            }
+            for (int b = 0; b < 4; b++) {
+                if ((nibble & (1 << b)) != 0) {
+                    bits.set(bit + b);
+                }
+            }
+        }
+        return bits;
+    }
+
+    private JsonObject throttleInfo(ThrottleSession session, boolean compact) {
+        return snapshot(session).toJson(compact);
+    }
+
+    private ThrottleSnapshot snapshot(ThrottleSession session) {
+        String throttleId = sessionId(session);
+        if (session instanceof Consist) {
+            // reports the lead, which can change under the lead's own id
+            return capture(throttleId, session, 0);
+        }
+        ThrottleSnapshot snapshot = snapshots.get(throttleId, session, version -> capture(throttleId, session, version));
+        if (snapshot.isRamping() && momentum.getTarget(throttleId) == null) {
+            // the ramp ended on the step it was on, so nothing was sent
+            snapshots.touch(throttleId);
+            snapshot = snapshots.get(throttleId, session, version -> capture(throttleId, session, version));
+        }
+        return snapshot;
+    }
+
+    private ThrottleSnapshot capture(String throttleId, ThrottleSession session, long version) {
+        boolean hasMomentum = momentum.hasMomentum(throttleId);
+        return new ThrottleSnapshot(version, throttleId, session, hasMomentum,
+                hasMomentum ? momentum.getAcceleration(throttleId) : 0,
+                hasMomentum ? momentum.getDeceleration(throttleId) : 0,
+                momentum.getTarget(throttleId));
     }
 
-    private JsonObject throttleInfo(ThrottleSession session) {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("throttle", sessionId(session));
-        obj.addProperty("connectionId", session.getConnectionId());
-        obj.addProperty("address", session.getAddress());
-        obj.addProperty("longAddress", session.isLongAddress());
-        obj.addProperty("speed", session.getSpeed());
-        obj.addProperty("forward", session.getDirection());
-        // Add all function states as an object: { "0": true, "1": false, ... }
-        JsonObject functions = new JsonObject();
-        for (int i = 0; i <= 28; i++) {
-            functions.addProperty(String.valueOf(i), session.getFunction(i));
+    /**
+     * Mark the reported state of {@code session}, and of each locomotive if
+     * it is a consist, out of date. Call after changing it.
+     */
+    void touch(ThrottleSession session) {
+        if (session instanceof Consist) {
+            for (Consist.Member member : ((Consist) session).getMembers()) {
+                snapshots.touch(sessionId(member.getSession()));
+            }
+            return;
         }
-        obj.add("functions", functions);
-        return obj;
+        snapshots.touch(sessionId(session));
     }
 
     private String sessionId(ThrottleSession session) {
+        if (session instanceof Consist) {
+            return consistThrottleId(((Consist) session).getId());
+        }
         return session.getConnectionId() + ":" + session.getAddress() + ":" + session.isLongAddress();
     }
 
@@ -311,15 +739,24 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
     }
     
     /**
-     * Queue a speed change for throttling. Sends at most one command every interval.
+     * Queue a speed change for throttling. The connection's dispatcher sends
+     * the latest queued speed of each throttle at most once every interval.
      * If interval is 0, sends immediately without throttling.
-     * If a command is already scheduled, just updates the pending speed value.
+     *
+     * @return false if the speed is on the step already requested, so
+     *         nothing will be sent
      */
-    private void queueSpeedChange(String throttleId, ThrottleSession session, int address, boolean longAddress, float speed) {
+    private boolean queueSpeedChange(String throttleId, ThrottleSession session, int address, boolean longAddress, float speed) {
         // If throttling is disabled (interval = 0), send immediately
-        if (speedCommandIntervalMs <= 0) {
+        if (speedCommandIntervalMs == 0) {
+            if (session.getSpeedStepMode().sameStep(session.getSpeed(), speed)) {
+                immediateSpeedsSuppressed.incrementAndGet();
+                return false;
+            }
             try {
                 session.setSpeed(speed);
+                immediateSpeedsSent.incrementAndGet();
+                touch(session);
                 if (broadcaster != null) {
                     broadcastDelta(
                         throttleId,
@@ -330,6 +767,7 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
                         speed,
                         null,
                         null,
+                        null,
                         false,
                         session
                     );
@@ -337,59 +775,97 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
             } catch (IOException e) {
                 throw new IllegalArgumentException(e.getMessage(), e);
             }
-            return;
+            return true;
         }
-        
-        PendingSpeedInfo info = pendingSpeedChanges.computeIfAbsent(
-            throttleId,
-            k -> new PendingSpeedInfo(throttleId, session, address, longAddress, session.getConnectionId())
-        );
-        
-        // Update the pending speed to the latest value
-        info.pendingSpeed = speed;
-        
-        // If no task is scheduled, schedule one
-        if (info.scheduledTask == null || info.scheduledTask.isDone()) {
-            info.scheduledTask = timeoutExecutor.schedule(() -> {
-                sendPendingSpeedChange(throttleId);
-            }, speedCommandIntervalMs, TimeUnit.MILLISECONDS);
+        boolean[] queued = new boolean[1];
+        // under the map's lock for the connection, so the dispatcher cannot
+        // be retired between being looked up and taking the update
+        speedDispatchers.compute(session.getConnectionId(), (id, dispatcher) -> {
+            if (dispatcher == null) {
+                dispatcher = new SpeedDispatcher(
+                    id,
+                    speedCommandIntervalMs > 0 ? Math.min(speedCommandIntervalMs, tickMs) : tickMs,
+                    () -> speedCommandInterval(id),
+                    this::broadcastSpeeds
+                );
+            }
+            queued[0] = dispatcher.update(throttleId, session, speed);
+            return dispatcher;
+        });
+        return queued[0];
+    }
+
+    /**
+     * Drop the slot of {@code session} from its connection's dispatcher, and
+     * the dispatcher with its thread once it has no throttles left, e.g.
+     * because the connection has gone.
+     */
+    private void retireSlot(String throttleId, ThrottleSession session) {
+        SpeedDispatcher dispatcher = speedDispatchers.get(session.getConnectionId());
+        if (dispatcher == null || !dispatcher.remove(throttleId, session)) {
+            return;
         }
-        // If task is already scheduled, we just update pendingSpeed above
-        // and let the existing task send the latest value when it fires
+        speedDispatchers.computeIfPresent(session.getConnectionId(), (id, current) -> {
+            if (!current.isEmpty()) {
+                return current;
+            }
+            current.close();
+            retiredSpeedsSent.addAndGet(current.getSentCount());
+            retiredSpeedsSuppressed.addAndGet(current.getSuppressedCount());
+            return null;
+        });
     }
     
     /**
-     * Send the pending speed change for a throttle and clean up.
+     * Interval before the next speed command for a throttle on
+     * {@code connectionId}: the fixed interval if one was given, otherwise
+     * what the connection's pacer allows for the throttles open on it.
      */
-    private void sendPendingSpeedChange(String throttleId) {
-        PendingSpeedInfo info = pendingSpeedChanges.remove(throttleId);
-        if (info == null) {
-            return;
+    private long speedCommandInterval(String connectionId) {
+        if (speedCommandIntervalMs != ADAPTIVE_SPEED_COMMAND_INTERVAL) {
+            return speedCommandIntervalMs;
         }
-        
-        try {
-            // Send the latest pending speed
-            info.session.setSpeed(info.pendingSpeed);
-            
-            // Broadcast the change
-            if (broadcaster != null) {
-                broadcastDelta(
-                    info.throttleId,
-                    info.connectionId,
-                    info.address,
-                    info.longAddress,
-                    false,
-                    info.pendingSpeed,
-                    null, // direction unchanged
-                    null, // no function changes
-                    false,
-                    info.session
-                );
+        SpeedPacer pacer = service.getSpeedPacer(connectionId);
+        if (pacer == null) {
+            return DEFAULT_SPEED_COMMAND_INTERVAL_MS;
+        }
+        return pacer.nextInterval(service.countThrottles(connectionId));
+    }
+
+    /**
+     * Broadcast one dispatcher burst: a single throttle patch, or a
+     * "throttles" patch carrying one delta per throttle when several were sent.
+     */
+    private void broadcastSpeeds(List<SpeedDispatcher.Slot> sent) {
+        List<SpeedDispatcher.Slot> watched = new ArrayList<>(sent.size());
+        for (SpeedDispatcher.Slot slot : sent) {
+            touch(slot.getSession());
+            if (isWatched(slot.getSession())) {
+                watched.add(slot);
             }
-        } catch (IOException e) {
-            // Log error but don't throw - this is async
-            System.err.println("Error sending throttled speed change for throttle " + throttleId + ": " + e.getMessage());
         }
+        if (watched.isEmpty()) {
+            return;
+        }
+        if (watched.size() == 1) {
+            broadcaster.broadcast(speedDelta(watched.get(0)));
+            return;
+        }
+        JsonArray deltas = new JsonArray();
+        for (SpeedDispatcher.Slot slot : watched) {
+            deltas.add(speedDelta(slot).get("data"));
+        }
+        JsonObject batch = new JsonObject();
+        batch.addProperty("type", "throttles");
+        batch.addProperty("method", "patch");
+        batch.add("data", deltas);
+        broadcaster.broadcast(batch);
+    }
+
+    private JsonObject speedDelta(SpeedDispatcher.Slot slot) {
+        ThrottleSession session = slot.getSession();
+        return delta(slot.getThrottleId(), session.getAddress(), session.isLongAddress(), false,
+                slot.getSentSpeed(), null, null, null, false, session);
     }
 
     private void broadcastDelta(String throttleId,
@@ -399,17 +875,49 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
                                 boolean opened,
                                 Float speed,
                                 Boolean forward,
-                                JsonObject functionsChanged,
+                                BitSet functionMask,
+                                BitSet functionStates,
                                 boolean released,
                                 ThrottleSession session) {
-        if (broadcaster == null) {
+        if (broadcaster == null || !broadcaster.hasSubscribers(session instanceof Consist ? "consist" : "throttle",
+                connectionId, address)) {
             return;
         }
+        broadcaster.broadcast(delta(throttleId, address, longAddress, opened, speed, forward, functionMask, functionStates, released, session));
+    }
+
+    /**
+     * @return true if some client wants the patches of {@code session}.
+     */
+    private boolean isWatched(ThrottleSession session) {
+        return broadcaster != null && broadcaster.hasSubscribers(session instanceof Consist ? "consist" : "throttle",
+                session.getConnectionId(), session.getAddress());
+    }
+
+    private JsonObject delta(String throttleId,
+                             int address,
+                             boolean longAddress,
+                             boolean opened,
+                             Float speed,
+                             Boolean forward,
+                             BitSet functionMask,
+                             BitSet functionStates,
+                             boolean released,
+                             ThrottleSession session) {
         JsonObject delta = new JsonObject();
-        delta.addProperty("type", "throttle");
-        delta.addProperty("method", "patch");
         JsonObject deltaData = new JsonObject();
+        if (session instanceof Consist) {
+            // one patch for the whole consist, not one per locomotive
+            delta.addProperty("type", "consist");
+            deltaData.addProperty("consist", ((Consist) session).getId());
+        } else {
+            delta.addProperty("type", "throttle");
+        }
+        delta.addProperty("method", "patch");
         deltaData.addProperty("throttle", throttleId);
+        if (session != null) {
+            deltaData.addProperty("connectionId", session.getConnectionId());
+        }
         deltaData.addProperty("address", address);
         deltaData.addProperty("longAddress", longAddress);
         if (opened) {
@@ -429,12 +937,73 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
         } else if (forward != null) {
             deltaData.addProperty("forward", forward);
         }
-        if (functionsChanged != null && functionsChanged.size() > 0) {
-            // Add functions as an object: { "0": true, "1": false, ... }
-            deltaData.add("functions", functionsChanged);
+        if (functionMask != null && !functionMask.isEmpty()) {
+            if (compactPatches) {
+                // Changed functions and their new states as hex bitmasks
+                BitSet on = (BitSet) functionStates.clone();
+                on.and(functionMask);
+                deltaData.addProperty("functionMask", formatFunctionBits(functionMask));
+                deltaData.addProperty("functionBits", formatFunctionBits(on));
+            } else {
+                // Add functions as an object: { "0": true, "1": false, ... }
+                JsonObject functions = new JsonObject();
+                for (int f = functionMask.nextSetBit(0); f >= 0; f = functionMask.nextSetBit(f + 1)) {
+                    functions.addProperty(String.valueOf(f), functionStates.get(f));
+                }
+                deltaData.add("functions", functions);
+            }
         }
         delta.add("data", deltaData);
-        broadcaster.broadcast(delta);
+        return delta;
+    }
+
+    /**
+     * @return the session for {@code address}, opened on {@code connectionId}
+     *         (or the default connection if null) unless already open.
+     */
+    ThrottleSession openSession(String connectionId, int address, boolean longAddress) {
+        String throttleId = getOrCreateThrottle(connectionId, address, longAddress);
+        ThrottleSession session = service.getThrottle(throttleId);
+        if (session == null) {
+            throw new IllegalStateException("Failed to get throttle for address " + address);
+        }
+        return session;
+    }
+
+    /**
+     * @return the id a consist is driven under, e.g. by the speed dispatcher.
+     */
+    static String consistThrottleId(String consistId) {
+        return "consist:" + consistId;
+    }
+
+    JsonObject throttleInfo(ThrottleSession session, JsonObject request) {
+        return throttleInfo(session, isCompact(request));
+    }
+
+    /**
+     * Stop ramping {@code session} and forget its momentum profile, snapshot
+     * and speed dispatcher slot, once it has been closed or dissolved.
+     */
+    void forget(ThrottleSession session) {
+        String throttleId = sessionId(session);
+        momentum.remove(throttleId);
+        snapshots.remove(throttleId);
+        retireSlot(throttleId, session);
+    }
+
+    /**
+     * Call {@code listener} with each throttle session once it has been
+     * closed, e.g. reaped after its connection dropped.
+     */
+    void addCloseListener(Consumer<ThrottleSession> listener) {
+        service.addCloseListener(listener);
+    }
+
+    void broadcast(JsonObject message) {
+        if (broadcaster != null) {
+            broadcaster.broadcast(message);
+        }
     }
 
     public interface ThrottleService {
@@ -442,5 +1011,67 @@ public class JsonThrottleHandler implements JsonMessageHandler.TypeHandler {
         ThrottleSession getThrottle(String throttleId);
         Collection<ThrottleSession> getThrottles();
         void closeThrottle(String throttleId);
+
+        /**
+         * Call {@code listener} with each session once it has been closed,
+         * however that came about.
+         */
+        default void addCloseListener(Consumer<ThrottleSession> listener) {
+        }
+
+        /**
+         * @return the open session for {@code address} on any connection, or null
+         */
+        default ThrottleSession findThrottle(int address, boolean longAddress) {
+            for (ThrottleSession session : getThrottles()) {
+                if (session.getAddress() == address && session.isLongAddress() == longAddress) {
+                    return session;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return number of sessions open on {@code connectionId}
+         */
+        default int countThrottles(String connectionId) {
+            int count = 0;
+            for (ThrottleSession session : getThrottles()) {
+                if (Objects.equals(session.getConnectionId(), connectionId)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return the pacer for speed commands on {@code connectionId}, or
+         *         null to use a fixed interval
+         */
+        default SpeedPacer getSpeedPacer(String connectionId) {
+            return null;
+        }
+
+        /**
+         * Emergency-stop every open session on {@code connectionId}, or on
+         * every connection if it is null. A session that fails does not keep
+         * the others running; the first failure is thrown at the end.
+         */
+        default void emergencyStop(String connectionId) throws IOException {
+            IOException failure = null;
+            for (ThrottleSession session : getThrottles()) {
+                if (connectionId != null && !connectionId.equals(session.getConnectionId())) {
+                    continue;
+                }
+                try {
+                    session.emergencyStop();
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
     }
 }
@@ -3,28 +3,97 @@ package org.dccio.daemon;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WebSocket front-end that delegates JSON messages to {@link JsonMessageHandler}.
+ * Responses are sent as the UTF-8 bytes the message handler returns, so
+ * pre-serialized answers go out without being decoded and encoded again.
+ * <p>
+ * Each client has its own bounded {@link ClientOutbox}: a broadcast is
+ * serialized once and queued for every client, so one slow client neither
+ * holds up the publishing thread nor the others, and a client that cannot
+ * keep up is disconnected rather than left to grow an unbounded backlog.
+ * Broadcasts only go to clients whose {@link ClientSubscriptions} want them.
+ * <p>
+ * A client that negotiates the {@link BinaryThrottleProtocol#SUBPROTOCOL}
+ * subprotocol may also send binary throttle requests, which are acknowledged
+ * with binary frames, and receives throttle patches as binary frames.
  */
 public class JsonWebSocketHandler extends WebSocketServer {
 
     private final String path;
     private final JsonMessageHandler messageHandler;
     private final Gson gson = new Gson();
-    private final Set<WebSocket> connections = ConcurrentHashMap.newKeySet();
+
+    // per-client outbound queue limits
+    static final int DEFAULT_HIGH_WATER = 256;
+    static final int DEFAULT_CAPACITY = 1024;
+    static final long DEFAULT_EVICT_AFTER_MS = 5000;
+    // how often queues are retried while their sockets are busy
+    private static final long FLUSH_INTERVAL_MS = 10;
+
+    private final int highWater;
+    private final int capacity;
+    private final long evictAfterMs;
+    private final Map<WebSocket, ClientOutbox> outboxes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong evictedClients = new AtomicLong();
 
     public JsonWebSocketHandler(int port, String path, JsonMessageHandler messageHandler) {
-        super(new InetSocketAddress(port));
+        this(port, path, messageHandler, DEFAULT_HIGH_WATER, DEFAULT_CAPACITY, DEFAULT_EVICT_AFTER_MS);
+    }
+
+    JsonWebSocketHandler(int port, String path, JsonMessageHandler messageHandler,
+                         int highWater, int capacity, long evictAfterMs) {
+        super(new InetSocketAddress(port), drafts());
         this.path = path == null ? "/json" : path;
         this.messageHandler = messageHandler;
+        this.highWater = highWater;
+        this.capacity = capacity;
+        this.evictAfterMs = evictAfterMs;
         setReuseAddr(true);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ws-outbox");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return RFC 6455 with the binary subprotocol, or none, as the client
+     *         asks
+     */
+    private static List<Draft> drafts() {
+        List<IProtocol> protocols = Arrays.asList(new Protocol(BinaryThrottleProtocol.SUBPROTOCOL), new Protocol(""));
+        return Collections.singletonList(new Draft_6455(Collections.emptyList(), protocols));
+    }
+
+    private static boolean isBinary(WebSocket conn) {
+        IProtocol protocol = conn.getProtocol();
+        return protocol != null && BinaryThrottleProtocol.SUBPROTOCOL.equals(protocol.getProvidedProtocol());
     }
 
     @Override
@@ -34,12 +103,46 @@ public class JsonWebSocketHandler extends WebSocketServer {
             conn.close(1008, "Invalid path");
             return;
         }
-        connections.add(conn);
+        // the remote address may no longer be available by the time the socket closes
+        String clientId = clientId(conn);
+        conn.setAttachment(clientId);
+        outboxes.put(conn, new ClientOutbox(clientId, new ClientOutbox.Socket() {
+            @Override
+            public boolean isBusy() {
+                return conn.hasBufferedData();
+            }
+
+            @Override
+            public void send(byte[] payload, boolean binary) {
+                if (!conn.isOpen()) {
+                    return;
+                }
+                if (binary) {
+                    conn.send(payload);
+                } else {
+                    sendText(conn, payload);
+                }
+            }
+
+            @Override
+            public void evict(String reason) {
+                evictedClients.incrementAndGet();
+                conn.close(CloseFrame.TRY_AGAIN_LATER, reason);
+            }
+        }, highWater, capacity, evictAfterMs, isBinary(conn)));
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        connections.remove(conn);
+        ClientOutbox outbox = outboxes.remove(conn);
+        if (outbox != null) {
+            outbox.close();
+        }
+        String clientId = conn.getAttachment();
+        if (clientId != null) {
+            // free speed/direction leases now rather than when they time out
+            messageHandler.clientDisconnected(clientId);
+        }
     }
 
     @Override
@@ -47,11 +150,17 @@ public class JsonWebSocketHandler extends WebSocketServer {
         try {
             // Parse message and add clientId (use connection's remote address as identifier)
             JsonObject messageObj = gson.fromJson(message, JsonObject.class);
-            String clientId = conn.getRemoteSocketAddress().toString() + "-" + conn.hashCode();
-            messageObj.addProperty("clientId", clientId);
+            String clientId = conn.getAttachment();
+            messageObj.addProperty("clientId", clientId != null ? clientId : clientId(conn));
             
-            JsonObject response = messageHandler.handle(messageObj);
-            conn.send(gson.toJson(response));
+            byte[] response = messageHandler.handleSerialized(messageObj);
+            // through the outbox, to stay in order with broadcasts already queued
+            ClientOutbox outbox = outboxes.get(conn);
+            if (outbox != null) {
+                outbox.offerResponse(response);
+            } else {
+                sendText(conn, response);
+            }
         } catch (com.google.gson.JsonSyntaxException e) {
             // If JSON parsing fails, let the message handler deal with it
             JsonObject response = messageHandler.handle(message);
@@ -59,6 +168,40 @@ public class JsonWebSocketHandler extends WebSocketServer {
         }
     }
 
+    /**
+     * Handle a {@link BinaryThrottleProtocol} request; frames from clients
+     * that did not negotiate the subprotocol are refused.
+     */
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        if (!isBinary(conn)) {
+            conn.close(CloseFrame.REFUSE, "Binary frames need the " + BinaryThrottleProtocol.SUBPROTOCOL + " subprotocol");
+            return;
+        }
+        String clientId = conn.getAttachment();
+        byte[] ack = messageHandler.handleBinary(message, clientId != null ? clientId : clientId(conn));
+        ClientOutbox outbox = outboxes.get(conn);
+        if (outbox != null) {
+            outbox.offerResponse(ack, true);
+        } else {
+            conn.send(ack);
+        }
+    }
+
+    /**
+     * Send UTF-8 JSON as a text frame.
+     */
+    private static void sendText(WebSocket conn, byte[] utf8) {
+        TextFrame frame = new TextFrame();
+        frame.setPayload(ByteBuffer.wrap(utf8));
+        frame.setFin(true);
+        conn.sendFrame(frame);
+    }
+
+    private static String clientId(WebSocket conn) {
+        return conn.getRemoteSocketAddress().toString() + "-" + conn.hashCode();
+    }
+
     @Override
     public void onError(WebSocket conn, Exception ex) {
         System.err.println("WebSocket error: " + ex.getMessage());
@@ -70,17 +213,87 @@ public class JsonWebSocketHandler extends WebSocketServer {
     }
 
     public JsonBroadcaster getBroadcaster() {
-        return msg -> {
-            String json = gson.toJson(msg);
-            for (WebSocket socket : connections) {
-                if (socket.isOpen()) {
-                    socket.send(json);
+        ClientSubscriptions subscriptions = messageHandler.getSubscriptions();
+        return new JsonBroadcaster() {
+            @Override
+            public void broadcast(JsonObject message) {
+                byte[] shared = null;
+                byte[] sharedFrame = null;
+                for (ClientOutbox outbox : outboxes.values()) {
+                    JsonObject routed = subscriptions.route(outbox.getClientId(), message);
+                    if (routed == null) {
+                        continue;
+                    }
+                    if (outbox.isBinary() && BinaryThrottleProtocol.isPatch(routed)) {
+                        byte[] frame;
+                        if (routed == message) {
+                            if (sharedFrame == null) {
+                                sharedFrame = BinaryThrottleProtocol.encodePatch(message);
+                            }
+                            frame = sharedFrame;
+                        } else {
+                            frame = BinaryThrottleProtocol.encodePatch(routed);
+                        }
+                        outbox.offer(routed, frame, true);
+                        continue;
+                    }
+                    byte[] utf8;
+                    if (routed == message) {
+                        // serialized once for every client that wants all of it
+                        if (shared == null) {
+                            shared = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+                        }
+                        utf8 = shared;
+                    } else {
+                        utf8 = gson.toJson(routed).getBytes(StandardCharsets.UTF_8);
+                    }
+                    outbox.offer(routed, utf8);
+                }
+            }
+
+            @Override
+            public boolean hasSubscribers(String type, String connectionId, Integer address) {
+                for (ClientOutbox outbox : outboxes.values()) {
+                    if (subscriptions.wants(outbox.getClientId(), type, connectionId, address)) {
+                        return true;
+                    }
                 }
+                return false;
             }
         };
     }
 
+    private void flushAll() {
+        long now = System.nanoTime();
+        for (ClientOutbox outbox : outboxes.values()) {
+            try {
+                outbox.flush(now);
+            } catch (RuntimeException e) {
+                System.err.println("WebSocket outbox flush failed for " + outbox.getClientId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the outbound queue counters of each connected client.
+     */
+    List<ClientOutbox.Stats> getClientStats() {
+        List<ClientOutbox.Stats> stats = new ArrayList<>();
+        for (ClientOutbox outbox : outboxes.values()) {
+            stats.add(outbox.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return number of clients disconnected for not keeping up.
+     */
+    long getEvictedClients() {
+        return evictedClients.get();
+    }
+
     public void shutdown() {
+        flusher.shutdownNow();
         try {
             stop(1000);
         } catch (InterruptedException e) {
@@ -0,0 +1,128 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonObject;
+import org.dccio.core.ThrottleSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Immutable state of one throttle as reported to clients, with its JSON.
+ * <p>
+ * Each form (full, with a {@code functions} object, or compact, with a
+ * {@code functionBits} hex bitmask) is serialized to UTF-8 the first time it
+ * is asked for and kept, so responses for a throttle that has not changed
+ * reuse the same bytes.
+ */
+final class ThrottleSnapshot {
+
+    // functions always listed in the full form
+    static final int LISTED_FUNCTIONS = 28;
+
+    private final long version;
+    private final ThrottleSession session;
+    private final String throttleId;
+    private final String connectionId;
+    private final int address;
+    private final boolean longAddress;
+    private final float speed;
+    private final boolean forward;
+    private final boolean momentum;
+    private final long accelerationMs;
+    private final long decelerationMs;
+    private final Float targetSpeed;
+    private final BitSet functions;
+
+    private volatile byte[] json;
+    private volatile byte[] compactJson;
+
+    /**
+     * @param momentum    whether the acceleration and deceleration are
+     *                    reported
+     * @param targetSpeed the speed being ramped toward, or null
+     */
+    ThrottleSnapshot(long version, String throttleId, ThrottleSession session, boolean momentum,
+                     long accelerationMs, long decelerationMs, Float targetSpeed) {
+        this.version = version;
+        this.session = session;
+        this.throttleId = throttleId;
+        this.connectionId = session.getConnectionId();
+        this.address = session.getAddress();
+        this.longAddress = session.isLongAddress();
+        this.speed = session.getSpeed();
+        this.forward = session.getDirection();
+        this.momentum = momentum;
+        this.accelerationMs = accelerationMs;
+        this.decelerationMs = decelerationMs;
+        this.targetSpeed = targetSpeed;
+        this.functions = session.getFunctions();
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    ThrottleSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return true if the throttle was ramping toward a target speed.
+     */
+    boolean isRamping() {
+        return targetSpeed != null;
+    }
+
+    /**
+     * @return a new object that the caller may add to.
+     */
+    JsonObject toJson(boolean compact) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("throttle", throttleId);
+        obj.addProperty("connectionId", connectionId);
+        obj.addProperty("address", address);
+        obj.addProperty("longAddress", longAddress);
+        obj.addProperty("speed", speed);
+        obj.addProperty("forward", forward);
+        if (momentum) {
+            obj.addProperty("accelerationMs", accelerationMs);
+            obj.addProperty("decelerationMs", decelerationMs);
+        }
+        if (targetSpeed != null) {
+            obj.addProperty("targetSpeed", targetSpeed);
+        }
+        if (compact) {
+            obj.addProperty("functionBits", JsonThrottleHandler.formatFunctionBits(functions));
+            return obj;
+        }
+        // Add function states as an object: { "0": true, "1": false, ... }
+        // F0-F28 are always listed, higher functions only while on
+        JsonObject states = new JsonObject();
+        for (int i = 0; i <= LISTED_FUNCTIONS; i++) {
+            states.addProperty(String.valueOf(i), functions.get(i));
+        }
+        for (int i = functions.nextSetBit(LISTED_FUNCTIONS + 1); i >= 0 && i <= ThrottleSession.MAX_FUNCTION; i = functions.nextSetBit(i + 1)) {
+            states.addProperty(String.valueOf(i), true);
+        }
+        obj.add("functions", states);
+        return obj;
+    }
+
+    /**
+     * @return the JSON of {@link #toJson(boolean)} as UTF-8; the array is
+     *         shared and must not be modified.
+     */
+    byte[] toUtf8(boolean compact) {
+        // racing threads may both serialize, but only ever to the same bytes
+        byte[] bytes = compact ? compactJson : json;
+        if (bytes == null) {
+            bytes = toJson(compact).toString().getBytes(StandardCharsets.UTF_8);
+            if (compact) {
+                compactJson = bytes;
+            } else {
+                json = bytes;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package org.dccio.daemon;
+
+import org.dccio.core.ThrottleSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest {@link ThrottleSnapshot} of each throttle, keyed by throttle id.
+ * <p>
+ * Every throttle has a version that {@link #touch(String)} moves on after its
+ * state changes. A snapshot is only handed out while its version is current
+ * and it was taken of the same session; otherwise a new one is captured. A
+ * throttle that changes many times between two reads is therefore captured
+ * and serialized once, and one that does not change never again.
+ */
+final class ThrottleSnapshotCache {
+
+    /**
+     * Takes a snapshot of a throttle's current state.
+     */
+    @FunctionalInterface
+    interface Capture {
+        ThrottleSnapshot capture(long version);
+    }
+
+    private static final class Entry {
+        final AtomicLong version = new AtomicLong();
+        volatile ThrottleSnapshot snapshot;
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong captures = new AtomicLong();
+
+    /**
+     * @return the snapshot of {@code throttleId}, captured now if the cached
+     *         one is out of date
+     */
+    ThrottleSnapshot get(String throttleId, ThrottleSession session, Capture capture) {
+        Entry entry = entries.computeIfAbsent(throttleId, id -> new Entry());
+        // read the version before the state: a change made while capturing
+        // leaves the new snapshot already out of date, never wrongly current
+        long version = entry.version.get();
+        ThrottleSnapshot cached = entry.snapshot;
+        if (cached != null && cached.getVersion() == version && cached.getSession() == session) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        ThrottleSnapshot snapshot = capture.capture(version);
+        captures.incrementAndGet();
+        entry.snapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Mark the snapshot of {@code throttleId} out of date. Call after the
+     * state has changed.
+     */
+    void touch(String throttleId) {
+        Entry entry = entries.get(throttleId);
+        if (entry != null) {
+            entry.version.incrementAndGet();
+        }
+    }
+
+    void remove(String throttleId) {
+        entries.remove(throttleId);
+    }
+
+    /**
+     * @return number of reads answered from a current snapshot.
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of snapshots taken because none was current.
+     */
+    long getCaptures() {
+        return captures.get();
+    }
+}
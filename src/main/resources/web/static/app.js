@@ -44,7 +44,12 @@ async function loadPorts() {
 
 document.getElementById('systemType').addEventListener('change', (e) => {
   const system = systems.find(s => s.id === e.target.value);
-  if (system && system.connectionTypes.includes('network')) {
+  if (system && system.connectionTypes.includes('simulator')) {
+    // runs in-process, no port or host to choose
+    document.getElementById('portGroup').style.display = 'none';
+    document.getElementById('serialOptionsGroup').style.display = 'none';
+    document.getElementById('networkGroup').style.display = 'none';
+  } else if (system && system.connectionTypes.includes('network')) {
     document.getElementById('portGroup').style.display = 'none';
     document.getElementById('serialOptionsGroup').style.display = 'none';
     document.getElementById('networkGroup').style.display = 'block';
@@ -74,7 +79,9 @@ document.getElementById('configForm').addEventListener('submit', async (e) => {
     params.append('systemPrefix', document.getElementById('systemPrefix').value);
   }
   const system = systems.find(s => s.id === document.getElementById('systemType').value);
-  if (system && system.connectionTypes.includes('network')) {
+  if (system && system.connectionTypes.includes('simulator')) {
+    // simulator options use their defaults
+  } else if (system && system.connectionTypes.includes('network')) {
     params.append('host', document.getElementById('host').value);
     params.append('port', document.getElementById('port').value);
   } else {
@@ -755,32 +762,20 @@ function applyWsDelta(msg) {
     }
     // refresh connections view on status broadcast
     loadConnections();
+  } else if (msg.type === 'throttles' && msg.method === 'patch' && Array.isArray(msg.data)) {
+    // One delta per throttle, e.g. a speed burst or an emergency stop
+    msg.data.forEach(delta => {
+      // consist deltas carry the lead's address but not its own state
+      if (delta && delta.consist === undefined) {
+        applyThrottlePatch(delta);
+      }
+    });
   } else if (msg.type === 'throttle') {
     const currentAddress = parseInt(document.getElementById('throttleAddress').value);
     const currentLongAddress = document.getElementById('throttleLongAddress').checked;
     
     if (msg.method === 'patch' && msg.data) {
-      // Check if this update is for the current address
-      if (msg.data.address === currentAddress && msg.data.longAddress === currentLongAddress) {
-        // Ignore speed patches while user is actively dragging the slider
-        if (msg.data.speed !== undefined && !isDraggingThrottle) {
-          throttleState.speed = msg.data.speed;
-          const percent = Math.round(msg.data.speed * 100);
-          document.getElementById('throttleSpeed').value = percent;
-          document.getElementById('throttleSpeedValue').textContent = percent + '%';
-        }
-        if (msg.data.forward !== undefined) {
-          throttleState.forward = msg.data.forward;
-          document.getElementById('throttleDirectionBtn').textContent = msg.data.forward ? 'Forward' : 'Reverse';
-        }
-        if (msg.data.functions) {
-          Object.keys(msg.data.functions).forEach(fn => {
-            const on = msg.data.functions[fn];
-            throttleState.functions[fn] = on;
-            updateFunctionButton(parseInt(fn, 10), on);
-          });
-        }
-      }
+      applyThrottlePatch(msg.data);
     } else if (!msg.method && msg.data && msg.data.address === currentAddress && msg.data.longAddress === currentLongAddress) {
       // GET response - update UI with current state
       if (msg.data.speed !== undefined) {
@@ -810,6 +805,33 @@ function applyWsDelta(msg) {
   }
 }
 
+function applyThrottlePatch(data) {
+  const currentAddress = parseInt(document.getElementById('throttleAddress').value);
+  const currentLongAddress = document.getElementById('throttleLongAddress').checked;
+  // Check if this update is for the current address
+  if (data.address !== currentAddress || data.longAddress !== currentLongAddress) {
+    return;
+  }
+  // Ignore speed patches while user is actively dragging the slider
+  if (data.speed !== undefined && !isDraggingThrottle) {
+    throttleState.speed = data.speed;
+    const percent = Math.round(data.speed * 100);
+    document.getElementById('throttleSpeed').value = percent;
+    document.getElementById('throttleSpeedValue').textContent = percent + '%';
+  }
+  if (data.forward !== undefined) {
+    throttleState.forward = data.forward;
+    document.getElementById('throttleDirectionBtn').textContent = data.forward ? 'Forward' : 'Reverse';
+  }
+  if (data.functions) {
+    Object.keys(data.functions).forEach(fn => {
+      const on = data.functions[fn];
+      throttleState.functions[fn] = on;
+      updateFunctionButton(parseInt(fn, 10), on);
+    });
+  }
+}
+
 function loadExampleMessage() {
   const select = document.getElementById('wsExampleSelect');
   const input = document.getElementById('wsInput');
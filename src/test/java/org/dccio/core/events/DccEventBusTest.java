@@ -0,0 +1,272 @@
+package org.dccio.core.events;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DccEventBusTest {
+
+    private DccEventBus bus;
+
+    @AfterEach
+    void tearDown() {
+        if (bus != null) {
+            bus.close();
+        }
+    }
+
+    @Test
+    void syncModeDeliversOnPublishingThread() {
+        bus = new DccEventBus();
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        bus.addListener(event -> threads.add(Thread.currentThread()));
+
+        bus.publish(event(DccEventType.POWER_CHANGED, null));
+
+        assertEquals(1, threads.size());
+        assertSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    void asyncModeDeliversInOrderOffThePublishingThread() throws Exception {
+        bus = new DccEventBus(DccEventBus.DispatchMode.ASYNC);
+        List<Object> addresses = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        Thread publisher = Thread.currentThread();
+        bus.addListener(event -> {
+            assertNotSame(publisher, Thread.currentThread());
+            addresses.add(event.getPayload().get("address"));
+            done.countDown();
+        });
+
+        for (int i = 0; i < 100; i++) {
+            bus.publish(event(DccEventType.MESSAGE_RECEIVED, i));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, addresses.get(i));
+        }
+        ListenerStats stats = bus.getListenerStats().get(0);
+        assertEquals(100, stats.getPublished());
+        assertEquals(0, stats.getDropped());
+    }
+
+    @Test
+    void slowListenerDoesNotBlockPublisherAndDropsOldest() throws Exception {
+        bus = new DccEventBus(DccEventBus.DispatchMode.ASYNC);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> seen = new CopyOnWriteArrayList<>();
+        bus.addListener(event -> {
+            awaitQuietly(release);
+            seen.add(event.getPayload().get("address"));
+        }, SubscriptionOptions.builder().name("slow").capacity(4).build());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            bus.publish(event(DccEventType.MESSAGE_SENT, i));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        ListenerStats stats = bus.getListenerStats().get(0);
+        assertEquals("slow", stats.getName());
+        assertEquals(50, stats.getPublished());
+        assertTrue(stats.getDropped() >= 45, "dropped " + stats.getDropped());
+        assertTrue(stats.getLag() <= 4);
+
+        release.countDown();
+        waitFor(() -> bus.getListenerStats().get(0).getLag() == 0);
+        // the newest events survive
+        assertEquals(49, seen.get(seen.size() - 1));
+    }
+
+    @Test
+    void conflatingPolicyReplacesSupersededEvents() throws Exception {
+        bus = new DccEventBus(DccEventBus.DispatchMode.ASYNC);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> speeds = new CopyOnWriteArrayList<>();
+        bus.addListener(event -> {
+            awaitQuietly(release);
+            speeds.add(event.getPayload().get("newValue"));
+        }, SubscriptionOptions.builder().overflowPolicy(OverflowPolicy.CONFLATE).capacity(2).build());
+
+        // first event is picked up by the drain thread and blocks there
+        bus.publish(throttleEvent(3, 0.1f));
+        waitFor(() -> bus.getListenerStats().get(0).getLag() == 0);
+        bus.publish(throttleEvent(3, 0.2f));
+        bus.publish(throttleEvent(4, 0.5f));
+        bus.publish(throttleEvent(3, 0.3f));
+        bus.publish(throttleEvent(3, 0.4f));
+
+        ListenerStats stats = bus.getListenerStats().get(0);
+        assertEquals(2, stats.getConflated());
+        assertEquals(0, stats.getDropped());
+
+        release.countDown();
+        waitFor(() -> speeds.size() == 3);
+        assertEquals(List.of(0.1f, 0.4f, 0.5f), speeds);
+    }
+
+    @Test
+    void conflationKeysAgreeWithSupersedes() {
+        DccEvent[] events = {
+                ThrottleEvent.speed("conn", 3, false, 0.1f),
+                ThrottleEvent.speed("conn", 3, false, 0.2f),
+                ThrottleEvent.speed("conn", 3, true, 0.2f),
+                ThrottleEvent.speed("other", 3, false, 0.2f),
+                ThrottleEvent.direction("conn", 3, false, true),
+                ThrottleEvent.function("conn", 3, false, 1, true),
+                ThrottleEvent.function("conn", 3, false, 1, false),
+                ThrottleEvent.function("conn", 3, false, 2, true),
+                new PowerEvent("conn", 0, 1, null),
+                new PowerEvent("conn", 1, 0, null),
+                event(DccEventType.MESSAGE_SENT, 3),
+                event(DccEventType.MESSAGE_SENT, 3),
+        };
+        for (DccEvent newer : events) {
+            for (DccEvent older : events) {
+                Object key = newer.conflationKey();
+                boolean sameKey = key != null && key.equals(older.conflationKey());
+                assertEquals(newer.supersedes(older), sameKey, newer + " / " + older);
+            }
+        }
+    }
+
+    @Test
+    void conflationStillFindsEventsAfterTheRingWraps() throws Exception {
+        bus = new DccEventBus(DccEventBus.DispatchMode.ASYNC);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> speeds = new CopyOnWriteArrayList<>();
+        bus.addListener(event -> {
+            awaitQuietly(release);
+            speeds.add(event.getPayload().get("newValue"));
+        }, SubscriptionOptions.builder().overflowPolicy(OverflowPolicy.CONFLATE).capacity(2).build());
+
+        bus.publish(throttleEvent(1, 0.1f));
+        waitFor(() -> bus.getListenerStats().get(0).getLag() == 0);
+        // 2 and 3 fill the ring; 4 drops 2, then 3 is replaced by the newest for its address
+        bus.publish(throttleEvent(2, 0.2f));
+        bus.publish(throttleEvent(3, 0.3f));
+        bus.publish(throttleEvent(4, 0.4f));
+        bus.publish(throttleEvent(3, 0.35f));
+        bus.publish(throttleEvent(2, 0.25f));
+
+        ListenerStats stats = bus.getListenerStats().get(0);
+        assertEquals(1, stats.getConflated());
+        assertEquals(2, stats.getDropped());
+
+        release.countDown();
+        waitFor(() -> speeds.size() == 3);
+        assertEquals(List.of(0.1f, 0.4f, 0.25f), speeds);
+    }
+
+    @Test
+    void disconnectPolicyRemovesListenerAndNotifiesIt() throws Exception {
+        bus = new DccEventBus(DccEventBus.DispatchMode.ASYNC);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch disconnected = new CountDownLatch(1);
+        bus.addListener(new DccEventListener() {
+            @Override
+            public void onEvent(DccEvent event) {
+                awaitQuietly(release);
+            }
+
+            @Override
+            public void onDisconnect() {
+                disconnected.countDown();
+            }
+        }, SubscriptionOptions.builder().overflowPolicy(OverflowPolicy.DISCONNECT).capacity(2).build());
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(event(DccEventType.MESSAGE_SENT, i));
+        }
+        assertTrue(bus.getListenerStats().isEmpty());
+
+        release.countDown();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void typeFilteredSubscriptionsOnlySeeRequestedTypes() {
+        bus = new DccEventBus();
+        List<DccEventType> throttleOnly = new CopyOnWriteArrayList<>();
+        List<DccEventType> everything = new CopyOnWriteArrayList<>();
+        bus.addListener(event -> throttleOnly.add(event.getType()), EnumSet.of(DccEventType.THROTTLE_UPDATED));
+        bus.addListener(event -> everything.add(event.getType()));
+
+        bus.publish(event(DccEventType.MESSAGE_SENT, 1));
+        bus.publish(throttleEvent(3, 0.5f));
+        bus.publish(event(DccEventType.POWER_CHANGED, null));
+
+        assertEquals(List.of(DccEventType.THROTTLE_UPDATED), throttleOnly);
+        assertEquals(3, everything.size());
+    }
+
+    @Test
+    void connectionFilterAndListenerIndexFollowSubscriptionChanges() {
+        bus = new DccEventBus();
+        List<String> seen = new CopyOnWriteArrayList<>();
+        DccEventListener listener = event -> seen.add(event.getConnectionId());
+        assertFalse(bus.hasListeners(DccEventType.MESSAGE_RECEIVED));
+
+        bus.addListener(listener, SubscriptionOptions.builder()
+                .types(DccEventType.MESSAGE_RECEIVED)
+                .connectionId("connB")
+                .build());
+        assertTrue(bus.hasListeners(DccEventType.MESSAGE_RECEIVED));
+        assertFalse(bus.hasListeners(DccEventType.MESSAGE_SENT));
+
+        bus.publish(new DccEvent(DccEventType.MESSAGE_RECEIVED, "connA", null));
+        bus.publish(new DccEvent(DccEventType.MESSAGE_RECEIVED, "connB", null));
+        assertEquals(List.of("connB"), seen);
+
+        bus.removeListener(listener);
+        assertFalse(bus.hasListeners(DccEventType.MESSAGE_RECEIVED));
+        bus.publish(new DccEvent(DccEventType.MESSAGE_RECEIVED, "connB", null));
+        assertEquals(1, seen.size());
+    }
+
+    private static DccEvent event(DccEventType type, Integer address) {
+        Map<String, Object> payload = new HashMap<>();
+        if (address != null) {
+            payload.put("address", address);
+        }
+        return new DccEvent(type, "conn", payload);
+    }
+
+    private static DccEvent throttleEvent(int address, float speed) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("address", address);
+        payload.put("longAddress", false);
+        payload.put("property", "SpeedSetting");
+        payload.put("newValue", speed);
+        return new DccEvent(DccEventType.THROTTLE_UPDATED, "conn", payload);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
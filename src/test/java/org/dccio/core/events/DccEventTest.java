@@ -0,0 +1,88 @@
+package org.dccio.core.events;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DccEventTest {
+
+    @Test
+    void throttleEventParsesPropertyNames() {
+        ThrottleEvent speed = new ThrottleEvent("conn", 3, false, "SpeedSetting", 0.0f, 0.5f);
+        assertEquals(ThrottleEvent.Kind.SPEED, speed.getKind());
+        assertEquals(0.5f, speed.getSpeed());
+
+        ThrottleEvent function = new ThrottleEvent("conn", 3, false, "F12", false, true);
+        assertEquals(ThrottleEvent.Kind.FUNCTION, function.getKind());
+        assertEquals(12, function.getFunction());
+        assertTrue(function.getValue());
+
+        ThrottleEvent momentary = new ThrottleEvent("conn", 3, false, "F2Momentary", false, true);
+        assertEquals(ThrottleEvent.Kind.MOMENTARY, momentary.getKind());
+        assertEquals(2, momentary.getFunction());
+
+        assertEquals(ThrottleEvent.Kind.OTHER, new ThrottleEvent("conn", 3, false, "Forward", null, 1).getKind());
+        assertEquals(ThrottleEvent.Kind.OTHER, new ThrottleEvent("conn", 3, false, "F", null, 1).getKind());
+    }
+
+    @Test
+    void typedEventsKeepTheLegacyPayloadView() {
+        Map<String, Object> payload = ThrottleEvent.function("conn", 1234, true, 5, true).getPayload();
+        assertEquals(1234, payload.get("address"));
+        assertEquals(true, payload.get("longAddress"));
+        assertEquals("F5", payload.get("property"));
+        assertEquals(true, payload.get("newValue"));
+        assertEquals("Train 1234: Function F5 = ON", payload.get("description"));
+
+        FrameEvent frame = new FrameEvent(DccEventType.MESSAGE_SENT, "conn",
+                new byte[]{(byte) 0xE4, 0x13, 0x00, 0x03, (byte) 0x80, 0x74}, null);
+        assertEquals("out", frame.getPayload().get("direction"));
+        assertEquals("E4 13 00 03 80 74", frame.getPayload().get("hex"));
+        assertFalse(frame.getPayload().containsKey("decoded"));
+        assertEquals("E4 13 00 03 80 74", frame.getPayload().get("message"));
+        assertSame(frame.getPayload(), frame.getPayload());
+
+        assertEquals(false, new ConnectionStateEvent("conn", false).getPayload().get("connected"));
+        assertEquals("ON", new PowerEvent("conn", 4, 2, "ON").getPayload().get("status"));
+    }
+
+    @Test
+    void frameTextIsRenderedOnDemandAndCached() {
+        int[] calls = new int[2];
+        FrameEvent.Decoder decoder = new FrameEvent.Decoder() {
+            @Override
+            public String text(FrameEvent frame) {
+                calls[0]++;
+                return "text";
+            }
+
+            @Override
+            public String decode(FrameEvent frame) {
+                calls[1]++;
+                return "Speed " + frame.get(4);
+            }
+        };
+        FrameEvent frame = new FrameEvent(DccEventType.MESSAGE_RECEIVED, "conn",
+                new byte[]{(byte) 0xE4, 0x13, 0x00, 0x03, 0x05, 0x71}, decoder);
+        assertArrayEquals(new int[]{0, 0}, calls);
+
+        assertEquals("Speed 5", frame.getDecoded());
+        assertEquals("Speed 5", frame.getPayload().get("decoded"));
+        assertEquals("text", frame.getMessage());
+        assertArrayEquals(new int[]{1, 1}, calls);
+    }
+
+    @Test
+    void throttleEventsSupersedeOnlyTheSameProperty() {
+        ThrottleEvent first = ThrottleEvent.speed("conn", 3, false, 0.1f);
+        assertTrue(ThrottleEvent.speed("conn", 3, false, 0.2f).supersedes(first));
+        assertFalse(ThrottleEvent.speed("conn", 4, false, 0.2f).supersedes(first));
+        assertFalse(ThrottleEvent.direction("conn", 3, false, true).supersedes(first));
+        assertTrue(ThrottleEvent.function("conn", 3, false, 1, true)
+                .supersedes(new ThrottleEvent("conn", 3, false, "F1", true, false)));
+        assertFalse(ThrottleEvent.function("conn", 3, false, 1, true)
+                .supersedes(ThrottleEvent.function("conn", 3, false, 2, true)));
+    }
+}
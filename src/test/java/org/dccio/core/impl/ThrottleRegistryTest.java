@@ -0,0 +1,124 @@
+package org.dccio.core.impl;
+
+import org.dccio.core.ThrottleSession;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThrottleRegistryTest {
+
+    @Test
+    void indexesSessionsByIdConnectionAndAddress() {
+        ThrottleRegistry registry = new ThrottleRegistry();
+        ThrottleSession shortThree = new StubSession("a", 3, false);
+        ThrottleSession longThree = new StubSession("a", 3, true);
+        assertNull(registry.putIfAbsent(shortThree));
+        assertNull(registry.putIfAbsent(longThree));
+        assertSame(shortThree, registry.putIfAbsent(new StubSession("a", 3, false)));
+
+        assertNotEquals(ThrottleRegistry.key(3, false), ThrottleRegistry.key(3, true));
+        assertSame(shortThree, registry.get("a:3:false"));
+        assertSame(longThree, registry.find(3, true));
+        assertSame(shortThree, registry.find("a", 3, false));
+        assertNull(registry.find("b", 3, false));
+        assertEquals(2, registry.count("a"));
+        assertEquals(0, registry.count("b"));
+
+        assertSame(shortThree, registry.remove("a:3:false"));
+        assertNull(registry.find(3, false));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    void addressLookupFallsBackToAnotherConnection() {
+        ThrottleRegistry registry = new ThrottleRegistry();
+        ThrottleSession onA = new StubSession("a", 7, false);
+        ThrottleSession onB = new StubSession("b", 7, false);
+        registry.putIfAbsent(onA);
+        registry.putIfAbsent(onB);
+        registry.putIfAbsent(new StubSession("a", 8, false));
+
+        assertSame(onA, registry.find(7, false));
+        assertEquals(2, registry.removeConnection("a").size());
+        assertSame(onB, registry.find(7, false));
+        assertNull(registry.find(8, false));
+        assertEquals(0, registry.count("a"));
+        assertEquals(1, registry.values().size());
+    }
+
+    @Test
+    void conditionalRemovalIsDecidedAtRemovalTime() {
+        ThrottleRegistry registry = new ThrottleRegistry();
+        registry.putIfAbsent(new StubSession("a", 3, false));
+        assertEquals(java.util.List.of("a"), registry.connectionIds());
+
+        // e.g. a late "disconnected" event for a connection that is back up
+        assertTrue(registry.removeConnectionIf("a", () -> false).isEmpty());
+        assertEquals(1, registry.count("a"));
+        boolean[] asked = new boolean[1];
+        assertTrue(registry.removeConnectionIf("b", () -> asked[0] = true).isEmpty());
+        assertFalse(asked[0], "nothing to remove on b");
+
+        assertEquals(1, registry.removeConnectionIf("a", () -> true).size());
+        assertEquals(0, registry.size());
+        assertTrue(registry.connectionIds().isEmpty());
+    }
+
+    private static final class StubSession implements ThrottleSession {
+        private final String connectionId;
+        private final int address;
+        private final boolean longAddress;
+
+        StubSession(String connectionId, int address, boolean longAddress) {
+            this.connectionId = connectionId;
+            this.address = address;
+            this.longAddress = longAddress;
+        }
+
+        @Override
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public int getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isLongAddress() {
+            return longAddress;
+        }
+
+        @Override
+        public void setSpeed(float speed) {
+        }
+
+        @Override
+        public void setDirection(boolean forward) {
+        }
+
+        @Override
+        public void setFunction(int functionNumber, boolean on) {
+        }
+
+        @Override
+        public float getSpeed() {
+            return 0;
+        }
+
+        @Override
+        public boolean getDirection() {
+            return true;
+        }
+
+        @Override
+        public boolean getFunction(int functionNumber) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
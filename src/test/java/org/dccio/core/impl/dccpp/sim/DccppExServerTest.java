@@ -0,0 +1,128 @@
+package org.dccio.core.impl.dccpp.sim;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DccppExServerTest {
+
+    private DccppExServer server;
+    private Socket socket;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void answersThrottleTurnoutPowerAndStatus() throws Exception {
+        connect(DccppExServer.builder().port(0).build());
+
+        send("<1>");
+        assertEquals("<p1>", read());
+        assertTrue(server.isPowerOn());
+
+        send("<t 1 3 50 1>");
+        assertEquals("<T 1 50 1>", read());
+        assertEquals(50, server.getSpeed(3));
+        assertTrue(server.isForward(3));
+
+        send("<t 1234 20 0>");
+        // speed byte: 20 + 1, reverse
+        assertEquals("<l 1234 0 21 0>", read());
+
+        send("<f 3 144>");
+        send("<f 3 223 2>");
+        send("<F 3 2 1>");
+        // F0 and F2 in the low bits, F22 from the F21-F28 byte
+        assertEquals("<l 3 0 179 " + ((1L << 0) | (1L << 2) | (1L << 22)) + ">", read());
+
+        send("<T 10 1>");
+        assertEquals("<H 10 1>", read());
+        assertEquals(Boolean.TRUE, server.getTurnout(10));
+
+        send("<s>");
+        assertEquals("<p1>", read());
+        assertEquals(DccppExServer.VERSION, read());
+        assertEquals("<H 10 1>", read());
+
+        send("<W 1 42 7 8>");
+        assertEquals("<r 7|8|1 42>", read());
+        send("<bogus>");
+        assertEquals("<X>", read());
+    }
+
+    @Test
+    void keepsUpWithBurstsOfPipelinedCommands() throws Exception {
+        connect(DccppExServer.builder().port(0).responseLatencyMicros(20_000).build());
+        long start = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            send("<t 1 " + (i % 100) + " " + (i % 126) + " 1>");
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals("<T 1 " + (i % 126) + " 1>", read());
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        // latency is paid once per command, not once per queued command
+        assertTrue(elapsedMs >= 20 && elapsedMs < 2000, "500 commands took " + elapsedMs + " ms");
+        assertEquals(500, server.getCommandsReceived());
+    }
+
+    @Test
+    void dropsCommandsAtConfiguredLossRate() throws Exception {
+        connect(DccppExServer.builder().port(0).packetLoss(0.5).seed(42).build());
+        for (int i = 0; i < 200; i++) {
+            send("<T " + i + " 1>");
+        }
+        send("<#>");
+        // everything before the last reply has been handled by then, unless the probe was dropped too
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getCommandsReceived() < 201 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long dropped = server.getCommandsDropped();
+        assertTrue(dropped > 50 && dropped < 150, "dropped " + dropped);
+    }
+
+    private void connect(DccppExServer s) throws IOException {
+        server = s;
+        server.start();
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(5000);
+    }
+
+    private void send(String command) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(command.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private String read() throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n' || c == '\r') {
+                if (sb.length() > 0) {
+                    break;
+                }
+                continue;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+}
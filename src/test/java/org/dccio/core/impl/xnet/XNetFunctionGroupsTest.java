@@ -0,0 +1,65 @@
+package org.dccio.core.impl.xnet;
+
+import org.dccio.core.SpeedStepMode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XNetFunctionGroupsTest {
+
+    private final byte[] frame = new byte[XNetLocoEncoder.LOCO_FRAME_LENGTH];
+
+    @Test
+    void onlyChangedGroupsProduceFrames() {
+        // F0 is known to be on already
+        XNetFunctionGroups functions = new XNetFunctionGroups(new XNetLocoEncoder(3, SpeedStepMode.STEPS_128), 1L);
+        assertFalse(functions.set(0, true));
+        assertEquals(0, functions.encodeIfChanged(XNetLocoEncoder.FunctionGroup.F0_F4, frame));
+
+        assertTrue(functions.set(1, true));
+        assertFrame("E4 20 00 03 11 D6", functions.encodeIfChanged(XNetLocoEncoder.FunctionGroup.F0_F4, frame));
+        assertEquals(0, functions.encodeIfChanged(XNetLocoEncoder.FunctionGroup.F0_F4, frame));
+        assertFalse(functions.set(1, true));
+
+        // a change undone before its frame went out sends nothing
+        assertTrue(functions.set(5, true));
+        assertFalse(functions.set(5, false));
+        assertEquals(0, functions.encodeIfChanged(XNetLocoEncoder.FunctionGroup.F5_F8, frame));
+
+        functions.set(22, true);
+        List<String> sent = new ArrayList<>();
+        for (XNetLocoEncoder.FunctionGroup group : XNetLocoEncoder.FunctionGroup.values()) {
+            int length = functions.encodeIfChanged(group, frame);
+            if (length > 0) {
+                sent.add(hex(frame, length));
+            }
+        }
+        assertEquals(List.of("E4 28 00 03 02 CD"), sent);
+        assertEquals((1L << 0) | (1L << 1) | (1L << 22), functions.getStates());
+
+        assertThrows(IllegalArgumentException.class, () -> functions.set(29, true));
+    }
+
+    private void assertFrame(String expected, int length) {
+        assertEquals(expected, hex(frame, length));
+        int checksum = 0;
+        for (int i = 0; i < length; i++) {
+            checksum ^= frame[i] & 0xFF;
+        }
+        assertEquals(0, checksum, "XOR over the whole frame must be zero");
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02X", bytes[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package org.dccio.core.impl.xnet;
+
+import org.dccio.core.SpeedStepMode;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XNetLocoEncoderTest {
+
+    private final byte[] frame = new byte[XNetLocoEncoder.LOCO_FRAME_LENGTH];
+
+    @Test
+    void encodes128StepSpeedFrames() {
+        XNetLocoEncoder shortAddress = new XNetLocoEncoder(3, SpeedStepMode.STEPS_128);
+        assertFrame("E4 13 00 03 80 74", shortAddress.encodeSpeed(0, true, frame));
+        assertFrame("E4 13 00 03 FF 0B", shortAddress.encodeSpeed(126, true, frame));
+        assertFrame("E4 13 00 03 FF 0B", shortAddress.encodeSpeed(1.0f, true, frame));
+        assertFrame("E4 13 00 03 02 F6", shortAddress.encodeSpeed(1, false, frame));
+
+        XNetLocoEncoder longAddress = new XNetLocoEncoder(1234, SpeedStepMode.STEPS_128);
+        assertFrame("E4 13 C4 D2 0B EA", longAddress.encodeSpeed(10, false, frame));
+    }
+
+    @Test
+    void encodes28And14StepSpeedFrames() {
+        XNetLocoEncoder steps28 = new XNetLocoEncoder(3, SpeedStepMode.STEPS_28);
+        assertFrame("E4 12 00 03 80 75", steps28.encodeSpeed(0, true, frame));
+        assertFrame("E4 12 00 03 82 77", steps28.encodeSpeed(1, true, frame));
+        assertFrame("E4 12 00 03 92 67", steps28.encodeSpeed(2, true, frame));
+        assertFrame("E4 12 00 03 9F 6A", steps28.encodeSpeed(28, true, frame));
+
+        XNetLocoEncoder steps14 = new XNetLocoEncoder(3, SpeedStepMode.STEPS_14);
+        assertFrame("E4 10 00 03 8F 78", steps14.encodeSpeed(14, true, frame));
+    }
+
+    @Test
+    void encodesFunctionGroups() {
+        XNetLocoEncoder encoder = new XNetLocoEncoder(3, SpeedStepMode.STEPS_128);
+        long f0AndF2 = (1L << 0) | (1L << 2);
+        assertFrame("E4 20 00 03 12 D5", encoder.encodeFunctionGroup(XNetLocoEncoder.FunctionGroup.F0_F4, f0AndF2, frame));
+        assertFrame("E4 21 00 03 00 C6", encoder.encodeFunctionGroup(XNetLocoEncoder.FunctionGroup.F5_F8, f0AndF2, frame));
+        assertFrame("E4 23 00 03 80 44",
+                encoder.encodeFunctionGroup(XNetLocoEncoder.FunctionGroup.F13_F20, 1L << 20, frame));
+        assertFrame("E4 28 00 03 81 4E",
+                encoder.encodeFunctionGroup(XNetLocoEncoder.FunctionGroup.F21_F28, (1L << 21) | (1L << 28), frame));
+
+        assertEquals(XNetLocoEncoder.FunctionGroup.F9_F12, XNetLocoEncoder.FunctionGroup.of(12));
+        assertNull(XNetLocoEncoder.FunctionGroup.of(29));
+        assertEquals(0x1E00L, XNetLocoEncoder.FunctionGroup.F9_F12.mask());
+    }
+
+    @Test
+    void encodesPerLocoEmergencyStop() {
+        byte[] stop = new byte[XNetLocoEncoder.EMERGENCY_STOP_FRAME_LENGTH];
+        assertFrame("92 00 03 91", new XNetLocoEncoder(3, SpeedStepMode.STEPS_128).encodeEmergencyStop(stop), stop);
+        assertFrame("92 C4 D2 84", new XNetLocoEncoder(1234, SpeedStepMode.STEPS_28).encodeEmergencyStop(stop), stop);
+    }
+
+    @Test
+    void rejectsOutOfRangeInput() {
+        assertThrows(IllegalArgumentException.class, () -> new XNetLocoEncoder(10000, SpeedStepMode.STEPS_128));
+        XNetLocoEncoder encoder = new XNetLocoEncoder(3, SpeedStepMode.STEPS_28);
+        assertThrows(IllegalArgumentException.class, () -> encoder.encodeSpeed(29, true, frame));
+    }
+
+    private void assertFrame(String expected, int length) {
+        assertFrame(expected, length, frame);
+    }
+
+    private static void assertFrame(String expected, int length, byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        int checksum = 0;
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02X", bytes[i] & 0xFF));
+            checksum ^= bytes[i] & 0xFF;
+        }
+        assertEquals(expected, sb.toString());
+        assertEquals(0, checksum, "XOR over the whole frame must be zero");
+    }
+}
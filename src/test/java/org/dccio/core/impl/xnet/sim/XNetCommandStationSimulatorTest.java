@@ -0,0 +1,144 @@
+package org.dccio.core.impl.xnet.sim;
+
+import org.dccio.core.SpeedStepMode;
+import org.dccio.core.impl.xnet.XNetLocoEncoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XNetCommandStationSimulatorTest {
+
+    private XNetCommandStationSimulator simulator;
+
+    @AfterEach
+    void tearDown() {
+        if (simulator != null) {
+            simulator.close();
+        }
+    }
+
+    @Test
+    void tracksLocoStateAndReportsItBack() throws Exception {
+        simulator = fast().build();
+        simulator.start();
+        XNetLocoEncoder encoder = new XNetLocoEncoder(1234, SpeedStepMode.STEPS_28);
+        byte[] frame = new byte[XNetLocoEncoder.LOCO_FRAME_LENGTH];
+
+        assertEquals("01 04 05", exchange(frame, encoder.encodeSpeed(17, false, frame)));
+        long functions = (1L << 0) | (1L << 3) | (1L << 22);
+        assertEquals("01 04 05", exchange(frame,
+                encoder.encodeFunctionGroup(XNetLocoEncoder.FunctionGroup.F0_F4, functions, frame)));
+        assertEquals("01 04 05", exchange(frame,
+                encoder.encodeFunctionGroup(XNetLocoEncoder.FunctionGroup.F21_F28, functions, frame)));
+
+        SimulatedLoco loco = simulator.getLoco(1234);
+        assertEquals(SpeedStepMode.STEPS_28, loco.getMode());
+        assertEquals(17, loco.getStep());
+        assertFalse(loco.isForward());
+        assertEquals(functions, loco.getFunctions());
+
+        // locomotive information: 28 steps, step 17 reverse, F0 and F3, F22
+        assertEquals("E4 02 0A 14 00 F8", exchange(hex("E3 00 C4 D2 F5")));
+        assertEquals("E3 52 00 02 B3", exchange(hex("E3 09 C4 D2 FC")));
+    }
+
+    @Test
+    void handlesPowerAndEmergencyStop() throws Exception {
+        simulator = fast().build();
+        simulator.start();
+        assertEquals("61 00 61", exchange(hex("21 80 A1")));
+        assertFalse(simulator.isTrackPowerOn());
+        assertEquals("62 22 01 41", exchange(hex("21 24 05")));
+        assertEquals("61 01 60", exchange(hex("21 81 A0")));
+        assertTrue(simulator.isTrackPowerOn());
+
+        XNetLocoEncoder encoder = new XNetLocoEncoder(3, SpeedStepMode.STEPS_128);
+        byte[] frame = new byte[XNetLocoEncoder.LOCO_FRAME_LENGTH];
+        exchange(frame, encoder.encodeSpeed(100, true, frame));
+        assertEquals("01 04 05", exchange(frame, encoder.encodeEmergencyStop(frame)));
+        assertEquals(0, simulator.getLoco(3).getStep());
+
+        assertEquals("81 00 81", exchange(hex("80 80")));
+        assertTrue(simulator.isEmergencyStopped());
+        assertEquals("63 21 36 00 74", exchange(hex("21 21 00")));
+    }
+
+    @Test
+    void storesOperationsModeWrites() throws Exception {
+        simulator = fast().build();
+        simulator.start();
+        // loco 1234, CV3 = 10
+        assertEquals("01 04 05", exchange(hex("E6 30 C4 D2 EC 02 0A 24")));
+        assertEquals(10, simulator.getCv(1234, 3));
+        assertNull(simulator.getCv(1234, 4));
+    }
+
+    @Test
+    void refusesCommandsWhenTrackQueueIsFull() throws Exception {
+        // one slow track packet at a time, so the second command finds the queue full
+        simulator = fast().trackPacketMicros(1_000_000).trackQueueSize(1).build();
+        simulator.start();
+        XNetLocoEncoder encoder = new XNetLocoEncoder(3, SpeedStepMode.STEPS_128);
+        byte[] frame = new byte[XNetLocoEncoder.LOCO_FRAME_LENGTH];
+
+        assertEquals("01 04 05", exchange(frame, encoder.encodeSpeed(10, true, frame)));
+        assertEquals("61 81 E0", exchange(frame, encoder.encodeSpeed(20, true, frame)));
+        assertEquals(10, simulator.getLoco(3).getStep());
+        assertEquals(1, simulator.getBusyReplies());
+        // requests that do not reach the track are still answered
+        assertEquals("63 21 36 00 74", exchange(hex("21 21 00")));
+    }
+
+    @Test
+    void rejectsBadChecksumsAndUnknownCommands() throws Exception {
+        simulator = fast().build();
+        simulator.start();
+        assertEquals("61 80 E1", exchange(hex("21 24 00")));
+        assertEquals(1, simulator.getTransferErrors());
+        assertEquals("61 82 E3", exchange(hex("21 10 31")));
+    }
+
+    @Test
+    void linkTimingFollowsBaudRate() throws Exception {
+        // 9600 baud: 3 bytes out, 3 bytes back, about 6.25 ms on the wire
+        simulator = XNetCommandStationSimulator.builder().baudRate(9600).replyLatencyMicros(0).build();
+        simulator.start();
+        long start = System.nanoTime();
+        exchange(hex("21 24 05"));
+        long elapsedMicros = (System.nanoTime() - start) / 1000;
+        assertTrue(elapsedMicros >= 6000, "round trip took " + elapsedMicros + " us");
+    }
+
+    private static XNetCommandStationSimulator.Builder fast() {
+        return XNetCommandStationSimulator.builder().baudRate(10_000_000).replyLatencyMicros(0).trackPacketMicros(0);
+    }
+
+    private String exchange(byte[] frame) throws IOException {
+        return exchange(frame, frame.length);
+    }
+
+    private String exchange(byte[] frame, int length) throws IOException {
+        simulator.getOutputStream().write(frame, 0, length);
+        simulator.getOutputStream().flush();
+        InputStream in = simulator.getInputStream();
+        int header = in.read();
+        StringBuilder sb = new StringBuilder(String.format("%02X", header));
+        for (int i = 0; i < (header & 0x0F) + 1; i++) {
+            sb.append(String.format(" %02X", in.read()));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] hex(String frame) {
+        String[] parts = frame.split(" ");
+        byte[] bytes = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,46 @@
+package org.dccio.core.impl.xnet.sim;
+
+import org.dccio.core.SystemConfig;
+import org.dccio.core.events.DccEventBus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XNetSimulatorConnectionTest {
+
+    private XNetSimulatorConnection connection;
+
+    @AfterEach
+    void tearDown() {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Test
+    void emergencyStopStopsLocosButLeavesTrackPowerOn() throws Exception {
+        connection = new XNetSimulatorConnection(SystemConfig.builder("sim", "xnet-simulator")
+                .option("baudRate", "10000000")
+                .option("replyLatencyMicros", "0")
+                .option("trackPacketMicros", "0")
+                .build(), new DccEventBus());
+        connection.connect();
+        XNetCommandStationSimulator simulator = connection.getSimulator();
+        assertTrue(simulator.isTrackPowerOn());
+
+        connection.emergencyStop();
+        waitFor(simulator::isEmergencyStopped);
+        assertTrue(simulator.isTrackPowerOn(), "an emergency stop must not cut track power");
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.dccio.core.lease;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeaseManagerTest {
+
+    private LeaseManager leases;
+
+    @AfterEach
+    void tearDown() {
+        if (leases != null) {
+            leases.close();
+        }
+    }
+
+    @Test
+    void holderRenewsWhileOthersAreRefused() {
+        leases = new LeaseManager(5000, 10);
+        assertTrue(leases.acquire(6, "a"));
+        assertTrue(leases.acquire(6, "a"));
+        assertFalse(leases.acquire(6, "b"));
+        assertEquals("a", leases.getOwner(6));
+
+        assertFalse(leases.release(6, "b"));
+        assertTrue(leases.release(6, "a"));
+        assertNull(leases.getOwner(6));
+        assertTrue(leases.acquire(6, "b"));
+    }
+
+    @Test
+    void leasesExpireOnTheWheelUnlessRenewed() throws Exception {
+        leases = new LeaseManager(60, 10);
+        assertTrue(leases.acquire(1, "a"));
+        assertTrue(leases.acquire(2, "a"));
+        // keep key 2 alive past its first deadline
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(15);
+            assertTrue(leases.acquire(2, "a"));
+        }
+        waitFor(() -> leases.size() == 1);
+        assertNull(leases.getOwner(1));
+        assertEquals("a", leases.getOwner(2));
+        assertEquals(1, leases.getExpiredCount());
+        assertTrue(leases.acquire(1, "b"));
+    }
+
+    @Test
+    void durationsFollowTheClientClass() throws Exception {
+        leases = new LeaseManager(5000, 10);
+        leases.setLeaseDuration("script", 30);
+        assertEquals(30, leases.getLeaseDuration("script"));
+        assertEquals(5000, leases.getLeaseDuration("handheld"));
+        assertThrows(IllegalArgumentException.class,
+                () -> leases.setLeaseDuration("forever", LeaseManager.MAX_LEASE_MS + 1));
+        assertEquals(5000, leases.getLeaseDuration("forever"));
+
+        assertTrue(leases.acquire(3, "a", "script"));
+        assertTrue(leases.acquire(4, "b", "handheld"));
+        waitFor(() -> leases.getOwner(3) == null);
+        assertTrue(leases.acquire(3, "c"));
+        assertFalse(leases.acquire(4, "c"));
+    }
+
+    @Test
+    void releaseAllFreesEverythingAClientHeld() {
+        leases = new LeaseManager(5000, 10);
+        leases.acquire(1, "a");
+        leases.acquire(2, "a");
+        leases.acquire(3, "b");
+        // held by "a" once, now by "b"
+        leases.acquire(4, "a");
+        leases.release(4, "a");
+        leases.acquire(4, "b");
+
+        assertEquals(2, leases.releaseAll("a"));
+        assertNull(leases.getOwner(1));
+        assertNull(leases.getOwner(2));
+        assertEquals("b", leases.getOwner(3));
+        assertEquals("b", leases.getOwner(4));
+        assertEquals(0, leases.releaseAll("a"));
+        assertTrue(leases.acquire(1, "b"));
+        assertEquals(3, leases.releaseAll("b"));
+        assertEquals(0, leases.size());
+    }
+
+    @Test
+    void releaseAllRacingNewGrantsLeavesNothingUnreleasable() throws Exception {
+        leases = new LeaseManager(5000, 10);
+        int keys = 64;
+        int rounds = 2_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> grants = pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < rounds; i++) {
+                    for (int k = 0; k < keys; k++) {
+                        leases.acquire(k, "a");
+                    }
+                }
+                return null;
+            });
+            Future<?> releases = pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < rounds; i++) {
+                    leases.releaseAll("a");
+                }
+                return null;
+            });
+            start.countDown();
+            grants.get(30, TimeUnit.SECONDS);
+            releases.get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        // every lease still held must be reachable through the owner index
+        leases.releaseAll("a");
+        assertEquals(0, leases.size());
+    }
+
+    @Test
+    void onlyOneOwnerAtATimeUnderContention() throws Exception {
+        leases = new LeaseManager(5000, 10);
+        int threads = 8;
+        int rounds = 20_000;
+        AtomicReference<String> holder = new AtomicReference<>();
+        AtomicInteger violations = new AtomicInteger();
+        AtomicInteger grants = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String me = "client" + t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < rounds; i++) {
+                        if (!leases.acquire(9, me)) {
+                            continue;
+                        }
+                        grants.incrementAndGet();
+                        String previous = holder.getAndSet(me);
+                        if (previous != null && !previous.equals(me)) {
+                            violations.incrementAndGet();
+                        }
+                        // hand over only after no longer claiming to hold it
+                        holder.compareAndSet(me, null);
+                        leases.release(9, me);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, violations.get());
+        assertTrue(grants.get() > threads);
+        assertEquals(0, leases.size());
+    }
+
+    @Test
+    void racingClientsGetExactlyOneGrantPerFreeKey() throws Exception {
+        leases = new LeaseManager(5000, 10);
+        int keys = 500;
+        int threads = 8;
+        AtomicInteger[] winners = new AtomicInteger[keys];
+        for (int k = 0; k < keys; k++) {
+            winners[k] = new AtomicInteger();
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String me = "client" + t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (int k = 0; k < keys; k++) {
+                        if (leases.acquire(k, me)) {
+                            winners[k].incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        for (int k = 0; k < keys; k++) {
+            assertEquals(1, winners[k].get(), "key " + k);
+        }
+        assertEquals(keys, leases.size());
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
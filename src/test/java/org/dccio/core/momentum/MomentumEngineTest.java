@@ -0,0 +1,165 @@
+package org.dccio.core.momentum;
+
+import org.dccio.core.SpeedStepMode;
+import org.dccio.core.ThrottleSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MomentumEngineTest {
+
+    private static final long NEVER_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final List<Float> sent = new ArrayList<>();
+    private MomentumEngine engine;
+
+    @AfterEach
+    void tearDown() {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    @Test
+    void rampsTowardTheTargetAtTheAccelerationRate() {
+        engine = new MomentumEngine("test", NEVER_MS, this::record);
+        StubSession session = new StubSession();
+        engine.setAcceleration("a:3", 1000);
+        assertTrue(engine.hasMomentum("a:3"));
+
+        long start = System.nanoTime();
+        engine.setTarget("a:3", session, 1.0f);
+        assertEquals(1.0f, engine.getTarget("a:3"));
+        engine.advance(start + TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(1, sent.size());
+        assertEquals(0.5f, sent.get(0), 0.01f);
+
+        engine.advance(start + TimeUnit.MILLISECONDS.toNanos(2000));
+        assertEquals(List.of(sent.get(0), 1.0f), sent);
+        assertNull(engine.getTarget("a:3"));
+        assertEquals(0, engine.getActiveCount());
+    }
+
+    @Test
+    void sendsOneSpeedPerStepBoundary() {
+        engine = new MomentumEngine("test", NEVER_MS, this::record);
+        StubSession session = new StubSession();
+        session.mode = SpeedStepMode.STEPS_28;
+        engine.setAcceleration("a:3", 1000);
+
+        long start = System.nanoTime();
+        engine.setTarget("a:3", session, 1.0f);
+        for (int ms = 1; ms <= 1100; ms++) {
+            engine.advance(start + TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+        assertEquals(28, sent.size());
+        assertEquals(28, engine.getStepCount());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(i + 1, SpeedStepMode.STEPS_28.toStep(sent.get(i)));
+        }
+    }
+
+    @Test
+    void newTargetContinuesFromWhereTheRampIs() {
+        engine = new MomentumEngine("test", NEVER_MS, this::record);
+        StubSession session = new StubSession();
+        engine.setAcceleration("a:3", 1000);
+
+        long start = System.nanoTime();
+        engine.setTarget("a:3", session, 1.0f);
+        engine.advance(start + TimeUnit.MILLISECONDS.toNanos(500));
+        float halfway = sent.get(0);
+
+        // no deceleration: slowing down happens at once
+        engine.setTarget("a:3", session, 0.25f);
+        engine.advance(start + TimeUnit.MILLISECONDS.toNanos(600));
+        assertEquals(List.of(halfway, 0.25f), sent);
+        assertEquals(0, engine.getActiveCount());
+    }
+
+    @Test
+    void cancelledRampsStopWhereTheyAre() {
+        engine = new MomentumEngine("test", NEVER_MS, this::record);
+        StubSession session = new StubSession();
+        engine.setAcceleration("a:3", 1000);
+        engine.setDeceleration("a:3", 1000);
+
+        long start = System.nanoTime();
+        engine.setTarget("a:3", session, 1.0f);
+        engine.cancel("a:3");
+        engine.advance(start + TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(sent.isEmpty());
+        assertTrue(engine.hasMomentum("a:3"));
+
+        engine.remove("a:3");
+        assertFalse(engine.hasMomentum("a:3"));
+        assertThrows(IllegalArgumentException.class, () -> engine.setAcceleration("a:3", -1));
+    }
+
+    private void record(String throttleId, ThrottleSession session, float speed) {
+        sent.add(speed);
+        ((StubSession) session).speed = speed;
+    }
+
+    private static final class StubSession implements ThrottleSession {
+        private volatile float speed;
+        private SpeedStepMode mode = SpeedStepMode.STEPS_128;
+
+        @Override
+        public String getConnectionId() {
+            return "a";
+        }
+
+        @Override
+        public int getAddress() {
+            return 3;
+        }
+
+        @Override
+        public boolean isLongAddress() {
+            return false;
+        }
+
+        @Override
+        public void setSpeed(float speed) {
+            this.speed = speed;
+        }
+
+        @Override
+        public void setDirection(boolean forward) {
+        }
+
+        @Override
+        public void setFunction(int functionNumber, boolean on) {
+        }
+
+        @Override
+        public SpeedStepMode getSpeedStepMode() {
+            return mode;
+        }
+
+        @Override
+        public float getSpeed() {
+            return speed;
+        }
+
+        @Override
+        public boolean getDirection() {
+            return true;
+        }
+
+        @Override
+        public boolean getFunction(int functionNumber) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.dccio.core.outbound;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandSchedulerTest {
+
+    private CommandScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    void higherPriorityClassesOvertakeQueuedTraffic() throws Exception {
+        scheduler = new CommandScheduler("test");
+        List<String> sent = new CopyOnWriteArrayList<>();
+        CountDownLatch release = block(scheduler);
+
+        scheduler.submit(CommandPriority.INFO, () -> sent.add("version"));
+        for (int i = 0; i < 3; i++) {
+            int address = i;
+            scheduler.submit(CommandPriority.ACCESSORY, () -> sent.add("turnout" + address));
+        }
+        scheduler.submit(CommandPriority.FUNCTION, () -> sent.add("f0"));
+        scheduler.submit(CommandPriority.SPEED, () -> sent.add("speed"));
+        CompletableFuture<Void> stop = scheduler.submit(CommandPriority.EMERGENCY, () -> sent.add("power-off"));
+
+        release.countDown();
+        stop.get(5, TimeUnit.SECONDS);
+        waitFor(() -> sent.size() == 7);
+        assertEquals(List.of("power-off", "speed", "f0", "turnout0", "turnout1", "turnout2", "version"), sent);
+    }
+
+    @Test
+    void speedCommandsAreCoalescedPerKey() throws Exception {
+        scheduler = new CommandScheduler("test");
+        List<String> sent = new CopyOnWriteArrayList<>();
+        CountDownLatch release = block(scheduler);
+
+        CompletableFuture<Void> first = scheduler.submit(CommandPriority.SPEED, "loco3", () -> sent.add("3@10"));
+        scheduler.submit(CommandPriority.SPEED, "loco4", () -> sent.add("4@50"));
+        CompletableFuture<Void> last = scheduler.submit(CommandPriority.SPEED, "loco3", () -> sent.add("3@30"));
+        assertSame(first, last);
+
+        SchedulerStats speed = scheduler.getStats().get(CommandPriority.SPEED.ordinal());
+        assertEquals(2, speed.getDepth());
+        assertEquals(3, speed.getSubmitted());
+        assertEquals(1, speed.getCoalesced());
+
+        release.countDown();
+        last.get(5, TimeUnit.SECONDS);
+        waitFor(() -> sent.size() == 2);
+        assertEquals(List.of("3@30", "4@50"), sent);
+        speed = scheduler.getStats().get(CommandPriority.SPEED.ordinal());
+        assertEquals(0, speed.getDepth());
+        assertEquals(2, speed.getSent());
+        assertTrue(speed.getMaxWaitMicros() > 0);
+    }
+
+    @Test
+    void cancelledCommandsAreNotSent() throws Exception {
+        scheduler = new CommandScheduler("test");
+        List<String> sent = new CopyOnWriteArrayList<>();
+        CountDownLatch release = block(scheduler);
+
+        CompletableFuture<Void> speed = scheduler.submit(CommandPriority.SPEED, "loco3", () -> sent.add("3@50"));
+        assertTrue(scheduler.cancel(CommandPriority.SPEED, "loco3"));
+        assertFalse(scheduler.cancel(CommandPriority.SPEED, "loco3"));
+        assertTrue(speed.isCancelled());
+        assertEquals(0, scheduler.getQueueDepth(CommandPriority.SPEED));
+
+        CompletableFuture<Void> stop = scheduler.submit(CommandPriority.EMERGENCY, () -> sent.add("estop"));
+        release.countDown();
+        stop.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("estop"), sent);
+    }
+
+    @Test
+    void trackedCommandsHoldTheWindowExceptForEmergencies() throws Exception {
+        scheduler = new CommandScheduler("test", 1, 5000);
+        List<String> sent = new CopyOnWriteArrayList<>();
+        AtomicReference<Runnable> pendingReply = new AtomicReference<>();
+
+        scheduler.submitTracked(CommandPriority.SPEED, "loco3", onComplete -> {
+            sent.add("speed");
+            pendingReply.set(onComplete);
+        });
+        waitFor(() -> pendingReply.get() != null);
+        CompletableFuture<Void> turnout = scheduler.submit(CommandPriority.ACCESSORY, () -> sent.add("turnout"));
+        CompletableFuture<Void> stop = scheduler.submit(CommandPriority.EMERGENCY, () -> sent.add("estop"));
+
+        stop.get(5, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getInFlight());
+        assertFalse(turnout.isDone());
+
+        pendingReply.get().run();
+        turnout.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("speed", "estop", "turnout"), sent);
+        assertEquals(0, scheduler.getInFlight());
+    }
+
+    @Test
+    void lostRepliesTimeOutAndFreeTheWindow() throws Exception {
+        scheduler = new CommandScheduler("test", 1, 50);
+        CompletableFuture<Void> lost = scheduler.submitTracked(CommandPriority.SPEED, null, onComplete -> { });
+        CompletableFuture<Void> next = scheduler.submit(CommandPriority.FUNCTION, () -> { });
+
+        next.get(5, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> lost.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals(1, scheduler.getTimeouts());
+    }
+
+    @Test
+    void commandsAwaitingAReplyHoldTheWindowUntilTheConnectionSeesOne() throws Exception {
+        scheduler = new CommandScheduler("test", 1, 5000);
+        List<String> sent = new CopyOnWriteArrayList<>();
+
+        scheduler.callAwaitingReply(CommandPriority.ACCESSORY, null, () -> sent.add("turnout"));
+        CompletableFuture<Void> function = scheduler.submitAwaitingReply(CommandPriority.FUNCTION, null,
+                () -> sent.add("f1"));
+        CompletableFuture<Void> stop = scheduler.submit(CommandPriority.EMERGENCY, () -> sent.add("estop"));
+
+        stop.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("turnout", "estop"), sent);
+        assertEquals(1, scheduler.getInFlight());
+
+        scheduler.replyReceived();
+        waitFor(() -> sent.size() == 3);
+        assertFalse(function.isDone());
+        scheduler.replyReceived();
+        function.get(5, TimeUnit.SECONDS);
+        assertEquals(0, scheduler.getInFlight());
+        assertTrue(scheduler.getAverageReplyMicros() > 0);
+
+        IOException e = assertThrows(IOException.class, () -> scheduler.callAwaitingReply(
+                CommandPriority.ACCESSORY, null, () -> {
+                    throw new IOException("Turnout 12 failed");
+                }));
+        assertEquals("Turnout 12 failed", e.getMessage());
+        assertEquals(0, scheduler.getInFlight());
+    }
+
+    @Test
+    void callPropagatesFailuresAndCloseRejectsNewCommands() {
+        scheduler = new CommandScheduler("test");
+        IOException e = assertThrows(IOException.class, () -> scheduler.call(CommandPriority.EMERGENCY, () -> {
+            throw new IOException("Failed to set power");
+        }));
+        assertEquals("Failed to set power", e.getMessage());
+        assertEquals(1, scheduler.getStats().get(CommandPriority.EMERGENCY.ordinal()).getFailed());
+
+        scheduler.close();
+        assertThrows(IOException.class, () -> scheduler.call(CommandPriority.INFO, () -> { }));
+    }
+
+    /**
+     * Occupy the dispatcher thread until the returned latch is released, so
+     * that subsequent submissions queue up.
+     */
+    private static CountDownLatch block(CommandScheduler scheduler) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(CommandPriority.INFO, () -> {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
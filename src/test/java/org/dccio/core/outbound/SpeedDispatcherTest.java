@@ -0,0 +1,243 @@
+package org.dccio.core.outbound;
+
+import org.dccio.core.SpeedStepMode;
+import org.dccio.core.ThrottleSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpeedDispatcherTest {
+
+    private static final long NEVER_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final List<String> sent = new ArrayList<>();
+    private final List<List<String>> bursts = new ArrayList<>();
+    private SpeedDispatcher dispatcher;
+
+    @AfterEach
+    void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    void latestSpeedOfEachThrottleGoesOutInOneBurst() {
+        dispatcher = new SpeedDispatcher("test", NEVER_MS, () -> 0, this::record);
+        StubSession three = new StubSession(3);
+        StubSession four = new StubSession(4);
+        dispatcher.update("a:3", three, 0.1f);
+        dispatcher.update("a:3", three, 0.2f);
+        dispatcher.update("a:4", four, 0.5f);
+        dispatcher.update("a:3", three, 0.3f);
+        assertEquals(2, dispatcher.getPendingCount());
+
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("3@0.3", "4@0.5"), sent);
+        assertEquals(List.of(List.of("a:3@0.3", "a:4@0.5")), bursts);
+        assertEquals(0, dispatcher.getPendingCount());
+
+        // nothing changed, nothing sent
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(1, bursts.size());
+    }
+
+    @Test
+    void eachLocomotiveWaitsOutItsInterval() {
+        dispatcher = new SpeedDispatcher("test", NEVER_MS, () -> 100, this::record);
+        StubSession three = new StubSession(3);
+        long start = System.nanoTime();
+        dispatcher.update("a:3", three, 0.1f);
+        dispatcher.collectAndSend(start);
+        dispatcher.update("a:3", three, 0.6f);
+
+        dispatcher.collectAndSend(start + TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(List.of("3@0.1"), sent);
+        assertEquals(1, dispatcher.getPendingCount());
+
+        dispatcher.collectAndSend(start + TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(List.of("3@0.1", "3@0.6"), sent);
+    }
+
+    @Test
+    void burstsStartOneThrottleFurtherRoundEachTick() {
+        dispatcher = new SpeedDispatcher("test", NEVER_MS, () -> 0, this::record);
+        StubSession[] sessions = {new StubSession(1), new StubSession(2), new StubSession(3)};
+        float[] speeds = {0.25f, 0.5f, 0.75f};
+        for (float speed : speeds) {
+            for (StubSession session : sessions) {
+                dispatcher.update("a:" + session.address, session, speed);
+            }
+            dispatcher.collectAndSend(System.nanoTime());
+        }
+        assertEquals(List.of(
+                List.of("a:1@0.25", "a:2@0.25", "a:3@0.25"),
+                List.of("a:2@0.5", "a:3@0.5", "a:1@0.5"),
+                List.of("a:3@0.75", "a:1@0.75", "a:2@0.75")), bursts);
+    }
+
+    @Test
+    void speedsOnTheSameStepAreNotSent() {
+        dispatcher = new SpeedDispatcher("test", NEVER_MS, () -> 0, this::record);
+        StubSession three = new StubSession(3);
+        three.mode = SpeedStepMode.STEPS_28;
+        // 0.5 and 0.51 are both step 14 of 28
+        assertTrue(dispatcher.update("a:3", three, 0.5f));
+        assertFalse(dispatcher.update("a:3", three, 0.51f));
+        dispatcher.collectAndSend(System.nanoTime());
+        assertFalse(dispatcher.update("a:3", three, 0.49f));
+        assertFalse(dispatcher.update("a:3", three, 0.51f));
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("3@0.5"), sent);
+        assertEquals(1, bursts.size());
+
+        // moved back to its old step while a new one was waiting
+        assertTrue(dispatcher.update("a:3", three, 0.6f));
+        three.speed = 0.59f;
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("3@0.5"), sent);
+        assertEquals(1, dispatcher.getSentCount());
+        assertEquals(4, dispatcher.getSuppressedCount());
+
+        // stop is always step 0
+        assertTrue(dispatcher.update("a:3", three, 0f));
+        assertFalse(dispatcher.update("a:3", three, 0.01f));
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("3@0.5", "3@0.0"), sent);
+    }
+
+    @Test
+    void aFailingSessionDoesNotCostTheRestOfTheBurst() {
+        dispatcher = new SpeedDispatcher("test", NEVER_MS, () -> 0, this::record);
+        StubSession three = new StubSession(3);
+        StubSession four = new StubSession(4);
+        three.failure = new IllegalStateException("throttle released");
+        dispatcher.update("a:3", three, 0.5f);
+        dispatcher.update("a:4", four, 0.5f);
+
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("4@0.5"), sent);
+        assertEquals(List.of(List.of("a:4@0.5")), bursts);
+    }
+
+    @Test
+    void removedThrottlesLeaveTheRoundRobin() {
+        dispatcher = new SpeedDispatcher("test", NEVER_MS, () -> 0, this::record);
+        StubSession three = new StubSession(3);
+        StubSession four = new StubSession(4);
+        dispatcher.update("a:3", three, 0.5f);
+        dispatcher.update("a:4", four, 0.5f);
+
+        // a session reopened under the same id keeps its slot
+        assertFalse(dispatcher.remove("a:3", new StubSession(3)));
+        assertTrue(dispatcher.remove("a:3", three));
+        assertFalse(dispatcher.remove("a:3", three));
+        assertEquals(1, dispatcher.getPendingCount());
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("4@0.5"), sent);
+
+        assertTrue(dispatcher.remove("a:4", four));
+        assertTrue(dispatcher.isEmpty());
+        dispatcher.update("a:3", three, 0.7f);
+        dispatcher.collectAndSend(System.nanoTime());
+        assertEquals(List.of("4@0.5", "3@0.7"), sent);
+    }
+
+    @Test
+    void dispatcherThreadSendsOnItsTick() throws Exception {
+        BlockingQueue<List<String>> received = new LinkedBlockingQueue<>();
+        dispatcher = new SpeedDispatcher("test", 10, () -> 0, burst -> {
+            List<String> ids = new ArrayList<>();
+            for (SpeedDispatcher.Slot slot : burst) {
+                ids.add(slot.getThrottleId());
+            }
+            received.add(ids);
+        });
+        StubSession seven = new StubSession(7);
+        dispatcher.update("a:7", seven, 1.0f);
+        assertEquals(List.of("a:7"), received.poll(5, TimeUnit.SECONDS));
+        assertEquals(1.0f, seven.getSpeed());
+    }
+
+    private void record(List<SpeedDispatcher.Slot> burst) {
+        List<String> ids = new ArrayList<>();
+        for (SpeedDispatcher.Slot slot : burst) {
+            ids.add(slot.getThrottleId() + "@" + slot.getSentSpeed());
+        }
+        bursts.add(ids);
+    }
+
+    private final class StubSession implements ThrottleSession {
+        private final int address;
+        private volatile float speed;
+        private SpeedStepMode mode = SpeedStepMode.STEPS_128;
+        private RuntimeException failure;
+
+        StubSession(int address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getConnectionId() {
+            return "a";
+        }
+
+        @Override
+        public int getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isLongAddress() {
+            return false;
+        }
+
+        @Override
+        public void setSpeed(float speed) {
+            if (failure != null) {
+                throw failure;
+            }
+            this.speed = speed;
+            sent.add(address + "@" + speed);
+        }
+
+        @Override
+        public void setDirection(boolean forward) {
+        }
+
+        @Override
+        public void setFunction(int functionNumber, boolean on) {
+        }
+
+        @Override
+        public SpeedStepMode getSpeedStepMode() {
+            return mode;
+        }
+
+        @Override
+        public float getSpeed() {
+            return speed;
+        }
+
+        @Override
+        public boolean getDirection() {
+            return true;
+        }
+
+        @Override
+        public boolean getFunction(int functionNumber) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.dccio.core.outbound;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpeedPacerTest {
+
+    private final CommandScheduler scheduler = new CommandScheduler("test");
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    void quietConnectionRunsAtMinimumInterval() {
+        SpeedPacer pacer = new SpeedPacer(scheduler);
+        assertEquals(SpeedPacer.MIN_INTERVAL_MS, pacer.nextInterval(1));
+        assertEquals(SpeedPacer.MIN_INTERVAL_MS, pacer.getIntervalMillis());
+    }
+
+    @Test
+    void intervalFollowsReplyTimeAndThrottleCount() throws Exception {
+        CountDownLatch replied = new CountDownLatch(1);
+        scheduler.submitTracked(CommandPriority.SPEED, null, onComplete -> new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            onComplete.run();
+            replied.countDown();
+        }).start());
+        assertTrue(replied.await(5, TimeUnit.SECONDS));
+        long replyMicros = scheduler.getAverageReplyMicros();
+        assertTrue(replyMicros >= 100_000, "reply time " + replyMicros);
+
+        SpeedPacer pacer = new SpeedPacer(scheduler);
+        // 5 throttles sharing half of a 2-slot window: 5 * rtt / 2 / 0.5
+        long interval = pacer.nextInterval(5);
+        assertEquals(Math.round(5 * replyMicros / 1000.0), interval, 1);
+        assertEquals(5, pacer.getActiveThrottles());
+    }
+
+    @Test
+    void repliesReportedByTheConnectionAreMeasuredToo() throws Exception {
+        // a JMRI throttle on DCC++ or NCE: the connection only sees the reply
+        scheduler.submitAwaitingReply(CommandPriority.SPEED, "loco3", () -> { });
+        waitFor(() -> scheduler.getInFlight() == 1);
+        Thread.sleep(100);
+        scheduler.replyReceived();
+        long replyMicros = scheduler.getAverageReplyMicros();
+        assertTrue(replyMicros >= 100_000, "reply time " + replyMicros);
+
+        SpeedPacer pacer = new SpeedPacer(scheduler);
+        assertEquals(Math.round(5 * replyMicros / 1000.0), pacer.nextInterval(5), 1);
+    }
+
+    @Test
+    void intervalIsClampedAndSmoothed() {
+        SpeedPacer pacer = new SpeedPacer(scheduler);
+        // default 10 ms reply estimate, 1000 throttles would need 10 s
+        assertEquals(SpeedPacer.MAX_INTERVAL_MS, pacer.nextInterval(1000));
+
+        // dropping back to one throttle eases the interval down rather than jumping
+        long next = pacer.nextInterval(1);
+        assertTrue(next > SpeedPacer.MIN_INTERVAL_MS && next < SpeedPacer.MAX_INTERVAL_MS, "interval " + next);
+        assertTrue(pacer.nextInterval(1) < next);
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
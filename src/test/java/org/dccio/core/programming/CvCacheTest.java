@@ -0,0 +1,53 @@
+package org.dccio.core.programming;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CvCacheTest {
+
+    private static final CvCache.DecoderKey DECODER = new CvCache.DecoderKey("xnet-1", 3, 145, 42);
+
+    @Test
+    void staleEntriesAreNotServed() {
+        CvCache cache = new CvCache(null);
+        cache.identify(DECODER);
+        cache.put(DECODER, 1, 3);
+        cache.putUnverified(DECODER, 29, 38);
+
+        assertEquals(3, cache.get(DECODER, 1));
+        assertNull(cache.get(DECODER, 29));
+        assertNull(cache.get(new CvCache.DecoderKey("xnet-1", 3, 151, 42), 1));
+        assertArrayEquals(new int[] {29}, cache.getStaleCvs(DECODER));
+
+        cache.invalidate(DECODER, 1);
+        assertNull(cache.get(DECODER, 1));
+        assertArrayEquals(new int[] {1, 29}, cache.getStaleCvs(DECODER));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        cache.invalidateDecoder(DECODER);
+        assertEquals(0, cache.size(DECODER));
+        assertNull(cache.getLastIdentified("xnet-1", 3));
+    }
+
+    @Test
+    void savedCacheIsReloaded(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("cache").resolve("cv-cache.json");
+        CvCache cache = new CvCache(file);
+        cache.identify(DECODER);
+        cache.put(DECODER, 1, 3);
+        cache.putUnverified(DECODER, 29, 38);
+        cache.save();
+
+        CvCache reloaded = CvCache.open(file);
+        assertEquals(3, reloaded.get(DECODER, 1));
+        assertEquals(145, reloaded.get(DECODER, CvCache.CV_MANUFACTURER));
+        assertNull(reloaded.get(DECODER, 29));
+        assertArrayEquals(new int[] {29}, reloaded.getStaleCvs(DECODER));
+        assertEquals(DECODER, reloaded.getLastIdentified("xnet-1", 3));
+    }
+}
@@ -0,0 +1,99 @@
+package org.dccio.core.programming;
+
+import org.dccio.core.OpsModeProgrammer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpsModeQueueTest {
+
+    private FakeOpsProgrammer programmer;
+    private OpsModeQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        programmer = new FakeOpsProgrammer();
+        queue = new OpsModeQueue("test", () -> programmer, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.close();
+    }
+
+    @Test
+    void writesEveryCvToEveryLocoOneAtATime() throws Exception {
+        OpsModeJob job = queue.write(List.of(target(3), target(4)), new int[] {3, 4}, new int[] {20, 15});
+        List<OpsModeJob.Result> results = job.getFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of("3:3=20", "3:4=15", "4:3=20", "4:4=15"), programmer.writes);
+        assertEquals(1, programmer.maxOutstanding);
+        assertEquals(2, results.get(0).getWritten());
+        assertNull(results.get(1).getError());
+        assertEquals(4, job.getCompleted());
+    }
+
+    @Test
+    void failingLocoIsSkippedAndOthersAreStillWritten() throws Exception {
+        programmer.failing = 4;
+        OpsModeJob job = queue.write(List.of(target(3), target(4), target(5)), new int[] {3, 4}, new int[] {20, 15});
+        List<OpsModeJob.Result> results = job.getFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(ProgrammingJob.State.COMPLETED, job.getState());
+        assertEquals(0, results.get(1).getWritten());
+        assertTrue(results.get(1).getError().contains("no acknowledgement"));
+        assertEquals(2, results.get(2).getWritten());
+        assertEquals(6, job.getCompleted());
+        // one attempt at loco 4, then straight on to loco 5
+        assertEquals(5, programmer.writes.size());
+    }
+
+    @Test
+    void invalidJobsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> queue.write(List.of(), new int[] {3}, new int[] {1}));
+        assertThrows(IllegalArgumentException.class, () -> queue.write(List.of(target(0)), new int[] {3}, new int[] {1}));
+        assertThrows(IllegalArgumentException.class, () -> queue.write(List.of(target(3)), new int[] {3}, new int[] {300}));
+    }
+
+    private static OpsModeJob.Target target(int address) {
+        return new OpsModeJob.Target(address, false);
+    }
+
+    private static final class FakeOpsProgrammer implements OpsModeProgrammer {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        volatile int failing;
+        private int outstanding; // guarded by this
+        volatile int maxOutstanding;
+
+        @Override
+        public String getConnectionId() {
+            return "test";
+        }
+
+        @Override
+        public CompletableFuture<Void> writeCvAsync(int address, boolean longAddress, int cv, int value) {
+            writes.add(address + ":" + cv + "=" + value);
+            synchronized (this) {
+                maxOutstanding = Math.max(maxOutstanding, ++outstanding);
+            }
+            // complete from another thread, as a command station reply would
+            return CompletableFuture.runAsync(() -> {
+                synchronized (this) {
+                    outstanding--;
+                }
+                if (address == failing) {
+                    throw new RuntimeException(new IOException("no acknowledgement"));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.dccio.core.programming;
+
+import org.dccio.core.ProgrammerSession;
+import org.dccio.core.events.DccEventBus;
+import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.ProgrammingEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgrammingQueueTest {
+
+    private FakeProgrammer programmer;
+    private DccEventBus eventBus;
+    private List<ProgrammingEvent> events;
+    private ProgrammingQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        programmer = new FakeProgrammer();
+        eventBus = new DccEventBus();
+        events = Collections.synchronizedList(new ArrayList<>());
+        eventBus.addListener(e -> events.add((ProgrammingEvent) e), EnumSet.of(DccEventType.PROGRAMMING_PROGRESS));
+        queue = new ProgrammingQueue("test", () -> programmer, eventBus);
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.close();
+    }
+
+    @Test
+    void readRangeReturnsValuesInOrderAndReportsProgress() throws Exception {
+        programmer.cvs.put(1, 3);
+        programmer.cvs.put(2, 10);
+        programmer.cvs.put(3, 20);
+
+        ProgrammingJob job = queue.readRange(1, 3);
+        Map<Integer, Integer> results = job.getFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of(1, 2, 3), new ArrayList<>(results.keySet()));
+        assertEquals(10, results.get(2));
+        assertEquals(ProgrammingJob.State.COMPLETED, job.getState());
+        assertEquals(3, job.getCompleted());
+
+        // the future completes just before the final event is published
+        ProgrammingEvent last = awaitFinishedEvent();
+        assertEquals(ProgrammingJob.State.COMPLETED, last.getState());
+        assertEquals(3, ((Map<?, ?>) last.getPayload().get("results")).size());
+        assertTrue(events.stream().anyMatch(e -> e.getCv() == 2 && Integer.valueOf(10).equals(e.getValue())));
+    }
+
+    @Test
+    void failedCvIsRecordedAndJobContinues() throws Exception {
+        programmer.cvs.put(1, 3);
+        programmer.cvs.put(8, 145);
+
+        ProgrammingJob job = queue.read(1, 7, 8);
+        Map<Integer, Integer> results = job.getFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, results.size());
+        assertEquals(145, results.get(8));
+        assertTrue(job.getFailures().containsKey(7));
+        assertEquals(3, job.getCompleted());
+    }
+
+    @Test
+    void writeSendsValuesAndJobsRunOneAfterAnother() throws Exception {
+        ProgrammingJob write = queue.write(new int[] {1, 29}, new int[] {5, 6});
+        ProgrammingJob read = queue.read(29);
+
+        assertEquals(6, read.getFuture().get(5, TimeUnit.SECONDS).get(29));
+        assertEquals(ProgrammingJob.State.COMPLETED, write.getState());
+        assertEquals(5, programmer.cvs.get(1));
+    }
+
+    @Test
+    void cancelStopsRunningJobAfterCurrentCvAndSkipsQueuedJob() throws Exception {
+        programmer.hold = true;
+        ProgrammingJob running = queue.readRange(1, 5);
+        ProgrammingJob queued = queue.read(1);
+        programmer.awaitPending();
+
+        assertTrue(queue.cancel(queued.getId()));
+        assertEquals(ProgrammingJob.State.CANCELLED, queued.getState());
+        assertTrue(queue.cancel(running.getId()));
+        programmer.release(1, 3);
+
+        assertThrows(CancellationException.class, () -> running.getFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(1, running.getCompleted());
+        assertEquals(1, programmer.operations);
+        assertFalse(queue.cancel("job-unknown"));
+    }
+
+    @Test
+    void missingProgrammerFailsJob() {
+        ProgrammingQueue noProgrammer = new ProgrammingQueue("none", () -> null, eventBus);
+        try {
+            ProgrammingJob job = noProgrammer.read(1);
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> job.getFuture().get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals(ProgrammingJob.State.FAILED, job.getState());
+        } finally {
+            noProgrammer.close();
+        }
+    }
+
+    @Test
+    void cachedReadsSkipTheProgrammingTrackAndWritesNeedVerifying() throws Exception {
+        queue.setCache(new CvCache(null));
+        programmer.cvs.put(8, 145);
+        programmer.cvs.put(7, 42);
+        programmer.cvs.put(1, 3);
+        programmer.cvs.put(29, 6);
+
+        queue.read(3, new int[] {1, 29}).getFuture().get(5, TimeUnit.SECONDS);
+        int afterFirstRead = programmer.operations;
+        assertEquals(4, afterFirstRead); // CV8, CV7, CV1, CV29
+
+        ProgrammingJob again = queue.read(3, new int[] {1, 29});
+        assertEquals(Map.of(1, 3, 29, 6), again.getFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(2, again.getCacheHits());
+        assertEquals(afterFirstRead + 2, programmer.operations); // identification only
+        assertEquals(145, again.getDecoder().getManufacturer());
+
+        queue.write(3, new int[] {29}, new int[] {38}).getFuture().get(5, TimeUnit.SECONDS);
+        ProgrammingJob verify = queue.verify(3);
+        assertArrayEquals(new int[] {29}, verify.getCvs());
+        assertEquals(38, verify.getFuture().get(5, TimeUnit.SECONDS).get(29));
+
+        ProgrammingJob cached = queue.read(3, new int[] {29});
+        assertEquals(38, cached.getFuture().get(5, TimeUnit.SECONDS).get(29));
+        assertEquals(1, cached.getCacheHits());
+    }
+
+    @Test
+    void verifyFailsWhenADifferentDecoderAnswers() throws Exception {
+        queue.setCache(new CvCache(null));
+        programmer.cvs.put(8, 145);
+        programmer.cvs.put(7, 42);
+        queue.write(3, new int[] {3}, new int[] {10}).getFuture().get(5, TimeUnit.SECONDS);
+
+        programmer.cvs.put(8, 151);
+        ProgrammingJob verify = queue.verify(3);
+        assertThrows(ExecutionException.class, () -> verify.getFuture().get(5, TimeUnit.SECONDS));
+        assertTrue(verify.getError().startsWith("Decoder changed"));
+        assertThrows(java.util.NoSuchElementException.class, () -> queue.verify(4));
+    }
+
+    @Test
+    void invalidRequestsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> queue.read());
+        assertThrows(IllegalArgumentException.class, () -> queue.read(0));
+        assertThrows(IllegalArgumentException.class, () -> queue.readRange(5, 1));
+        assertThrows(IllegalArgumentException.class, () -> queue.write(new int[] {1}, new int[] {256}));
+        assertThrows(IllegalArgumentException.class, () -> queue.write(new int[] {1, 2}, new int[] {1}));
+        assertThrows(IllegalArgumentException.class, () -> queue.read(0, new int[] {1}));
+        assertThrows(IllegalStateException.class, () -> queue.verify(3));
+    }
+
+    private ProgrammingEvent awaitFinishedEvent() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (events) {
+                if (!events.isEmpty() && events.get(events.size() - 1).getState().isFinished()) {
+                    return events.get(events.size() - 1);
+                }
+            }
+            Thread.sleep(10);
+        }
+        return fail("job never published a final event");
+    }
+
+    private static final class FakeProgrammer implements ProgrammerSession {
+        final Map<Integer, Integer> cvs = new ConcurrentHashMap<>();
+        volatile boolean hold;
+        volatile int operations; // written under this
+        private CompletableFuture<Integer> pending; // guarded by this
+
+        @Override
+        public String getConnectionId() {
+            return "test";
+        }
+
+        @Override
+        public synchronized CompletableFuture<Integer> readCvAsync(int cv) {
+            operations++;
+            if (hold) {
+                pending = new CompletableFuture<>();
+                notifyAll();
+                return pending;
+            }
+            Integer value = cvs.get(cv);
+            if (value == null) {
+                return CompletableFuture.failedFuture(new IOException("Read CV failed, status=4"));
+            }
+            return CompletableFuture.completedFuture(value);
+        }
+
+        @Override
+        public synchronized CompletableFuture<Void> writeCvAsync(int cv, int value) {
+            operations++;
+            cvs.put(cv, value);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        synchronized void awaitPending() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pending == null && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertNotNull(pending, "no CV read started");
+        }
+
+        void release(int cv, int value) {
+            CompletableFuture<Integer> future;
+            synchronized (this) {
+                future = pending;
+                pending = null;
+            }
+            future.complete(value);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
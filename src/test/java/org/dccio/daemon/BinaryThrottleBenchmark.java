@@ -0,0 +1,260 @@
+package org.dccio.daemon;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.dccio.core.ThrottleSession;
+import org.dccio.core.lease.LeaseManager;
+import org.dccio.core.outbound.SpeedDispatcher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the binary throttle protocol with the JSON path: bytes on the
+ * wire and server CPU per speed update, counting the request, its reply,
+ * the dispatcher sending it and the patches broadcast to subscribers. Not
+ * a unit test; run it by hand:
+ * <pre>
+ * java -cp "target/dcc-io-daemon-0.1.0-SNAPSHOT-jar-with-dependencies.jar:target/test-classes" \
+ *     org.dccio.daemon.BinaryThrottleBenchmark [updates] [rounds]
+ * </pre>
+ * Each round runs both paths, JSON first; the first round is a warm-up and
+ * is not reported.
+ */
+public final class BinaryThrottleBenchmark {
+
+    private static final String CLIENT = "bench";
+    // long enough never to fire; the benchmark ticks the dispatcher itself,
+    // so its work is counted on this thread
+    private static final long MANUAL_TICK_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long SPEED_INTERVAL_MS = 1;
+
+    private final JsonMessageHandler messageHandler = new JsonMessageHandler();
+    private final JsonThrottleHandler throttles;
+    private final Gson gson = new Gson();
+    // serialized the way the WebSocket handler would for each kind of client
+    private long jsonPatchBytes;
+    private long binaryPatchBytes;
+    private boolean binary;
+    // dispatcher clock, one interval on per update so every update is due
+    private long now = System.nanoTime();
+
+    private BinaryThrottleBenchmark() {
+        throttles = new JsonThrottleHandler(new BenchThrottleService(), SPEED_INTERVAL_MS, new LeaseManager(), MANUAL_TICK_MS);
+        throttles.setBroadcaster(message -> {
+            if (binary) {
+                binaryPatchBytes += BinaryThrottleProtocol.encodePatch(message).length;
+            } else {
+                jsonPatchBytes += message.toString().getBytes(StandardCharsets.UTF_8).length;
+            }
+        });
+        messageHandler.registerTypeHandler("throttle", throttles);
+        messageHandler.registerTypeHandler("throttles", throttles);
+    }
+
+    public static void main(String[] args) {
+        int updates = 100_000;
+        int rounds = 5;
+        try {
+            if (args.length > 0) {
+                updates = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                rounds = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Usage: BinaryThrottleBenchmark [updates] [rounds]: " + e.getMessage());
+            System.exit(2);
+        }
+        BinaryThrottleBenchmark bench = new BinaryThrottleBenchmark();
+        try {
+            bench.run(updates, rounds);
+        } finally {
+            bench.throttles.shutdown();
+        }
+    }
+
+    private void run(int updates, int rounds) {
+        ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        System.out.printf("%d speed updates per path, %d rounds after a warm-up%n", updates, rounds);
+        System.out.println("path   request  reply  patches  CPU/update");
+        for (int round = 0; round <= rounds; round++) {
+            binary = false;
+            jsonPatchBytes = 0;
+            long start = cpu.getCurrentThreadCpuTime();
+            long[] json = jsonUpdates(updates);
+            long jsonNanos = cpu.getCurrentThreadCpuTime() - start;
+
+            binary = true;
+            binaryPatchBytes = 0;
+            start = cpu.getCurrentThreadCpuTime();
+            long[] bin = binaryUpdates(updates);
+            long binaryNanos = cpu.getCurrentThreadCpuTime() - start;
+
+            if (round == 0) {
+                continue;
+            }
+            report("JSON", json, jsonPatchBytes, jsonNanos, updates);
+            report("binary", bin, binaryPatchBytes, binaryNanos, updates);
+        }
+    }
+
+    private static void report(String path, long[] bytes, long patchBytes, long cpuNanos, int updates) {
+        System.out.printf("%-6s %5d B %5d B %6d B %8.2f us%n", path,
+                bytes[0] / updates, bytes[1] / updates, patchBytes / updates, cpuNanos / 1000.0 / updates);
+    }
+
+    /**
+     * Speed updates as JSON text frames, parsed as the WebSocket handler
+     * does, alternating between two speeds so each one changes something.
+     *
+     * @return request and reply bytes
+     */
+    private long[] jsonUpdates(int updates) {
+        long[] bytes = new long[2];
+        for (int i = 0; i < updates; i++) {
+            String text = "{\"type\":\"throttle\",\"method\":\"post\",\"id\":\"" + i
+                    + "\",\"data\":{\"address\":3,\"speed\":" + (i % 2 == 0 ? 0.2 : 0.8) + "}}";
+            JsonObject message = gson.fromJson(text, JsonObject.class);
+            message.addProperty("clientId", CLIENT);
+            bytes[0] += text.getBytes(StandardCharsets.UTF_8).length;
+            bytes[1] += messageHandler.handleSerialized(message).length;
+            dispatch();
+        }
+        return bytes;
+    }
+
+    /**
+     * The same updates as binary SPEED frames.
+     *
+     * @return request and reply bytes
+     */
+    private long[] binaryUpdates(int updates) {
+        long[] bytes = new long[2];
+        for (int i = 0; i < updates; i++) {
+            byte[] frame = {BinaryThrottleProtocol.SPEED, (byte) (i >> 8), (byte) i, 0, 3, (byte) (i % 2 == 0 ? 51 : 204)};
+            byte[] ack = messageHandler.handleBinary(ByteBuffer.wrap(frame), CLIENT);
+            int status = ByteBuffer.wrap(ack).getShort(3);
+            if (status != BinaryThrottleProtocol.CHANGED) {
+                throw new IllegalStateException("Binary update " + i + " answered " + status);
+            }
+            bytes[0] += frame.length;
+            bytes[1] += ack.length;
+            dispatch();
+        }
+        return bytes;
+    }
+
+    /** One dispatcher tick, as the dispatcher thread would run it. */
+    private void dispatch() {
+        now += TimeUnit.MILLISECONDS.toNanos(SPEED_INTERVAL_MS);
+        for (SpeedDispatcher dispatcher : throttles.getSpeedDispatchers()) {
+            dispatcher.collectAndSend(now);
+        }
+    }
+
+    /**
+     * Throttles that only remember their state, so the handler and the
+     * encoding are all that is measured.
+     */
+    private static final class BenchThrottleService implements JsonThrottleHandler.ThrottleService {
+        private final Map<String, BenchThrottleSession> sessions = new ConcurrentHashMap<>();
+
+        @Override
+        public String openThrottle(String connectionId, int address, boolean longAddress) {
+            String conn = connectionId == null ? "bench" : connectionId;
+            String id = conn + ":" + address + ":" + longAddress;
+            sessions.computeIfAbsent(id, k -> new BenchThrottleSession(conn, address, longAddress));
+            return id;
+        }
+
+        @Override
+        public ThrottleSession getThrottle(String throttleId) {
+            return sessions.get(throttleId);
+        }
+
+        @Override
+        public Collection<ThrottleSession> getThrottles() {
+            return Collections.unmodifiableCollection(sessions.values());
+        }
+
+        @Override
+        public void closeThrottle(String throttleId) {
+            BenchThrottleSession session = sessions.remove(throttleId);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private static final class BenchThrottleSession implements ThrottleSession {
+        private final String connectionId;
+        private final int address;
+        private final boolean longAddress;
+        private final Map<Integer, Boolean> functions = new ConcurrentHashMap<>();
+        private volatile float speed;
+        private volatile boolean forward = true;
+
+        private BenchThrottleSession(String connectionId, int address, boolean longAddress) {
+            this.connectionId = connectionId;
+            this.address = address;
+            this.longAddress = longAddress;
+        }
+
+        @Override
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public int getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isLongAddress() {
+            return longAddress;
+        }
+
+        @Override
+        public void setSpeed(float speed) {
+            this.speed = speed;
+        }
+
+        @Override
+        public void setDirection(boolean forward) {
+            this.forward = forward;
+        }
+
+        @Override
+        public void setFunction(int functionNumber, boolean on) {
+            functions.put(functionNumber, on);
+        }
+
+        @Override
+        public float getSpeed() {
+            return speed;
+        }
+
+        @Override
+        public boolean getDirection() {
+            return forward;
+        }
+
+        @Override
+        public boolean getFunction(int functionNumber) {
+            return functions.getOrDefault(functionNumber, false);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
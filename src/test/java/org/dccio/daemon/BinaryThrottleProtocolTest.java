@@ -0,0 +1,57 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryThrottleProtocolTest {
+
+    @Test
+    void requestsDecodeToThrottlePosts() {
+        JsonObject speed = BinaryThrottleProtocol.decode(ByteBuffer.wrap(new byte[] {0x01, 0x00, 0x07, (byte) 0x84, (byte) 0xD2, (byte) 0xFF}));
+        assertEquals(1234, speed.get("address").getAsInt());
+        assertTrue(speed.get("longAddress").getAsBoolean());
+        assertEquals(1f, speed.get("speed").getAsFloat());
+
+        JsonObject direction = BinaryThrottleProtocol.decode(ByteBuffer.wrap(new byte[] {0x02, 0x00, 0x08, 0x00, 0x03, 0x00}));
+        assertEquals(3, direction.get("address").getAsInt());
+        assertFalse(direction.get("longAddress").getAsBoolean());
+        assertFalse(direction.get("forward").getAsBoolean());
+
+        JsonObject function = BinaryThrottleProtocol.decode(ByteBuffer.wrap(new byte[] {0x03, 0x00, 0x09, 0x00, 0x03, (byte) 0x8C}));
+        assertTrue(function.getAsJsonObject("functions").get("12").getAsBoolean());
+
+        ByteBuffer unknown = ByteBuffer.wrap(new byte[] {0x7F, 0x01, 0x02, 0x00, 0x03, 0x00});
+        assertThrows(IllegalArgumentException.class, () -> BinaryThrottleProtocol.decode(unknown));
+        assertEquals(0x0102, BinaryThrottleProtocol.sequence(unknown));
+        assertThrows(IllegalArgumentException.class, () -> BinaryThrottleProtocol.decode(ByteBuffer.wrap(new byte[] {0x01, 0x00})));
+
+        assertArrayEquals(new byte[] {(byte) 0x81, 0x01, 0x02, 0x01, (byte) 0x99}, BinaryThrottleProtocol.ack(0x0102, 409));
+    }
+
+    @Test
+    void patchesEncodeOneRecordPerThrottle() {
+        JsonObject patch = JsonParser.parseString("{\"type\":\"throttle\",\"method\":\"patch\",\"data\":{\"throttle\":\"a:3:false\","
+                + "\"connectionId\":\"a\",\"address\":3,\"longAddress\":false,\"speed\":0.5,\"forward\":true,"
+                + "\"functions\":{\"0\":true,\"2\":false}}}").getAsJsonObject();
+        assertTrue(BinaryThrottleProtocol.isPatch(patch));
+        assertArrayEquals(new byte[] {(byte) 0x82, 0x00, 0x01, 0x00, 0x03, 0x4F, 0x01, 'a', (byte) 128, 0x02, (byte) 0x80, 0x02},
+                BinaryThrottleProtocol.encodePatch(patch));
+
+        JsonObject batch = JsonParser.parseString("{\"type\":\"throttles\",\"method\":\"patch\",\"data\":["
+                + "{\"address\":1234,\"longAddress\":true,\"functionMask\":\"2\",\"functionBits\":\"2\"},"
+                + "{\"address\":4,\"released\":true}]}").getAsJsonObject();
+        assertTrue(BinaryThrottleProtocol.isPatch(batch));
+        assertArrayEquals(new byte[] {(byte) 0x82, 0x00, 0x02, (byte) 0x84, (byte) 0xD2, 0x08, 0x01, (byte) 0x81, 0x00, 0x04, 0x20},
+                BinaryThrottleProtocol.encodePatch(batch));
+
+        assertFalse(BinaryThrottleProtocol.isPatch(JsonParser.parseString(
+                "{\"type\":\"accessories\",\"method\":\"patch\",\"data\":[]}").getAsJsonObject()));
+        assertFalse(BinaryThrottleProtocol.isPatch(JsonParser.parseString(
+                "{\"type\":\"throttle\",\"data\":{\"address\":3}}").getAsJsonObject()));
+    }
+}
@@ -0,0 +1,178 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientOutboxTest {
+
+    @Test
+    void patchesWaitingForABusyClientAreMergedInOrder() {
+        FakeSocket socket = new FakeSocket();
+        ClientOutbox outbox = new ClientOutbox("client", socket, 10, 20, 1000);
+        socket.busy = true;
+
+        offer(outbox, patch("throttle", "{\"throttle\":\"t1\",\"speed\":0.2,\"forward\":true,\"functions\":{\"0\":true}}"));
+        offer(outbox, patch("accessories", "[{\"name\":\"A\",\"state\":\"closed\"}]"));
+        offer(outbox, patch("throttle", "{\"throttle\":\"t1\",\"functions\":{\"1\":true}}"));
+        offer(outbox, patch("throttle", "{\"throttle\":\"t1\",\"speed\":0.5,\"forward\":true}"));
+        outbox.offerResponse("{\"type\":\"throttle\",\"data\":{}}".getBytes(StandardCharsets.UTF_8));
+
+        ClientOutbox.Stats stats = outbox.stats();
+        assertEquals(3, stats.getDepth());
+        assertEquals(2, stats.getConflated());
+        assertTrue(socket.sent.isEmpty());
+
+        socket.busy = false;
+        outbox.flush(System.nanoTime());
+        assertEquals(3, socket.sent.size());
+        assertEquals("accessories", socket.sent.get(0).get("type").getAsString());
+        // the merged patch takes the place of the newest, after the accessories
+        JsonObject throttle = socket.sent.get(1).getAsJsonObject("data");
+        assertEquals(0.5f, throttle.get("speed").getAsFloat());
+        assertTrue(throttle.getAsJsonObject("functions").get("0").getAsBoolean());
+        assertTrue(throttle.getAsJsonObject("functions").get("1").getAsBoolean());
+        assertEquals("throttle", socket.sent.get(2).get("type").getAsString());
+        assertEquals(3, outbox.stats().getSent());
+    }
+
+    @Test
+    void aPatchIsNotMovedBehindANewerOneForTheSameThrottle() {
+        FakeSocket socket = new FakeSocket();
+        ClientOutbox outbox = new ClientOutbox("client", socket, 10, 20, 1000);
+        socket.busy = true;
+
+        offer(outbox, patch("throttle", "{\"throttle\":\"X\",\"speed\":0.5}"));
+        offer(outbox, patch("throttles", "[{\"throttle\":\"X\",\"speed\":0.3},{\"throttle\":\"Y\",\"speed\":0.1}]"));
+        offer(outbox, patch("throttle", "{\"throttle\":\"X\",\"forward\":false}"));
+        // the waiting batch also carries X, which has a newer patch queued
+        offer(outbox, patch("throttles", "[{\"throttle\":\"Y\",\"speed\":0.2}]"));
+        assertEquals(4, outbox.stats().getDepth());
+        assertEquals(0, outbox.stats().getConflated());
+        // while this one is still the newest for Y
+        offer(outbox, patch("throttles", "[{\"throttle\":\"Y\",\"speed\":0.25}]"));
+        assertEquals(4, outbox.stats().getDepth());
+        assertEquals(1, outbox.stats().getConflated());
+
+        socket.busy = false;
+        outbox.flush(System.nanoTime());
+        // replaying the patches leaves each throttle in its newest state
+        java.util.Map<String, JsonObject> state = new java.util.HashMap<>();
+        for (JsonObject message : socket.sent) {
+            JsonArray deltas = message.get("data").isJsonArray() ? message.getAsJsonArray("data") : new JsonArray();
+            if (message.get("data").isJsonObject()) {
+                deltas.add(message.get("data"));
+            }
+            for (int i = 0; i < deltas.size(); i++) {
+                JsonObject delta = deltas.get(i).getAsJsonObject();
+                state.computeIfAbsent(delta.get("throttle").getAsString(), t -> new JsonObject());
+                for (String field : delta.keySet()) {
+                    state.get(delta.get("throttle").getAsString()).add(field, delta.get(field));
+                }
+            }
+        }
+        assertEquals(0.3f, state.get("X").get("speed").getAsFloat());
+        assertFalse(state.get("X").get("forward").getAsBoolean());
+        assertEquals(0.25f, state.get("Y").get("speed").getAsFloat());
+    }
+
+    @Test
+    void functionBitmasksAndBatchesAreMergedPerThrottle() {
+        JsonObject merged = ClientOutbox.merge(
+                patch("throttle", "{\"throttle\":\"t1\",\"functionMask\":\"3\",\"functionBits\":\"1\"}"),
+                patch("throttle", "{\"throttle\":\"t1\",\"functionMask\":\"5\",\"functionBits\":\"4\"}"));
+        assertEquals("7", merged.getAsJsonObject("data").get("functionMask").getAsString());
+        assertEquals("4", merged.getAsJsonObject("data").get("functionBits").getAsString());
+
+        assertNull(ClientOutbox.merge(
+                patch("throttle", "{\"throttle\":\"t1\",\"functions\":{\"0\":true}}"),
+                patch("throttle", "{\"throttle\":\"t1\",\"functionMask\":\"1\",\"functionBits\":\"0\"}")));
+
+        JsonObject batch = ClientOutbox.merge(
+                patch("throttles", "[{\"throttle\":\"t1\",\"speed\":0.1},{\"throttle\":\"t2\",\"speed\":0.2}]"),
+                patch("throttles", "[{\"throttle\":\"t3\",\"speed\":0.3},{\"throttle\":\"t1\",\"speed\":0.4}]"));
+        JsonArray deltas = batch.getAsJsonArray("data");
+        assertEquals(3, deltas.size());
+        assertEquals("t1", deltas.get(0).getAsJsonObject().get("throttle").getAsString());
+        assertEquals(0.4f, deltas.get(0).getAsJsonObject().get("speed").getAsFloat());
+
+        assertNull(ClientOutbox.key(patch("throttle", "{\"throttle\":\"t1\",\"released\":true}")));
+        assertNull(ClientOutbox.key(patch("status", "{\"connections\":[{\"id\":\"a\"},{\"id\":\"b\"}]}")));
+        assertEquals("status:a", ClientOutbox.key(patch("status", "{\"connections\":[{\"id\":\"a\"}]}")));
+    }
+
+    @Test
+    void clientsThatStayBehindAreEvicted() {
+        FakeSocket socket = new FakeSocket();
+        ClientOutbox outbox = new ClientOutbox("client", socket, 2, 4, 100);
+        socket.busy = true;
+
+        for (int i = 0; i < 3; i++) {
+            offer(outbox, patch("accessories", "[{\"name\":\"A" + i + "\",\"state\":\"closed\"}]"));
+        }
+        long start = System.nanoTime();
+        outbox.flush(start);
+        assertNull(socket.evictedFor);
+        outbox.flush(start + TimeUnit.MILLISECONDS.toNanos(50));
+        assertNull(socket.evictedFor);
+        outbox.flush(start + TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals("Too slow to keep up", socket.evictedFor);
+
+        ClientOutbox.Stats stats = outbox.stats();
+        assertTrue(stats.isEvicted());
+        assertEquals(0, stats.getDepth());
+        assertEquals(3, stats.getDropped());
+        offer(outbox, patch("accessories", "[]"));
+        assertEquals(0, outbox.stats().getDepth());
+
+        FakeSocket full = new FakeSocket();
+        ClientOutbox flooded = new ClientOutbox("flooded", full, 2, 4, 60000);
+        full.busy = true;
+        for (int i = 0; i < 4; i++) {
+            flooded.offerResponse("{}".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("Outbound queue full", full.evictedFor);
+        assertEquals(4, flooded.stats().getMaxDepth());
+    }
+
+    private static void offer(ClientOutbox outbox, JsonObject message) {
+        outbox.offer(message, message.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject patch(String type, String data) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", type);
+        message.addProperty("method", "patch");
+        message.add("data", JsonParser.parseString(data));
+        return message;
+    }
+
+    private static final class FakeSocket implements ClientOutbox.Socket {
+        volatile boolean busy;
+        final List<JsonObject> sent = new ArrayList<>();
+        String evictedFor;
+
+        @Override
+        public boolean isBusy() {
+            return busy;
+        }
+
+        @Override
+        public void send(byte[] payload, boolean binary) {
+            sent.add(JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject());
+        }
+
+        @Override
+        public void evict(String reason) {
+            evictedFor = reason;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.dccio.core.ThrottleSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonConsistHandlerTest {
+
+    private final FakeThrottleService service = new FakeThrottleService();
+    private final List<JsonObject> broadcasts = new CopyOnWriteArrayList<>();
+    private JsonThrottleHandler throttles;
+    private JsonConsistHandler consists;
+
+    @AfterEach
+    void tearDown() {
+        if (throttles != null) {
+            throttles.shutdown();
+        }
+    }
+
+    private void start(long speedCommandIntervalMs) {
+        throttles = new JsonThrottleHandler(service, speedCommandIntervalMs);
+        throttles.setBroadcaster(broadcasts::add);
+        consists = new JsonConsistHandler(throttles);
+    }
+
+    @Test
+    void membersFollowTheConsistWithInvertedDirection() {
+        start(0);
+        JsonObject created = consists.handle("put", consistOf("c1", 3, 4, 5), "client1").getAsJsonObject("data");
+        assertEquals("c1", created.get("consist").getAsString());
+        assertEquals(3, created.getAsJsonArray("members").size());
+        // the inverted member was turned round when the consist was made
+        assertFalse(service.session(5).forward);
+
+        broadcasts.clear();
+        JsonObject drive = new JsonObject();
+        drive.addProperty("consist", "c1");
+        drive.addProperty("speed", 0.5);
+        drive.addProperty("forward", false);
+        JsonObject resp = consists.handle("post", drive, "client1").getAsJsonObject("data");
+        assertTrue(resp.get("updated").getAsBoolean());
+
+        for (int address : new int[] {3, 4, 5}) {
+            assertEquals(0.5f, service.session(address).speed);
+        }
+        assertFalse(service.session(3).forward);
+        assertFalse(service.session(4).forward);
+        assertTrue(service.session(5).forward);
+        for (JsonObject patch : broadcasts) {
+            assertEquals("consist", patch.get("type").getAsString());
+            assertEquals("c1", patch.getAsJsonObject("data").get("consist").getAsString());
+        }
+    }
+
+    @Test
+    void pacedSpeedGoesOutAsOneConsistPatch() throws Exception {
+        start(20);
+        consists.handle("put", consistOf("c2", 6, 7, 8), "client1");
+        broadcasts.clear();
+
+        JsonObject drive = new JsonObject();
+        drive.addProperty("consist", "c2");
+        drive.addProperty("speed", 0.75);
+        consists.handle("post", drive, "client1");
+
+        waitFor(() -> service.session(8).speed == 0.75f);
+        assertEquals(List.of(6, 7, 8), service.speedOrder);
+        List<JsonObject> sent = new ArrayList<>();
+        for (JsonObject patch : broadcasts) {
+            if (patch.getAsJsonObject("data").has("speed")) {
+                sent.add(patch);
+            }
+        }
+        // the request's own patch plus the dispatcher's, each one for the whole consist
+        assertTrue(sent.size() <= 2);
+        for (JsonObject patch : sent) {
+            assertEquals("consist", patch.get("type").getAsString());
+        }
+    }
+
+    @Test
+    void consistsTakeEveryMembersLease() {
+        start(0);
+        JsonObject single = new JsonObject();
+        single.addProperty("address", 10);
+        single.addProperty("speed", 0.2);
+        throttles.handle("post", single, "client2");
+
+        assertThrows(IllegalStateException.class,
+                () -> consists.handle("put", consistOf("c3", 9, 10, 11), "client1"));
+        // nothing was kept from the failed attempt
+        assertNull(throttles.getLeaseManager().getOwner(org.dccio.core.impl.ThrottleRegistry.key(9, false)));
+
+        consists.handle("put", consistOf("c3", 12, 13, 14), "client1");
+        assertThrows(IllegalStateException.class,
+                () -> consists.handle("put", consistOf("c4", 14, 15, 16), "client1"));
+    }
+
+    @Test
+    void dissolvedConsistsAreGone() {
+        start(0);
+        consists.handle("put", consistOf("c5", 20, 21, 22), "client1");
+        JsonObject list = consists.handle("list", new JsonObject());
+        assertEquals(1, list.getAsJsonArray("data").size());
+
+        JsonObject dissolve = new JsonObject();
+        dissolve.addProperty("consist", "c5");
+        dissolve.addProperty("dissolve", true);
+        consists.handle("put", dissolve, "client1");
+        assertEquals(0, consists.handle("list", new JsonObject()).getAsJsonArray("data").size());
+
+        JsonObject get = new JsonObject();
+        get.addProperty("consist", "c5");
+        assertThrows(NoSuchElementException.class, () -> consists.handle("get", get));
+    }
+
+    @Test
+    void onlyTheDrivingClientCanDissolveOrReplaceAConsist() {
+        start(0);
+        consists.handle("put", consistOf("c6", 30, 31, 32), "client1");
+        JsonObject dissolve = new JsonObject();
+        dissolve.addProperty("consist", "c6");
+        dissolve.addProperty("dissolve", true);
+        assertThrows(IllegalStateException.class, () -> consists.handle("put", dissolve, "client2"));
+        assertThrows(IllegalStateException.class,
+                () -> consists.handle("put", consistOf("c6", 33, 34, 35), "client2"));
+        assertEquals(1, consists.handle("list", new JsonObject()).getAsJsonArray("data").size());
+
+        // once the owner has let go
+        throttles.clientDisconnected("client1");
+        consists.handle("put", dissolve, "client2");
+        assertEquals(0, consists.handle("list", new JsonObject()).getAsJsonArray("data").size());
+    }
+
+    @Test
+    void consistsAreDroppedWhenAMemberIsClosed() {
+        start(0);
+        consists.handle("put", consistOf("c7", 40, 41, 42), "client1");
+        broadcasts.clear();
+
+        // e.g. reaped after its connection dropped
+        service.closeThrottle("connA:41:false");
+        assertEquals(0, consists.handle("list", new JsonObject()).getAsJsonArray("data").size());
+        assertEquals(1, broadcasts.size());
+        assertTrue(broadcasts.get(0).getAsJsonObject("data").get("released").getAsBoolean());
+    }
+
+    /**
+     * A consist led by {@code lead}, then {@code second}, then {@code inverted}
+     * coupled the other way round.
+     */
+    private static JsonObject consistOf(String id, int lead, int second, int inverted) {
+        JsonObject data = new JsonObject();
+        data.addProperty("consist", id);
+        data.addProperty("address", lead);
+        JsonArray members = new JsonArray();
+        JsonObject m1 = new JsonObject();
+        m1.addProperty("address", second);
+        members.add(m1);
+        JsonObject m2 = new JsonObject();
+        m2.addProperty("address", inverted);
+        m2.addProperty("inverted", true);
+        members.add(m2);
+        data.add("members", members);
+        return data;
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static final class FakeThrottleService implements JsonThrottleHandler.ThrottleService {
+        private final Map<String, FakeThrottleSession> sessions = new ConcurrentHashMap<>();
+        private final List<Integer> speedOrder = new CopyOnWriteArrayList<>();
+        private final List<java.util.function.Consumer<ThrottleSession>> closeListeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String openThrottle(String connectionId, int address, boolean longAddress) {
+            String conn = connectionId == null ? "connA" : connectionId;
+            String id = conn + ":" + address + ":" + longAddress;
+            sessions.computeIfAbsent(id, k -> new FakeThrottleSession(this, conn, address, longAddress));
+            return id;
+        }
+
+        @Override
+        public ThrottleSession getThrottle(String throttleId) {
+            return sessions.get(throttleId);
+        }
+
+        @Override
+        public Collection<ThrottleSession> getThrottles() {
+            return new ArrayList<>(sessions.values());
+        }
+
+        @Override
+        public void closeThrottle(String throttleId) {
+            ThrottleSession closed = sessions.remove(throttleId);
+            if (closed != null) {
+                for (java.util.function.Consumer<ThrottleSession> listener : closeListeners) {
+                    listener.accept(closed);
+                }
+            }
+        }
+
+        @Override
+        public void addCloseListener(java.util.function.Consumer<ThrottleSession> listener) {
+            closeListeners.add(listener);
+        }
+
+        FakeThrottleSession session(int address) {
+            return sessions.get("connA:" + address + ":false");
+        }
+    }
+
+    private static final class FakeThrottleSession implements ThrottleSession {
+        private final FakeThrottleService service;
+        private final String connectionId;
+        private final int address;
+        private final boolean longAddress;
+        private volatile float speed = 0f;
+        private volatile boolean forward = true;
+
+        private FakeThrottleSession(FakeThrottleService service, String connectionId, int address, boolean longAddress) {
+            this.service = service;
+            this.connectionId = connectionId;
+            this.address = address;
+            this.longAddress = longAddress;
+        }
+
+        @Override
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public int getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isLongAddress() {
+            return longAddress;
+        }
+
+        @Override
+        public void setSpeed(float speed) {
+            this.speed = speed;
+            service.speedOrder.add(address);
+        }
+
+        @Override
+        public void setDirection(boolean forward) {
+            this.forward = forward;
+        }
+
+        @Override
+        public void setFunction(int functionNumber, boolean on) {
+        }
+
+        @Override
+        public float getSpeed() {
+            return speed;
+        }
+
+        @Override
+        public boolean getDirection() {
+            return forward;
+        }
+
+        @Override
+        public boolean getFunction(int functionNumber) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.dccio.daemon;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -48,6 +50,46 @@ class JsonMessageHandlerTest {
         assertEquals(400, response.getAsJsonObject("data").get("code").getAsInt());
     }
 
+    @Test
+    void subscriptionsNarrowBroadcastsPerClient() {
+        ClientSubscriptions subscriptions = handler.getSubscriptions();
+        JsonObject batch = JsonParser.parseString("{\"type\":\"throttles\",\"method\":\"patch\",\"data\":["
+                + "{\"throttle\":\"a:3\",\"connectionId\":\"a\",\"address\":3,\"speed\":0.5},"
+                + "{\"throttle\":\"a:4\",\"connectionId\":\"a\",\"address\":4,\"speed\":0.2}]}").getAsJsonObject();
+        JsonObject console = JsonParser.parseString(
+                "{\"type\":\"console\",\"method\":\"patch\",\"data\":{\"connectionId\":\"a\",\"hex\":\"21 24 05\"}}").getAsJsonObject();
+
+        // clients that never subscribed get everything but console frames
+        assertSame(batch, subscriptions.route("cab", batch));
+        assertNull(subscriptions.route("cab", console));
+        assertTrue(subscriptions.wants("cab", "accessories", null, null));
+
+        JsonObject response = handler.handle(JsonParser.parseString("{\"type\":\"subscribe\",\"id\":\"s1\",\"clientId\":\"cab\","
+                + "\"data\":{\"topics\":[{\"type\":\"throttle\",\"addresses\":[3]},{\"type\":\"console\",\"connectionId\":\"a\"}]}}").getAsJsonObject());
+        assertEquals("subscribe", response.get("type").getAsString());
+        assertEquals("s1", response.get("id").getAsString());
+        assertEquals(2, response.getAsJsonObject("data").getAsJsonArray("topics").size());
+
+        JsonArray routed = subscriptions.route("cab", batch).getAsJsonArray("data");
+        assertEquals(1, routed.size());
+        assertEquals(3, routed.get(0).getAsJsonObject().get("address").getAsInt());
+        assertSame(console, subscriptions.route("cab", console));
+        assertFalse(subscriptions.wants("cab", "accessories", null, null));
+        assertFalse(subscriptions.wants("cab", "throttle", null, 4));
+        assertTrue(subscriptions.isSubscribed("console"));
+
+        handler.handle(JsonParser.parseString("{\"type\":\"unsubscribe\",\"clientId\":\"cab\",\"data\":{}}").getAsJsonObject());
+        assertNull(subscriptions.route("cab", batch));
+        assertFalse(subscriptions.isSubscribed("console"));
+
+        JsonObject unknown = handler.handle(JsonParser.parseString("{\"type\":\"subscribe\",\"clientId\":\"cab\","
+                + "\"data\":{\"topics\":[{\"type\":\"trains\"}]}}").getAsJsonObject());
+        assertEquals(400, unknown.getAsJsonObject("data").get("code").getAsInt());
+
+        handler.clientDisconnected("cab");
+        assertSame(batch, subscriptions.route("cab", batch));
+    }
+
     private static final class RecordingHandler implements JsonMessageHandler.TypeHandler {
         private String lastMethod;
 
@@ -0,0 +1,248 @@
+package org.dccio.daemon;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.dccio.core.OpsModeProgrammer;
+import org.dccio.core.ProgrammerSession;
+import org.dccio.core.events.DccEventBus;
+import org.dccio.core.events.DccEventType;
+import org.dccio.core.events.OpsModeEvent;
+import org.dccio.core.events.ProgrammingEvent;
+import org.dccio.core.programming.OpsModeQueue;
+import org.dccio.core.programming.ProgrammingQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonProgrammingHandlerTest {
+
+    private DccEventBus eventBus;
+    private ProgrammingQueue queue;
+    private OpsModeQueue opsQueue;
+    private final List<String> opsWrites = Collections.synchronizedList(new ArrayList<>());
+    private JsonMessageHandler handler;
+    private RecordingBroadcaster broadcaster;
+
+    @BeforeEach
+    void setUp() {
+        eventBus = new DccEventBus();
+        queue = new ProgrammingQueue("conn-1", () -> new FakeProgrammer(), eventBus);
+        opsQueue = new OpsModeQueue("conn-1", () -> new OpsModeProgrammer() {
+            @Override
+            public String getConnectionId() {
+                return "conn-1";
+            }
+
+            @Override
+            public CompletableFuture<Void> writeCvAsync(int address, boolean longAddress, int cv, int value) {
+                opsWrites.add(address + (longAddress ? "L" : "S") + ":" + cv + "=" + value);
+                return CompletableFuture.completedFuture(null);
+            }
+        }, eventBus);
+        handler = new JsonMessageHandler();
+        broadcaster = new RecordingBroadcaster();
+        JsonProgrammingHandler programmingHandler = new JsonProgrammingHandler(new JsonProgrammingHandler.ProgrammingService() {
+            @Override
+            public ProgrammingQueue getQueue(String connectionId) {
+                return connectionId == null || "conn-1".equals(connectionId) ? queue : null;
+            }
+
+            @Override
+            public Collection<ProgrammingQueue> getQueues() {
+                return List.of(queue);
+            }
+
+            @Override
+            public OpsModeQueue getOpsModeQueue(String connectionId) {
+                return opsQueue;
+            }
+
+            @Override
+            public Collection<OpsModeQueue> getOpsModeQueues() {
+                return List.of(opsQueue);
+            }
+        });
+        programmingHandler.setBroadcaster(broadcaster);
+        handler.registerTypeHandler("programming", programmingHandler);
+        eventBus.addListener(e -> {
+            if (e instanceof ProgrammingEvent) {
+                programmingHandler.broadcastProgress((ProgrammingEvent) e);
+            } else {
+                programmingHandler.broadcastProgress((OpsModeEvent) e);
+            }
+        }, EnumSet.of(DccEventType.PROGRAMMING_PROGRESS));
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.close();
+        opsQueue.close();
+    }
+
+    @Test
+    void postReadRangeQueuesJobAndBroadcastsResults() throws Exception {
+        JsonObject data = new JsonObject();
+        data.addProperty("mode", "read");
+        data.addProperty("from", 1);
+        data.addProperty("to", 4);
+        JsonObject response = handler.handle(request("post", data));
+
+        assertEquals("programming", response.get("type").getAsString());
+        JsonObject job = response.getAsJsonObject("data");
+        assertEquals(4, job.get("total").getAsInt());
+        String jobId = job.get("job").getAsString();
+
+        queue.getJob(jobId).getFuture().get(5, TimeUnit.SECONDS);
+
+        JsonObject last = awaitLastMessage("completed");
+        assertEquals("patch", last.get("method").getAsString());
+        JsonObject patch = last.getAsJsonObject("data");
+        assertEquals(jobId, patch.get("job").getAsString());
+        assertEquals(3, patch.getAsJsonObject("results").get("3").getAsInt());
+
+        JsonObject get = new JsonObject();
+        get.addProperty("job", jobId);
+        JsonObject info = handler.handle(request("get", get)).getAsJsonObject("data");
+        assertEquals("completed", info.get("state").getAsString());
+        assertEquals(4, info.getAsJsonObject("results").size());
+    }
+
+    @Test
+    void postWriteUsesValuesObject() throws Exception {
+        JsonObject values = new JsonObject();
+        values.addProperty("1", 3);
+        values.addProperty("29", 6);
+        JsonObject data = new JsonObject();
+        data.addProperty("mode", "write");
+        data.add("values", values);
+        JsonObject job = handler.handle(request("post", data)).getAsJsonObject("data");
+
+        JsonArray cvs = job.getAsJsonArray("cvs");
+        assertEquals(29, cvs.get(1).getAsInt());
+        assertEquals(6, queue.getJob(job.get("job").getAsString()).getFuture().get(5, TimeUnit.SECONDS).get(29));
+    }
+
+    @Test
+    void postOpsWritesEveryAddressAndReportsEachOne() throws Exception {
+        JsonArray addresses = new JsonArray();
+        addresses.add(3);
+        addresses.add(1234);
+        JsonObject explicit = new JsonObject();
+        explicit.addProperty("address", 100);
+        explicit.addProperty("longAddress", true);
+        addresses.add(explicit);
+        JsonObject values = new JsonObject();
+        values.addProperty("3", 20);
+        values.addProperty("4", 15);
+        JsonObject data = new JsonObject();
+        data.addProperty("mode", "ops");
+        data.add("addresses", addresses);
+        data.add("values", values);
+
+        JsonObject job = handler.handle(request("post", data)).getAsJsonObject("data");
+        assertEquals("ops", job.get("mode").getAsString());
+        assertEquals(6, job.get("total").getAsInt());
+        opsQueue.getJob(job.get("job").getAsString()).getFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of("3S:3=20", "3S:4=15", "1234L:3=20", "1234L:4=15", "100L:3=20", "100L:4=15"), opsWrites);
+        JsonObject patch = awaitLastMessage("completed").getAsJsonObject("data");
+        JsonArray results = patch.getAsJsonArray("results");
+        assertEquals(3, results.size());
+        assertEquals(2, results.get(1).getAsJsonObject().get("written").getAsInt());
+
+        JsonObject get = new JsonObject();
+        get.addProperty("job", job.get("job").getAsString());
+        assertEquals("completed", handler.handle(request("get", get)).getAsJsonObject("data").get("state").getAsString());
+    }
+
+    @Test
+    void invalidRequestsReturnErrors() {
+        JsonObject badMode = new JsonObject();
+        badMode.addProperty("mode", "erase");
+        badMode.addProperty("from", 1);
+        badMode.addProperty("to", 2);
+        assertEquals(400, errorCode(handler.handle(request("post", badMode))));
+
+        JsonObject badValue = new JsonObject();
+        JsonObject values = new JsonObject();
+        values.addProperty("1", 300);
+        badValue.addProperty("mode", "write");
+        badValue.add("values", values);
+        assertEquals(400, errorCode(handler.handle(request("post", badValue))));
+
+        JsonObject missing = new JsonObject();
+        missing.addProperty("job", "job-unknown");
+        missing.addProperty("cancel", true);
+        assertEquals(404, errorCode(handler.handle(request("put", missing))));
+    }
+
+    private JsonObject awaitLastMessage(String state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (broadcaster.messages) {
+                if (!broadcaster.messages.isEmpty()) {
+                    JsonObject last = broadcaster.messages.get(broadcaster.messages.size() - 1);
+                    if (state.equals(last.getAsJsonObject("data").get("state").getAsString())) {
+                        return last;
+                    }
+                }
+            }
+            Thread.sleep(10);
+        }
+        return fail("no '" + state + "' patch broadcast");
+    }
+
+    private static JsonObject request(String method, JsonObject data) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", "programming");
+        request.addProperty("method", method);
+        request.add("data", data);
+        return request;
+    }
+
+    private static int errorCode(JsonObject response) {
+        assertEquals("error", response.get("type").getAsString());
+        return response.getAsJsonObject("data").get("code").getAsInt();
+    }
+
+    /** Every CV reads back as its own number. */
+    private static final class FakeProgrammer implements ProgrammerSession {
+        @Override
+        public String getConnectionId() {
+            return "conn-1";
+        }
+
+        @Override
+        public CompletableFuture<Integer> readCvAsync(int cv) {
+            return CompletableFuture.completedFuture(cv);
+        }
+
+        @Override
+        public CompletableFuture<Void> writeCvAsync(int cv, int value) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class RecordingBroadcaster implements JsonBroadcaster {
+        final List<JsonObject> messages = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void broadcast(JsonObject message) {
+            messages.add(message);
+        }
+    }
+}
@@ -1,21 +1,37 @@
 package org.dccio.daemon;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.dccio.core.ThrottleSession;
+import org.dccio.core.impl.ThrottleRegistry;
+import org.dccio.core.lease.LeaseManager;
+import org.dccio.core.outbound.SpeedDispatcher;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class JsonThrottleHandlerTest {
 
+    // long enough never to fire; tests drive the ticks with tick()
+    private static final long MANUAL_TICK_MS = TimeUnit.HOURS.toMillis(1);
+
     private FakeThrottleService service;
     private JsonThrottleHandler handler;
     private JsonMessageHandler messageHandler;
@@ -170,8 +186,473 @@ class JsonThrottleHandlerTest {
         assertTrue(resp2.getAsJsonObject("data").get("message").getAsString().contains("busy"));
     }
 
+    @Test
+    void malformedClientClassIsRejected() {
+        service.openThrottle(null, 12, false);
+        JsonObject post = speedPost(12, 0.5);
+        post.getAsJsonObject("data").addProperty("clientClass", "not a class name");
+        JsonObject resp = messageHandler.handle(post);
+        assertEquals("error", resp.get("type").getAsString());
+        assertEquals(400, resp.getAsJsonObject("data").get("code").getAsInt());
+        assertNull(handler.getLeaseManager().getOwner(ThrottleRegistry.key(12, false)));
+
+        post.getAsJsonObject("data").addProperty("clientClass", "handheld");
+        assertEquals("throttle", messageHandler.handle(post).get("type").getAsString());
+    }
+
+    @Test
+    void disconnectingReleasesSpeedDirectionControl() {
+        service.openThrottle(null, 11, false);
+        JsonObject data = new JsonObject();
+        data.addProperty("address", 11);
+        data.addProperty("forward", false);
+
+        handler.handle("post", data.deepCopy(), "client1");
+        assertThrows(IllegalStateException.class, () -> handler.handle("post", data.deepCopy(), "client2"));
+
+        messageHandler.clientDisconnected("client1");
+        JsonObject resp = handler.handle("post", data.deepCopy(), "client2");
+        assertFalse(resp.getAsJsonObject("data").get("forward").getAsBoolean());
+    }
+
+    @Test
+    void functionsInOnePostAreHandedOverAsOneBatch() {
+        JsonObject post = new JsonObject();
+        post.addProperty("type", "throttle");
+        post.addProperty("method", "post");
+        JsonObject data = new JsonObject();
+        data.addProperty("address", 3);
+        JsonObject functions = new JsonObject();
+        functions.addProperty("0", true);
+        functions.addProperty("2", true);
+        functions.addProperty("3", false);
+        data.add("functions", functions);
+        post.add("data", data);
+
+        messageHandler.handle(post);
+
+        FakeThrottleSession session = service.sessions.get("connA:3:false");
+        assertEquals(1, session.functionBatches);
+        assertTrue(session.getFunction(0));
+        assertTrue(session.getFunction(2));
+        assertFalse(session.getFunction(3));
+        assertEquals(3, broadcaster.lastData.getAsJsonObject("functions").size());
+    }
+
+    @Test
+    void functionsUpToF68AndCompactBitmasks() {
+        JsonObject data = new JsonObject();
+        data.addProperty("address", 8);
+        data.addProperty("compact", true);
+        data.addProperty("functionMask", "10000000000000000" + "3");
+        data.addProperty("functionBits", "10000000000000000" + "1");
+        JsonObject resp = handler.handle("post", data, "client1");
+
+        FakeThrottleSession session = service.sessions.get("connA:8:false");
+        assertTrue(session.getFunction(0));
+        assertFalse(session.getFunction(1));
+        assertTrue(session.getFunction(68));
+        assertEquals("100000000000000001", resp.getAsJsonObject("data").get("functionBits").getAsString());
+        assertFalse(resp.getAsJsonObject("data").has("functions"));
+
+        JsonObject get = new JsonObject();
+        get.addProperty("address", 8);
+        JsonObject functions = handler.handle("get", get).getAsJsonObject("data").getAsJsonObject("functions");
+        assertEquals(30, functions.size()); // F0-F28 plus F68, which is on
+        assertTrue(functions.get("68").getAsBoolean());
+
+        JsonObject tooHigh = new JsonObject();
+        tooHigh.addProperty("address", 8);
+        JsonObject f69 = new JsonObject();
+        f69.addProperty("69", true);
+        tooHigh.add("functions", f69);
+        assertThrows(IllegalArgumentException.class, () -> handler.handle("post", tooHigh, "client1"));
+    }
+
+    @Test
+    void compactPatchesCarryChangedFunctionsAsBitmasks() {
+        handler.setCompactPatches(true);
+        JsonObject data = new JsonObject();
+        data.addProperty("address", 9);
+        JsonObject functions = new JsonObject();
+        functions.addProperty("1", true);
+        functions.addProperty("4", false);
+        data.add("functions", functions);
+        handler.handle("post", data, "client1");
+
+        assertEquals("12", broadcaster.lastData.get("functionMask").getAsString());
+        assertEquals("2", broadcaster.lastData.get("functionBits").getAsString());
+        assertFalse(broadcaster.lastData.has("functions"));
+    }
+
+    @Test
+    void changesOnTheSameWireStepAreSuppressed() {
+        JsonObject data = new JsonObject();
+        data.addProperty("address", 12);
+        data.addProperty("speed", 0.5);
+        assertTrue(handler.handle("post", data, "client1").getAsJsonObject("data").has("updated"));
+        int broadcasts = broadcaster.count;
+
+        // 0.502 is still step 63 of 126, and the loco is already going forward
+        JsonObject same = new JsonObject();
+        same.addProperty("address", 12);
+        same.addProperty("speed", 0.502);
+        same.addProperty("forward", true);
+        JsonObject resp = handler.handle("post", same, "client1");
+        assertFalse(resp.getAsJsonObject("data").has("updated"));
+        assertEquals(0.5f, service.sessions.get("connA:12:false").speed);
+        assertEquals(broadcasts, broadcaster.count);
+
+        assertEquals(1, handler.getSpeedCommandsSent());
+        assertEquals(1, handler.getSpeedCommandsSuppressed());
+        assertEquals(1, handler.getDirectionCommandsSuppressed());
+    }
+
+    @Test
+    void speedsWithMomentumRampOnTheServer() throws Exception {
+        JsonObject data = new JsonObject();
+        data.addProperty("address", 13);
+        data.addProperty("accelerationMs", 200);
+        data.addProperty("speed", 1.0);
+        JsonObject resp = handler.handle("post", data, "client1").getAsJsonObject("data");
+        assertEquals(200, resp.get("accelerationMs").getAsLong());
+        assertEquals(1.0f, resp.get("targetSpeed").getAsFloat());
+
+        FakeThrottleSession session = service.sessions.get("connA:13:false");
+        // the top step is full speed before the ramp itself gets there
+        waitFor(() -> session.speed == 1.0f && handler.getMomentumEngine().getActiveCount() == 0);
+        // one command per step the ramp reached, not one per tick or per step
+        assertTrue(session.speedCommands > 1);
+        assertTrue(session.speedCommands <= 126);
+        assertEquals(1.0f, broadcaster.lastData.get("speed").getAsFloat());
+
+        JsonObject get = new JsonObject();
+        get.addProperty("address", 13);
+        assertFalse(handler.handle("get", get).getAsJsonObject("data").has("targetSpeed"));
+
+        // switching momentum off applies speeds at once again
+        JsonObject off = new JsonObject();
+        off.addProperty("address", 13);
+        off.addProperty("accelerationMs", 0);
+        off.addProperty("speed", 0.0);
+        handler.handle("post", off, "client1");
+        assertEquals(0f, session.speed);
+    }
+
+    @Test
+    void emergencyStopDropsPendingSpeedsAndRamps() {
+        handler.shutdown();
+        handler = new JsonThrottleHandler(service, TimeUnit.HOURS.toMillis(1), new LeaseManager(), MANUAL_TICK_MS);
+        List<JsonObject> broadcasts = new CopyOnWriteArrayList<>();
+        handler.setBroadcaster(broadcasts::add);
+
+        JsonObject first = new JsonObject();
+        first.addProperty("address", 3);
+        first.addProperty("speed", 0.5);
+        handler.handle("post", first, "client1");
+        FakeThrottleSession paced = service.sessions.get("connA:3:false");
+        tick(System.nanoTime());
+        assertEquals(0.5f, paced.speed);
+        // held back by the interval
+        first.addProperty("speed", 0.8);
+        handler.handle("post", first, "client1");
+
+        JsonObject ramp = new JsonObject();
+        ramp.addProperty("address", 4);
+        ramp.addProperty("accelerationMs", TimeUnit.HOURS.toMillis(1));
+        ramp.addProperty("speed", 1.0);
+        handler.handle("post", ramp, "client1");
+        assertEquals(1, handler.getMomentumEngine().getActiveCount());
+
+        // no lease needed
+        broadcasts.clear();
+        JsonObject stop = new JsonObject();
+        stop.addProperty("emergencyStop", true);
+        JsonObject resp = handler.handle("post", stop, "client2").getAsJsonObject("data");
+        assertTrue(resp.get("emergencyStop").getAsBoolean());
+        assertEquals(2, resp.get("stopped").getAsInt());
+
+        assertEquals(0f, paced.speed);
+        assertEquals(0f, service.sessions.get("connA:4:false").speed);
+        assertEquals(0, handler.getMomentumEngine().getActiveCount());
+        assertEquals(1, handler.getEmergencyStopLatency().getCount());
+        assertEquals(1, broadcasts.size());
+        assertEquals("throttles", broadcasts.get(0).get("type").getAsString());
+        assertEquals(2, broadcasts.get(0).getAsJsonArray("data").size());
+
+        // the held-back speed and the ramp never go out, even once due
+        tick(System.nanoTime() + TimeUnit.HOURS.toNanos(2));
+        assertEquals(0f, paced.speed);
+        assertEquals(0f, service.sessions.get("connA:4:false").speed);
+        for (SpeedDispatcher dispatcher : handler.getSpeedDispatchers()) {
+            assertEquals(0, dispatcher.getPendingCount());
+        }
+    }
+
+    @Test
+    void emergencyStopWaitsOutABurstAndARampCaughtMidWay() throws Exception {
+        handler.shutdown();
+        handler = new JsonThrottleHandler(service, 1, new LeaseManager(), MANUAL_TICK_MS);
+        List<JsonObject> broadcasts = new CopyOnWriteArrayList<>();
+        handler.setBroadcaster(broadcasts::add);
+
+        // the dispatcher has taken address 3's speed but not handed it over yet
+        service.openThrottle(null, 3, false);
+        FakeThrottleSession burst = service.sessions.get("connA:3:false");
+        JsonObject post = new JsonObject();
+        post.addProperty("address", 3);
+        post.addProperty("speed", 0.5);
+        handler.handle("post", post, "client1");
+        burst.holdNext.set(true);
+        SpeedDispatcher dispatcher = handler.getSpeedDispatchers().iterator().next();
+        Thread dispatching = new Thread(() -> dispatcher.collectAndSend(System.nanoTime()));
+        dispatching.start();
+        assertTrue(burst.held.await(5, TimeUnit.SECONDS));
+
+        // the momentum engine has a step for address 4 on its way to the dispatcher
+        service.openThrottle(null, 4, false);
+        FakeThrottleSession ramp = service.sessions.get("connA:4:false");
+        post = new JsonObject();
+        post.addProperty("address", 4);
+        post.addProperty("accelerationMs", 1);
+        post.addProperty("speed", 0.5);
+        handler.handle("post", post, "client1");
+        ramp.holdNext.set(true);
+        Thread ramping = new Thread(() ->
+                handler.getMomentumEngine().advance(System.nanoTime() + TimeUnit.SECONDS.toNanos(1)));
+        ramping.start();
+        assertTrue(ramp.held.await(5, TimeUnit.SECONDS));
+
+        JsonObject stop = new JsonObject();
+        stop.addProperty("emergencyStop", true);
+        Thread stopper = new Thread(() -> handler.handle("post", stop, "client2"));
+        stopper.start();
+        // the stop has to wait for the burst or the step, whichever it meets first
+        waitFor(() -> stopper.getState() == Thread.State.BLOCKED);
+        burst.release.countDown();
+        ramp.release.countDown();
+        for (Thread thread : List.of(stopper, dispatching, ramping)) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+
+        // nothing left to go out on later ticks either
+        tick(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, burst.speedsAfterStop);
+        assertEquals(0, ramp.speedsAfterStop);
+        assertEquals(0f, burst.speed);
+        assertEquals(0f, ramp.speed);
+        // and clients are left with the stop, not a speed reported after it
+        Map<Integer, Float> reported = new java.util.HashMap<>();
+        for (JsonObject message : broadcasts) {
+            JsonArray deltas = message.get("data").isJsonArray() ? message.getAsJsonArray("data") : null;
+            if (deltas == null) {
+                deltas = new JsonArray();
+                deltas.add(message.get("data"));
+            }
+            for (int i = 0; i < deltas.size(); i++) {
+                JsonObject delta = deltas.get(i).getAsJsonObject();
+                if (delta.has("speed")) {
+                    reported.put(delta.get("address").getAsInt(), delta.get("speed").getAsFloat());
+                }
+            }
+        }
+        assertEquals(Map.of(3, 0f, 4, 0f), reported);
+    }
+
+    @Test
+    void failedEmergencyStopIsAServerError() {
+        service.openThrottle(null, 3, false);
+        service.sessions.get("connA:3:false").failStop = true;
+        JsonObject stop = JsonParser.parseString(
+                "{\"type\":\"throttle\",\"method\":\"post\",\"clientId\":\"c\",\"data\":{\"emergencyStop\":true}}")
+                .getAsJsonObject();
+        JsonObject resp = messageHandler.handle(stop);
+        assertEquals(500, resp.getAsJsonObject("data").get("code").getAsInt());
+    }
+
+    @Test
+    void closedThrottlesAndTheirDispatcherAreDropped() throws Exception {
+        handler.shutdown();
+        handler = new JsonThrottleHandler(service, TimeUnit.HOURS.toMillis(1));
+        handler.setBroadcaster(broadcaster);
+        JsonObject post = new JsonObject();
+        post.addProperty("address", 3);
+        post.addProperty("speed", 0.5);
+        handler.handle("post", post, "client1");
+        FakeThrottleSession three = service.sessions.get("connA:3:false");
+        waitFor(() -> three.speed == 0.5f);
+        assertEquals(1, handler.getSpeedDispatchers().size());
+
+        service.closeThrottle("connA:3:false");
+        assertTrue(handler.getSpeedDispatchers().isEmpty());
+        // its counts are kept
+        assertEquals(1, handler.getSpeedCommandsSent());
+    }
+
+    @Test
+    void unchangedThrottlesAreAnsweredFromTheirSnapshot() {
+        JsonObject post = new JsonObject();
+        post.addProperty("address", 3);
+        post.addProperty("speed", 0.5);
+        handler.handle("post", post, "client1");
+
+        JsonObject list = JsonParser.parseString("{\"id\":\"r1\",\"type\":\"throttles\",\"method\":\"list\"}").getAsJsonObject();
+        JsonObject first = parse(messageHandler.handleSerialized(list));
+        assertEquals(messageHandler.handle(list), first);
+        assertEquals("r1", first.get("id").getAsString());
+        assertEquals(0.5f, first.getAsJsonArray("data").get(0).getAsJsonObject().get("speed").getAsFloat());
+
+        long captures = handler.getSnapshotCaptures();
+        long hits = handler.getSnapshotHits();
+        assertEquals(first, parse(messageHandler.handleSerialized(list)));
+        assertEquals(captures, handler.getSnapshotCaptures());
+        assertTrue(handler.getSnapshotHits() > hits);
+
+        post.addProperty("speed", 0.75);
+        handler.handle("post", post, "client1");
+        JsonObject get = JsonParser.parseString("{\"type\":\"throttle\",\"data\":{\"address\":3,\"compact\":true}}").getAsJsonObject();
+        JsonObject updated = parse(messageHandler.handleSerialized(get)).getAsJsonObject("data");
+        assertEquals(0.75f, updated.get("speed").getAsFloat());
+        assertEquals("0", updated.get("functionBits").getAsString());
+
+        // changed on the layout, not through the handler
+        FakeThrottleSession session = service.sessions.get("connA:3:false");
+        session.speed = 0.25f;
+        handler.throttleChanged(session);
+        assertEquals(0.25f, parse(messageHandler.handleSerialized(get)).getAsJsonObject("data").get("speed").getAsFloat());
+
+        JsonObject missing = JsonParser.parseString("{\"id\":\"r2\",\"type\":\"throttle\",\"data\":{}}").getAsJsonObject();
+        JsonObject error = parse(messageHandler.handleSerialized(missing));
+        assertEquals("error", error.get("type").getAsString());
+        assertEquals(400, error.getAsJsonObject("data").get("code").getAsInt());
+        assertEquals("r2", error.get("id").getAsString());
+    }
+
+    private static JsonObject parse(byte[] utf8) {
+        return JsonParser.parseString(new String(utf8, java.nio.charset.StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    @Test
+    void patchesAreOnlyBuiltForWatchedThrottles() {
+        service.openThrottle(null, 5, false);
+        service.openThrottle(null, 7, false);
+        broadcaster.watchedAddress = 7;
+
+        messageHandler.handle(speedPost(5, 0.5));
+        assertEquals(0, broadcaster.count);
+
+        messageHandler.handle(speedPost(7, 0.5));
+        assertTrue(broadcaster.count > 0);
+        assertEquals(7, broadcaster.lastData.get("address").getAsInt());
+        assertEquals("connA", broadcaster.lastData.get("connectionId").getAsString());
+    }
+
+    @Test
+    void binarySpeedUpdatesMatchTheJsonPath() {
+        service.openThrottle(null, 3, false);
+        ThrottleSession session = service.getThrottle("connA:3:false");
+
+        long[] json = jsonUpdates(2);
+        assertEquals(0.8f, session.getSpeed(), 0.01f);
+        long jsonPatch = broadcaster.last.toString().getBytes(StandardCharsets.UTF_8).length;
+
+        long[] binary = binaryUpdates(1);
+        assertEquals(0.2f, session.getSpeed(), 0.01f);
+        assertEquals(0.2f, broadcaster.lastData.get("speed").getAsFloat(), 0.01f);
+        long binaryPatch = BinaryThrottleProtocol.encodePatch(broadcaster.last).length;
+
+        assertEquals(BinaryThrottleProtocol.REQUEST_LENGTH, binary[0]);
+        assertEquals(BinaryThrottleProtocol.ACK_LENGTH, binary[1]);
+        assertTrue(json[0] / 2 > 10 * BinaryThrottleProtocol.REQUEST_LENGTH);
+        assertTrue(json[1] / 2 > 10 * BinaryThrottleProtocol.ACK_LENGTH);
+        assertTrue(binaryPatch < jsonPatch);
+    }
+
+    /**
+     * Alternate the speed of address 3 over the JSON path: parse the text
+     * frame and add the client id as {@link JsonWebSocketHandler} does, and
+     * serialize the answer.
+     *
+     * @return bytes received and sent
+     */
+    private long[] jsonUpdates(int updates) {
+        Gson gson = new Gson();
+        long[] bytes = new long[2];
+        for (int i = 0; i < updates; i++) {
+            String text = "{\"type\":\"throttle\",\"method\":\"post\",\"id\":\"" + i
+                    + "\",\"data\":{\"address\":3,\"speed\":" + (i % 2 == 0 ? 0.2 : 0.8) + "}}";
+            JsonObject message = gson.fromJson(text, JsonObject.class);
+            message.addProperty("clientId", "client1");
+            bytes[0] += text.getBytes(StandardCharsets.UTF_8).length;
+            bytes[1] += messageHandler.handleSerialized(message).length;
+        }
+        return bytes;
+    }
+
+    /**
+     * The same updates as binary SPEED frames.
+     */
+    private long[] binaryUpdates(int updates) {
+        long[] bytes = new long[2];
+        for (int i = 0; i < updates; i++) {
+            byte[] frame = {BinaryThrottleProtocol.SPEED, (byte) (i >> 8), (byte) i, 0, 3, (byte) (i % 2 == 0 ? 51 : 204)};
+            byte[] ack = messageHandler.handleBinary(ByteBuffer.wrap(frame), "client1");
+            assertEquals(BinaryThrottleProtocol.CHANGED, ByteBuffer.wrap(ack).getShort(3));
+            bytes[0] += frame.length;
+            bytes[1] += ack.length;
+        }
+        return bytes;
+    }
+
+    private static JsonObject speedPost(int address, double speed) {
+        JsonObject post = new JsonObject();
+        post.addProperty("type", "throttle");
+        post.addProperty("method", "post");
+        post.addProperty("clientId", "client1");
+        JsonObject data = new JsonObject();
+        data.addProperty("address", address);
+        data.addProperty("speed", speed);
+        post.add("data", data);
+        return post;
+    }
+
+    @Test
+    void functionBitsRoundTrip() {
+        java.util.BitSet bits = new java.util.BitSet();
+        assertEquals("0", JsonThrottleHandler.formatFunctionBits(bits));
+        bits.set(0);
+        bits.set(63);
+        bits.set(64);
+        bits.set(68);
+        String hex = JsonThrottleHandler.formatFunctionBits(bits);
+        assertEquals("118000000000000001", hex);
+        assertEquals(bits, JsonThrottleHandler.parseFunctionBits(hex));
+        assertEquals(bits, JsonThrottleHandler.parseFunctionBits("0x" + hex.toUpperCase()));
+        assertThrows(IllegalArgumentException.class, () -> JsonThrottleHandler.parseFunctionBits("xyz"));
+    }
+
+    /** One tick of the momentum engine and every dispatcher, at {@code now}. */
+    private void tick(long now) {
+        handler.getMomentumEngine().advance(now);
+        for (SpeedDispatcher dispatcher : handler.getSpeedDispatchers()) {
+            dispatcher.collectAndSend(now);
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(5);
+        }
+    }
+
     private static final class FakeThrottleService implements JsonThrottleHandler.ThrottleService {
         private final Map<String, FakeThrottleSession> sessions = new ConcurrentHashMap<>();
+        private final List<java.util.function.Consumer<ThrottleSession>> closeListeners = new CopyOnWriteArrayList<>();
         private int counter = 0;
 
         @Override
@@ -198,21 +679,38 @@ class JsonThrottleHandlerTest {
 
         @Override
         public void closeThrottle(String throttleId) {
-            FakeThrottleSession sess = sessions.get(throttleId);
+            FakeThrottleSession sess = sessions.remove(throttleId);
             if (sess != null) {
                 sess.close();
+                for (java.util.function.Consumer<ThrottleSession> listener : closeListeners) {
+                    listener.accept(sess);
+                }
             }
         }
+
+        @Override
+        public void addCloseListener(java.util.function.Consumer<ThrottleSession> listener) {
+            closeListeners.add(listener);
+        }
     }
 
     private static final class FakeThrottleSession implements ThrottleSession {
         private final String connectionId;
         private final int address;
         private final boolean longAddress;
-        private float speed = 0f;
+        private volatile float speed = 0f;
         private boolean forward = true;
         private final Map<Integer, Boolean> functions = new ConcurrentHashMap<>();
         private boolean closed = false;
+        private int functionBatches = 0;
+        private volatile int speedCommands = 0;
+        private volatile boolean stopped;
+        private volatile int speedsAfterStop;
+        private volatile boolean failStop;
+        // when set, the next setSpeed or getSpeed waits until released
+        private final AtomicBoolean holdNext = new AtomicBoolean();
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
 
         private FakeThrottleSession(String connectionId, int address, boolean longAddress) {
             this.connectionId = connectionId;
@@ -237,7 +735,21 @@ class JsonThrottleHandlerTest {
 
         @Override
         public void setSpeed(float speed) {
+            hold();
+            if (stopped && speed > 0) {
+                speedsAfterStop++;
+            }
             this.speed = speed;
+            speedCommands++;
+        }
+
+        @Override
+        public void emergencyStop() throws IOException {
+            if (failStop) {
+                throw new IOException("No reply from command station");
+            }
+            stopped = true;
+            speed = 0f;
         }
 
         @Override
@@ -250,11 +762,30 @@ class JsonThrottleHandlerTest {
             functions.put(functionNumber, on);
         }
 
+        @Override
+        public void setFunctions(BitSet mask, BitSet states) throws IOException {
+            functionBatches++;
+            ThrottleSession.super.setFunctions(mask, states);
+        }
+
         @Override
         public float getSpeed() {
+            hold();
             return speed;
         }
 
+        private void hold() {
+            if (!holdNext.compareAndSet(true, false)) {
+                return;
+            }
+            held.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         @Override
         public boolean getDirection() {
             return forward;
@@ -275,12 +806,23 @@ class JsonThrottleHandlerTest {
         String lastType;
         String lastMethod;
         JsonObject lastData;
+        JsonObject last;
+        int count;
+        Integer watchedAddress; // null: every address has subscribers
+
+        @Override
+        public boolean hasSubscribers(String type, String connectionId, Integer address) {
+            return watchedAddress == null || watchedAddress.equals(address);
+        }
 
         @Override
         public void broadcast(JsonObject message) {
+            count++;
+            last = message;
             lastType = message.get("type").getAsString();
             lastMethod = message.has("method") ? message.get("method").getAsString() : null;
-            lastData = message.getAsJsonObject("data");
+            // batches carry an array of deltas
+            lastData = message.get("data").isJsonObject() ? message.getAsJsonObject("data") : null;
         }
     }
 }
@@ -3,13 +3,17 @@ package org.dccio.daemon;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.Protocol;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -60,6 +64,31 @@ class JsonWebSocketHandlerTest {
         client.closeBlocking();
     }
 
+    @Test
+    void binarySubprotocolIsNegotiatedAndAcknowledged() throws Exception {
+        JsonMessageHandler handler = new JsonMessageHandler();
+        int port = findFreePort();
+        server = new JsonWebSocketHandler(port, "/json", handler);
+        server.start();
+        Thread.sleep(100); // allow server startup
+
+        Draft_6455 binaryDraft = new Draft_6455(Collections.emptyList(),
+                Collections.singletonList(new Protocol(BinaryThrottleProtocol.SUBPROTOCOL)));
+        RecordingWebSocketClient client = new RecordingWebSocketClient(new URI("ws://localhost:" + port + "/json"), binaryDraft);
+        assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+        assertEquals(BinaryThrottleProtocol.SUBPROTOCOL, client.getProtocol().getProvidedProtocol());
+
+        client.send(new byte[] {BinaryThrottleProtocol.SPEED, 0x00, 0x2A, 0x00, 0x03, 0x40});
+        ByteBuffer ack = client.frames.poll(5, TimeUnit.SECONDS);
+        assertNotNull(ack);
+        assertEquals(BinaryThrottleProtocol.ACK, ack.get(0) & 0xFF);
+        assertEquals(0x2A, ack.getShort(1));
+        // no throttle handler registered
+        assertEquals(404, ack.getShort(3));
+
+        client.closeBlocking();
+    }
+
     private int findFreePort() throws IOException {
         try (ServerSocket socket = new ServerSocket(0)) {
             socket.setReuseAddress(true);
@@ -70,11 +99,16 @@ class JsonWebSocketHandlerTest {
     private static final class RecordingWebSocketClient extends WebSocketClient {
 
         private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<>();
 
         RecordingWebSocketClient(URI serverUri) {
             super(serverUri);
         }
 
+        RecordingWebSocketClient(URI serverUri, Draft_6455 draft) {
+            super(serverUri, draft);
+        }
+
         @Override
         public void onOpen(ServerHandshake handshakedata) {
         }
@@ -84,6 +118,11 @@ class JsonWebSocketHandlerTest {
             messages.add(message);
         }
 
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            frames.add(bytes);
+        }
+
         @Override
         public void onClose(int code, String reason, boolean remote) {
         }